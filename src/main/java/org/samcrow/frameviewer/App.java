@@ -8,6 +8,8 @@ import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javafx.application.Application;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.Scene;
@@ -22,6 +24,10 @@ import javafx.stage.Stage;
 import jfxtras.labs.dialogs.MonologFX;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.samcrow.frameviewer.io3.DatabaseTrajectoryDataStore;
+import org.samcrow.frameviewer.io3.FileTrajectoryStore;
+import org.samcrow.frameviewer.io3.SqlTrajectoryStore;
+import org.samcrow.frameviewer.io3.TrajectoryStore;
+import org.samcrow.frameviewer.io3.TrajectoryWindow;
 import org.samcrow.frameviewer.ui.db.DatabaseConnectionDialog;
 
 /**
@@ -69,7 +75,19 @@ public class App extends Application {
                 stop();
             }
             
-            trajectoryDataStore = new DatabaseTrajectoryDataStore(dialog.getConnection(), dialog.getPointsTableName(), dialog.getTrajectoriesTableName());
+            if (dialog.getDataFile() != null) {
+                // Local files do not need a journal
+                trajectoryDataStore = new DatabaseTrajectoryDataStore(new FileTrajectoryStore(dialog.getDataFile()));
+            }
+            else {
+                // Open a new connection if the network connection is lost
+                final TrajectoryStore store = new SqlTrajectoryStore(dialog.getConnection(), dialog.getConnectionSource(),
+                        dialog.getPointsTableName(), dialog.getTrajectoriesTableName(), dialog.isCompactEnumColumnsSelected());
+                // Keep edits in a local journal until they are in the database
+                final File journalFile = journalFileFor(dialog.getConnection().getMetaData().getURL(), dialog.getTrajectoriesTableName());
+                // Load only the trajectories near the current frame
+                trajectoryDataStore = new DatabaseTrajectoryDataStore(store, journalFile, new TrajectoryWindow());
+            }
             FrameFinder finder = new FrameFinder(frameDir);
             model = new DataStoringPlaybackControlModel(finder, trajectoryDataStore);
 
@@ -86,6 +104,18 @@ public class App extends Application {
             // Hook up the trajectory display options
             canvas.displayModeProperty().bindBidirectional(controls.trajectoryDisplayModeProperty());
             canvas.trajectoryAlphaProperty().bindBidirectional(controls.trajectoryAlphaProperty());
+            canvas.trailLengthProperty().bindBidirectional(controls.trailLengthProperty());
+            // Show the number of edits waiting to be saved, and report
+            // edits that could not be saved
+            controls.pendingWritesProperty().bind(trajectoryDataStore.pendingWritesProperty());
+            trajectoryDataStore.writeFailureProperty().addListener(new ChangeListener<IOException>() {
+                @Override
+                public void changed(ObservableValue<? extends IOException> ov, IOException oldFailure, IOException failure) {
+                    if (failure != null) {
+                        showDialog(failure);
+                    }
+                }
+            });
             // Hook up trajectory tool select
             canvas.trajectoryToolProperty().bindBidirectional(controls.trajectoryToolProperty());
             // Hook up refresh action
@@ -109,6 +139,19 @@ public class App extends Application {
             Scene scene = new Scene(root);
 
             controls.setupAccelerators();
+            // Undo and redo trajectory edits
+            scene.getAccelerators().put(KeyCombination.keyCombination("Shortcut+Z"), new Runnable() {
+                @Override
+                public void run() {
+                    model.undo();
+                }
+            });
+            scene.getAccelerators().put(KeyCombination.keyCombination("Shortcut+Shift+Z"), new Runnable() {
+                @Override
+                public void run() {
+                    model.redo();
+                }
+            });
 
             stage.setScene(scene);
             stage.show();
@@ -120,6 +163,23 @@ public class App extends Application {
         }
     }
 
+    /**
+     * Returns the file in the user's home directory that journals the
+     * writes to a data set in a database
+     * <p>
+     * @param databaseUrl The JDBC URL of the database
+     * @param trajectoriesTableName
+     * @return The journal file
+     */
+    private static File journalFileFor(String databaseUrl, String trajectoriesTableName) {
+        // Remove the parameters and the connection type
+        String name = databaseUrl.replaceFirst("\\?.*$", "").replaceFirst("^jdbc:[^:]*://", "")
+                + "_" + trajectoriesTableName;
+        name = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        final File directory = new File(System.getProperty("user.home"), ".frameviewer");
+        return new File(directory, name + ".journal");
+    }
+
     private void showDialog(Exception ex) {
         MonologFX dialog = new MonologFX(MonologFX.Type.ERROR);
         dialog.setTitle(ex.toString());
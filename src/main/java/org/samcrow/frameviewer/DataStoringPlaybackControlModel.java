@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.logging.Logger;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
+import org.samcrow.frameviewer.io3.DatabaseTrajectoryDataStore;
 import org.samcrow.frameviewer.trajectory.Trajectory;
 
 public class DataStoringPlaybackControlModel extends PlaybackControlModel {
@@ -74,9 +75,32 @@ public class DataStoringPlaybackControlModel extends PlaybackControlModel {
         // TODO
     }
 
+    /**
+     * Undoes the most recent edit to the trajectories, if the data store
+     * records edits
+     */
     public void undo() {
-        
-        // TODO
+        if (trajectoryDataStore instanceof DatabaseTrajectoryDataStore) {
+            ((DatabaseTrajectoryDataStore) trajectoryDataStore).undo();
+            repaintCanvas();
+        }
+    }
+
+    /**
+     * Redoes the most recently undone edit to the trajectories, if the data
+     * store records edits
+     */
+    public void redo() {
+        if (trajectoryDataStore instanceof DatabaseTrajectoryDataStore) {
+            ((DatabaseTrajectoryDataStore) trajectoryDataStore).redo();
+            repaintCanvas();
+        }
+    }
+
+    private void repaintCanvas() {
+        if (canvas != null) {
+            canvas.repaint();
+        }
     }
 
 }
@@ -1,5 +1,6 @@
 package org.samcrow.frameviewer;
 
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -23,6 +24,11 @@ import javafx.collections.ObservableList;
  * This class is observable, so other classes can be notified when it changes.
  * This can be used to keep track of data save status.
  * <p/>
+ * Many changes can be grouped into a batch with {@link #beginBatch()} and
+ * {@link #commit()}. While a batch is open, no events are fired. When the
+ * batch is committed, one event is fired, and the frames that changed are
+ * available from {@link #getLastChangedFrames()}.
+ * <p/>
  * @param <T> The type of data to store.
  * @author Sam Crow
  */
@@ -35,6 +41,26 @@ public class FrameDataStore<T extends FrameObject> extends ObservableValueBase<F
      */
     private final IntegerProperty currentFrame = new SimpleIntegerProperty();
 
+    /**
+     * The number of batches that have been started and not committed
+     */
+    private int batchDepth;
+
+    /**
+     * The frames changed in the open batch
+     */
+    private final BitSet batchFrames = new BitSet();
+
+    /**
+     * True if anything changed in the open batch
+     */
+    private boolean batchChanged;
+
+    /**
+     * The frames changed by the last event
+     */
+    private BitSet lastChangedFrames = new BitSet();
+
     /**
      * Makes a deep copy of another frame data store. Copies each
      * frame's list of markers. The markers themselves are not copied,
@@ -89,11 +115,11 @@ public class FrameDataStore<T extends FrameObject> extends ObservableValueBase<F
 
 
         List<T> oldValue = data.get(frame);
+        data.set(frame, value);
+
         if (!Objects.equals(oldValue, value)) {
-            fireValueChangedEvent();
+            changed(frame);
         }
-
-        data.set(frame, value);
     }
 
     public List<T> getFrameData(int frame) {
@@ -101,7 +127,7 @@ public class FrameDataStore<T extends FrameObject> extends ObservableValueBase<F
 
         List<T> list = data.get(frame);
         if (list == null) {
-            list = createList();
+            list = createFrameList(frame);
             data.set(frame, list);
         }
         return list;
@@ -131,6 +157,77 @@ public class FrameDataStore<T extends FrameObject> extends ObservableValueBase<F
         currentFrame.set(newFrame);
     }
 
+    /**
+     * Starts a batch of changes. Batches can be nested: one event is fired
+     * when the outermost batch is committed.
+     * <p/>
+     * Every call to this method must be matched by a call to
+     * {@link #commit()}, usually in a finally block.
+     */
+    public void beginBatch() {
+        if (batchDepth == 0) {
+            batchFrames.clear();
+            batchChanged = false;
+        }
+        batchDepth++;
+    }
+
+    /**
+     * Ends a batch of changes. If this ends the outermost batch and anything
+     * changed, one invalidation event is fired.
+     * <p/>
+     * @throws IllegalStateException if no batch is open
+     */
+    public void commit() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("No batch to commit");
+        }
+        batchDepth--;
+        if (batchDepth == 0 && batchChanged) {
+            lastChangedFrames = (BitSet) batchFrames.clone();
+            fireValueChangedEvent();
+        }
+    }
+
+    /**
+     * @return true if a batch is open
+     */
+    public final boolean isInBatch() {
+        return batchDepth != 0;
+    }
+
+    /**
+     * Returns the frames whose data changed in the last event. This can be
+     * called by a listener when this data store is invalidated.
+     * <p/>
+     * @return A copy of the set of frame numbers
+     */
+    public BitSet getLastChangedFrames() {
+        return (BitSet) lastChangedFrames.clone();
+    }
+
+    /**
+     * Records a change and fires an event if no batch is open
+     * <p/>
+     * @param frame The frame that changed, or a negative number if the
+     * frame is not known
+     */
+    private void changed(int frame) {
+        if (batchDepth != 0) {
+            batchChanged = true;
+            if (frame >= 0) {
+                batchFrames.set(frame);
+            }
+        }
+        else {
+            lastChangedFrames = new BitSet();
+            if (frame >= 0) {
+                lastChangedFrames.set(frame);
+            }
+            fireValueChangedEvent();
+        }
+    }
+
     /**
      * An invalidation listener that invalidates this data store
      */
@@ -150,7 +247,7 @@ public class FrameDataStore<T extends FrameObject> extends ObservableValueBase<F
             invalidationListener = new InvalidationListener() {
                 @Override
                 public void invalidated(Observable o) {
-                    fireValueChangedEvent();
+                    changed(-1);
                 }
             };
         }
@@ -159,6 +256,24 @@ public class FrameDataStore<T extends FrameObject> extends ObservableValueBase<F
         return list;
     }
 
+    /**
+     * Creates a list for the data on one frame and configures it to
+     * invalidate this data store when it changes
+     * <p/>
+     * @param frame The frame that the list is for
+     * @return
+     */
+    private List<T> createFrameList(final int frame) {
+        ObservableList<T> list = FXCollections.observableList(new LinkedList<T>());
+        list.addListener(new InvalidationListener() {
+            @Override
+            public void invalidated(Observable o) {
+                changed(frame);
+            }
+        });
+        return list;
+    }
+
     /**
      * Returns an iterator over all the lists of data for which this data
      * store has a value. This iterator supports all the optional operations.
@@ -0,0 +1,338 @@
+package org.samcrow.frameviewer;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * An index of objects by the range of frames that they cover, which can
+ * quickly find the objects that overlap a range of frames
+ * <p/>
+ * This is an interval tree: a randomized balanced binary search tree
+ * (a treap) ordered by first frame, where each node also records the
+ * largest last frame in its subtree. Finding the objects that overlap a
+ * range does not need to look at subtrees that end before the range or
+ * start after it. A second tree, ordered by last frame, finds the objects
+ * that end in a range of frames.
+ * <p/>
+ * The frame range of each object is recorded when it is added. If the
+ * range of an object changes, {@link #update(MultiFrameObject)} must be
+ * called.
+ * <p/>
+ * Objects are compared by identity.
+ * <p/>
+ * @param <T> The type of object to index
+ * @author Sam Crow
+ */
+public class IntervalIndex<T extends MultiFrameObject> {
+
+    /**
+     * The root of the tree ordered by first frame
+     */
+    private Node<T> root;
+
+    /**
+     * The root of the tree ordered by last frame
+     */
+    private Node<T> endRoot;
+
+    /**
+     * Maps each indexed object to its node in the tree ordered by first
+     * frame
+     */
+    private final Map<T, Node<T>> nodes = new IdentityHashMap<>();
+
+    private final Random random = new Random();
+
+    /**
+     * Used to order objects with the same first frame
+     */
+    private long nextSequence;
+
+    /**
+     * Adds an object to this index. If the object is already in this index,
+     * its frame range is updated.
+     * <p/>
+     * @param object
+     */
+    public void add(T object) {
+        if (nodes.containsKey(object)) {
+            update(object);
+            return;
+        }
+        final long sequence = nextSequence++;
+        final Node<T> node = new Node<>(object, random.nextInt(), sequence);
+        node.twin = new Node<>(object, random.nextInt(), sequence);
+        setRange(node, object.getFirstFrame(), object.getLastFrame());
+        nodes.put(object, node);
+        root = insert(root, node);
+        endRoot = insert(endRoot, node.twin);
+    }
+
+    /**
+     * Removes an object from this index
+     * <p/>
+     * @param object
+     * @return true if the object was in this index
+     */
+    public boolean remove(T object) {
+        final Node<T> node = nodes.remove(object);
+        if (node == null) {
+            return false;
+        }
+        root = delete(root, node);
+        endRoot = delete(endRoot, node.twin);
+        return true;
+    }
+
+    /**
+     * Records a change to the frame range of an object. Does nothing if the
+     * object is not in this index.
+     * <p/>
+     * @param object
+     */
+    public void update(T object) {
+        final Node<T> node = nodes.get(object);
+        if (node == null || (node.start == object.getFirstFrame() && node.end == object.getLastFrame())) {
+            return;
+        }
+        root = delete(root, node);
+        endRoot = delete(endRoot, node.twin);
+        setRange(node, object.getFirstFrame(), object.getLastFrame());
+        root = insert(root, node);
+        endRoot = insert(endRoot, node.twin);
+    }
+
+    public boolean contains(T object) {
+        return nodes.containsKey(object);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public void clear() {
+        root = null;
+        endRoot = null;
+        nodes.clear();
+    }
+
+    /**
+     * Finds the objects that are present on at least one frame in a range
+     * <p/>
+     * @param low The first frame of the range
+     * @param high The last frame of the range
+     * @param results The collection to add the objects to. Objects are added
+     * in order of first frame.
+     */
+    public void findOverlapping(int low, int high, Collection<? super T> results) {
+        findOverlapping(root, low, high, results);
+    }
+
+    /**
+     * Finds the objects with first frames in a range
+     * <p/>
+     * @param low The lowest first frame to include
+     * @param high The highest first frame to include
+     * @param results The collection to add the objects to
+     */
+    public void findStartingBetween(int low, int high, Collection<? super T> results) {
+        findKeysBetween(root, low, high, results);
+    }
+
+    /**
+     * Finds the objects with last frames in a range
+     * <p/>
+     * @param low The lowest last frame to include
+     * @param high The highest last frame to include
+     * @param results The collection to add the objects to
+     */
+    public void findEndingBetween(int low, int high, Collection<? super T> results) {
+        findKeysBetween(endRoot, low, high, results);
+    }
+
+    private static <T> void findKeysBetween(Node<T> node, int low, int high, Collection<? super T> results) {
+        while (node != null) {
+            if (node.key < low) {
+                node = node.right;
+            }
+            else if (node.key > high) {
+                node = node.left;
+            }
+            else {
+                findKeysBetween(node.left, low, high, results);
+                results.add(node.object);
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Sets the frame range of a node and its twin
+     */
+    private static <T> void setRange(Node<T> node, int start, int end) {
+        node.start = start;
+        node.end = end;
+        node.key = start;
+        node.twin.start = start;
+        node.twin.end = end;
+        node.twin.key = end;
+    }
+
+    private static <T> void findOverlapping(Node<T> node, int low, int high, Collection<? super T> results) {
+        while (node != null && node.maxEnd >= low) {
+            findOverlapping(node.left, low, high, results);
+            if (node.start > high) {
+                // This node and everything to its right start too late
+                return;
+            }
+            if (node.end >= low) {
+                results.add(node.object);
+            }
+            node = node.right;
+        }
+    }
+
+    private static <T> Node<T> insert(Node<T> parent, Node<T> node) {
+        if (parent == null) {
+            node.left = null;
+            node.right = null;
+            node.maxEnd = node.end;
+            return node;
+        }
+        if (node.compareTo(parent) < 0) {
+            parent.left = insert(parent.left, node);
+            if (parent.left.priority > parent.priority) {
+                parent = rotateRight(parent);
+            }
+        }
+        else {
+            parent.right = insert(parent.right, node);
+            if (parent.right.priority > parent.priority) {
+                parent = rotateLeft(parent);
+            }
+        }
+        parent.updateMaxEnd();
+        return parent;
+    }
+
+    private static <T> Node<T> delete(Node<T> parent, Node<T> node) {
+        if (parent == node) {
+            return merge(node.left, node.right);
+        }
+        if (node.compareTo(parent) < 0) {
+            parent.left = delete(parent.left, node);
+        }
+        else {
+            parent.right = delete(parent.right, node);
+        }
+        parent.updateMaxEnd();
+        return parent;
+    }
+
+    /**
+     * Merges two subtrees, where every node in the left one is ordered
+     * before every node in the right one
+     */
+    private static <T> Node<T> merge(Node<T> left, Node<T> right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            left.updateMaxEnd();
+            return left;
+        }
+        else {
+            right.left = merge(left, right.left);
+            right.updateMaxEnd();
+            return right;
+        }
+    }
+
+    private static <T> Node<T> rotateRight(Node<T> node) {
+        final Node<T> newTop = node.left;
+        node.left = newTop.right;
+        newTop.right = node;
+        node.updateMaxEnd();
+        newTop.updateMaxEnd();
+        return newTop;
+    }
+
+    private static <T> Node<T> rotateLeft(Node<T> node) {
+        final Node<T> newTop = node.right;
+        node.right = newTop.left;
+        newTop.left = node;
+        node.updateMaxEnd();
+        newTop.updateMaxEnd();
+        return newTop;
+    }
+
+    private static class Node<T> implements Comparable<Node<T>> {
+
+        final T object;
+
+        final int priority;
+
+        final long sequence;
+
+        /**
+         * The first frame of the object when it was indexed
+         */
+        int start;
+
+        /**
+         * The last frame of the object when it was indexed
+         */
+        int end;
+
+        /**
+         * The value that the tree containing this node is ordered by:
+         * start or end
+         */
+        int key;
+
+        /**
+         * The largest end of this node and its descendants
+         */
+        int maxEnd;
+
+        /**
+         * The node for the same object in the other tree
+         */
+        Node<T> twin;
+
+        Node<T> left;
+
+        Node<T> right;
+
+        public Node(T object, int priority, long sequence) {
+            this.object = object;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        final void updateMaxEnd() {
+            int max = end;
+            if (left != null && left.maxEnd > max) {
+                max = left.maxEnd;
+            }
+            if (right != null && right.maxEnd > max) {
+                max = right.maxEnd;
+            }
+            maxEnd = max;
+        }
+
+        @Override
+        public int compareTo(Node<T> other) {
+            if (key != other.key) {
+                return key < other.key ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -1,13 +1,27 @@
 package org.samcrow.frameviewer;
 
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.value.ObservableValueBase;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 
 /**
  * Stores data associated with frames. Each frame can have any number
@@ -19,20 +33,184 @@ import javafx.beans.value.ObservableValueBase;
  * This class is observable, so other classes can be notified when it changes.
  * This can be used to keep track of data save status.
  * <p/>
+ * Many changes can be grouped into a batch with {@link #beginBatch()} and
+ * {@link #commit()}. While a batch is open, the active objects are not
+ * updated and no events are fired. When the batch is committed, the
+ * active objects are updated once, and one event is fired. The objects
+ * that the batch added, removed, and modified are available from
+ * {@link #getLastChange()}.
+ * <p/>
+ * Except for {@link #getSnapshot()} and {@link #getVersion()}, the methods
+ * of this class must be called on one thread, normally the JavaFX
+ * application thread. Other threads can read the data using snapshots.
+ * Snapshots are only made when they are asked for. The objects are
+ * divided into chunks, and a new snapshot shares the chunks of the last
+ * snapshot that have not changed.
+ * <p/>
  * @param <T> The type of data to store.
  * @author Sam Crow
  */
 public class MultiFrameDataStore<T extends MultiFrameObject> extends ObservableValueBase<MultiFrameDataStore<T>> implements Iterable<T> {
 
-    protected final List<T> data = createList();
+    private final List<T> data = createList();
+
+    /**
+     * A read-only view of data
+     */
+    private final List<T> readOnlyData = Collections.unmodifiableList(data);
+
+    /**
+     * Indexes the objects in data by frame range
+     */
+    private final IntervalIndex<T> index = new IntervalIndex<>();
 
     /**
      * The current frame for which data is returned
      */
     private final IntegerProperty currentFrame = new SimpleIntegerProperty();
+
+    /**
+     * Incremented whenever the stored data changes. This is only changed
+     * by the thread that changes this data store, and is volatile so that
+     * other threads can read it.
+     */
+    private volatile long version;
+
+    /**
+     * The last published snapshot
+     */
+    private volatile Snapshot<T> snapshot = new Snapshot<>(0, Collections.<T>emptyList());
+
+    /**
+     * The executor used to publish snapshots when they are asked for, or
+     * null if snapshots are only published by calling publishSnapshot
+     */
+    private volatile Executor snapshotExecutor;
+
+    /**
+     * True if a snapshot has been submitted to the executor and has not
+     * been published yet
+     */
+    private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+
+    /**
+     * True if a snapshot was asked for during a batch, so it should be
+     * published when the batch is committed
+     */
+    private boolean publishAfterBatch;
+
+    /**
+     * The number of slots in each chunk of a snapshot
+     */
+    static final int SNAPSHOT_CHUNK_SIZE = 256;
+
+    /**
+     * The slot of each object in data. Each object keeps its slot until it
+     * is removed, so that a change to one object only changes the chunk
+     * that contains its slot.
+     */
+    private final Map<T, Integer> slots = new IdentityHashMap<>();
+
+    /**
+     * The object in each slot, or null if the slot is free
+     */
+    private final List<T> slotObjects = new ArrayList<>();
+
+    /**
+     * Slots that have been freed and can be reused
+     */
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+
+    /**
+     * The chunks that have changed since the last snapshot was published
+     */
+    private final BitSet changedChunks = new BitSet();
+
+    /**
+     * True if objects may have changed without this data store knowing
+     * which ones, so every chunk must be checked
+     */
+    private boolean allChunksChanged;
+
+    /**
+     * The chunks of the last published snapshot
+     */
+    private Object[][] publishedChunks = new Object[0][];
+
+    /**
+     * The range used to choose the active objects
+     */
+    private final IntegerProperty activeRange = new SimpleIntegerProperty(20);
+
+    /**
+     * The objects within activeRange of the current frame
+     */
+    private final ObservableList<T> activeObjects = FXCollections.observableArrayList();
+
+    private final ObservableList<T> readOnlyActiveObjects = FXCollections.unmodifiableObservableList(activeObjects);
+
+    /**
+     * The objects in activeObjects, for fast lookup
+     */
+    private final Set<T> activeSet = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+
+    /**
+     * The first frame of the window that activeObjects is up to date for
+     */
+    private int activeLow;
+
+    /**
+     * The last frame of the window that activeObjects is up to date for
+     */
+    private int activeHigh;
+
+    /**
+     * The number of batches that have been started and not committed
+     */
+    private int batchDepth;
+
+    /**
+     * The changes made in the open batch, or null if no batch is open
+     */
+    private Change<T> batchChange;
+
+    /**
+     * The version when the outermost open batch was started
+     */
+    private long batchStartVersion;
+
+    /**
+     * True if the active objects need to be rebuilt when the open batch is
+     * committed
+     */
+    private boolean activeStale;
+
+    /**
+     * The changes made by the last committed batch
+     */
+    private Change<T> lastChange = new Change<>();
     
     public MultiFrameDataStore() {
-        
+        activeLow = getActiveLow();
+        activeHigh = getActiveHigh();
+
+        currentFrame.addListener(new InvalidationListener() {
+            @Override
+            public void invalidated(Observable o) {
+                moveActiveWindow();
+            }
+        });
+        activeRange.addListener(new InvalidationListener() {
+            @Override
+            public void invalidated(Observable o) {
+                if (batchDepth != 0) {
+                    activeStale = true;
+                }
+                else {
+                    rebuildActiveObjects();
+                }
+            }
+        });
     }
     
     /**
@@ -50,18 +228,162 @@ public class MultiFrameDataStore<T extends MultiFrameObject> extends ObservableV
      * for a frame within range of the current frame
      */
     public List<T> getObjectsNearCurrentFrame(int range) {
-        List<T> list = new LinkedList<>();
-        
-        for(T object : this) {
-            final int firstFrameDifference = object.getFirstFrame() - getCurrentFrame();
-            final int lastFrameDifference = getCurrentFrame() - object.getLastFrame();
-            
-            if(firstFrameDifference < range && lastFrameDifference < range) {
-                list.add(object);
+        final List<T> list = new ArrayList<>();
+        // An object is near if it starts less than range frames after the
+        // current frame and ends less than range frames before it
+        index.findOverlapping(getCurrentFrame() - range + 1, getCurrentFrame() + range - 1, list);
+        return list;
+    }
+
+    /**
+     * Returns the objects that are within the active range of the current
+     * frame, using the same rule as {@link #getObjectsNearCurrentFrame(int)}.
+     * <p/>
+     * The returned list is kept up to date as the current frame, the active
+     * range, and the stored objects change, so it can be used instead of
+     * calling getObjectsNearCurrentFrame after every change. When the
+     * current frame moves by less than the width of the range, only the
+     * objects that start or end in the frames that the range has moved over
+     * are checked. Listeners on the list receive the objects that were
+     * added and removed. While a batch is open, the list is not updated
+     * until the batch is committed. The list cannot be modified directly.
+     * <p/>
+     * @return The active objects, in no particular order
+     */
+    public ObservableList<T> getActiveObjects() {
+        return readOnlyActiveObjects;
+    }
+
+    public final IntegerProperty activeRangeProperty() {
+        return activeRange;
+    }
+
+    public final int getActiveRange() {
+        return activeRange.get();
+    }
+
+    public final void setActiveRange(int range) {
+        activeRange.set(range);
+    }
+
+    private int getActiveLow() {
+        return getCurrentFrame() - getActiveRange() + 1;
+    }
+
+    private int getActiveHigh() {
+        return getCurrentFrame() + getActiveRange() - 1;
+    }
+
+    /**
+     * Updates the active objects after the current frame has changed
+     */
+    private void moveActiveWindow() {
+        if (batchDepth != 0) {
+            activeStale = true;
+            return;
+        }
+        final int newLow = getActiveLow();
+        final int newHigh = getActiveHigh();
+        final int shift = newLow - activeLow;
+        if (shift == 0) {
+            return;
+        }
+        if (Math.abs(shift) > Math.max(1, activeHigh - activeLow + 1)) {
+            // The windows do not overlap, so checking the frames in between
+            // would take longer than starting again
+            rebuildActiveObjects();
+            return;
+        }
+
+        final List<T> candidates = new ArrayList<>();
+        final Set<T> leaving = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+        final List<T> entering = new ArrayList<>();
+        if (shift > 0) {
+            // Objects that end in the frames left behind
+            index.findEndingBetween(activeLow, newLow - 1, candidates);
+            for (T object : candidates) {
+                if (activeSet.contains(object)) {
+                    leaving.add(object);
+                }
+            }
+            // Objects that start in the frames moved into
+            candidates.clear();
+            index.findStartingBetween(activeHigh + 1, newHigh, candidates);
+            for (T object : candidates) {
+                if (object.getLastFrame() >= newLow && !activeSet.contains(object)) {
+                    entering.add(object);
+                }
             }
         }
-        
-        return list;
+        else {
+            index.findStartingBetween(newHigh + 1, activeHigh, candidates);
+            for (T object : candidates) {
+                if (activeSet.contains(object)) {
+                    leaving.add(object);
+                }
+            }
+            candidates.clear();
+            index.findEndingBetween(newLow, activeLow - 1, candidates);
+            for (T object : candidates) {
+                if (object.getFirstFrame() <= newHigh && !activeSet.contains(object)) {
+                    entering.add(object);
+                }
+            }
+        }
+        activeLow = newLow;
+        activeHigh = newHigh;
+
+        if (!leaving.isEmpty()) {
+            activeSet.removeAll(leaving);
+            activeObjects.removeAll(leaving);
+        }
+        if (!entering.isEmpty()) {
+            activeSet.addAll(entering);
+            activeObjects.addAll(entering);
+        }
+    }
+
+    /**
+     * Replaces all the active objects with objects found using the index
+     */
+    private void rebuildActiveObjects() {
+        activeLow = getActiveLow();
+        activeHigh = getActiveHigh();
+        final List<T> objects = new ArrayList<>();
+        index.findOverlapping(activeLow, activeHigh, objects);
+        activeSet.clear();
+        activeSet.addAll(objects);
+        activeObjects.setAll(objects);
+    }
+
+    /**
+     * Adds an object to or removes an object from the active objects,
+     * depending on its frame range
+     * <p/>
+     * @param object
+     */
+    private void updateActive(T object) {
+        if (batchDepth != 0) {
+            activeStale = true;
+            return;
+        }
+        final boolean active = object.getFirstFrame() <= activeHigh && object.getLastFrame() >= activeLow;
+        if (active && activeSet.add(object)) {
+            activeObjects.add(object);
+        }
+        else if (!active) {
+            deactivate(object);
+        }
+    }
+
+    private void deactivate(T object) {
+        if (batchDepth != 0) {
+            activeStale = true;
+            return;
+        }
+        if (activeSet.remove(object)) {
+            activeObjects.remove(object);
+        }
     }
 
     /**
@@ -78,8 +400,418 @@ public class MultiFrameDataStore<T extends MultiFrameObject> extends ObservableV
     
     public void add(T object) {
        data.add(object);
+       index.add(object);
+       assignSlot(object);
+       objectAdded(object);
+       updateActive(object);
+       if (batchChange != null) {
+           batchChange.recordAdded(object);
+       }
+       version++;
+    }
+
+    /**
+     * Removes an object from this data store
+     * <p/>
+     * @param object
+     * @return true if the object was removed
+     */
+    public boolean remove(T object) {
+        if (data.remove(object)) {
+            removed(object);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param object
+     * @return true if this data store contains the object
+     */
+    public boolean contains(T object) {
+        return index.contains(object);
+    }
+
+    /**
+     * Replaces all objects in this data store
+     * <p/>
+     * @param objects The new objects
+     */
+    protected void replaceAll(Collection<? extends T> objects) {
+        if (batchChange != null) {
+            final Set<T> remaining = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+            remaining.addAll(objects);
+            for (T object : data) {
+                if (remaining.remove(object)) {
+                    // Kept, but possibly changed
+                    batchChange.recordModified(object);
+                }
+                else {
+                    batchChange.recordRemoved(object);
+                }
+            }
+            for (T object : remaining) {
+                batchChange.recordAdded(object);
+            }
+        }
+        for (T object : data) {
+            objectRemoved(object);
+        }
+        data.clear();
+        index.clear();
+        slots.clear();
+        slotObjects.clear();
+        freeSlots.clear();
+        allChunksChanged = true;
+        for (T object : objects) {
+            data.add(object);
+            index.add(object);
+            assignSlot(object);
+            objectAdded(object);
+        }
+        if (batchDepth != 0) {
+            activeStale = true;
+        }
+        else {
+            rebuildActiveObjects();
+        }
+        version++;
+    }
+
+    /**
+     * Called after an object has been added to this data store. Subclasses
+     * can override this to maintain their own indexes. The default
+     * implementation does nothing.
+     * <p/>
+     * @param object
+     */
+    protected void objectAdded(T object) {
+    }
+
+    /**
+     * Called after an object has been removed from this data store.
+     * Subclasses can override this to maintain their own indexes. The
+     * default implementation does nothing.
+     * <p/>
+     * @param object
+     */
+    protected void objectRemoved(T object) {
+    }
+
+    /**
+     * Updates the index of this data store after the first or last frame of
+     * an object in it has changed. Does nothing if the object is not in
+     * this data store.
+     * <p/>
+     * @param object
+     */
+    public void frameRangeChanged(T object) {
+        if (index.contains(object)) {
+            index.update(object);
+            chunkChanged(object);
+            updateActive(object);
+            if (batchChange != null) {
+                batchChange.recordModified(object);
+            }
+        }
+    }
+
+    /**
+     * Updates the index and the active objects after an object has been
+     * removed from data
+     */
+    private void removed(T object) {
+        index.remove(object);
+        freeSlot(object);
+        objectRemoved(object);
+        deactivate(object);
+        if (batchChange != null) {
+            batchChange.recordRemoved(object);
+        }
+        version++;
+    }
+
+    /**
+     * Returns a number that changes whenever the stored data changes.
+     * This can be used to tell if something derived from the data is
+     * out of date.
+     * <p/>
+     * @return The current data version
+     */
+    public final long getVersion() {
+        return version;
+    }
+
+    /**
+     * Records that the stored data, or an object in it, has changed.
+     * Code that modifies stored objects directly should call this method,
+     * or {@link #markModified(Object)} if it knows which object changed.
+     */
+    public void markModified() {
+        allChunksChanged = true;
+        version++;
+    }
+
+    /**
+     * Records that an object in this data store has changed. If a batch is
+     * open, the object is included in the modified objects of the batch.
+     * <p/>
+     * @param object
+     */
+    public void markModified(T object) {
+        if (batchChange != null) {
+            batchChange.recordModified(object);
+        }
+        chunkChanged(object);
+        version++;
+    }
+
+    /**
+     * Starts a batch of changes. Batches can be nested: the changes are
+     * published when the outermost batch is committed.
+     * <p/>
+     * Every call to this method must be matched by a call to
+     * {@link #commit()}, usually in a finally block.
+     */
+    public void beginBatch() {
+        if (batchDepth == 0) {
+            batchChange = new Change<>();
+            batchStartVersion = version;
+            activeStale = false;
+        }
+        batchDepth++;
+    }
+
+    /**
+     * Ends a batch of changes. If this ends the outermost batch, the active
+     * objects are updated, the changes become available from
+     * {@link #getLastChange()}, and, if anything changed, one invalidation
+     * event is fired.
+     * <p/>
+     * @throws IllegalStateException if no batch is open
+     */
+    public void commit() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("No batch to commit");
+        }
+        batchDepth--;
+        if (batchDepth != 0) {
+            return;
+        }
+        if (activeStale) {
+            activeStale = false;
+            rebuildActiveObjects();
+        }
+        final boolean changed = version != batchStartVersion;
+        lastChange = batchChange;
+        batchChange = null;
+        if (publishAfterBatch) {
+            publishAfterBatch = false;
+            publishSnapshot();
+        }
+        if (changed) {
+            fireValueChangedEvent();
+        }
+    }
+
+    /**
+     * Returns the last published snapshot of the objects in this data
+     * store. This method can be called on any thread. The snapshot does not
+     * include changes made after it was published: its version can be
+     * compared with {@link #getVersion()} to find out if it is out of date.
+     * <p/>
+     * If the snapshot is out of date and a snapshot executor has been set,
+     * a new snapshot is published on the executor, so a later call returns
+     * a newer snapshot. The thread that changes this data store can call
+     * {@link #publishSnapshot()} instead to get an up-to-date snapshot
+     * immediately.
+     * <p/>
+     * @return The latest snapshot
+     */
+    public final Snapshot<T> getSnapshot() {
+        final Snapshot<T> current = snapshot;
+        if (current.getVersion() != version) {
+            scheduleSnapshot();
+        }
+        return current;
+    }
+
+    /**
+     * Creates and publishes a snapshot of the objects in this data store,
+     * if the data has changed since the last snapshot. This must be called
+     * on the thread that changes this data store, outside a batch.
+     * <p/>
+     * Only the chunks that have changed since the last snapshot are copied.
+     * <p/>
+     * @return The new snapshot, or the last snapshot if nothing has changed
+     */
+    public Snapshot<T> publishSnapshot() {
+        if (batchDepth != 0) {
+            throw new IllegalStateException("A snapshot cannot be published during a batch");
+        }
+        final Snapshot<T> current = snapshot;
+        if (current.getVersion() == version) {
+            return current;
+        }
+        final int chunkCount = (slotObjects.size() + SNAPSHOT_CHUNK_SIZE - 1) / SNAPSHOT_CHUNK_SIZE;
+        final Object[][] chunks = new Object[chunkCount][];
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            final Object[] previous = chunk < publishedChunks.length ? publishedChunks[chunk] : null;
+            if (previous != null && !allChunksChanged && !changedChunks.get(chunk)) {
+                chunks[chunk] = previous;
+            }
+            else {
+                chunks[chunk] = snapshotChunk(chunk, previous);
+            }
+        }
+        publishedChunks = chunks;
+        changedChunks.clear();
+        allChunksChanged = false;
+
+        final Snapshot<T> newSnapshot = new Snapshot<>(version, new ChunkList<T>(chunks));
+        snapshot = newSnapshot;
+        return newSnapshot;
+    }
+
+    /**
+     * Copies the objects in one chunk of slots for a snapshot
+     * <p/>
+     * @param chunk
+     * @param previous The same chunk in the last snapshot, or null
+     * @return The copies of the objects in the chunk, or previous if it
+     * has the same copies
+     */
+    private Object[] snapshotChunk(int chunk, Object[] previous) {
+        final int start = chunk * SNAPSHOT_CHUNK_SIZE;
+        final int end = Math.min(slotObjects.size(), start + SNAPSHOT_CHUNK_SIZE);
+        final List<Object> copies = new ArrayList<>(end - start);
+        for (int slot = start; slot < end; slot++) {
+            final T object = slotObjects.get(slot);
+            if (object != null) {
+                copies.add(snapshotOf(object));
+            }
+        }
+        final Object[] copyArray = copies.toArray();
+        if (previous != null && previous.length == copyArray.length) {
+            boolean same = true;
+            for (int i = 0; i < copyArray.length && same; i++) {
+                same = previous[i] == copyArray[i];
+            }
+            if (same) {
+                return previous;
+            }
+        }
+        return copyArray;
+    }
+
+    /**
+     * Returns a copy of an object that will not change, for use in a
+     * snapshot. Subclasses that store mutable objects should override this.
+     * Copies of objects that have not changed should be reused.
+     * <p/>
+     * @param object
+     * @return An unchanging copy of the object. This implementation returns
+     * the object.
+     */
+    protected T snapshotOf(T object) {
+        return object;
+    }
+
+    /**
+     * Sets the executor used to publish snapshots when
+     * {@link #getSnapshot()} finds that the last snapshot is out of date.
+     * The executor must run tasks on the thread that changes this data
+     * store. Several requests made before the executor runs the task are
+     * answered by one snapshot.
+     * <p/>
+     * @param executor The executor, or null to only publish snapshots when
+     * {@link #publishSnapshot()} is called
+     */
+    public void setSnapshotExecutor(Executor executor) {
+        snapshotExecutor = executor;
+    }
+
+    /**
+     * Submits a task to publish a snapshot to the snapshot executor, if
+     * there is one and a task has not already been submitted. This can be
+     * called on any thread.
+     */
+    private void scheduleSnapshot() {
+        final Executor executor = snapshotExecutor;
+        if (executor == null || !snapshotScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                snapshotScheduled.set(false);
+                if (batchDepth == 0) {
+                    publishSnapshot();
+                }
+                else {
+                    publishAfterBatch = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * Gives an object a free slot
+     */
+    private void assignSlot(T object) {
+        final Integer free = freeSlots.poll();
+        final int slot;
+        if (free != null) {
+            slot = free;
+            slotObjects.set(slot, object);
+        }
+        else {
+            slot = slotObjects.size();
+            slotObjects.add(object);
+        }
+        slots.put(object, slot);
+        changedChunks.set(slot / SNAPSHOT_CHUNK_SIZE);
+    }
+
+    /**
+     * Frees the slot of an object that has been removed
+     */
+    private void freeSlot(T object) {
+        final Integer slot = slots.remove(object);
+        if (slot != null) {
+            slotObjects.set(slot, null);
+            freeSlots.push(slot);
+            changedChunks.set(slot / SNAPSHOT_CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * Records that the chunk that contains an object has changed. Does
+     * nothing if the object is not in this data store.
+     */
+    private void chunkChanged(T object) {
+        final Integer slot = slots.get(object);
+        if (slot != null) {
+            changedChunks.set(slot / SNAPSHOT_CHUNK_SIZE);
+        }
     }
 
+    /**
+     * @return true if a batch is open
+     */
+    public final boolean isInBatch() {
+        return batchDepth != 0;
+    }
+
+    /**
+     * Returns the changes made by the last committed batch. This can be
+     * called by a listener when this data store is invalidated.
+     * <p/>
+     * @return The last change
+     */
+    public Change<T> getLastChange() {
+        return lastChange;
+    }
     public final IntegerProperty currentFrameProperty() {
         return currentFrame;
     }
@@ -116,21 +848,183 @@ public class MultiFrameDataStore<T extends MultiFrameObject> extends ObservableV
      */
     @Override
     public Iterator<T> iterator() {
-        return data.iterator();
+        final Iterator<T> iterator = data.iterator();
+        return new Iterator<T>() {
+            private T current;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                current = iterator.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                removed(current);
+            }
+        };
     }
 
     @Override
-    public MultiFrameDataStore getValue() {
+    public MultiFrameDataStore<T> getValue() {
         return this;
     }
 
     /**
      * 
-     * @return The sets of data that this data store contains
+     * @return The sets of data that this data store contains. The list
+     * cannot be modified.
      */
     protected List<T> getList() {
-        return data;
+        return readOnlyData;
     }
-    
+
+    /**
+     * An unchanging copy of the objects in a data store at one version.
+     * Snapshots can be shared among threads without locks.
+     * <p/>
+     * @param <T> The type of object
+     */
+    public static final class Snapshot<T> {
+
+        private final long version;
+
+        private final List<T> objects;
+
+        Snapshot(long version, List<T> objects) {
+            this.version = version;
+            this.objects = objects;
+        }
+
+        /**
+         * @return The version of the data store that this snapshot was
+         * made from
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return The objects, which cannot be modified
+         */
+        public List<T> getObjects() {
+            return objects;
+        }
+    }
+
+    /**
+     * A read-only list made of the chunks of a snapshot. Chunks can be
+     * shared with other snapshots.
+     * <p/>
+     * @param <T> The type of object
+     */
+    private static final class ChunkList<T> extends AbstractList<T> {
+
+        private final Object[][] chunks;
+
+        /**
+         * The index in this list of the first object of each chunk, and
+         * the size of this list at the end
+         */
+        private final int[] starts;
+
+        ChunkList(Object[][] chunks) {
+            this.chunks = chunks;
+            starts = new int[chunks.length + 1];
+            for (int i = 0; i < chunks.length; i++) {
+                starts[i + 1] = starts[i] + chunks[i].length;
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+            }
+            // The last chunk that starts at or before the index
+            int chunk = Arrays.binarySearch(starts, index);
+            if (chunk < 0) {
+                chunk = -(chunk + 1) - 1;
+            }
+            else {
+                // Skip empty chunks that start at the same index
+                while (chunks[chunk].length == 0) {
+                    chunk++;
+                }
+            }
+            return (T) chunks[chunk][index - starts[chunk]];
+        }
+
+        @Override
+        public int size() {
+            return starts[chunks.length];
+        }
+    }
+
+    /**
+     * The objects that were added to, removed from, and modified in a data
+     * store during a batch
+     * <p/>
+     * An object that was added and then removed in the same batch does not
+     * appear at all. An object that was added and then modified only
+     * appears as added. Objects are compared by identity.
+     * <p/>
+     * @param <T> The type of object
+     */
+    public static final class Change<T> {
+
+        private final Set<T> added = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+
+        private final Set<T> removed = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+
+        private final Set<T> modified = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+
+        void recordAdded(T object) {
+            if (removed.remove(object)) {
+                // Removed and put back
+                modified.add(object);
+            }
+            else {
+                added.add(object);
+            }
+        }
+
+        void recordRemoved(T object) {
+            if (!added.remove(object)) {
+                modified.remove(object);
+                removed.add(object);
+            }
+        }
+
+        void recordModified(T object) {
+            if (!added.contains(object) && !removed.contains(object)) {
+                modified.add(object);
+            }
+        }
+
+        public Set<T> getAdded() {
+            return Collections.unmodifiableSet(added);
+        }
+
+        public Set<T> getRemoved() {
+            return Collections.unmodifiableSet(removed);
+        }
+
+        public Set<T> getModified() {
+            return Collections.unmodifiableSet(modified);
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && modified.isEmpty();
+        }
+    }
+
 
 }
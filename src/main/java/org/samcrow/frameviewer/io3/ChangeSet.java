@@ -0,0 +1,134 @@
+package org.samcrow.frameviewer.io3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ * The trajectory records, points, and deletions that have changed in a
+ * {@link TrajectoryStore} between two versions
+ * <p>
+ * A trajectory or point that was deleted and then written again appears as
+ * both a deletion and a change. Deletions should be applied first.
+ * <p>
+ * @author Sam Crow
+ */
+public class ChangeSet {
+
+    private final List<Integer> deletedTrajectoryIds = new ArrayList<>();
+
+    private final List<int[]> deletedPoints = new ArrayList<>();
+
+    private final List<TrajectoryRecord> trajectories = new ArrayList<>();
+
+    private final List<Point> points = new ArrayList<>();
+
+    /**
+     * Records that a trajectory was deleted. Deletions must be added in the
+     * order they happened.
+     * <p>
+     * @param trajectoryId
+     */
+    public void addDeletedTrajectory(int trajectoryId) {
+        deletedTrajectoryIds.add(trajectoryId);
+    }
+
+    /**
+     * Records that a point was deleted. Deletions must be added in the
+     * order they happened.
+     * <p>
+     * @param trajectoryId
+     * @param frame
+     */
+    public void addDeletedPoint(int trajectoryId, int frame) {
+        deletedPoints.add(new int[]{trajectoryId, frame});
+    }
+
+    /**
+     * Records that a trajectory record was written. Records must be added
+     * in order of ID.
+     * <p>
+     * @param trajectoryId
+     * @param fromAction
+     * @param toAction
+     */
+    public void addTrajectory(int trajectoryId, Trajectory.FromAction fromAction, Trajectory.ToAction toAction) {
+        trajectories.add(new TrajectoryRecord(trajectoryId, fromAction, toAction));
+    }
+
+    /**
+     * Records that a point was written. Points must be added in order of
+     * trajectory ID and frame, and must have their trajectory IDs set.
+     * <p>
+     * @param point
+     */
+    public void addPoint(Point point) {
+        points.add(point);
+    }
+
+    /**
+     * @return The IDs of deleted trajectories, in the order they were
+     * deleted
+     */
+    public List<Integer> getDeletedTrajectoryIds() {
+        return Collections.unmodifiableList(deletedTrajectoryIds);
+    }
+
+    /**
+     * @return The trajectory ID and frame of each deleted point, in the
+     * order they were deleted
+     */
+    public List<int[]> getDeletedPoints() {
+        return Collections.unmodifiableList(deletedPoints);
+    }
+
+    /**
+     * @return The changed trajectory records, in order of ID
+     */
+    public List<TrajectoryRecord> getTrajectories() {
+        return Collections.unmodifiableList(trajectories);
+    }
+
+    /**
+     * @return The changed points, in order of trajectory ID and frame
+     */
+    public List<Point> getPoints() {
+        return Collections.unmodifiableList(points);
+    }
+
+    public boolean isEmpty() {
+        return deletedTrajectoryIds.isEmpty() && deletedPoints.isEmpty() && trajectories.isEmpty() && points.isEmpty();
+    }
+
+    /**
+     * The stored properties of a trajectory, apart from its points
+     */
+    public static final class TrajectoryRecord {
+
+        private final int id;
+
+        private final Trajectory.FromAction fromAction;
+
+        private final Trajectory.ToAction toAction;
+
+        public TrajectoryRecord(int id, Trajectory.FromAction fromAction, Trajectory.ToAction toAction) {
+            this.id = id;
+            this.fromAction = fromAction;
+            this.toAction = toAction;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Trajectory.FromAction getFromAction() {
+            return fromAction;
+        }
+
+        public Trajectory.ToAction getToAction() {
+            return toAction;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.samcrow.frameviewer.io3;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+/**
+ * Keeps track of the change versions of a data set
+ * <p>
+ * Every row in the trajectories and points tables has a change version.
+ * When rows are inserted or changed, they are given a new version that is
+ * greater than every version given out before. When rows are deleted, a
+ * tombstone with a new version is recorded. A client that has seen all the
+ * changes up to a version can then catch up by reading only the rows and
+ * tombstones with greater versions.
+ * <p>
+ * The last version given out is stored in a table named
+ * {@code <trajectories table>_version}, and tombstones are stored in a
+ * table named {@code <trajectories table>_deleted}. These tables and the
+ * change version columns are added by {@link SchemaMigrations}.
+ * <p>
+ * @author Sam Crow
+ */
+class ChangeVersions {
+
+    /**
+     * Appended to the name of the trajectories table to get the name of the
+     * table that stores the last version
+     */
+    static final String VERSION_TABLE_SUFFIX = "_version";
+
+    /**
+     * Appended to the name of the trajectories table to get the name of the
+     * table of tombstones
+     */
+    static final String TOMBSTONES_TABLE_SUFFIX = "_deleted";
+
+    private final Connection connection;
+
+    private final String versionTableName;
+
+    private final String tombstonesTableName;
+
+    private PreparedStatement increment;
+
+    private PreparedStatement selectIncremented;
+
+    private PreparedStatement insertTombstone;
+
+    public ChangeVersions(Connection connection, String pointsTableName, String trajectoriesTableName) {
+        this.connection = connection;
+        versionTableName = trajectoriesTableName + VERSION_TABLE_SUFFIX;
+        tombstonesTableName = trajectoriesTableName + TOMBSTONES_TABLE_SUFFIX;
+    }
+
+    /**
+     * Returns the last version that was given out. All changes with this
+     * version or an earlier version have been committed.
+     * <p>
+     * @return The version
+     * @throws SQLException
+     */
+    public long current() throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery("SELECT `version` FROM `" + versionTableName + "` WHERE `id` = 1")) {
+            return result.next() ? result.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Gives out a new version. This should be called in the same
+     * transaction as the changes that use the version. Other transactions
+     * that need a version wait until that transaction ends, so versions are
+     * committed in order.
+     * <p>
+     * @return The new version
+     * @throws SQLException
+     */
+    public long next() throws SQLException {
+        if (increment == null) {
+            increment = connection.prepareStatement("UPDATE `" + versionTableName + "` SET `version` = LAST_INSERT_ID(`version` + 1) WHERE `id` = 1");
+            selectIncremented = connection.prepareStatement("SELECT LAST_INSERT_ID()");
+        }
+        increment.executeUpdate();
+        try (ResultSet result = selectIncremented.executeQuery()) {
+            result.next();
+            return result.getLong(1);
+        }
+    }
+
+    /**
+     * Records that a trajectory or a point was deleted
+     * <p>
+     * @param trajectoryId The ID of the trajectory
+     * @param frame The frame of the deleted point, or null if the whole
+     * trajectory was deleted
+     * @param version The version of the deletion
+     * @throws SQLException
+     */
+    public void recordDeletion(int trajectoryId, Integer frame, long version) throws SQLException {
+        if (insertTombstone == null) {
+            insertTombstone = connection.prepareStatement("INSERT INTO `" + tombstonesTableName + "` ("
+                    + "`trajectory_id`, `frame_number`, `change_version`) VALUES (?, ?, ?)");
+        }
+        insertTombstone.setInt(1, trajectoryId);
+        if (frame != null) {
+            insertTombstone.setInt(2, frame);
+        }
+        else {
+            insertTombstone.setNull(2, Types.INTEGER);
+        }
+        insertTombstone.setLong(3, version);
+        insertTombstone.executeUpdate();
+    }
+
+    public String getTombstonesTableName() {
+        return tombstonesTableName;
+    }
+
+    /**
+     * Closes the prepared statements. The connection is not closed.
+     * <p>
+     * @throws SQLException
+     */
+    public void close() throws SQLException {
+        for (PreparedStatement statement : new PreparedStatement[]{increment, selectIncremented, insertTombstone}) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        increment = null;
+        selectIncremented = null;
+        insertTombstone = null;
+    }
+}
@@ -1,536 +1,1273 @@
 package org.samcrow.frameviewer.io3;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.DatabaseMetaData;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 import org.samcrow.frameviewer.MultiFrameDataStore;
+import org.samcrow.frameviewer.trajectory.InteractionIndex;
 import org.samcrow.frameviewer.trajectory.InteractionPoint;
-import org.samcrow.frameviewer.trajectory.InteractionType;
 import org.samcrow.frameviewer.trajectory.Point;
 import org.samcrow.frameviewer.trajectory.Trajectory;
+import org.samcrow.frameviewer.trajectory.TrajectoryChangeListener;
+import org.samcrow.frameviewer.util.IntMap;
 
 /**
- *
+ * Holds the trajectories of a data set in memory, and saves changes to a
+ * {@link TrajectoryStore}
+ * <p>
+ * A data store created with a {@link TrajectoryWindow} holds only the
+ * trajectories near the current frame. As the current frame moves, more
+ * trajectories are loaded in the background, and trajectories far from the
+ * current frame are unloaded. The objects and snapshots of such a data store
+ * then cover only the loaded trajectories. Code that needs every point of
+ * the data set, such as {@link #countPoints(int, int, int)}, must read it
+ * from the store.
+ * <p>
  * @author samcrow
  */
 public class DatabaseTrajectoryDataStore extends MultiFrameDataStore<Trajectory> implements Closeable, AutoCloseable {
 
-    private final Connection connection;
-    private final String pointsTableName;
-    private final String trajectoriesTableName;
+    /**
+     * Runs tasks on the JavaFX application thread
+     */
+    private static final Executor FX_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            Platform.runLater(command);
+        }
+    };
+
+    /**
+     * Runs tasks on the thread that changes this data store
+     */
+    private final Executor applicationThread;
+
+    /**
+     * Stores the trajectories
+     */
+    private final TrajectoryStore store;
+
+    /**
+     * Listeners that are notified when the user edits trajectories
+     */
+    private final List<TrajectoryChangeListener> changeListeners = new ArrayList<>();
+
+    /**
+     * The interaction points of the trajectories in this data store, kept up
+     * to date by the trajectories
+     */
+    private final InteractionIndex interactionIndex = new InteractionIndex();
+
+    /**
+     * The trajectories in this data store, by ID
+     */
+    private final IntMap<Trajectory> trajectoriesById = new IntMap<>();
+
+    /**
+     * Edits that can be undone and redone
+     */
+    private final EditJournal journal = new EditJournal();
+
+    /**
+     * Held by any thread that is using the store
+     */
+    private final ReentrantLock storeLock = new ReentrantLock();
+
+    /**
+     * Writes edits to the store in the background
+     */
+    private final WriteBehindQueue writeQueue;
+
+    /**
+     * The number of writes that have been queued and not yet applied
+     */
+    private final ReadOnlyIntegerWrapper pendingWrites = new ReadOnlyIntegerWrapper(this, "pendingWrites");
+
+    /**
+     * The exception that caused the most recently discarded writes to fail
+     */
+    private final ReadOnlyObjectWrapper<IOException> writeFailure = new ReadOnlyObjectWrapper<>(this, "writeFailure");
+
+    /**
+     * The change version of the store when it was last read. All changes
+     * up to this version are in this data store.
+     */
+    private long lastSeenVersion;
+
+    /**
+     * Decides which trajectories are loaded, or null if all the
+     * trajectories are loaded
+     */
+    private final TrajectoryWindow window;
 
-    public DatabaseTrajectoryDataStore(Connection connection, String pointsTableName, String trajectoriesTableName) throws SQLException {
-        this.connection = connection;
-        this.pointsTableName = pointsTableName;
-        this.trajectoriesTableName = trajectoriesTableName;
-        checkSchema();
+    /**
+     * Loads trajectories in the background as the current frame moves, or
+     * null if all the trajectories are loaded
+     */
+    private final ExecutorService loadExecutor;
+
+    /**
+     * If trajectories are being loaded in the background
+     */
+    private boolean loading;
+
+    /**
+     * Creates a data store and loads all the trajectories from a store
+     * <p>
+     * @param store The store. It is closed when this data store is closed.
+     * @throws IOException
+     */
+    public DatabaseTrajectoryDataStore(TrajectoryStore store) throws IOException {
+        this(store, null);
+    }
+
+    /**
+     * Creates a data store that records queued writes in a local journal,
+     * and loads all the trajectories from a store
+     * <p>
+     * Writes in the journal that were not applied to the store the last
+     * time it was used are applied before the trajectories are loaded. See
+     * {@link WriteJournal} and {@link DeadLetters}.
+     * <p>
+     * @param store The store. It is closed when this data store is closed.
+     * @param journalFile The journal file, which is created if it does not
+     * exist, or null to not use a journal
+     * @throws IOException if the journal could not be opened, or the
+     * trajectories could not be loaded
+     */
+    public DatabaseTrajectoryDataStore(TrajectoryStore store, File journalFile) throws IOException {
+        this(store, journalFile, null);
+    }
 
-        try (ResultSet trajectories = selectTrajectories()) {
-            while (trajectories.next()) {
+    /**
+     * Creates a data store that records queued writes in a local journal,
+     * and loads the trajectories near the current frame from a store
+     * <p>
+     * @param store The store. It is closed when this data store is closed.
+     * @param journalFile The journal file, which is created if it does not
+     * exist, or null to not use a journal
+     * @param window Decides which trajectories to load, or null to load all
+     * the trajectories
+     * @throws IOException if the journal could not be opened, or the
+     * trajectories could not be loaded
+     */
+    public DatabaseTrajectoryDataStore(TrajectoryStore store, File journalFile, TrajectoryWindow window) throws IOException {
+        this(store, journalFile, window, FX_THREAD);
+    }
 
-                final Trajectory trajectory = createTrajectoryAndPoints(trajectories);
-                if (trajectory != null) {
-                    // Add this trajectory to the instance's list
-                    data.add(trajectory);
+    /**
+     * Creates a data store that is changed on a thread other than the
+     * JavaFX application thread
+     * <p>
+     * @param store The store. It is closed when this data store is closed.
+     * @param journalFile The journal file, or null to not use a journal
+     * @param window Decides which trajectories to load, or null to load all
+     * the trajectories
+     * @param applicationThread Runs tasks on the thread that changes this
+     * data store
+     * @throws IOException if the journal could not be opened, or the
+     * trajectories could not be loaded
+     */
+    DatabaseTrajectoryDataStore(TrajectoryStore store, File journalFile, TrajectoryWindow window, Executor applicationThread) throws IOException {
+        this.store = store;
+        this.applicationThread = applicationThread;
+        this.window = window;
+        if (window != null) {
+            loadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "Trajectory loader");
+                    thread.setDaemon(true);
+                    return thread;
                 }
+            });
+            currentFrameProperty().addListener(new InvalidationListener() {
+                @Override
+                public void invalidated(Observable o) {
+                    currentFrameMoved();
+                }
+            });
+        }
+        else {
+            loadExecutor = null;
+        }
+        final WriteJournal writeJournal;
+        final DeadLetters deadLetters;
+        if (journalFile != null) {
+            writeJournal = new WriteJournal(journalFile);
+            try {
+                deadLetters = new DeadLetters(journalFile);
+            }
+            catch (IOException ex) {
+                writeJournal.close();
+                throw ex;
+            }
+        }
+        else {
+            writeJournal = null;
+            deadLetters = null;
+        }
+        writeQueue = new WriteBehindQueue(store, storeLock, new WriteBehindQueue.Listener() {
+            @Override
+            public void pendingWritesChanged(final int count) {
+                applicationThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pendingWrites.set(count);
+                    }
+                });
+            }
+
+            @Override
+            public void writeFailed(final IOException ex, int discarded) {
+                applicationThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeFailure.set(ex);
+                    }
+                });
+            }
+        }, writeJournal, deadLetters);
+
+        // When a background reader asks for a newer snapshot, publish it on
+        // the application thread, which is the thread that edits trajectories
+        setSnapshotExecutor(applicationThread);
+
+        try {
+            // Writes from the journal are applied first
+            lockStore();
+        }
+        catch (IOException ex) {
+            closeWriteQueue();
+            throw ex;
+        }
+        beginBatch();
+        boolean succeeded = false;
+        try {
+            // Changes made while loading have later versions, and will be
+            // read again by the next refresh
+            lastSeenVersion = store.currentVersion();
+            final List<Trajectory> loaded;
+            if (window != null) {
+                final int[] range = window.windowAround(getCurrentFrame());
+                window.setCoverage(range[0], range[1]);
+                loaded = loadWindow();
+            }
+            else {
+                loaded = store.loadAll();
+            }
+            for (Trajectory trajectory : loaded) {
+                trajectory.setDataStore(this);
+                add(trajectory);
+            }
+            // Now that the trajectories are known, hook up the relations among the InteractionPoints
+            connectInteractionPoints();
+            succeeded = true;
+        }
+        finally {
+            storeLock.unlock();
+            commit();
+            if (!succeeded) {
+                closeWriteQueue();
             }
         }
-        // Now that the trajectories are known, hook up the relations among the InteractionPoints
-        connectInteractionPoints();
     }
 
     /**
-     * Refreshes the data from the database
+     * Closes the write queue after the constructor has failed
+     */
+    private void closeWriteQueue() {
+        if (loadExecutor != null) {
+            loadExecutor.shutdown();
+        }
+        try {
+            writeQueue.close();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException ex) {
+            Logger.getLogger(DatabaseTrajectoryDataStore.class.getName()).log(Level.WARNING, "Failed to close the write journal", ex);
+        }
+    }
+
+    /**
+     * Refreshes the data from the store
+     * <p>
+     * Only the trajectories, points, and deletions that have changed since
+     * the last refresh are read. If the changes cannot be applied, all the
+     * data is read again.
      * <p>
      * @throws java.io.IOException
      */
     public void refresh() throws IOException {
-        try (ResultSet trajectories = selectTrajectories()) {
-
-            final List<Trajectory> updated = new ArrayList<>();
-
-            while (trajectories.next()) {
-                final Trajectory existingTrajectory = findTrajectoryById(trajectories.getInt("trajectory_id"));
-
-                if (existingTrajectory != null) {
-                    // Propagate properties from the database trajectory to the existing one
-
-                    existingTrajectory.setFromAction(Trajectory.FromAction.safeValueOf(trajectories.getString("from_action")));
-                    existingTrajectory.setToAction(Trajectory.ToAction.safeValueOf(trajectories.getString("to_action")));
-
-                    // Points
-                    try (ResultSet points = selectPointsInTrajectory(existingTrajectory.getId())) {
-                        while (points.next()) {
-                            final int frame = points.getInt("frame_number");
-                            final Point existingPoint = existingTrajectory.get(frame);
-                            if (existingPoint != null) {
-                                // Update this point
-                                existingPoint.setActivity(Point.Activity.safeValueOf(points.getString("activity")));
-                                existingPoint.setX(points.getInt("frame_x"));
-                                existingPoint.setY(points.getInt("frame_y"));
-                                // added by Jacob
-                                existingPoint.setTrajectoryID(points.getInt("trajectory_id"));
-
-                                if (existingPoint instanceof InteractionPoint) {
-                                    final InteractionPoint iPoint = (InteractionPoint) existingPoint;
-
-                                    // Check if the point should be preserved as an interaction point
-                                    if (points.getBoolean("is_interaction")) {
-
-                                        iPoint.setType(InteractionType.safeValueOf(points.getString("interaction_type")));
-                                        iPoint.setMetAntActivity(Point.Activity.safeValueOf(points.getString("interaction_met_ant_activity")));
-                                        iPoint.setMetAntId(points.getInt("interaction_met_trajectory_id"));
-                                    }
-                                    else {
-                                        demoteFromInteraction(iPoint, frame);
-                                    }
-                                }
-                                else {
-                                    // Not an interaction point
-                                    // Check if it should be promoted
-                                    if (points.getBoolean("is_interaction")) {
-                                        // Promote
-                                        final InteractionPoint iPoint = new InteractionPoint(existingPoint);
-                                        iPoint.setType(InteractionType.safeValueOf(points.getString("interaction_type")));
-                                        iPoint.setMetAntActivity(Point.Activity.safeValueOf(points.getString("interaction_met_ant_activity")));
-                                        iPoint.setMetAntId(points.getInt("interaction_met_trajectory_id"));
-                                        // Put the promoted point into the trajectory
-                                        existingTrajectory.set(frame, iPoint);
-                                    }
-                                }
-
-                            }
-                            else {
-                                // Add a point
-                                existingTrajectory.set(frame, pointFromResultSet(points));
-                            }
-                        }
-                    }
+        // Point changes are not reported one at a time. Committing the batch
+        // fires one event for the whole refresh.
+        beginBatch();
+        try {
+            lockStore();
+        }
+        catch (IOException ex) {
+            commit();
+            throw ex;
+        }
+        try {
+            final long version = store.currentVersion();
+            if (version != lastSeenVersion) {
+                final ChangeSet changes = store.loadChanges(lastSeenVersion, version);
+                if (!applyChanges(changes)) {
+                    reloadAll();
+                }
+                lastSeenVersion = version;
+            }
+        }
+        finally {
+            storeLock.unlock();
+            commit();
+        }
+        if (window != null) {
+            // Load any trajectories near the current frame that other
+            // users have added
+            loadWindowLater();
+        }
+    }
+
+    /**
+     * Reads all the data from the store again, and updates the
+     * trajectories in this data store to match
+     * <p>
+     * @throws java.io.IOException
+     */
+    public void refreshAll() throws IOException {
+        beginBatch();
+        try {
+            lockStore();
+        }
+        catch (IOException ex) {
+            commit();
+            throw ex;
+        }
+        try {
+            final long version = store.currentVersion();
+            reloadAll();
+            lastSeenVersion = version;
+        }
+        finally {
+            storeLock.unlock();
+            commit();
+        }
+    }
 
-                    // Mark the trajectory updated
-                    updated.add(existingTrajectory);
+    /**
+     * Applies the changes read from the store since the last refresh.
+     * This must be called during a batch.
+     * <p>
+     * Deletions are applied first. Any record that exists in the store was
+     * written after every deletion of the same trajectory or point.
+     * <p>
+     * @param changes
+     * @return false if the changes refer to a trajectory that is not in
+     * this data store and is not in the changes, so all the data must be
+     * read again
+     */
+    private boolean applyChanges(ChangeSet changes) {
+        if (changes.isEmpty()) {
+            return true;
+        }
+        // Trajectories that were deleted may have been written again with
+        // the same ID. Their points are removed here, and the trajectories
+        // are removed at the end if no points were written again.
+        final List<Trajectory> cleared = new ArrayList<>();
+        for (int trajectoryId : changes.getDeletedTrajectoryIds()) {
+            if (window != null) {
+                window.removeUnloaded(trajectoryId);
+            }
+            final Trajectory trajectory = findTrajectoryById(trajectoryId);
+            if (trajectory != null) {
+                final List<Integer> frames = new ArrayList<>();
+                for (Point point : trajectory) {
+                    frames.add(point.getFrame());
                 }
-                else {
-                    // Create a new trajectory
-                    final Trajectory trajectory = createTrajectoryAndPoints(trajectories);
-                    if (trajectory != null) {
-                        updated.add(trajectory);
-                    }
+                for (int frame : frames) {
+                    removePoint(trajectory, frame);
                 }
+                cleared.add(trajectory);
+            }
+        }
+        for (int[] deleted : changes.getDeletedPoints()) {
+            final Trajectory trajectory = findTrajectoryById(deleted[0]);
+            if (trajectory != null) {
+                removePoint(trajectory, deleted[1]);
             }
+        }
+
+        // Trajectories that are new to this data store, by ID
+        final IntMap<ChangeSet.TrajectoryRecord> newRecords = new IntMap<>();
+        for (ChangeSet.TrajectoryRecord record : changes.getTrajectories()) {
+            final Trajectory existingTrajectory = findTrajectoryById(record.getId());
+            if (existingTrajectory != null) {
+                existingTrajectory.setFromAction(record.getFromAction());
+                existingTrajectory.setToAction(record.getToAction());
+                markModified(existingTrajectory);
+            }
+            else {
+                newRecords.put(record.getId(), record);
+            }
+        }
 
-            // Clear the existing data and put the updated trajectories in
-            data.clear();
-            data.addAll(updated);
+        final List<InteractionPoint> changedInteractions = new ArrayList<>();
+        final List<Trajectory> added = new ArrayList<>();
+        // The trajectories being assembled from new records, by ID
+        final IntMap<Trajectory> assembled = new IntMap<>();
+        for (Point point : changes.getPoints()) {
+            final int trajectoryId = point.getTrajectoryID();
+            final Trajectory existingTrajectory = findTrajectoryById(trajectoryId);
+            if (existingTrajectory != null) {
+                mergePoint(existingTrajectory, point);
+                markModified(existingTrajectory);
+                final Point merged = existingTrajectory.get(point.getFrame());
+                if (merged instanceof InteractionPoint) {
+                    changedInteractions.add((InteractionPoint) merged);
+                }
+                continue;
+            }
+            if (window != null) {
+                // Loaded from the store if it comes near the current frame
+                window.pointWritten(trajectoryId, point.getFrame());
+                continue;
+            }
+            final ChangeSet.TrajectoryRecord record = newRecords.get(trajectoryId);
+            if (record == null) {
+                return false;
+            }
+            Trajectory trajectory = assembled.get(trajectoryId);
+            if (trajectory == null) {
+                // Points are in frame order, so this is the first frame
+                trajectory = new Trajectory(point.getFrame(), point.getFrame() + 1, trajectoryId);
+                trajectory.setFromAction(record.getFromAction());
+                trajectory.setToAction(record.getToAction());
+                assembled.put(trajectoryId, trajectory);
+                added.add(trajectory);
+            }
+            trajectory.set(point.getFrame(), point);
+        }
 
-            // Indicate that this object has changed
-            fireValueChangedEvent();
+        for (Trajectory trajectory : cleared) {
+            if (!trajectory.iterator().hasNext()) {
+                removeTrajectory(trajectory);
+            }
         }
-        catch (SQLException ex) {
-            throw new IOException(ex);
+        for (Trajectory trajectory : added) {
+            trajectory.setDataStore(this);
+            add(trajectory);
+            changedInteractions.addAll(trajectory.getInteractionPoints());
+        }
+        for (InteractionPoint iPoint : changedInteractions) {
+            connectInteractionPoint(iPoint);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the point at a frame of a trajectory, and unlinks it if it is
+     * an interaction point
+     */
+    private void removePoint(Trajectory trajectory, int frame) {
+        final Point point = trajectory.get(frame);
+        if (point instanceof InteractionPoint) {
+            disconnectInteractionPoint((InteractionPoint) point);
+        }
+        if (point != null) {
+            trajectory.set(frame, null);
+            markModified(trajectory);
         }
     }
 
-    private void checkSchema() throws SQLException {
-        DatabaseMetaData dbData = connection.getMetaData();
-        ResultSet tableResults = dbData.getTables(connection.getCatalog(), null, null, null);
+    /**
+     * Reads all the data from the store, and updates the trajectories in
+     * this data store to match. If only the trajectories near the current
+     * frame are loaded, only the trajectories that are already loaded or are
+     * in the loaded window are read. This must be called during a batch.
+     */
+    private void reloadAll() throws IOException {
+        final List<Trajectory> loaded = window != null ? loadWindow() : store.loadAll();
+        final List<Trajectory> updated = new ArrayList<>(loaded.size());
 
-        boolean hasTrajectories = false;
-        boolean hasPoints = false;
+        for (Trajectory loadedTrajectory : loaded) {
+            final Trajectory existingTrajectory = findTrajectoryById(loadedTrajectory.getId());
 
-        while (tableResults.next()) {
-            final String tableName = tableResults.getString("TABLE_NAME");
-            if (tableName.equals(trajectoriesTableName)) {
-                hasTrajectories = true;
+            if (existingTrajectory != null) {
+                // Propagate properties from the stored trajectory to the existing one
+
+                existingTrajectory.setFromAction(loadedTrajectory.getFromAction());
+                existingTrajectory.setToAction(loadedTrajectory.getToAction());
+
+                // Points
+                for (Point loadedPoint : loadedTrajectory) {
+                    mergePoint(existingTrajectory, loadedPoint);
+                }
+
+                // Mark the trajectory updated
+                updated.add(existingTrajectory);
             }
-            if (tableName.equals(pointsTableName)) {
-                hasPoints = true;
+            else {
+                // A new trajectory
+                loadedTrajectory.setDataStore(this);
+                updated.add(loadedTrajectory);
             }
         }
 
-        if (!hasPoints && !hasTrajectories) {
-            setUpSchema();
+        // Clear the existing data and put the updated trajectories in
+        replaceAll(updated);
+
+        // Drop the interaction points of trajectories that no longer
+        // exist, and link any new interactions
+        interactionIndex.clear();
+        for (Trajectory trajectory : getList()) {
+            interactionIndex.addAll(trajectory);
         }
+        connectInteractionPoints();
     }
 
-    private Trajectory createTrajectoryAndPoints(ResultSet trajectories) throws SQLException {
-        final int trajectoryId = trajectories.getInt("trajectory_id");
-        final Trajectory.FromAction startAction = Trajectory.FromAction.safeValueOf(trajectories.getString("from_action"));
-        final Trajectory.ToAction endAction = Trajectory.ToAction.safeValueOf(trajectories.getString("to_action"));
+    /**
+     * Reads the trajectory summaries from the store, and loads the
+     * trajectories that are in this data store or overlap the loaded
+     * window. The other trajectories are recorded as unloaded.
+     * <p>
+     * @return The loaded trajectories
+     */
+    private List<Trajectory> loadWindow() throws IOException {
+        final List<TrajectorySummary> summaries = store.loadSummaries();
+        window.clearUnloaded();
+        final List<Integer> ids = new ArrayList<>();
+        for (TrajectorySummary summary : summaries) {
+            if (findTrajectoryById(summary.getId()) != null || window.overlapsCoverage(summary)) {
+                ids.add(summary.getId());
+            }
+            else {
+                window.addUnloaded(summary);
+            }
+        }
+        return store.loadTrajectories(ids);
+    }
 
-        try (ResultSet points = selectPointsInTrajectory(trajectoryId)) {
+    /**
+     * Called when the current frame changes, if only the trajectories near
+     * the current frame are loaded
+     */
+    private void currentFrameMoved() {
+        final int frame = getCurrentFrame();
+        window.moveTo(frame);
+        if (!loading && window.needsLoad(frame)) {
+            loadWindowLater();
+        }
+    }
 
-            Trajectory trajectory;
-            // Get the first point. Because the query involved an ORDER BY frame_number request,
-            // this point must have the lowest frame number.
-            if (points.next()) {
-                final Point firstPoint = pointFromResultSet(points);
-                trajectory = new Trajectory(firstPoint.getFrame(), firstPoint.getFrame() + 1, trajectoryId);
-                trajectory.setFromAction(startAction);
-                trajectory.setToAction(endAction);
-                trajectory.setDataStore(this);
+    /**
+     * Starts loading the trajectories in the window around the current
+     * frame in the background. When they have been loaded, they are added
+     * to this data store on the application thread, and trajectories far
+     * from the window are unloaded.
+     */
+    private void loadWindowLater() {
+        if (loading) {
+            // The window is checked again when the current load finishes
+            return;
+        }
+        final int[] range = window.windowAround(getCurrentFrame());
+        final List<Integer> ids = new ArrayList<>();
+        for (TrajectorySummary summary : window.findUnloaded(range[0], range[1])) {
+            ids.add(summary.getId());
+        }
+        if (ids.isEmpty()) {
+            finishLoad(range, lastSeenVersion, ids, Collections.<Trajectory>emptyList());
+            return;
+        }
+        loading = true;
+        loadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final long version;
+                    final List<Trajectory> loaded;
+                    storeLock.lock();
+                    try {
+                        version = store.currentVersion();
+                        loaded = store.loadTrajectories(ids);
+                    }
+                    finally {
+                        storeLock.unlock();
+                    }
+                    applicationThread.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            loading = false;
+                            finishLoad(range, version, ids, loaded);
+                        }
+                    });
+                }
+                catch (final IOException ex) {
+                    Logger.getLogger(DatabaseTrajectoryDataStore.class.getName()).log(Level.WARNING, "Failed to load trajectories", ex);
+                    applicationThread.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Tried again when the current frame moves
+                            loading = false;
+                        }
+                    });
+                }
+            }
+        });
+    }
 
-                trajectory.set(firstPoint.getFrame(), firstPoint);
+    /**
+     * Adds trajectories loaded in the background, and unloads trajectories
+     * far from the window if too many points are loaded
+     * <p>
+     * @param range The first and last frames of the window that was loaded
+     * @param version The change version of the store when the trajectories
+     * were read
+     * @param ids The IDs of the trajectories that were requested
+     * @param loaded The trajectories that were read
+     */
+    private void finishLoad(int[] range, long version, List<Integer> ids, List<Trajectory> loaded) {
+        if (version < lastSeenVersion) {
+            // A refresh has read changes that the loaded trajectories may
+            // not have
+            loadWindowLater();
+            return;
+        }
+        beginBatch();
+        try {
+            final List<InteractionPoint> interactions = new ArrayList<>();
+            for (Trajectory trajectory : loaded) {
+                // Skip trajectories that were loaded or deleted while these
+                // were being read
+                if (window.removeUnloaded(trajectory.getId()) == null) {
+                    continue;
+                }
+                trajectory.setDataStore(this);
+                add(trajectory);
+                interactions.addAll(trajectory.getInteractionPoints());
             }
-            else {
-                System.err.println("Got a trajectory with ID " + trajectoryId + " that does not have any points. This trajectory will be deleted.");
-                deleteTrajectoryFromDatabaseOnly(trajectoryId);
-                return null;
+            // Requested trajectories that were not read no longer have points
+            for (int trajectoryId : ids) {
+                window.removeUnloaded(trajectoryId);
             }
-
-            while (points.next()) {
-                final Point point = pointFromResultSet(points);
-                trajectory.set(point.getFrame(), point);
+            for (InteractionPoint iPoint : interactions) {
+                connectInteractionPoint(iPoint);
             }
-            return trajectory;
+            window.setCoverage(range[0], range[1]);
+            unloadFarTrajectories();
+        }
+        finally {
+            commit();
+        }
+        if (window.needsLoad(getCurrentFrame())) {
+            // The current frame moved while loading
+            loadWindowLater();
+        }
+    }
+
+    /**
+     * Unloads the trajectories farthest from the loaded window if too many
+     * points are loaded. Trajectories with edits that can be undone are not
+     * unloaded, and nothing is unloaded while writes are queued.
+     */
+    private void unloadFarTrajectories() {
+        if (writeQueue.size() != 0) {
+            return;
+        }
+        final List<Trajectory> unloaded = window.chooseEvictions(getList(), journal.getTrajectories());
+        for (Trajectory trajectory : unloaded) {
+            removeTrajectory(trajectory);
+            window.addUnloaded(new TrajectorySummary(trajectory.getId(), trajectory.getFirstFrame(), trajectory.getLastFrame(),
+                    trajectory.getPointCount()));
+        }
+        if (!unloaded.isEmpty()) {
+            Logger.getLogger(DatabaseTrajectoryDataStore.class.getName()).log(Level.FINE, "Unloaded {0} trajectories", unloaded.size());
         }
     }
 
-    private ResultSet selectTrajectories() throws SQLException {
-        return connection.createStatement().executeQuery("SELECT * FROM `" + trajectoriesTableName + "` ORDER BY `trajectory_id`");
+    /**
+     * @return true if trajectories are being loaded in the background
+     */
+    boolean isLoading() {
+        return loading;
     }
 
-    private ResultSet selectOneTrajectory(int trajectoryId) throws SQLException {
-        return connection.createStatement().executeQuery("SELECT * FROM `" + trajectoriesTableName + "` WHERE `trajectory_id`=" + trajectoryId + " LIMIT 1");
+    /**
+     * @return The change version of the store when it was last read. It
+     * changes when a refresh reads changes from the store, but not when
+     * trajectories are loaded or unloaded.
+     */
+    public long getStoreVersion() {
+        return lastSeenVersion;
     }
 
-    private ResultSet selectPointsInTrajectory(int trajectoryId) throws SQLException {
-        return connection.createStatement().executeQuery("SELECT * FROM `" + pointsTableName + "` WHERE `trajectory_id`=" + trajectoryId + " ORDER BY `frame_number`,`is_interaction`");
+    /**
+     * @return The decider of which trajectories are loaded, or null if all
+     * the trajectories are loaded
+     */
+    public TrajectoryWindow getWindow() {
+        return window;
     }
 
     /**
-     * Creates or updates records for the provided trajectory and all its points
+     * Updates the point at a frame of a trajectory to match a point read
+     * from the store, or adds the point if the trajectory has no point at
+     * the frame
      * <p>
-     * @param trajectory
-     * @throws java.sql.SQLException
+     * @param existingTrajectory The trajectory in this data store
+     * @param loadedPoint The point read from the store
      */
-    public void persistTrajectory(Trajectory trajectory) throws SQLException {
-        try (ResultSet existing = selectOneTrajectory(trajectory.getId())) {
-            if (existing.next()) {
-                // A trajectory already exists
-                updateTrajectory(trajectory);
+    private void mergePoint(Trajectory existingTrajectory, Point loadedPoint) {
+        final int frame = loadedPoint.getFrame();
+        final Point existingPoint = existingTrajectory.get(frame);
+        if (existingPoint != null) {
+            // Update this point
+            existingPoint.setActivity(loadedPoint.getActivity());
+            existingPoint.setX(loadedPoint.getX());
+            existingPoint.setY(loadedPoint.getY());
+            // added by Jacob
+            existingPoint.setTrajectoryID(existingTrajectory.getId());
+
+            if (existingPoint instanceof InteractionPoint) {
+                final InteractionPoint iPoint = (InteractionPoint) existingPoint;
+
+                // Check if the point should be preserved as an interaction point
+                if (loadedPoint instanceof InteractionPoint) {
+                    final InteractionPoint loadedIPoint = (InteractionPoint) loadedPoint;
+                    iPoint.setType(loadedIPoint.getType());
+                    iPoint.setMetAntActivity(loadedIPoint.getMetAntActivity());
+                    iPoint.setMetAntId(loadedIPoint.getMetAntId());
+                }
+                else {
+                    // Demote
+                    disconnectInteractionPoint(iPoint);
+                    existingTrajectory.set(frame, new Point(existingPoint));
+                }
             }
             else {
-                // No trajectory already exists
-                insertTrajectory(trajectory);
+                // Not an interaction point
+                // Check if it should be promoted
+                if (loadedPoint instanceof InteractionPoint) {
+                    // Promote
+                    final InteractionPoint loadedIPoint = (InteractionPoint) loadedPoint;
+                    final InteractionPoint iPoint = new InteractionPoint(existingPoint);
+                    iPoint.setType(loadedIPoint.getType());
+                    iPoint.setMetAntActivity(loadedIPoint.getMetAntActivity());
+                    iPoint.setMetAntId(loadedIPoint.getMetAntId());
+                    // Put the promoted point into the trajectory
+                    existingTrajectory.set(frame, iPoint);
+                }
             }
+
+        }
+        else {
+            // Add a point
+            existingTrajectory.set(frame, loadedPoint);
+        }
+    }
+
+    /**
+     * Creates or updates records for the provided trajectory and all its points
+     * <p>
+     * Any queued writes are applied first, and this method blocks until the
+     * trajectory has been saved.
+     * <p>
+     * @param trajectory
+     * @return The number of records written and the time taken
+     * @throws java.io.IOException
+     */
+    public SaveReport persistTrajectory(Trajectory trajectory) throws IOException {
+        lockStore();
+        try {
+            final SaveReport report = store.saveTrajectory(trajectory);
+            Logger.getLogger(DatabaseTrajectoryDataStore.class.getName()).log(Level.FINE, "Saved trajectory {0}: {1}", new Object[]{trajectory.getId(), report});
+            return report;
+        }
+        finally {
+            storeLock.unlock();
         }
     }
 
+    public void deleteTrajectory(Trajectory trajectory) throws IOException {
+        final int trajectoryId = trajectory.getId();
+        lockStore();
+        try {
+            store.deleteTrajectory(trajectoryId);
+        }
+        finally {
+            storeLock.unlock();
+        }
+        // Remove the trajectory from the local data
+        removeTrajectory(trajectory);
+    }
+
+    /**
+     * Queues a trajectory and all its points to be saved in the
+     * background. The values of the trajectory when this method is called
+     * are saved.
+     * <p>
+     * @param trajectory
+     */
+    public void saveLater(Trajectory trajectory) {
+        writeQueue.enqueue(new WriteBehindQueue.SaveTrajectory(trajectory.snapshot()));
+    }
+
     /**
-     * Updates the provided trajectory and all its points
+     * Queues a point to be saved in the background. The values of the
+     * point when this method is called are saved.
+     * <p>
+     * @param point
+     * @param trajectoryId The ID of the trajectory that contains the point
+     */
+    public void saveLater(Point point, int trajectoryId) {
+        writeQueue.enqueue(new WriteBehindQueue.SavePoint(trajectoryId, point.getFrame(), EditJournal.copyOf(point)));
+    }
+
+    /**
+     * Removes a trajectory from this data store, and queues it to be
+     * deleted from the store in the background
      * <p>
      * @param trajectory
-     * @throws java.sql.SQLException
      */
-    private void updateTrajectory(Trajectory trajectory) throws SQLException {
-        try (Statement statement = connection.createStatement()) {
-            statement.executeUpdate("UPDATE `" + trajectoriesTableName + "` SET "
-                    + "`from_action` = '" + trajectory.getFromAction().name() + "',"
-                    + " `to_action` = '" + trajectory.getToAction().name() + '\''
-                    + " WHERE `trajectory_id` = '" + trajectory.getId() + '\'');
+    public void deleteLater(Trajectory trajectory) {
+        writeQueue.enqueue(new WriteBehindQueue.DeleteTrajectory(trajectory.getId()));
+        removeTrajectory(trajectory);
+    }
+
+    /**
+     * Queues a point to be deleted from the store in the background
+     * <p>
+     * @param trajectoryId
+     * @param frame
+     */
+    public void deletePointLater(int trajectoryId, int frame) {
+        writeQueue.enqueue(new WriteBehindQueue.SavePoint(trajectoryId, frame, null));
+    }
+
+    /**
+     * Counts the points of every trajectory in the store, including
+     * trajectories that are not loaded, in each cell of a grid over the
+     * frame. Queued writes are applied first.
+     * <p>
+     * This reads the store, so it should not be called on the application
+     * thread.
+     * <p>
+     * @param cellSize The width and height, in frame pixels, of each cell
+     * @param columns The number of columns of cells
+     * @param rows The number of rows of cells
+     * @return The number of points in each cell, in row-major order
+     * @throws IOException if the points could not be counted, or queued
+     * writes are waiting to be tried again
+     */
+    public int[] countPoints(int cellSize, int columns, int rows) throws IOException {
+        lockStore();
+        try {
+            return store.countPoints(cellSize, columns, rows);
         }
+        finally {
+            storeLock.unlock();
+        }
+    }
 
-        // Update all points
-        for (Point point : trajectory) {
-            persistPoint(point, trajectory.getId());
+    /**
+     * Waits until all queued writes have been applied
+     * <p>
+     * @throws IOException if the thread was interrupted while waiting, or
+     * the writes failed and are waiting to be tried again
+     */
+    public void flushWrites() throws IOException {
+        try {
+            writeQueue.flush();
         }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * @return The number of writes that have been queued and not yet
+     * applied. This is updated on the application thread.
+     */
+    public ReadOnlyIntegerProperty pendingWritesProperty() {
+        return pendingWrites.getReadOnlyProperty();
+    }
+
+    /**
+     * @return The exception that caused the most recently discarded queued
+     * writes to fail. This is updated on the application thread.
+     */
+    public ReadOnlyObjectProperty<IOException> writeFailureProperty() {
+        return writeFailure.getReadOnlyProperty();
     }
 
-    private void insertTrajectory(Trajectory trajectory) throws SQLException {
-        try (Statement statement = connection.createStatement()) {
-            statement.executeUpdate("INSERT INTO `" + trajectoriesTableName + "` ("
-                    + "`trajectory_id`, "
-                    + "`from_action`, "
-                    + "`to_action`"
-                    + " ) VALUES ( "
-                    + trajectory.getId() + ","
-                    + '\'' + trajectory.getFromAction().name() + "', "
-                    + '\'' + trajectory.getToAction().name() + "'"
-                    + ")");
+    /**
+     * Waits for the queued writes to be applied, then locks the store so
+     * that this thread can use it
+     */
+    private void lockStore() throws IOException {
+        flushWrites();
+        storeLock.lock();
+    }
 
-            // Points: It is safe to assume that no points with this trajectory exist
-            for (Point point : trajectory) {
-                insertPoint(point, trajectory.getId());
+    /**
+     * Removes a trajectory from this data store, but does not delete it
+     * from the store
+     * <p>
+     * @param trajectory
+     */
+    void removeTrajectory(Trajectory trajectory) {
+        final boolean removed = remove(trajectory);
+        if (removed) {
+            for (InteractionPoint iPoint : trajectory.getInteractionPoints()) {
+                disconnectInteractionPoint(iPoint);
+            }
+            interactionIndex.removeAll(trajectory);
+        }
+        if (removed && !isInBatch()) {
+            for (TrajectoryChangeListener listener : changeListeners) {
+                listener.trajectoryRemoved(trajectory);
             }
         }
     }
 
-    public void deleteTrajectory(Trajectory trajectory) throws SQLException {
-        final int trajectoryId = trajectory.getId();
-        deleteTrajectoryFromDatabaseOnly(trajectoryId);
-        // Remove the trajectory from the local data
-        data.remove(trajectory);
+    /**
+     * Puts a trajectory that was removed back into this data store, but
+     * does not save it
+     * <p>
+     * @param trajectory
+     */
+    void restoreTrajectory(Trajectory trajectory) {
+        if (contains(trajectory)) {
+            return;
+        }
+        add(trajectory);
+        interactionIndex.addAll(trajectory);
+        for (InteractionPoint iPoint : trajectory.getInteractionPoints()) {
+            connectInteractionPoint(iPoint);
+        }
     }
 
-    private void deleteTrajectoryFromDatabaseOnly(int trajectoryId) throws SQLException {
-        try (Statement statement = connection.createStatement()) {
-            statement.executeUpdate("DELETE FROM `" + pointsTableName + "` WHERE `trajectory_id`=" + trajectoryId);
-            // Then delete the trajectory
-            statement.executeUpdate("DELETE FROM `" + trajectoriesTableName + "` WHERE `trajectory_id`=" + trajectoryId);
+    /**
+     * @return The journal that edits to trajectories are recorded in
+     */
+    public EditJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Undoes the most recent step in the journal. The trajectories are
+     * changed in one batch, and the changes are queued to be written to the
+     * store.
+     * <p>
+     * @return true if a step was undone, false if there was nothing to undo
+     */
+    public boolean undo() {
+        final List<EditJournal.Edit> step = journal.takeUndoStep();
+        if (step == null) {
+            return false;
         }
+        applyStep(step, true);
+        return true;
     }
 
-    public void deletePoint(int trajectoryId, int frame) throws SQLException {
-        try (Statement statement = connection.createStatement()) {
-            statement.executeUpdate("DELETE FROM `" + pointsTableName + "` WHERE `trajectory_id` = " + trajectoryId + " AND `frame_number` = " + frame);
+    /**
+     * Redoes the most recently undone step in the journal. The trajectories
+     * are changed in one batch, and the changes are queued to be written to
+     * the store.
+     * <p>
+     * @return true if a step was redone, false if there was nothing to redo
+     */
+    public boolean redo() {
+        final List<EditJournal.Edit> step = journal.takeRedoStep();
+        if (step == null) {
+            return false;
         }
+        applyStep(step, false);
+        return true;
     }
 
-    public void persistPoint(Point point, int trajectoryId) throws SQLException {
-        try (Statement statement = connection.createStatement()) {
-            try (ResultSet existingPoint
-                    = statement.executeQuery(
-                            "SELECT * FROM `" + pointsTableName + "` WHERE `trajectory_id` = "
-                            + trajectoryId + " AND `frame_number` = " + point.getFrame())) {
-                        if (existingPoint.next()) {
-                            updatePoint(point, trajectoryId);
-                        }
-                        else {
-                            insertPoint(point, trajectoryId);
-                        }
-                    }
+    private void applyStep(List<EditJournal.Edit> step, boolean undo) {
+        final EditJournal.Changes changes = new EditJournal.Changes();
+        beginBatch();
+        try {
+            if (undo) {
+                for (int i = step.size() - 1; i >= 0; i--) {
+                    step.get(i).apply(this, true, changes);
+                }
+            }
+            else {
+                for (EditJournal.Edit edit : step) {
+                    edit.apply(this, false, changes);
+                }
+            }
         }
+        finally {
+            commit();
+        }
+        saveChanges(changes);
     }
 
-    private void updatePoint(Point point, int trajectoryId) throws SQLException {
-        try (Statement statement = connection.createStatement()) {
-            if (point instanceof InteractionPoint) {
-                InteractionPoint iPoint = (InteractionPoint) point;
-                statement.executeUpdate("UPDATE `" + pointsTableName + "` SET "
-                        + "`frame_x` = " + point.getX() + ','
-                        + "`frame_y` = " + point.getY() + ','
-                        + "`activity` = '" + point.getActivity().name() + "',"
-                        + "`is_interaction` = 1,"
-                        + "`interaction_met_trajectory_id` = " + iPoint.getMetAntId() + ','
-                        + "`interaction_type` = '" + iPoint.getType().name() + "',"
-                        + "`interaction_met_ant_activity` = '" + iPoint.getMetAntActivity().name() + '\''
-                        + " WHERE  `trajectory_id` = " + trajectoryId + " AND `frame_number` = " + point.getFrame());
+    /**
+     * Queues the changes from undoing or redoing a step to be written to
+     * the store. The changes are written in one transaction, so that the
+     * store never has part of a step.
+     */
+    private void saveChanges(EditJournal.Changes changes) {
+        final List<WriteBehindQueue.Write> writes = new ArrayList<>();
+        for (int trajectoryId : changes.deletedIds) {
+            writes.add(new WriteBehindQueue.DeleteTrajectory(trajectoryId));
+        }
+        for (int[] point : changes.deletedPoints) {
+            writes.add(new WriteBehindQueue.SavePoint(point[0], point[1], null));
+        }
+        for (Trajectory trajectory : changes.trajectories) {
+            if (contains(trajectory)) {
+                writes.add(new WriteBehindQueue.SaveTrajectory(trajectory.snapshot()));
             }
             else {
-                statement.executeUpdate("UPDATE `" + pointsTableName + "` SET "
-                        + "`frame_x` = " + point.getX() + ','
-                        + "`frame_y` = " + point.getY() + ','
-                        + "`activity` = '" + point.getActivity().name() + "',"
-                        + "`is_interaction` = 0"
-                        + " WHERE  `trajectory_id` = " + trajectoryId + " AND `frame_number` = " + point.getFrame());
+                writes.add(new WriteBehindQueue.DeleteTrajectory(trajectory.getId()));
             }
         }
+        writeQueue.enqueueAll(writes);
+    }
+
+    public void deletePoint(int trajectoryId, int frame) throws IOException {
+        lockStore();
+        try {
+            store.deletePoint(trajectoryId, frame);
+        }
+        finally {
+            storeLock.unlock();
+        }
+    }
+
+    public void persistPoint(Point point, int trajectoryId) throws IOException {
+        lockStore();
+        try {
+            store.savePoint(point, trajectoryId);
+        }
+        finally {
+            storeLock.unlock();
+        }
+    }
+
+    public void addTrajectoryChangeListener(TrajectoryChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeTrajectoryChangeListener(TrajectoryChangeListener listener) {
+        changeListeners.remove(listener);
     }
 
     /**
-     * Demotes a point's entry in the database so that it is no longer an
-     * interaction
+     * Notifies the change listeners that a point was added to a trajectory.
+     * This should be called after the point has been set in the trajectory.
+     * <p>
+     * While a batch is open, the change listeners are not notified of
+     * individual changes. They should instead recalculate when this data
+     * store is invalidated at the end of the batch.
      * <p>
+     * @param trajectory
      * @param point
-     * @param trajectoryId
-     * @throws java.sql.SQLException
-     */
-    private void demoteFromInteraction(InteractionPoint point, int trajectoryId) throws SQLException {
-        try (Statement statement = connection.createStatement()) {
-            statement.executeUpdate("UPDATE `" + pointsTableName + "` SET"
-                    + "`is_interaction` = 0"
-                    + " WHERE  `trajectory_id` = " + trajectoryId + " AND `frame_number` = " + point.getFrame());
-        }
-    }
-
-    private void insertPoint(Point point, int trajectoryId) throws SQLException {
-        try (Statement statement = connection.createStatement()) {
-            if (point instanceof InteractionPoint) {
-                InteractionPoint iPoint = (InteractionPoint) point;
-
-                statement.executeUpdate("INSERT INTO `" + pointsTableName + "` ("
-                        + "`trajectory_id`,"
-                        + "`frame_number`,"
-                        + "`frame_x`,"
-                        + "`frame_y`,"
-                        + "`activity`,"
-                        + "`is_interaction`,"
-                        + "`interaction_met_trajectory_id`,"
-                        + "`interaction_type`,"
-                        + "`interaction_met_ant_activity`"
-                        + ") VALUES ("
-                        + trajectoryId + ','
-                        + point.getFrame() + ','
-                        + point.getX() + ','
-                        + point.getY() + ','
-                        + '\'' + point.getActivity().name() + "',"
-                        + "1," // is interaction
-                        + iPoint.getMetAntId() + ','
-                        + '\'' + iPoint.getType().name() + "',"
-                        + '\'' + iPoint.getMetAntActivity().name() + '\''
-                        + ")");
-
-            }
-            else {
-                final String query = "INSERT INTO `" + pointsTableName + "` ("
-                        + "`trajectory_id`,"
-                        + "`frame_number`,"
-                        + "`frame_x`,"
-                        + "`frame_y`,"
-                        + "`activity`"
-                        + ") VALUES ("
-                        + trajectoryId + ','
-                        + point.getFrame() + ','
-                        + point.getX() + ','
-                        + point.getY() + ','
-                        + '\'' + point.getActivity().name() + '\''
-                        + ")";
-
-                statement.executeUpdate(query);
-            }
-        }
-    }
-
-    private void setUpSchema() throws SQLException {
-        try (Statement statement = connection.createStatement()) {
-            statement.executeUpdate("DROP TABLE IF EXISTS `" + trajectoriesTableName + "`");
-            statement.executeUpdate("CREATE TABLE `" + trajectoriesTableName + "` ("
-                    + "`trajectory_id` INTEGER PRIMARY KEY,"
-                    + "`from_action` varchar(255) NOT NULL DEFAULT 'Unknown',"
-                    + "`to_action` varchar(255) NOT NULL DEFAULT 'Unknown'"
-                    + ")");
-
-            // Set up Points table
-            statement.executeUpdate("DROP TABLE IF EXISTS `" + pointsTableName + "`");
-            statement.executeUpdate("CREATE TABLE `" + pointsTableName + "` ("
-                    + "`point_id` INTEGER PRIMARY KEY AUTO_INCREMENT,"
-                    + "`trajectory_id` INTEGER NOT NULL,"
-                    + "`frame_number` INTEGER NOT NULL,"
-                    + "`frame_x` INTEGER NOT NULL,"
-                    + "`frame_y` INTEGER NOT NULL,"
-                    + "`activity` varchar(255) NOT NULL DEFAULT 'NotCarrying',"
-                    + "`is_interaction` SMALLINT NOT NULL DEFAULT 0,"
-                    + "`interaction_met_trajectory_id` int,"
-                    + "`interaction_type` varchar(255),"
-                    + "`interaction_met_ant_activity` varchar(255)"
-                    + ")");
-        }
-    }
-
-    private static Point pointFromResultSet(ResultSet result) throws SQLException {
-        Point point;
-        if (result.getBoolean("is_interaction")) {
-            point = new InteractionPoint(result.getInt("frame_x"), result.getInt("frame_y"));
-            // Set interaction-specific properties
-            ((InteractionPoint) point).setType(InteractionType.safeValueOf(result.getString("interaction_type")));
-            ((InteractionPoint) point).setMetAntId(result.getInt("interaction_met_trajectory_id"));
-            ((InteractionPoint) point).setMetAntActivity(Point.Activity.safeValueOf(result.getString("interaction_met_ant_activity")));
+     */
+    public void firePointAdded(Trajectory trajectory, Point point) {
+        markModified(trajectory);
+        if (isInBatch()) {
+            return;
         }
-        else {
-            point = new Point(result.getInt("frame_x"), result.getInt("frame_y"));
+        for (TrajectoryChangeListener listener : changeListeners) {
+            listener.pointAdded(trajectory, point);
         }
+    }
 
-        // Set common attributes
-        point.setFrame(result.getInt("frame_number"));
-        point.setActivity(Point.Activity.safeValueOf(result.getString("activity")));
-        point.setTrajectoryID(result.getInt("trajectory_id"));
+    /**
+     * Notifies the change listeners that a point was removed from a
+     * trajectory
+     * <p>
+     * @param trajectory
+     * @param point
+     */
+    public void firePointRemoved(Trajectory trajectory, Point point) {
+        markModified(trajectory);
+        if (isInBatch()) {
+            return;
+        }
+        for (TrajectoryChangeListener listener : changeListeners) {
+            listener.pointRemoved(trajectory, point);
+        }
+    }
 
-        return point;
+    /**
+     * Notifies the change listeners that a point was moved
+     * <p>
+     * @param trajectory
+     * @param point The point, at its new position
+     * @param oldX
+     * @param oldY
+     */
+    public void firePointMoved(Trajectory trajectory, Point point, int oldX, int oldY) {
+        markModified(trajectory);
+        if (isInBatch()) {
+            return;
+        }
+        for (TrajectoryChangeListener listener : changeListeners) {
+            listener.pointMoved(trajectory, point, oldX, oldY);
+        }
     }
 
     @Override
     public void close() throws IOException {
         try {
-            connection.close();
+            if (loadExecutor != null) {
+                // Let any load finish before the store is closed
+                loadExecutor.shutdown();
+                loadExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            // Apply the queued writes before closing the store. With a
+            // journal, writes that cannot be applied now are applied the
+            // next time the data set is opened.
+            writeQueue.close();
         }
-        catch (SQLException ex) {
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
             throw new IOException(ex);
         }
+        finally {
+            store.close();
+        }
     }
 
     /**
-     * Finds a trajectory with the requested ID in this instance's list
-     * and returns it, or null if none exists
+     * Returns the trajectory in this data store with an ID. This takes
+     * constant time.
+     * <p>
+     * If more than one trajectory has the ID, one of them is returned.
      * <p>
      * @param trajectoryId
+     * @return The trajectory, or null if none exists
+     */
+    public Trajectory findTrajectoryById(int trajectoryId) {
+        return trajectoriesById.get(trajectoryId);
+    }
+
+    /**
+     * Updates the ID index after the ID of a trajectory has changed.
+     * Trajectories call this from {@link Trajectory#setId(int)}.
+     * <p>
+     * @param trajectory
+     * @param oldId The ID of the trajectory before the change
+     */
+    public void trajectoryIdChanged(Trajectory trajectory, int oldId) {
+        if (trajectoriesById.get(oldId) == trajectory) {
+            trajectoriesById.remove(oldId);
+        }
+        if (contains(trajectory)) {
+            trajectoriesById.put(trajectory.getId(), trajectory);
+        }
+    }
+
+    @Override
+    protected void objectAdded(Trajectory trajectory) {
+        trajectoriesById.put(trajectory.getId(), trajectory);
+    }
+
+    @Override
+    protected void objectRemoved(Trajectory trajectory) {
+        if (trajectoriesById.get(trajectory.getId()) == trajectory) {
+            trajectoriesById.remove(trajectory.getId());
+        }
+    }
+
+    /**
+     * Returns a read-only copy of a trajectory for a snapshot. Trajectories
+     * that have not changed since the last snapshot share their copies.
+     * <p>
+     * @param trajectory
      * @return
      */
-    private Trajectory findTrajectoryById(int trajectoryId) {
-        // Because the results are ordered by trajectory ID,
-        // binary search can be used
-        final int foundIndex = Collections.binarySearch(data,
-                new Trajectory(1, 2, trajectoryId),
-                new Comparator<Trajectory>() {
+    @Override
+    protected Trajectory snapshotOf(Trajectory trajectory) {
+        return trajectory.snapshot();
+    }
 
-                    @Override
-                    public int compare(Trajectory o1, Trajectory o2) {
-                        if (o1.getId() < o2.getId()) {
-                            return -1;
-                        }
-                        else if (o1.getId() > o2.getId()) {
-                            return 1;
-                        }
-                        else {
-                            return 0;
-                        }
-                    }
+    /**
+     * @return The index of the interaction points in this data store
+     */
+    public InteractionIndex getInteractionIndex() {
+        return interactionIndex;
+    }
 
-                });
+    /**
+     * Links an interaction point with the point on the other side of the
+     * interaction, found using its met ant ID and frame. If the point was
+     * linked with a different point, that link is removed. If the other
+     * point does not exist, the point is left unlinked.
+     * <p>
+     * @param iPoint
+     */
+    public void connectInteractionPoint(InteractionPoint iPoint) {
+        final InteractionPoint partner = interactionIndex.findPartner(iPoint);
+        if (partner == null) {
+            // The met ant ID may have changed to a trajectory that does not
+            // exist
+            disconnectInteractionPoint(iPoint);
+            return;
+        }
+        if (iPoint.getOtherPoint() != partner) {
+            disconnectInteractionPoint(iPoint);
+            disconnectInteractionPoint(partner);
+        }
+        partner.setOtherPoint(iPoint);
+        iPoint.setOtherPoint(partner);
+    }
 
-        if (foundIndex >= 0) {
-            return data.get(foundIndex);
+    /**
+     * Removes the link between an interaction point and the point on the
+     * other side of the interaction
+     * <p>
+     * @param iPoint
+     */
+    public void disconnectInteractionPoint(InteractionPoint iPoint) {
+        final InteractionPoint partner = iPoint.getOtherPoint();
+        if (partner != null && partner.getOtherPoint() == iPoint) {
+            partner.setOtherPoint(null);
         }
-        else {
-            return null;
-        }
-    }
-
-    private void connectInteractionPoints() throws SQLException {
-        for (Trajectory trajectory : data) {
-            for (Point point : trajectory) {
-                if (point instanceof InteractionPoint) {
-                    InteractionPoint iPoint = (InteractionPoint) point;
-
-                    if (iPoint.getOtherPoint() == null) {
-                        // Find and assign the other point
-                        final int targetTrajectoryId = iPoint.getMetAntId();
-                        final int targetFrame = iPoint.getFrame();
-
-                        final Trajectory foundTrajectory = findTrajectoryById(targetTrajectoryId);
-
-                        if (foundTrajectory != null) {
-                            // Found trajectory
-                            // Look for the frame
-                            try {
-                                final Point matchingPoint = foundTrajectory.get(targetFrame);
-
-                                if (matchingPoint != null) {
-
-                                    if (matchingPoint instanceof InteractionPoint) {
-
-                                        ((InteractionPoint) matchingPoint).setOtherPoint(iPoint);
-                                        iPoint.setOtherPoint((InteractionPoint) matchingPoint);
-
-                                    }
-                                    else {
-                                        // Point not an InteractionPoint
-                                        // Do nothing
-                                    }
-                                }
-                                else {
-                                    // No point
-                                    // Do nothing
-                                }
-                            }
-                            catch (IndexOutOfBoundsException ex) {
-                                // No point
-                                // Do nothing
-                            }
-                        }
-                        else {
-                            // No trajectory
-                            // Do nothing
-                        }
-                    }
+        iPoint.setOtherPoint(null);
+    }
+
+    /**
+     * Links each interaction point that is not already linked with the
+     * point on the other side of the interaction. Each point is found
+     * in constant time using the interaction index.
+     */
+    private void connectInteractionPoints() {
+        for (Trajectory trajectory : getList()) {
+            for (InteractionPoint iPoint : trajectory.getInteractionPoints()) {
+                if (iPoint.getOtherPoint() == null) {
+                    connectInteractionPoint(iPoint);
                 }
             }
         }
@@ -0,0 +1,98 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Local files that keep the writes that a {@link WriteBehindQueue}
+ * discarded, so that they are not lost when the journal checkpoint moves
+ * past them
+ * <p>
+ * Writes that were discarded because the connection to the store was lost
+ * are kept in a file next to the journal with the extension
+ * {@code .retry}. They are queued again the next time a queue is created
+ * with the same journal. Writes that were discarded for any other reason
+ * would fail again, so they are kept in a file with the extension
+ * {@code .failed} and are never applied automatically. That file is a
+ * {@link WriteJournal}, and its writes can be read from
+ * {@link WriteJournal#getUnappliedWrites()}.
+ * <p>
+ * @author Sam Crow
+ */
+class DeadLetters {
+
+    private final WriteJournal retry;
+
+    private final File failedFile;
+
+    private final WriteJournal failed;
+
+    /**
+     * Opens the dead letter files for a journal, or creates them if they
+     * do not exist
+     * <p>
+     * @param journalFile The file of the journal
+     * @throws IOException
+     */
+    public DeadLetters(File journalFile) throws IOException {
+        retry = new WriteJournal(new File(journalFile.getPath() + ".retry"));
+        failedFile = new File(journalFile.getPath() + ".failed");
+        try {
+            failed = new WriteJournal(failedFile);
+        }
+        catch (IOException ex) {
+            retry.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return The file that keeps writes that will not be tried again
+     */
+    public File getFailedFile() {
+        return failedFile;
+    }
+
+    /**
+     * @return The writes that were discarded because the connection was
+     * lost, in the order they were discarded
+     */
+    public List<WriteBehindQueue.Write> getRetryWrites() {
+        return retry.getUnappliedWrites();
+    }
+
+    /**
+     * Removes the writes returned by {@link #getRetryWrites()}, after they
+     * have been queued again
+     * <p>
+     * @throws IOException
+     */
+    public void retried() throws IOException {
+        retry.checkpoint(retry.end());
+    }
+
+    /**
+     * Keeps writes that were discarded
+     * <p>
+     * @param writes
+     * @param retry If the writes should be queued again the next time the
+     * journal is opened
+     * @throws IOException
+     */
+    public void add(List<WriteBehindQueue.Write> writes, boolean retry) throws IOException {
+        final WriteJournal target = retry ? this.retry : failed;
+        for (WriteBehindQueue.Write write : writes) {
+            target.append(write);
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            retry.close();
+        }
+        finally {
+            failed.close();
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package org.samcrow.frameviewer.io3;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import org.samcrow.frameviewer.trajectory.InteractionPoint;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ * Records edits to trajectories so that they can be undone and redone
+ * <p>
+ * Each edit is stored as a small delta that holds the values before and
+ * after the change, not a copy of the trajectory. Edits recorded between
+ * {@link #beginStep()} and {@link #endStep()} are undone and redone
+ * together. Edits recorded outside a step are each a step of their own.
+ * <p>
+ * The number of edits stored is limited. When the limit is reached, the
+ * oldest steps are discarded.
+ * <p>
+ * Steps are undone and redone using
+ * {@link DatabaseTrajectoryDataStore#undo()} and
+ * {@link DatabaseTrajectoryDataStore#redo()}.
+ * <p>
+ * @author Sam Crow
+ */
+public class EditJournal {
+
+    /**
+     * The default maximum number of edits to store
+     */
+    public static final int DEFAULT_MAX_EDITS = 2000;
+
+    private final int maxEdits;
+
+    private final Deque<List<Edit>> undoSteps = new ArrayDeque<>();
+
+    private final Deque<List<Edit>> redoSteps = new ArrayDeque<>();
+
+    /**
+     * The number of edits in undoSteps and redoSteps
+     */
+    private int editCount;
+
+    /**
+     * The edits in the open step, or null if no step is open
+     */
+    private List<Edit> openStep;
+
+    /**
+     * The number of steps that have been started and not ended
+     */
+    private int stepDepth;
+
+    public EditJournal() {
+        this(DEFAULT_MAX_EDITS);
+    }
+
+    /**
+     * @param maxEdits The maximum number of edits to store
+     */
+    public EditJournal(int maxEdits) {
+        if (maxEdits < 1) {
+            throw new IllegalArgumentException("maxEdits must be positive");
+        }
+        this.maxEdits = maxEdits;
+    }
+
+    /**
+     * Starts a step. Edits recorded before the matching call to
+     * {@link #endStep()} are undone and redone together. Steps can be
+     * nested.
+     */
+    public void beginStep() {
+        if (stepDepth == 0) {
+            openStep = new ArrayList<>(2);
+        }
+        stepDepth++;
+    }
+
+    /**
+     * Ends a step
+     * <p>
+     * @throws IllegalStateException if no step is open
+     */
+    public void endStep() {
+        if (stepDepth == 0) {
+            throw new IllegalStateException("No step to end");
+        }
+        stepDepth--;
+        if (stepDepth == 0) {
+            final List<Edit> step = openStep;
+            openStep = null;
+            if (!step.isEmpty()) {
+                push(step);
+            }
+        }
+    }
+
+    /**
+     * Records that a point was moved. This should be called after the point
+     * has been moved.
+     * <p>
+     * @param trajectory The trajectory that contains the point
+     * @param frame The frame of the point
+     * @param oldX The X coordinate of the point before it was moved
+     * @param oldY The Y coordinate of the point before it was moved
+     */
+    public void pointMoved(Trajectory trajectory, int frame, int oldX, int oldY) {
+        final Point point = trajectory.get(frame);
+        if (point != null) {
+            record(new PointMoved(trajectory, frame, oldX, oldY, point.getX(), point.getY()));
+        }
+    }
+
+    /**
+     * Records that the point at a frame of a trajectory was added, removed,
+     * or replaced. This should be called after the trajectory has been
+     * changed.
+     * <p>
+     * @param trajectory The trajectory
+     * @param frame The frame
+     * @param oldPoint The point at the frame before the change, or null if
+     * there was none. If this is a view of the trajectory, it must be
+     * detached before the change.
+     */
+    public void pointChanged(Trajectory trajectory, int frame, Point oldPoint) {
+        record(new PointChanged(trajectory, frame, copyOf(oldPoint), copyOf(trajectory.get(frame))));
+    }
+
+    /**
+     * Records that the ID or actions of a trajectory were changed. This
+     * should be called after the trajectory has been changed.
+     * <p>
+     * @param trajectory The trajectory
+     * @param oldId The ID before the change
+     * @param oldFromAction The from action before the change
+     * @param oldToAction The to action before the change
+     */
+    public void attributesChanged(Trajectory trajectory, int oldId, Trajectory.FromAction oldFromAction, Trajectory.ToAction oldToAction) {
+        if (oldId != trajectory.getId() || oldFromAction != trajectory.getFromAction() || oldToAction != trajectory.getToAction()) {
+            record(new AttributesChanged(trajectory, oldId, oldFromAction, oldToAction));
+        }
+    }
+
+    /**
+     * Records that a trajectory was created and added to the data store
+     * <p>
+     * @param trajectory
+     */
+    public void trajectoryCreated(Trajectory trajectory) {
+        record(new TrajectoryPresence(trajectory, true));
+    }
+
+    /**
+     * Records that a trajectory was deleted from the data store
+     * <p>
+     * @param trajectory
+     */
+    public void trajectoryDeleted(Trajectory trajectory) {
+        record(new TrajectoryPresence(trajectory, false));
+    }
+
+    public boolean canUndo() {
+        return !undoSteps.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoSteps.isEmpty();
+    }
+
+    /**
+     * Discards all recorded edits
+     */
+    public void clear() {
+        undoSteps.clear();
+        redoSteps.clear();
+        editCount = 0;
+    }
+
+    /**
+     * @return The number of edits stored
+     */
+    public int size() {
+        return editCount;
+    }
+
+    /**
+     * @return The trajectories that the stored edits change, which must
+     * stay in the data store so that the edits can be undone and redone
+     */
+    Set<Trajectory> getTrajectories() {
+        final Set<Trajectory> trajectories = Collections.newSetFromMap(new IdentityHashMap<Trajectory, Boolean>());
+        for (List<Edit> step : undoSteps) {
+            for (Edit edit : step) {
+                trajectories.add(edit.trajectory);
+            }
+        }
+        for (List<Edit> step : redoSteps) {
+            for (Edit edit : step) {
+                trajectories.add(edit.trajectory);
+            }
+        }
+        if (openStep != null) {
+            for (Edit edit : openStep) {
+                trajectories.add(edit.trajectory);
+            }
+        }
+        return trajectories;
+    }
+
+    /**
+     * Removes the most recent step from the undo stack and puts it on the
+     * redo stack
+     * <p>
+     * @return The edits in the step, or null if there is nothing to undo
+     */
+    List<Edit> takeUndoStep() {
+        final List<Edit> step = undoSteps.pollFirst();
+        if (step != null) {
+            redoSteps.addFirst(step);
+        }
+        return step;
+    }
+
+    /**
+     * Removes the most recently undone step from the redo stack and puts it
+     * on the undo stack
+     * <p>
+     * @return The edits in the step, or null if there is nothing to redo
+     */
+    List<Edit> takeRedoStep() {
+        final List<Edit> step = redoSteps.pollFirst();
+        if (step != null) {
+            undoSteps.addFirst(step);
+        }
+        return step;
+    }
+
+    private void record(Edit edit) {
+        if (openStep != null) {
+            openStep.add(edit);
+        }
+        else {
+            push(Collections.singletonList(edit));
+        }
+    }
+
+    private void push(List<Edit> step) {
+        // A new edit makes the undone edits impossible to redo
+        for (List<Edit> redoStep : redoSteps) {
+            editCount -= redoStep.size();
+        }
+        redoSteps.clear();
+
+        undoSteps.addFirst(step);
+        editCount += step.size();
+        // Discard the oldest steps, but always keep the newest one
+        while (editCount > maxEdits && undoSteps.size() > 1) {
+            editCount -= undoSteps.pollLast().size();
+        }
+    }
+
+    /**
+     * Copies a point, including the attributes of an interaction point.
+     * This can be used to keep the values of a point before it is changed.
+     * <p>
+     * @param point
+     * @return A copy of a point that does not change when its trajectory
+     * changes, or null if point is null
+     */
+    public static Point copyOf(Point point) {
+        if (point == null) {
+            return null;
+        }
+        if (point instanceof InteractionPoint) {
+            return new InteractionPoint((InteractionPoint) point);
+        }
+        return new Point(point);
+    }
+
+    /**
+     * Collects the trajectories and database records affected by undoing
+     * or redoing a step, so that the database can be updated once
+     */
+    static final class Changes {
+
+        /**
+         * The trajectories that were changed, added, or removed
+         */
+        final Set<Trajectory> trajectories = Collections.newSetFromMap(new IdentityHashMap<Trajectory, Boolean>());
+
+        /**
+         * Trajectory IDs whose records must be deleted before the
+         * trajectories are saved
+         */
+        final List<Integer> deletedIds = new ArrayList<>();
+
+        /**
+         * The trajectory ID and frame of each point record to delete
+         */
+        final List<int[]> deletedPoints = new ArrayList<>();
+    }
+
+    /**
+     * A change that can be undone and redone
+     */
+    static abstract class Edit {
+
+        final Trajectory trajectory;
+
+        Edit(Trajectory trajectory) {
+            this.trajectory = trajectory;
+        }
+
+        /**
+         * Applies the values before or after this edit
+         * <p>
+         * @param store The data store that contains the trajectory
+         * @param undo true to restore the values before this edit, false to
+         * restore the values after it
+         * @param changes The changes to add to
+         */
+        abstract void apply(DatabaseTrajectoryDataStore store, boolean undo, Changes changes);
+    }
+
+    private static final class PointMoved extends Edit {
+
+        private final int frame;
+
+        private final int oldX;
+
+        private final int oldY;
+
+        private final int newX;
+
+        private final int newY;
+
+        PointMoved(Trajectory trajectory, int frame, int oldX, int oldY, int newX, int newY) {
+            super(trajectory);
+            this.frame = frame;
+            this.oldX = oldX;
+            this.oldY = oldY;
+            this.newX = newX;
+            this.newY = newY;
+        }
+
+        @Override
+        void apply(DatabaseTrajectoryDataStore store, boolean undo, Changes changes) {
+            final Point point = trajectory.get(frame);
+            if (point != null) {
+                point.setX(undo ? oldX : newX);
+                point.setY(undo ? oldY : newY);
+                store.markModified(trajectory);
+                changes.trajectories.add(trajectory);
+            }
+        }
+    }
+
+    private static final class PointChanged extends Edit {
+
+        private final int frame;
+
+        private final Point oldPoint;
+
+        private final Point newPoint;
+
+        PointChanged(Trajectory trajectory, int frame, Point oldPoint, Point newPoint) {
+            super(trajectory);
+            this.frame = frame;
+            this.oldPoint = oldPoint;
+            this.newPoint = newPoint;
+        }
+
+        @Override
+        void apply(DatabaseTrajectoryDataStore store, boolean undo, Changes changes) {
+            final Point current = trajectory.get(frame);
+            if (current instanceof InteractionPoint) {
+                store.disconnectInteractionPoint((InteractionPoint) current);
+            }
+            final Point restored = copyOf(undo ? oldPoint : newPoint);
+            trajectory.set(frame, restored);
+            if (restored == null) {
+                changes.deletedPoints.add(new int[]{trajectory.getId(), frame});
+            }
+            else if (restored instanceof InteractionPoint) {
+                store.connectInteractionPoint((InteractionPoint) restored);
+            }
+            store.markModified(trajectory);
+            changes.trajectories.add(trajectory);
+        }
+    }
+
+    private static final class AttributesChanged extends Edit {
+
+        private final int oldId;
+
+        private final Trajectory.FromAction oldFromAction;
+
+        private final Trajectory.ToAction oldToAction;
+
+        private final int newId;
+
+        private final Trajectory.FromAction newFromAction;
+
+        private final Trajectory.ToAction newToAction;
+
+        AttributesChanged(Trajectory trajectory, int oldId, Trajectory.FromAction oldFromAction, Trajectory.ToAction oldToAction) {
+            super(trajectory);
+            this.oldId = oldId;
+            this.oldFromAction = oldFromAction;
+            this.oldToAction = oldToAction;
+            newId = trajectory.getId();
+            newFromAction = trajectory.getFromAction();
+            newToAction = trajectory.getToAction();
+        }
+
+        @Override
+        void apply(DatabaseTrajectoryDataStore store, boolean undo, Changes changes) {
+            if (oldId != newId) {
+                // Remove the records under both IDs, so that only the
+                // current points are saved
+                deleteRecords(store, oldId, changes);
+                deleteRecords(store, newId, changes);
+            }
+            trajectory.setId(undo ? oldId : newId);
+            trajectory.setFromAction(undo ? oldFromAction : newFromAction);
+            trajectory.setToAction(undo ? oldToAction : newToAction);
+            store.markModified(trajectory);
+            changes.trajectories.add(trajectory);
+        }
+
+        /**
+         * Deletes the records of this trajectory under an ID. If another
+         * trajectory has the ID, only the points at frames where this
+         * trajectory has a point and the other trajectory does not are
+         * deleted, so that the other trajectory keeps its records.
+         */
+        private void deleteRecords(DatabaseTrajectoryDataStore store, int id, Changes changes) {
+            final Trajectory owner = store.findTrajectoryById(id);
+            final TrajectoryWindow window = store.getWindow();
+            final boolean ownerUnloaded = owner == null && window != null && window.isUnloaded(id);
+            if ((owner == null || owner == trajectory) && !ownerUnloaded) {
+                changes.deletedIds.add(id);
+                return;
+            }
+            for (Point point : trajectory) {
+                if (owner == null || owner.get(point.getFrame()) == null) {
+                    changes.deletedPoints.add(new int[]{id, point.getFrame()});
+                }
+            }
+        }
+    }
+
+    /**
+     * The creation or deletion of a trajectory
+     */
+    private static final class TrajectoryPresence extends Edit {
+
+        /**
+         * True if the trajectory was created, false if it was deleted
+         */
+        private final boolean created;
+
+        TrajectoryPresence(Trajectory trajectory, boolean created) {
+            super(trajectory);
+            this.created = created;
+        }
+
+        @Override
+        void apply(DatabaseTrajectoryDataStore store, boolean undo, Changes changes) {
+            // Undoing a creation or redoing a deletion removes the trajectory
+            if (undo == created) {
+                store.removeTrajectory(trajectory);
+            }
+            else {
+                store.restoreTrajectory(trajectory);
+            }
+            changes.trajectories.add(trajectory);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.samcrow.frameviewer.io3;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.HashSet;
+import java.util.Set;
+import org.samcrow.frameviewer.trajectory.InteractionType;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ * Reads and writes the columns that store enumerated values
+ * <p>
+ * Data sets store enumerated values either as their names in
+ * {@code varchar} columns, or as the codes returned by their
+ * {@code getCode()} methods in {@code TINYINT} columns. The layout of each
+ * column is detected from the database, so a data set that was only
+ * partly converted by {@link SchemaMigrations#compactEnumColumns()} can
+ * still be read.
+ * <p>
+ * @author Sam Crow
+ */
+final class EnumColumns {
+
+    /**
+     * The columns of the points table that store enumerated values
+     */
+    static final String[] POINT_COLUMNS = {"activity", "interaction_type", "interaction_met_ant_activity"};
+
+    /**
+     * The columns of the trajectories table that store enumerated values
+     */
+    static final String[] TRAJECTORY_COLUMNS = {"from_action", "to_action"};
+
+    /**
+     * The names of the columns that store codes
+     */
+    private final Set<String> codedColumns;
+
+    private EnumColumns(Set<String> codedColumns) {
+        this.codedColumns = codedColumns;
+    }
+
+    /**
+     * Finds the layout of the columns in a data set
+     * <p>
+     * @param connection
+     * @param pointsTableName
+     * @param trajectoriesTableName
+     * @return The layout
+     * @throws SQLException
+     */
+    public static EnumColumns detect(Connection connection, String pointsTableName, String trajectoriesTableName) throws SQLException {
+        final Set<String> coded = new HashSet<>();
+        findCodedColumns(connection, pointsTableName, POINT_COLUMNS, coded);
+        findCodedColumns(connection, trajectoriesTableName, TRAJECTORY_COLUMNS, coded);
+        return new EnumColumns(coded);
+    }
+
+    private static void findCodedColumns(Connection connection, String tableName, String[] columnNames, Set<String> coded) throws SQLException {
+        final DatabaseMetaData data = connection.getMetaData();
+        for (String columnName : columnNames) {
+            try (ResultSet columns = data.getColumns(connection.getCatalog(), null, tableName, columnName)) {
+                if (columns.next() && isIntegerType(columns.getInt("DATA_TYPE"))) {
+                    coded.add(columnName);
+                }
+            }
+        }
+    }
+
+    static boolean isIntegerType(int sqlType) {
+        return sqlType == Types.TINYINT || sqlType == Types.SMALLINT || sqlType == Types.INTEGER || sqlType == Types.BIT;
+    }
+
+    /**
+     * @return true if every enumerated column stores codes
+     */
+    public boolean isCompact() {
+        return codedColumns.size() == POINT_COLUMNS.length + TRAJECTORY_COLUMNS.length;
+    }
+
+    public Point.Activity getActivity(ResultSet result, String columnName) throws SQLException {
+        if (codedColumns.contains(columnName)) {
+            return Point.Activity.fromCode(result.getInt(columnName));
+        }
+        return Point.Activity.safeValueOf(result.getString(columnName));
+    }
+
+    public InteractionType getInteractionType(ResultSet result) throws SQLException {
+        if (codedColumns.contains("interaction_type")) {
+            return InteractionType.fromCode(result.getInt("interaction_type"));
+        }
+        return InteractionType.safeValueOf(result.getString("interaction_type"));
+    }
+
+    public Trajectory.FromAction getFromAction(ResultSet result) throws SQLException {
+        if (codedColumns.contains("from_action")) {
+            return Trajectory.FromAction.fromCode(result.getInt("from_action"));
+        }
+        return Trajectory.FromAction.safeValueOf(result.getString("from_action"));
+    }
+
+    public Trajectory.ToAction getToAction(ResultSet result) throws SQLException {
+        if (codedColumns.contains("to_action")) {
+            return Trajectory.ToAction.fromCode(result.getInt("to_action"));
+        }
+        return Trajectory.ToAction.safeValueOf(result.getString("to_action"));
+    }
+
+    /**
+     * Sets a parameter to an activity, or to null
+     * <p>
+     * @param statement
+     * @param index The index of the parameter
+     * @param columnName The column that the parameter will be stored in
+     * @param activity The activity, or null
+     * @throws SQLException
+     */
+    public void setActivity(PreparedStatement statement, int index, String columnName, Point.Activity activity) throws SQLException {
+        if (activity == null) {
+            setNull(statement, index, columnName);
+        }
+        else if (codedColumns.contains(columnName)) {
+            statement.setInt(index, activity.getCode());
+        }
+        else {
+            statement.setString(index, activity.name());
+        }
+    }
+
+    /**
+     * Sets a parameter to an interaction type, or to null
+     * <p>
+     * @param statement
+     * @param index The index of the parameter
+     * @param type The type, or null
+     * @throws SQLException
+     */
+    public void setInteractionType(PreparedStatement statement, int index, InteractionType type) throws SQLException {
+        if (type == null) {
+            setNull(statement, index, "interaction_type");
+        }
+        else if (codedColumns.contains("interaction_type")) {
+            statement.setInt(index, type.getCode());
+        }
+        else {
+            statement.setString(index, type.name());
+        }
+    }
+
+    public void setFromAction(PreparedStatement statement, int index, Trajectory.FromAction action) throws SQLException {
+        if (codedColumns.contains("from_action")) {
+            statement.setInt(index, action.getCode());
+        }
+        else {
+            statement.setString(index, action.name());
+        }
+    }
+
+    public void setToAction(PreparedStatement statement, int index, Trajectory.ToAction action) throws SQLException {
+        if (codedColumns.contains("to_action")) {
+            statement.setInt(index, action.getCode());
+        }
+        else {
+            statement.setString(index, action.name());
+        }
+    }
+
+    private void setNull(PreparedStatement statement, int index, String columnName) throws SQLException {
+        statement.setNull(index, codedColumns.contains(columnName) ? Types.TINYINT : Types.VARCHAR);
+    }
+}
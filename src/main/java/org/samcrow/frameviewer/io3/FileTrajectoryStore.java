@@ -0,0 +1,778 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.samcrow.frameviewer.trajectory.InteractionPoint;
+import org.samcrow.frameviewer.trajectory.InteractionType;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ * Stores a data set in a local file, for one user with no database server
+ * <p>
+ * The file is a log of changes. Saving or deleting appends records to the
+ * end of the file, and records are never changed once written. Each
+ * transaction ends with a commit record, and the file is synced to the disk
+ * when a transaction is committed. Loading reads the whole file and keeps
+ * the last value of each trajectory and point.
+ * <p>
+ * The version of a change is the length of the file after it was
+ * committed, so the changes since a version are read from the end of the
+ * file.
+ * <p>
+ * When a file is opened, any records after the last commit are discarded,
+ * because they were written by a transaction that did not finish. If most
+ * of the records in the file have been replaced by later records, the
+ * current trajectories and points are written to a new file, which
+ * replaces the old one.
+ * <p>
+ * Enumerated values are stored as their codes. A lock file next to the
+ * data file prevents other processes from opening it at the same time.
+ * <p>
+ * @author Sam Crow
+ */
+public class FileTrajectoryStore implements TrajectoryStore {
+
+    /**
+     * The first four bytes of every file, "FVTS"
+     */
+    private static final int MAGIC = 0x46565453;
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The length of the magic number and format version
+     */
+    private static final int HEADER_LENGTH = 8;
+
+    // Record types
+    private static final byte TRAJECTORY = 1;
+    private static final byte POINT = 2;
+    private static final byte DELETE_TRAJECTORY = 3;
+    private static final byte DELETE_POINT = 4;
+    private static final byte COMMIT = 5;
+
+    /**
+     * The size of the read and write buffers, in bytes
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Files smaller than this, in bytes, are not compacted
+     */
+    private static final long MIN_COMPACT_LENGTH = 1024 * 1024;
+
+    private final File file;
+
+    private final FileChannel lockChannel;
+
+    private final FileLock lock;
+
+    private FileChannel channel;
+
+    private DataOutputStream output;
+
+    /**
+     * The length of the file up to the end of the last commit record
+     */
+    private long committedLength;
+
+    private boolean inTransaction;
+
+    /**
+     * Opens a file, or creates it if it does not exist
+     * <p>
+     * @param file
+     * @throws IOException if the file could not be read or created, or
+     * another process has it open
+     */
+    public FileTrajectoryStore(File file) throws IOException {
+        this.file = file;
+        lockChannel = new RandomAccessFile(new File(file.getPath() + ".lock"), "rw").getChannel();
+        FileLock fileLock;
+        try {
+            fileLock = lockChannel.tryLock();
+        }
+        catch (OverlappingFileLockException ex) {
+            // Already open in this process
+            fileLock = null;
+        }
+        lock = fileLock;
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException(file + " is open in another process");
+        }
+        try {
+            open();
+        }
+        catch (IOException ex) {
+            lock.release();
+            lockChannel.close();
+            throw ex;
+        }
+    }
+
+    private void open() throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            try (DataOutputStream header = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath())))) {
+                header.writeInt(MAGIC);
+                header.writeInt(FORMAT_VERSION);
+            }
+        }
+
+        final Replay replay = new Replay();
+        replay.read(file, 0, file.length());
+        committedLength = replay.end;
+
+        if (shouldCompact(replay)) {
+            compact(replay);
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        if (channel.size() > committedLength) {
+            Logger.getLogger(FileTrajectoryStore.class.getName()).log(Level.WARNING,
+                    "Discarding {0} bytes written by an unfinished transaction", channel.size() - committedLength);
+            channel.truncate(committedLength);
+        }
+        channel.position(committedLength);
+        output = createOutput();
+    }
+
+    private DataOutputStream createOutput() {
+        return new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+    }
+
+    /**
+     * @return true if the file is large and most of its records have been
+     * replaced
+     */
+    private boolean shouldCompact(Replay replay) {
+        return committedLength >= MIN_COMPACT_LENGTH && replay.recordCount > 2 * replay.liveRecordCount();
+    }
+
+    /**
+     * Writes the current trajectories and points to a new file, and
+     * replaces the file with it
+     */
+    private void compact(Replay replay) throws IOException {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        try (FileChannel tempChannel = FileChannel.open(tempFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final DataOutputStream tempOutput = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(tempChannel), BUFFER_SIZE));
+            tempOutput.writeInt(MAGIC);
+            tempOutput.writeInt(FORMAT_VERSION);
+            for (Map.Entry<Integer, Entry> mapEntry : replay.entries.entrySet()) {
+                final Entry entry = mapEntry.getValue();
+                if (entry.hasRecord && !entry.points.isEmpty()) {
+                    writeTrajectoryRecord(tempOutput, mapEntry.getKey(), entry.fromAction, entry.toAction);
+                    for (Point point : entry.points.values()) {
+                        writePoint(tempOutput, point, mapEntry.getKey());
+                    }
+                }
+            }
+            tempOutput.writeByte(COMMIT);
+            tempOutput.flush();
+            tempChannel.force(true);
+        }
+        final long oldLength = committedLength;
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committedLength = file.length();
+        Logger.getLogger(FileTrajectoryStore.class.getName()).log(Level.INFO, "Compacted {0} from {1} to {2} bytes",
+                new Object[]{file, oldLength, committedLength});
+    }
+
+    @Override
+    public List<Trajectory> loadAll() throws IOException {
+        return load(null);
+    }
+
+    @Override
+    public List<TrajectorySummary> loadSummaries() throws IOException {
+        final Replay replay = new Replay();
+        replay.read(file, 0, committedLength);
+
+        final List<TrajectorySummary> summaries = new ArrayList<>(replay.entries.size());
+        for (Map.Entry<Integer, Entry> mapEntry : replay.entries.entrySet()) {
+            final Entry entry = mapEntry.getValue();
+            if (entry.hasRecord && !entry.points.isEmpty()) {
+                summaries.add(new TrajectorySummary(mapEntry.getKey(), entry.points.firstKey(), entry.points.lastKey(), entry.points.size()));
+            }
+        }
+        return summaries;
+    }
+
+    @Override
+    public int[] countPoints(int cellSize, int columns, int rows) throws IOException {
+        final Replay replay = new Replay();
+        replay.read(file, 0, committedLength);
+
+        final int[] counts = new int[columns * rows];
+        for (Entry entry : replay.entries.values()) {
+            if (!entry.hasRecord) {
+                continue;
+            }
+            for (Point point : entry.points.values()) {
+                if (point.getX() < 0 || point.getY() < 0) {
+                    continue;
+                }
+                final int column = point.getX() / cellSize;
+                final int row = point.getY() / cellSize;
+                if (column < columns && row < rows) {
+                    counts[row * columns + column]++;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Loads some of the trajectories. The whole file is read, but only
+     * the requested trajectories are created.
+     */
+    @Override
+    public List<Trajectory> loadTrajectories(Collection<Integer> trajectoryIds) throws IOException {
+        return load(new HashSet<>(trajectoryIds));
+    }
+
+    /**
+     * @param trajectoryIds The IDs of the trajectories to load, or null to
+     * load all of them
+     */
+    private List<Trajectory> load(Set<Integer> trajectoryIds) throws IOException {
+        final Replay replay = new Replay();
+        replay.read(file, 0, committedLength);
+
+        final List<Trajectory> trajectories = new ArrayList<>();
+        for (Map.Entry<Integer, Entry> mapEntry : replay.entries.entrySet()) {
+            final Entry entry = mapEntry.getValue();
+            // Records with no points are not loaded, and are dropped when
+            // the file is compacted
+            if (!entry.hasRecord || entry.points.isEmpty()) {
+                continue;
+            }
+            if (trajectoryIds != null && !trajectoryIds.contains(mapEntry.getKey())) {
+                continue;
+            }
+            final int firstFrame = entry.points.firstKey();
+            final Trajectory trajectory = new Trajectory(firstFrame, firstFrame + 1, mapEntry.getKey());
+            trajectory.setFromAction(entry.fromAction);
+            trajectory.setToAction(entry.toAction);
+            for (Point point : entry.points.values()) {
+                trajectory.set(point.getFrame(), point);
+            }
+            trajectories.add(trajectory);
+        }
+        return trajectories;
+    }
+
+    @Override
+    public long currentVersion() {
+        return committedLength;
+    }
+
+    @Override
+    public ChangeSet loadChanges(long sinceVersion, long untilVersion) throws IOException {
+        final Replay replay = new Replay();
+        if (untilVersion > sinceVersion) {
+            replay.read(file, sinceVersion, untilVersion);
+        }
+
+        final ChangeSet changes = new ChangeSet();
+        for (int trajectoryId : replay.deletedTrajectoryIds) {
+            changes.addDeletedTrajectory(trajectoryId);
+        }
+        for (int[] point : replay.deletedPoints) {
+            changes.addDeletedPoint(point[0], point[1]);
+        }
+        for (Map.Entry<Integer, Entry> mapEntry : replay.entries.entrySet()) {
+            final Entry entry = mapEntry.getValue();
+            if (entry.hasRecord) {
+                changes.addTrajectory(mapEntry.getKey(), entry.fromAction, entry.toAction);
+            }
+        }
+        for (Entry entry : replay.entries.values()) {
+            for (Point point : entry.points.values()) {
+                changes.addPoint(point);
+            }
+        }
+        return changes;
+    }
+
+    @Override
+    public SaveReport saveTrajectory(Trajectory trajectory) throws IOException {
+        final long start = System.nanoTime();
+        int records = 1;
+        try {
+            writeTrajectoryRecord(output, trajectory.getId(), trajectory.getFromAction(), trajectory.getToAction());
+            for (Point point : trajectory) {
+                writePoint(output, point, trajectory.getId());
+                records++;
+            }
+            endWrite();
+        }
+        catch (IOException ex) {
+            writeFailed();
+            throw ex;
+        }
+        return new SaveReport(records, System.nanoTime() - start);
+    }
+
+    @Override
+    public void savePoint(Point point, int trajectoryId) throws IOException {
+        try {
+            writePoint(output, point, trajectoryId);
+            endWrite();
+        }
+        catch (IOException ex) {
+            writeFailed();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void deleteTrajectory(int trajectoryId) throws IOException {
+        try {
+            output.writeByte(DELETE_TRAJECTORY);
+            output.writeInt(trajectoryId);
+            endWrite();
+        }
+        catch (IOException ex) {
+            writeFailed();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void deletePoint(int trajectoryId, int frame) throws IOException {
+        try {
+            output.writeByte(DELETE_POINT);
+            output.writeInt(trajectoryId);
+            output.writeInt(frame);
+            endWrite();
+        }
+        catch (IOException ex) {
+            writeFailed();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void beginTransaction() {
+        if (inTransaction) {
+            throw new IllegalStateException("A transaction is already open");
+        }
+        inTransaction = true;
+    }
+
+    @Override
+    public void commitTransaction() throws IOException {
+        inTransaction = false;
+        try {
+            commit();
+        }
+        catch (IOException ex) {
+            discardUncommitted();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void rollbackTransaction() throws IOException {
+        inTransaction = false;
+        discardUncommitted();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (inTransaction) {
+                rollbackTransaction();
+            }
+            output.flush();
+            channel.close();
+        }
+        finally {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    /**
+     * Commits a write that was made outside a transaction
+     */
+    private void endWrite() throws IOException {
+        if (!inTransaction) {
+            commit();
+        }
+    }
+
+    /**
+     * Discards a write that failed outside a transaction. Writes in a
+     * transaction are discarded when it is rolled back.
+     */
+    private void writeFailed() {
+        if (!inTransaction) {
+            try {
+                discardUncommitted();
+            }
+            catch (IOException ex) {
+                Logger.getLogger(FileTrajectoryStore.class.getName()).log(Level.WARNING, "Failed to discard a failed write", ex);
+            }
+        }
+    }
+
+    private void commit() throws IOException {
+        output.writeByte(COMMIT);
+        output.flush();
+        channel.force(false);
+        committedLength = channel.position();
+    }
+
+    /**
+     * Removes everything after the last commit record from the file
+     */
+    private void discardUncommitted() throws IOException {
+        try {
+            output.flush();
+        }
+        catch (IOException ex) {
+            // The buffered records are discarded with the new stream
+        }
+        channel.truncate(committedLength);
+        channel.position(committedLength);
+        output = createOutput();
+    }
+
+    private static void writeTrajectoryRecord(DataOutputStream out, int trajectoryId, Trajectory.FromAction fromAction, Trajectory.ToAction toAction) throws IOException {
+        out.writeByte(TRAJECTORY);
+        out.writeInt(trajectoryId);
+        out.writeByte(fromAction.getCode());
+        out.writeByte(toAction.getCode());
+    }
+
+    private static void writePoint(DataOutputStream out, Point point, int trajectoryId) throws IOException {
+        out.writeByte(POINT);
+        writePointFields(out, point, trajectoryId);
+    }
+
+    /**
+     * Writes a point without a record type. Points are written in 18 bytes,
+     * or 24 bytes for interaction points.
+     * <p>
+     * @param out
+     * @param point
+     * @param trajectoryId The ID of the trajectory that contains the point
+     * @throws IOException
+     */
+    static void writePointFields(DataOutput out, Point point, int trajectoryId) throws IOException {
+        out.writeInt(trajectoryId);
+        out.writeInt(point.getFrame());
+        out.writeInt(point.getX());
+        out.writeInt(point.getY());
+        out.writeByte(codeOf(point.getActivity()));
+        if (point instanceof InteractionPoint) {
+            final InteractionPoint iPoint = (InteractionPoint) point;
+            out.writeBoolean(true);
+            out.writeInt(iPoint.getMetAntId());
+            out.writeByte(iPoint.getType() != null ? iPoint.getType().getCode() : InteractionType.Unknown.getCode());
+            out.writeByte(codeOf(iPoint.getMetAntActivity()));
+        }
+        else {
+            out.writeBoolean(false);
+        }
+    }
+
+    /**
+     * Reads a point written by {@link #writePointFields(DataOutput, Point, int)}
+     * <p>
+     * @param input
+     * @return The point, with its frame and trajectory ID set
+     * @throws IOException
+     */
+    static Point readPointFields(DataInput input) throws IOException {
+        final int trajectoryId = input.readInt();
+        final int frame = input.readInt();
+        final int x = input.readInt();
+        final int y = input.readInt();
+        final int activityCode = input.readByte();
+        final Point point;
+        if (input.readBoolean()) {
+            final InteractionPoint iPoint = new InteractionPoint(x, y);
+            iPoint.setMetAntId(input.readInt());
+            iPoint.setType(InteractionType.fromCode(input.readByte()));
+            iPoint.setMetAntActivity(Point.Activity.fromCode(input.readByte()));
+            point = iPoint;
+        }
+        else {
+            point = new Point(x, y);
+        }
+        point.setFrame(frame);
+        point.setActivity(Point.Activity.fromCode(activityCode));
+        point.setTrajectoryID(trajectoryId);
+        return point;
+    }
+
+    private static int codeOf(Point.Activity activity) {
+        return activity != null ? activity.getCode() : Point.Activity.NotCarrying.getCode();
+    }
+
+    /**
+     * The last values written for a trajectory
+     */
+    private static final class Entry {
+
+        /**
+         * If a trajectory record has been read. Points can be saved before
+         * the record of their trajectory.
+         */
+        boolean hasRecord;
+
+        Trajectory.FromAction fromAction = Trajectory.FromAction.Other;
+
+        Trajectory.ToAction toAction = Trajectory.ToAction.Other;
+
+        /**
+         * The points, by frame
+         */
+        final TreeMap<Integer, Point> points = new TreeMap<>();
+    }
+
+    /**
+     * A record read from the file that has not been committed yet
+     */
+    private static final class LogRecord {
+
+        final byte type;
+
+        final int trajectoryId;
+
+        int frame;
+
+        Trajectory.FromAction fromAction;
+
+        Trajectory.ToAction toAction;
+
+        Point point;
+
+        LogRecord(byte type, int trajectoryId) {
+            this.type = type;
+            this.trajectoryId = trajectoryId;
+        }
+    }
+
+    /**
+     * Reads records from the file and keeps the last value of each
+     * trajectory and point
+     */
+    private static final class Replay {
+
+        /**
+         * The trajectories, by ID
+         */
+        final TreeMap<Integer, Entry> entries = new TreeMap<>();
+
+        final List<Integer> deletedTrajectoryIds = new ArrayList<>();
+
+        final List<int[]> deletedPoints = new ArrayList<>();
+
+        /**
+         * The number of committed records read, not including commit
+         * records
+         */
+        long recordCount;
+
+        /**
+         * The position in the file after the last commit record read
+         */
+        long end;
+
+        /**
+         * The records read since the last commit record
+         */
+        private final List<LogRecord> pending = new ArrayList<>();
+
+        /**
+         * Reads the committed records in a range of the file. Records after
+         * the last commit record in the range are ignored.
+         * <p>
+         * @param file
+         * @param start The position of the first record, or 0 to start at
+         * the beginning of the file
+         * @param stop The position to stop reading at
+         */
+        void read(File file, long start, long stop) throws IOException {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+                long position;
+                if (start < HEADER_LENGTH) {
+                    if (input.readInt() != MAGIC) {
+                        throw new IOException(file + " is not a trajectory file");
+                    }
+                    final int version = input.readInt();
+                    if (version > FORMAT_VERSION) {
+                        throw new IOException(file + " was written by a newer version of this software");
+                    }
+                    position = HEADER_LENGTH;
+                }
+                else {
+                    skipFully(input, start);
+                    position = start;
+                }
+                end = position;
+
+                while (position < stop) {
+                    final byte type;
+                    try {
+                        type = input.readByte();
+                    }
+                    catch (EOFException ex) {
+                        break;
+                    }
+                    try {
+                        position += readRecord(input, type);
+                    }
+                    catch (EOFException ex) {
+                        // A record that was not completely written
+                        break;
+                    }
+                    if (type == COMMIT) {
+                        end = position;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads one record after its type
+         * <p>
+         * @return The length of the record, including its type
+         */
+        private int readRecord(DataInputStream input, byte type) throws IOException {
+            switch (type) {
+                case TRAJECTORY: {
+                    final int trajectoryId = input.readInt();
+                    final int fromCode = input.readByte();
+                    final int toCode = input.readByte();
+                    final LogRecord record = new LogRecord(type, trajectoryId);
+                    record.fromAction = Trajectory.FromAction.fromCode(fromCode);
+                    record.toAction = Trajectory.ToAction.fromCode(toCode);
+                    pending.add(record);
+                    return 7;
+                }
+                case POINT: {
+                    final Point point = readPointFields(input);
+                    final LogRecord record = new LogRecord(type, point.getTrajectoryID());
+                    record.point = point;
+                    pending.add(record);
+                    return point instanceof InteractionPoint ? 25 : 19;
+                }
+                case DELETE_TRAJECTORY:
+                    pending.add(new LogRecord(type, input.readInt()));
+                    return 5;
+                case DELETE_POINT: {
+                    final LogRecord record = new LogRecord(type, input.readInt());
+                    record.frame = input.readInt();
+                    pending.add(record);
+                    return 9;
+                }
+                case COMMIT:
+                    for (LogRecord record : pending) {
+                        apply(record);
+                    }
+                    recordCount += pending.size();
+                    pending.clear();
+                    return 1;
+                default:
+                    throw new IOException("Unknown record type " + type);
+            }
+        }
+
+        private void apply(LogRecord record) {
+            final int trajectoryId = record.trajectoryId;
+            switch (record.type) {
+                case TRAJECTORY: {
+                    final Entry entry = entry(trajectoryId);
+                    entry.hasRecord = true;
+                    entry.fromAction = record.fromAction;
+                    entry.toAction = record.toAction;
+                    break;
+                }
+                case POINT:
+                    entry(trajectoryId).points.put(record.point.getFrame(), record.point);
+                    break;
+                case DELETE_TRAJECTORY:
+                    entries.remove(trajectoryId);
+                    deletedTrajectoryIds.add(trajectoryId);
+                    break;
+                case DELETE_POINT: {
+                    final int frame = record.frame;
+                    final Entry entry = entries.get(trajectoryId);
+                    if (entry != null) {
+                        entry.points.remove(frame);
+                        if (!entry.hasRecord && entry.points.isEmpty()) {
+                            entries.remove(trajectoryId);
+                        }
+                    }
+                    deletedPoints.add(new int[]{trajectoryId, frame});
+                    break;
+                }
+            }
+        }
+
+        private Entry entry(int trajectoryId) {
+            Entry entry = entries.get(trajectoryId);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(trajectoryId, entry);
+            }
+            return entry;
+        }
+
+        /**
+         * @return The number of records that would be written to hold the
+         * current trajectories and points
+         */
+        long liveRecordCount() {
+            long count = 0;
+            for (Entry entry : entries.values()) {
+                if (entry.hasRecord && !entry.points.isEmpty()) {
+                    count += 1 + entry.points.size();
+                }
+            }
+            return count;
+        }
+
+        private static void skipFully(DataInputStream input, long count) throws IOException {
+            while (count > 0) {
+                final long skipped = input.skip(count);
+                if (skipped <= 0) {
+                    throw new EOFException();
+                }
+                count -= skipped;
+            }
+        }
+    }
+}
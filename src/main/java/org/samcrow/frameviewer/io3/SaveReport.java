@@ -0,0 +1,45 @@
+package org.samcrow.frameviewer.io3;
+
+/**
+ * Describes how much was written to the database by a save operation, and
+ * how long it took
+ * <p>
+ * @author Sam Crow
+ */
+public class SaveReport {
+
+    private final int rowsWritten;
+
+    private final long elapsedNanos;
+
+    public SaveReport(int rowsWritten, long elapsedNanos) {
+        this.rowsWritten = rowsWritten;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return The number of rows inserted or updated
+     */
+    public int getRowsWritten() {
+        return rowsWritten;
+    }
+
+    /**
+     * @return The time taken, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return The time taken, in milliseconds
+     */
+    public double getElapsedMillis() {
+        return elapsedNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return rowsWritten + " rows in " + String.format("%.1f", getElapsedMillis()) + " ms";
+    }
+}
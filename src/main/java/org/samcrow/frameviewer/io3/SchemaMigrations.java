@@ -0,0 +1,435 @@
+package org.samcrow.frameviewer.io3;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.samcrow.frameviewer.trajectory.InteractionType;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ * Brings the schema of a data set up to date
+ * <p>
+ * The schema version of a data set is stored in a table named
+ * {@code <trajectories table>_schema}. Data sets created before this table
+ * existed have version 0, which is the schema created by
+ * {@code DatabaseTrajectoryDataStore}. Each migration changes the schema
+ * from one version to the next. When a data set is opened, the migrations
+ * after its version are applied in order, and the version is recorded after
+ * each one.
+ * <p>
+ * Every migration checks whether its changes are already present, so a
+ * migration that was interrupted can be run again.
+ * <p>
+ * Converting the enumerated columns to codes is optional, so it is not one
+ * of the numbered migrations. See {@link #compactEnumColumns()}.
+ * <p>
+ * Each client that has the data set open holds a named lock, taken with
+ * {@link #registerClient()}, so that the columns are not converted while
+ * another client is using them. The lock is released when the connection
+ * is closed or lost.
+ * <p>
+ * @author Sam Crow
+ */
+class SchemaMigrations {
+
+    /**
+     * The name of the unique key on the trajectory ID and frame of each
+     * point
+     */
+    static final String POINT_KEY_NAME = "trajectory_frame";
+
+    /**
+     * The name of the index used to find duplicate points before the unique
+     * key is added
+     */
+    private static final String POINT_LOOKUP_INDEX_NAME = "trajectory_frame_lookup";
+
+    /**
+     * How long to wait for another client to finish migrating the same data
+     * set, in seconds
+     */
+    private static final int LOCK_TIMEOUT = 60;
+
+    /**
+     * The number of clients that can have a data set open at the same time
+     */
+    static final int MAX_CLIENTS = 64;
+
+    private final Connection connection;
+
+    private final String pointsTableName;
+
+    private final String trajectoriesTableName;
+
+    private final String schemaTableName;
+
+    /**
+     * The name of the client lock held by the connection, or null if
+     * {@link #registerClient()} has not been called
+     */
+    private String clientLockName;
+
+    /**
+     * The migrations. Migration n changes the schema from version n - 1 to
+     * version n, and is at index n - 1.
+     */
+    private final List<Migration> migrations = Arrays.asList(
+            new Migration("Add a unique key on the trajectory and frame of each point") {
+                @Override
+                void apply(Statement statement) throws SQLException {
+                    if (hasIndex(pointsTableName, POINT_KEY_NAME)) {
+                        return;
+                    }
+                    // Without an index, the join below compares every pair
+                    // of points. The index may be left from an interrupted
+                    // migration.
+                    if (!hasIndex(pointsTableName, POINT_LOOKUP_INDEX_NAME)) {
+                        statement.executeUpdate("ALTER TABLE `" + pointsTableName + "`"
+                                + " ADD INDEX `" + POINT_LOOKUP_INDEX_NAME + "` (`trajectory_id`, `frame_number`)");
+                    }
+                    // Of the points with the same trajectory and frame, keep
+                    // the one that is loaded: an interaction point if there
+                    // is one, otherwise the newest point
+                    statement.executeUpdate("DELETE `a` FROM `" + pointsTableName + "` `a` JOIN `" + pointsTableName + "` `b`"
+                            + " ON `a`.`trajectory_id` = `b`.`trajectory_id` AND `a`.`frame_number` = `b`.`frame_number`"
+                            + " AND (`a`.`is_interaction` < `b`.`is_interaction`"
+                            + " OR (`a`.`is_interaction` = `b`.`is_interaction` AND `a`.`point_id` < `b`.`point_id`))");
+                    // The unique key replaces the plain index
+                    statement.executeUpdate("ALTER TABLE `" + pointsTableName + "`"
+                            + " ADD UNIQUE KEY `" + POINT_KEY_NAME + "` (`trajectory_id`, `frame_number`),"
+                            + " DROP INDEX `" + POINT_LOOKUP_INDEX_NAME + "`");
+                }
+            },
+            new Migration("Add change versions and tombstones") {
+                @Override
+                void apply(Statement statement) throws SQLException {
+                    // Existing rows get version 0
+                    for (String tableName : new String[]{trajectoriesTableName, pointsTableName}) {
+                        if (!hasColumn(tableName, "change_version")) {
+                            statement.executeUpdate("ALTER TABLE `" + tableName + "`"
+                                    + " ADD COLUMN `change_version` BIGINT NOT NULL DEFAULT 0,"
+                                    + " ADD INDEX (`change_version`)");
+                        }
+                    }
+                    final String versionTableName = trajectoriesTableName + ChangeVersions.VERSION_TABLE_SUFFIX;
+                    statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + versionTableName + "` ("
+                            + "`id` INTEGER PRIMARY KEY,"
+                            + "`version` BIGINT NOT NULL"
+                            + ")");
+                    statement.executeUpdate("INSERT IGNORE INTO `" + versionTableName + "` (`id`, `version`) VALUES (1, 0)");
+                    statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + trajectoriesTableName + ChangeVersions.TOMBSTONES_TABLE_SUFFIX + "` ("
+                            + "`trajectory_id` INTEGER NOT NULL,"
+                            + "`frame_number` INTEGER,"
+                            + "`change_version` BIGINT NOT NULL,"
+                            + "INDEX (`change_version`)"
+                            + ")");
+                }
+            },
+            new Migration("Use InnoDB for all tables") {
+                @Override
+                void apply(Statement statement) throws SQLException {
+                    // Saving in transactions and giving out change versions
+                    // in order need a storage engine with transactions and
+                    // row locks
+                    final String[] tableNames = {
+                        trajectoriesTableName,
+                        pointsTableName,
+                        trajectoriesTableName + ChangeVersions.VERSION_TABLE_SUFFIX,
+                        trajectoriesTableName + ChangeVersions.TOMBSTONES_TABLE_SUFFIX
+                    };
+                    for (String tableName : tableNames) {
+                        if (!"InnoDB".equalsIgnoreCase(getEngine(tableName))) {
+                            statement.executeUpdate("ALTER TABLE `" + tableName + "` ENGINE = InnoDB");
+                        }
+                    }
+                }
+            }
+    );
+
+    public SchemaMigrations(Connection connection, String pointsTableName, String trajectoriesTableName) {
+        this.connection = connection;
+        this.pointsTableName = pointsTableName;
+        this.trajectoriesTableName = trajectoriesTableName;
+        schemaTableName = trajectoriesTableName + "_schema";
+    }
+
+    /**
+     * @return The schema version that {@link #migrate()} brings data sets
+     * up to
+     */
+    public int getLatestVersion() {
+        return migrations.size();
+    }
+
+    /**
+     * Applies the migrations that this data set does not have. Other
+     * clients that open the data set at the same time wait until this is
+     * done.
+     * <p>
+     * @throws SQLException if a migration failed. The migrations before it
+     * have been applied and recorded.
+     */
+    public void migrate() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + schemaTableName + "` ("
+                    + "`id` INTEGER PRIMARY KEY,"
+                    + "`version` INTEGER NOT NULL"
+                    + ")");
+            statement.executeUpdate("INSERT IGNORE INTO `" + schemaTableName + "` (`id`, `version`) VALUES (1, 0)");
+
+            lock();
+            try {
+                int version = getVersion(statement);
+                while (version < migrations.size()) {
+                    final Migration migration = migrations.get(version);
+                    version++;
+                    Logger.getLogger(SchemaMigrations.class.getName()).log(Level.INFO, "Migrating {0} to schema version {1}: {2}",
+                            new Object[]{trajectoriesTableName, version, migration.description});
+                    migration.apply(statement);
+                    statement.executeUpdate("UPDATE `" + schemaTableName + "` SET `version` = " + version + " WHERE `id` = 1");
+                }
+            }
+            finally {
+                unlock();
+            }
+        }
+    }
+
+    /**
+     * Records that the connection has the data set open, by taking the
+     * first free client lock. This must be called before the layout of the
+     * enumerated columns is detected, and again on each new connection.
+     * <p>
+     * @throws SQLException if {@link #MAX_CLIENTS} clients already have the
+     * data set open
+     */
+    public void registerClient() throws SQLException {
+        try (PreparedStatement lock = connection.prepareStatement("SELECT GET_LOCK(?, 0)")) {
+            for (int i = 0; i < MAX_CLIENTS; i++) {
+                lock.setString(1, clientLockName(i));
+                try (ResultSet result = lock.executeQuery()) {
+                    if (result.next() && result.getInt(1) == 1) {
+                        clientLockName = clientLockName(i);
+                        return;
+                    }
+                }
+            }
+        }
+        throw new SQLException(MAX_CLIENTS + " other clients have " + trajectoriesTableName + " open");
+    }
+
+    private String clientLockName(int client) {
+        return schemaTableName + "_client_" + client;
+    }
+
+    /**
+     * @return true if a connection other than this one holds a client lock
+     * @throws SQLException
+     */
+    private boolean hasOtherClients() throws SQLException {
+        try (PreparedStatement used = connection.prepareStatement("SELECT IS_USED_LOCK(?)")) {
+            for (int i = 0; i < MAX_CLIENTS; i++) {
+                final String name = clientLockName(i);
+                if (name.equals(clientLockName)) {
+                    continue;
+                }
+                used.setString(1, name);
+                try (ResultSet result = used.executeQuery()) {
+                    if (result.next() && result.getObject(1) != null) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Converts the columns that store enumerated values from names to
+     * codes. This is optional, and cannot be undone. Columns that already
+     * store codes are not changed.
+     * <p>
+     * Each column is converted by adding a {@code TINYINT} column, filling
+     * it with the code for each name, and then replacing the original
+     * column. Names that do not match a value are given the same code as
+     * the value that {@code safeValueOf} returns for them.
+     * <p>
+     * Other clients must not have the data set open while it is converted,
+     * because they would write names to the converted columns. A client
+     * that opens the data set during the conversion waits for it in
+     * {@link #migrate()}.
+     * <p>
+     * @throws SQLException if another client has the data set open and a
+     * column needs to be converted
+     */
+    public void compactEnumColumns() throws SQLException {
+        final Map<String, Integer> activities = new LinkedHashMap<>();
+        for (Point.Activity activity : Point.Activity.values()) {
+            activities.put(activity.name(), activity.getCode());
+        }
+        final Map<String, Integer> interactionTypes = new LinkedHashMap<>();
+        for (InteractionType type : InteractionType.values()) {
+            interactionTypes.put(type.name(), type.getCode());
+        }
+        final Map<String, Integer> fromActions = new LinkedHashMap<>();
+        for (Trajectory.FromAction action : Trajectory.FromAction.values()) {
+            fromActions.put(action.name(), action.getCode());
+        }
+        final Map<String, Integer> toActions = new LinkedHashMap<>();
+        for (Trajectory.ToAction action : Trajectory.ToAction.values()) {
+            toActions.put(action.name(), action.getCode());
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            lock();
+            try {
+                if (!EnumColumns.detect(connection, pointsTableName, trajectoriesTableName).isCompact() && hasOtherClients()) {
+                    throw new SQLException("The data set " + trajectoriesTableName
+                            + " cannot be converted to codes while another copy of Frame Viewer has it open");
+                }
+                compactColumn(statement, pointsTableName, "activity", activities, Point.Activity.NotCarrying.getCode(), false);
+                compactColumn(statement, pointsTableName, "interaction_type", interactionTypes, InteractionType.Unknown.getCode(), true);
+                compactColumn(statement, pointsTableName, "interaction_met_ant_activity", activities, Point.Activity.NotCarrying.getCode(), true);
+                compactColumn(statement, trajectoriesTableName, "from_action", fromActions, Trajectory.FromAction.Other.getCode(), false);
+                compactColumn(statement, trajectoriesTableName, "to_action", toActions, Trajectory.ToAction.Other.getCode(), false);
+            }
+            finally {
+                unlock();
+            }
+        }
+    }
+
+    /**
+     * Converts one column from names to codes
+     * <p>
+     * @param codes The code for each name
+     * @param defaultCode The code for names that are not in codes
+     * @param nullable If the column allows nulls. Nulls are kept.
+     */
+    private void compactColumn(Statement statement, String tableName, String columnName, Map<String, Integer> codes,
+            int defaultCode, boolean nullable) throws SQLException {
+        final Integer type = getColumnType(tableName, columnName);
+        if (type == null || EnumColumns.isIntegerType(type)) {
+            return;
+        }
+        Logger.getLogger(SchemaMigrations.class.getName()).log(Level.INFO, "Converting {0}.{1} to codes", new Object[]{tableName, columnName});
+        final String definition = nullable ? "TINYINT NULL" : "TINYINT NOT NULL DEFAULT " + defaultCode;
+        // A temporary column may be left from an interrupted conversion
+        final String tempColumnName = columnName + "_code";
+        if (getColumnType(tableName, tempColumnName) == null) {
+            statement.executeUpdate("ALTER TABLE `" + tableName + "` ADD COLUMN `" + tempColumnName + "` " + definition);
+        }
+
+        final StringBuilder update = new StringBuilder();
+        update.append("UPDATE `").append(tableName).append("` SET `").append(tempColumnName).append("` = CASE");
+        update.append(" WHEN `").append(columnName).append("` IS NULL THEN ").append(nullable ? "NULL" : String.valueOf(defaultCode));
+        for (Map.Entry<String, Integer> entry : codes.entrySet()) {
+            // Names are compared as binary strings, because valueOf is
+            // case-sensitive
+            update.append(" WHEN BINARY `").append(columnName).append("` = '").append(entry.getKey())
+                    .append("' THEN ").append(entry.getValue());
+        }
+        update.append(" ELSE ").append(defaultCode).append(" END");
+        statement.executeUpdate(update.toString());
+
+        statement.executeUpdate("ALTER TABLE `" + tableName + "` DROP COLUMN `" + columnName + "`,"
+                + " CHANGE COLUMN `" + tempColumnName + "` `" + columnName + "` " + definition);
+    }
+
+    private int getVersion(Statement statement) throws SQLException {
+        try (ResultSet result = statement.executeQuery("SELECT `version` FROM `" + schemaTableName + "` WHERE `id` = 1")) {
+            return result.next() ? result.getInt(1) : 0;
+        }
+    }
+
+    private void lock() throws SQLException {
+        try (PreparedStatement lock = connection.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+            lock.setString(1, schemaTableName);
+            lock.setInt(2, LOCK_TIMEOUT);
+            try (ResultSet result = lock.executeQuery()) {
+                if (!result.next() || result.getInt(1) != 1) {
+                    throw new SQLException("Timed out waiting for another client to update the schema of " + trajectoriesTableName);
+                }
+            }
+        }
+    }
+
+    private void unlock() throws SQLException {
+        try (PreparedStatement unlock = connection.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+            unlock.setString(1, schemaTableName);
+            unlock.executeQuery().close();
+        }
+    }
+
+    /**
+     * @return The SQL type of a column, or null if the column does not exist
+     */
+    private Integer getColumnType(String tableName, String columnName) throws SQLException {
+        final DatabaseMetaData data = connection.getMetaData();
+        try (ResultSet columns = data.getColumns(connection.getCatalog(), null, tableName, columnName)) {
+            return columns.next() ? columns.getInt("DATA_TYPE") : null;
+        }
+    }
+
+    private boolean hasColumn(String tableName, String columnName) throws SQLException {
+        final DatabaseMetaData data = connection.getMetaData();
+        try (ResultSet columns = data.getColumns(connection.getCatalog(), null, tableName, columnName)) {
+            return columns.next();
+        }
+    }
+
+    private boolean hasIndex(String tableName, String indexName) throws SQLException {
+        final DatabaseMetaData data = connection.getMetaData();
+        try (ResultSet indexes = data.getIndexInfo(connection.getCatalog(), null, tableName, false, false)) {
+            while (indexes.next()) {
+                if (indexName.equals(indexes.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The storage engine of a table, or null if it is not known
+     */
+    private String getEngine(String tableName) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT `ENGINE` FROM `information_schema`.`TABLES`"
+                + " WHERE `TABLE_SCHEMA` = DATABASE() AND `TABLE_NAME` = ?")) {
+            statement.setString(1, tableName);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() ? result.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * A change to the schema
+     */
+    private static abstract class Migration {
+
+        final String description;
+
+        Migration(String description) {
+            this.description = description;
+        }
+
+        /**
+         * Applies this migration
+         * <p>
+         * @param statement A statement that can be used to make changes
+         * @throws SQLException
+         */
+        abstract void apply(Statement statement) throws SQLException;
+    }
+}
@@ -0,0 +1,458 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ * Stores a data set in two tables of a MySQL database
+ * <p>
+ * The tables are created if they do not exist, and their schema is brought
+ * up to date by {@link SchemaMigrations}. See doc/Database.md for the
+ * schema.
+ * <p>
+ * SQL exceptions are reported as IOExceptions with the SQLException as the
+ * cause.
+ * <p>
+ * If the store has a {@link ConnectionSource} and an operation fails
+ * because the connection was lost, the next operation outside a transaction
+ * or the next transaction opens a new connection, detects the layout of the
+ * enumerated columns, and prepares its statements again. The operation that
+ * failed is not repeated.
+ * <p>
+ * @author Sam Crow
+ */
+public class SqlTrajectoryStore implements TrajectoryStore {
+
+    /**
+     * Opens connections to the database
+     */
+    public interface ConnectionSource {
+
+        /**
+         * Opens a new connection
+         * <p>
+         * @return The connection
+         * @throws SQLException
+         */
+        Connection open() throws SQLException;
+    }
+
+    private Connection connection;
+
+    /**
+     * Opens a new connection when the connection is lost, or null
+     */
+    private final ConnectionSource connectionSource;
+
+    private final String pointsTableName;
+
+    private final String trajectoriesTableName;
+
+    /**
+     * The layout of the enumerated columns, detected again on each new
+     * connection
+     */
+    private EnumColumns enumColumns;
+
+    /**
+     * Gives out change versions and records tombstones
+     */
+    private ChangeVersions versions;
+
+    /**
+     * Writes trajectories and points using prepared statements
+     */
+    private TrajectoryWriter writer;
+
+    private TrajectoryLoader loader;
+
+    /**
+     * True if an operation failed because the connection was lost
+     */
+    private boolean connectionLost;
+
+    private boolean inTransaction;
+
+    public SqlTrajectoryStore(Connection connection, String pointsTableName, String trajectoriesTableName) throws SQLException {
+        this(connection, pointsTableName, trajectoriesTableName, false);
+    }
+
+    /**
+     * Creates a store
+     * <p>
+     * @param connection
+     * @param pointsTableName
+     * @param trajectoriesTableName
+     * @param compactEnumColumns If the columns that store enumerated values
+     * should be converted to codes (see
+     * {@link SchemaMigrations#compactEnumColumns()}). Data sets that have
+     * already been converted are read and written as codes either way.
+     * @throws SQLException
+     */
+    public SqlTrajectoryStore(Connection connection, String pointsTableName, String trajectoriesTableName, boolean compactEnumColumns) throws SQLException {
+        this(connection, null, pointsTableName, trajectoriesTableName, compactEnumColumns);
+    }
+
+    /**
+     * Creates a store that opens a new connection if its connection is lost
+     * <p>
+     * @param connection The connection to use first
+     * @param connectionSource Opens a new connection when the connection is
+     * lost, or null to not open new connections
+     * @param pointsTableName
+     * @param trajectoriesTableName
+     * @param compactEnumColumns If the columns that store enumerated values
+     * should be converted to codes
+     * @throws SQLException
+     */
+    public SqlTrajectoryStore(Connection connection, ConnectionSource connectionSource, String pointsTableName, String trajectoriesTableName,
+            boolean compactEnumColumns) throws SQLException {
+        this.connection = connection;
+        this.connectionSource = connectionSource;
+        this.pointsTableName = pointsTableName;
+        this.trajectoriesTableName = trajectoriesTableName;
+        checkSchema(compactEnumColumns);
+        enumColumns = EnumColumns.detect(connection, pointsTableName, trajectoriesTableName);
+        prepare();
+    }
+
+    /**
+     * Creates the objects that use the connection
+     */
+    private void prepare() {
+        versions = new ChangeVersions(connection, pointsTableName, trajectoriesTableName);
+        writer = new TrajectoryWriter(connection, pointsTableName, trajectoriesTableName, versions, enumColumns);
+        loader = new TrajectoryLoader(connection, pointsTableName, trajectoriesTableName, enumColumns);
+    }
+
+    /**
+     * Opens a new connection if the connection has been lost and no
+     * transaction is open
+     * <p>
+     * @throws IOException if a new connection could not be opened
+     */
+    private void reconnectIfLost() throws IOException {
+        if (inTransaction || connectionSource == null) {
+            return;
+        }
+        try {
+            if (!connectionLost && !connection.isClosed()) {
+                return;
+            }
+            Logger.getLogger(SqlTrajectoryStore.class.getName()).log(Level.INFO, "Reconnecting to the database");
+            // The statements belong to the old connection, and closing them
+            // may fail
+            try {
+                writer.close();
+                versions.close();
+                connection.close();
+            }
+            catch (SQLException ex) {
+                Logger.getLogger(SqlTrajectoryStore.class.getName()).log(Level.FINE, "Failed to close the lost connection", ex);
+            }
+            connectionLost = true;
+            connection = connectionSource.open();
+            // The client lock was released with the old connection, so the
+            // columns may have been converted since they were detected
+            new SchemaMigrations(connection, pointsTableName, trajectoriesTableName).registerClient();
+            enumColumns = EnumColumns.detect(connection, pointsTableName, trajectoriesTableName);
+            prepare();
+            connectionLost = false;
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+    }
+
+    /**
+     * Wraps an SQLException, and records if it was caused by losing the
+     * connection
+     * <p>
+     * @param ex
+     * @return An IOException with ex as its cause
+     */
+    private IOException failed(SQLException ex) {
+        if (isConnectionFailure(ex)) {
+            connectionLost = true;
+        }
+        return new IOException(ex);
+    }
+
+    /**
+     * @param ex
+     * @return true if the exception was caused by a connection that failed
+     * or was closed, so the operation may succeed on a new connection
+     */
+    static boolean isConnectionFailure(SQLException ex) {
+        // SQLState class 08 is a connection exception. MySQL Connector/J
+        // reports a closed connection with a non-transient exception in this
+        // class.
+        final String state = ex.getSQLState();
+        return ex instanceof SQLRecoverableException || ex instanceof SQLNonTransientConnectionException
+                || (state != null && state.startsWith("08"));
+    }
+
+    /**
+     * Loads all the trajectories from the database in two queries, and
+     * deletes the records of trajectories that have no points
+     * <p>
+     * @return The trajectories, which do not have data stores
+     * @throws IOException
+     */
+    @Override
+    public List<Trajectory> loadAll() throws IOException {
+        reconnectIfLost();
+        try {
+            final List<Trajectory> trajectories = loader.load();
+            for (int trajectoryId : loader.getEmptyTrajectoryIds()) {
+                System.err.println("Got a trajectory with ID " + trajectoryId + " that does not have any points. This trajectory will be deleted.");
+                writer.deleteTrajectory(trajectoryId);
+            }
+            return trajectories;
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+    }
+
+    @Override
+    public List<TrajectorySummary> loadSummaries() throws IOException {
+        reconnectIfLost();
+        try {
+            return loader.loadSummaries();
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+    }
+
+    @Override
+    public int[] countPoints(int cellSize, int columns, int rows) throws IOException {
+        reconnectIfLost();
+        try {
+            return loader.countPoints(cellSize, columns, rows);
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+    }
+
+    @Override
+    public List<Trajectory> loadTrajectories(Collection<Integer> trajectoryIds) throws IOException {
+        reconnectIfLost();
+        try {
+            return loader.load(trajectoryIds);
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+    }
+
+    @Override
+    public long currentVersion() throws IOException {
+        reconnectIfLost();
+        try {
+            return versions.current();
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+    }
+
+    @Override
+    public ChangeSet loadChanges(long sinceVersion, long untilVersion) throws IOException {
+        reconnectIfLost();
+        try {
+            return loader.loadChanges(sinceVersion, untilVersion, versions.getTombstonesTableName());
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+    }
+
+    /**
+     * Creates or updates records for a trajectory and all its points
+     * <p>
+     * The points are written in batches using prepared statements, in one
+     * transaction.
+     * <p>
+     * @param trajectory
+     * @return The number of rows written and the time taken
+     * @throws IOException
+     */
+    @Override
+    public SaveReport saveTrajectory(Trajectory trajectory) throws IOException {
+        reconnectIfLost();
+        try {
+            return writer.save(trajectory);
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+    }
+
+    @Override
+    public void savePoint(Point point, int trajectoryId) throws IOException {
+        reconnectIfLost();
+        try {
+            writer.savePoint(point, trajectoryId);
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+    }
+
+    @Override
+    public void deleteTrajectory(int trajectoryId) throws IOException {
+        reconnectIfLost();
+        try {
+            writer.deleteTrajectory(trajectoryId);
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+    }
+
+    @Override
+    public void deletePoint(int trajectoryId, int frame) throws IOException {
+        reconnectIfLost();
+        try {
+            writer.deletePoint(trajectoryId, frame);
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+    }
+
+    @Override
+    public void beginTransaction() throws IOException {
+        reconnectIfLost();
+        try {
+            connection.setAutoCommit(false);
+            inTransaction = true;
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+    }
+
+    @Override
+    public void commitTransaction() throws IOException {
+        try {
+            connection.commit();
+            connection.setAutoCommit(true);
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+        finally {
+            inTransaction = false;
+        }
+    }
+
+    @Override
+    public void rollbackTransaction() throws IOException {
+        inTransaction = false;
+        try {
+            connection.rollback();
+        }
+        catch (SQLException ex) {
+            throw failed(ex);
+        }
+        finally {
+            try {
+                connection.setAutoCommit(true);
+            }
+            catch (SQLException ex) {
+                // The connection may be closed. The next operation will
+                // fail and report it.
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.close();
+            versions.close();
+            connection.close();
+        }
+        catch (SQLException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Registers this client, creates the tables if they do not exist, and
+     * then applies any schema migrations that the data set does not have
+     * <p>
+     * @param compactEnumColumns If the enumerated columns should be
+     * converted to codes
+     * @throws SQLException
+     */
+    private void checkSchema(boolean compactEnumColumns) throws SQLException {
+        DatabaseMetaData dbData = connection.getMetaData();
+        ResultSet tableResults = dbData.getTables(connection.getCatalog(), null, null, null);
+
+        boolean hasTrajectories = false;
+        boolean hasPoints = false;
+
+        while (tableResults.next()) {
+            final String tableName = tableResults.getString("TABLE_NAME");
+            if (tableName.equals(trajectoriesTableName)) {
+                hasTrajectories = true;
+            }
+            if (tableName.equals(pointsTableName)) {
+                hasPoints = true;
+            }
+        }
+
+        if (!hasPoints && !hasTrajectories) {
+            setUpSchema();
+        }
+        final SchemaMigrations migrations = new SchemaMigrations(connection, pointsTableName, trajectoriesTableName);
+        migrations.registerClient();
+        migrations.migrate();
+        if (compactEnumColumns) {
+            migrations.compactEnumColumns();
+        }
+    }
+
+    private void setUpSchema() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DROP TABLE IF EXISTS `" + trajectoriesTableName + "`");
+            statement.executeUpdate("CREATE TABLE `" + trajectoriesTableName + "` ("
+                    + "`trajectory_id` INTEGER PRIMARY KEY,"
+                    + "`from_action` varchar(255) NOT NULL DEFAULT 'Unknown',"
+                    + "`to_action` varchar(255) NOT NULL DEFAULT 'Unknown'"
+                    + ")");
+
+            // Set up Points table
+            statement.executeUpdate("DROP TABLE IF EXISTS `" + pointsTableName + "`");
+            statement.executeUpdate("CREATE TABLE `" + pointsTableName + "` ("
+                    + "`point_id` INTEGER PRIMARY KEY AUTO_INCREMENT,"
+                    + "`trajectory_id` INTEGER NOT NULL,"
+                    + "`frame_number` INTEGER NOT NULL,"
+                    + "`frame_x` INTEGER NOT NULL,"
+                    + "`frame_y` INTEGER NOT NULL,"
+                    + "`activity` varchar(255) NOT NULL DEFAULT 'NotCarrying',"
+                    + "`is_interaction` SMALLINT NOT NULL DEFAULT 0,"
+                    + "`interaction_met_trajectory_id` int,"
+                    + "`interaction_type` varchar(255),"
+                    + "`interaction_met_ant_activity` varchar(255)"
+                    + ")");
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package org.samcrow.frameviewer.io3;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.samcrow.frameviewer.trajectory.InteractionPoint;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+import org.samcrow.frameviewer.util.IntMap;
+
+/**
+ * Loads all the trajectories in a data set from the database
+ * <p>
+ * The trajectories table is read first. Then the points table is read in one
+ * query, ordered by trajectory and frame, and each trajectory is assembled
+ * as its points arrive. With MySQL, the points are streamed from the server
+ * instead of being held in memory by the driver.
+ * <p>
+ * The loader can also read only the rows and tombstones that have changed
+ * since a version (see {@link ChangeVersions}), only the trajectories with
+ * some IDs, or a summary of each trajectory.
+ * <p>
+ * @author Sam Crow
+ */
+class TrajectoryLoader {
+
+    /**
+     * The number of rows to fetch at a time from databases other than MySQL
+     */
+    private static final int FETCH_SIZE = 1000;
+
+    /**
+     * The maximum number of trajectory IDs to put in one query
+     */
+    private static final int MAX_IDS_PER_QUERY = 1000;
+
+    private final Connection connection;
+
+    private final String pointsTableName;
+
+    private final String trajectoriesTableName;
+
+    private final EnumColumns enumColumns;
+
+    /**
+     * The IDs of trajectories that have records but no points
+     */
+    private final List<Integer> emptyTrajectoryIds = new ArrayList<>();
+
+    public TrajectoryLoader(Connection connection, String pointsTableName, String trajectoriesTableName, EnumColumns enumColumns) {
+        this.connection = connection;
+        this.pointsTableName = pointsTableName;
+        this.trajectoriesTableName = trajectoriesTableName;
+        this.enumColumns = enumColumns;
+    }
+
+    /**
+     * Loads the trajectories. The returned trajectories do not have data
+     * stores.
+     * <p>
+     * @return The trajectories that have points, in order of ID
+     * @throws SQLException
+     */
+    public List<Trajectory> load() throws SQLException {
+        emptyTrajectoryIds.clear();
+        return load("");
+    }
+
+    /**
+     * Loads the trajectories with some IDs. The returned trajectories do not
+     * have data stores.
+     * <p>
+     * @param trajectoryIds
+     * @return The trajectories that have points, in order of ID
+     * @throws SQLException
+     */
+    public List<Trajectory> load(Collection<Integer> trajectoryIds) throws SQLException {
+        final List<Integer> sortedIds = new ArrayList<>(trajectoryIds);
+        Collections.sort(sortedIds);
+        final List<Trajectory> loaded = new ArrayList<>(sortedIds.size());
+        for (int start = 0; start < sortedIds.size(); start += MAX_IDS_PER_QUERY) {
+            final List<Integer> ids = sortedIds.subList(start, Math.min(start + MAX_IDS_PER_QUERY, sortedIds.size()));
+            final StringBuilder condition = new StringBuilder(" WHERE `trajectory_id` IN (");
+            for (int i = 0; i < ids.size(); i++) {
+                if (i != 0) {
+                    condition.append(',');
+                }
+                condition.append(ids.get(i).intValue());
+            }
+            condition.append(')');
+            loaded.addAll(load(condition.toString()));
+        }
+        return loaded;
+    }
+
+    /**
+     * Reads the first frame, last frame, and number of points of each
+     * trajectory that has a record and points. With MySQL, this is read from
+     * the trajectory_frame index without reading the rows.
+     * <p>
+     * @return The summaries, in order of ID
+     * @throws SQLException
+     */
+    public List<TrajectorySummary> loadSummaries() throws SQLException {
+        final List<TrajectorySummary> summaries = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+                ResultSet results = statement.executeQuery("SELECT `trajectory_id`, MIN(`frame_number`), MAX(`frame_number`), COUNT(*) FROM `"
+                        + pointsTableName + "` WHERE `trajectory_id` IN (SELECT `trajectory_id` FROM `" + trajectoriesTableName + "`)"
+                        + " GROUP BY `trajectory_id` ORDER BY `trajectory_id`")) {
+            while (results.next()) {
+                summaries.add(new TrajectorySummary(results.getInt(1), results.getInt(2), results.getInt(3), results.getInt(4)));
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Counts the points of trajectories that have records in each cell of a
+     * grid over the frame. The points are grouped by the database, so only
+     * one row per cell is read.
+     * <p>
+     * @param cellSize The width and height, in frame pixels, of each cell
+     * @param columns
+     * @param rows
+     * @return The number of points in each cell, in row-major order
+     * @throws SQLException
+     */
+    public int[] countPoints(int cellSize, int columns, int rows) throws SQLException {
+        final int[] counts = new int[columns * rows];
+        try (PreparedStatement statement = connection.prepareStatement("SELECT `frame_x` DIV ?, `frame_y` DIV ?, COUNT(*) FROM `"
+                + pointsTableName + "` WHERE `frame_x` >= 0 AND `frame_y` >= 0"
+                + " AND `trajectory_id` IN (SELECT `trajectory_id` FROM `" + trajectoriesTableName + "`)"
+                + " GROUP BY 1, 2")) {
+            statement.setInt(1, cellSize);
+            statement.setInt(2, cellSize);
+            try (ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    final int column = results.getInt(1);
+                    final int row = results.getInt(2);
+                    if (column < columns && row < rows) {
+                        counts[row * columns + column] += results.getInt(3);
+                    }
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Loads the trajectories with records that match a condition
+     * <p>
+     * @param condition A WHERE clause on the trajectory_id column, or an
+     * empty string to load all the trajectories
+     */
+    private List<Trajectory> load(String condition) throws SQLException {
+        // Read all the trajectory records before starting to read points.
+        // A MySQL connection cannot run other queries while a result set
+        // is being streamed.
+        final List<TrajectoryRecord> records = new ArrayList<>();
+        final IntMap<TrajectoryRecord> recordsById = new IntMap<>();
+        try (Statement statement = connection.createStatement();
+                ResultSet trajectories = statement.executeQuery("SELECT * FROM `" + trajectoriesTableName + "`" + condition + " ORDER BY `trajectory_id`")) {
+            while (trajectories.next()) {
+                final TrajectoryRecord record = new TrajectoryRecord(
+                        trajectories.getInt("trajectory_id"),
+                        enumColumns.getFromAction(trajectories),
+                        enumColumns.getToAction(trajectories));
+                records.add(record);
+                recordsById.put(record.id, record);
+            }
+        }
+
+        try (Statement statement = createStreamingStatement();
+                ResultSet points = statement.executeQuery("SELECT * FROM `" + pointsTableName + "`" + condition
+                        + " ORDER BY `trajectory_id`, `frame_number`, `is_interaction`")) {
+            TrajectoryRecord current = null;
+            while (points.next()) {
+                final int trajectoryId = points.getInt("trajectory_id");
+                if (current == null || current.id != trajectoryId) {
+                    current = recordsById.get(trajectoryId);
+                    if (current == null) {
+                        // Points with no trajectory record are ignored
+                        continue;
+                    }
+                }
+                final Point point = pointFromResultSet(points);
+                if (current.trajectory == null) {
+                    // Points are in frame order, so this is the first frame
+                    current.trajectory = new Trajectory(point.getFrame(), point.getFrame() + 1, trajectoryId);
+                    current.trajectory.setFromAction(current.fromAction);
+                    current.trajectory.setToAction(current.toAction);
+                }
+                current.trajectory.set(point.getFrame(), point);
+            }
+        }
+
+        final List<Trajectory> loaded = new ArrayList<>(records.size());
+        for (TrajectoryRecord record : records) {
+            if (record.trajectory != null) {
+                loaded.add(record.trajectory);
+            }
+            else if (condition.isEmpty()) {
+                emptyTrajectoryIds.add(record.id);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * @return The IDs of the trajectories found by the last call to
+     * {@link #load()} that have no points
+     */
+    public List<Integer> getEmptyTrajectoryIds() {
+        return emptyTrajectoryIds;
+    }
+
+    /**
+     * Reads the trajectory records, points, and tombstones with change
+     * versions in a range
+     * <p>
+     * @param sinceVersion The version of the last change that has been read
+     * @param untilVersion The last version to read. Changes with later
+     * versions may not have been committed when this version was read, so
+     * they are left for the next call.
+     * @param tombstonesTableName The name of the table of tombstones
+     * @return The changes
+     * @throws SQLException
+     */
+    public ChangeSet loadChanges(long sinceVersion, long untilVersion, String tombstonesTableName) throws SQLException {
+        final ChangeSet changes = new ChangeSet();
+        try (PreparedStatement statement = connection.prepareStatement("SELECT `trajectory_id`, `frame_number` FROM `" + tombstonesTableName
+                + "` WHERE `change_version` > ? AND `change_version` <= ? ORDER BY `change_version`")) {
+            statement.setLong(1, sinceVersion);
+            statement.setLong(2, untilVersion);
+            try (ResultSet tombstones = statement.executeQuery()) {
+                while (tombstones.next()) {
+                    final int trajectoryId = tombstones.getInt(1);
+                    final int frame = tombstones.getInt(2);
+                    if (tombstones.wasNull()) {
+                        changes.addDeletedTrajectory(trajectoryId);
+                    }
+                    else {
+                        changes.addDeletedPoint(trajectoryId, frame);
+                    }
+                }
+            }
+        }
+        try (PreparedStatement statement = connection.prepareStatement("SELECT * FROM `" + trajectoriesTableName
+                + "` WHERE `change_version` > ? AND `change_version` <= ? ORDER BY `trajectory_id`")) {
+            statement.setLong(1, sinceVersion);
+            statement.setLong(2, untilVersion);
+            try (ResultSet trajectories = statement.executeQuery()) {
+                while (trajectories.next()) {
+                    changes.addTrajectory(trajectories.getInt("trajectory_id"),
+                            enumColumns.getFromAction(trajectories),
+                            enumColumns.getToAction(trajectories));
+                }
+            }
+        }
+        try (PreparedStatement statement = connection.prepareStatement("SELECT * FROM `" + pointsTableName
+                + "` WHERE `change_version` > ? AND `change_version` <= ? ORDER BY `trajectory_id`, `frame_number`, `is_interaction`")) {
+            statement.setLong(1, sinceVersion);
+            statement.setLong(2, untilVersion);
+            try (ResultSet points = statement.executeQuery()) {
+                while (points.next()) {
+                    changes.addPoint(pointFromResultSet(points));
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Creates a statement that reads its results a few rows at a time
+     */
+    private Statement createStreamingStatement() throws SQLException {
+        final Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        if (connection.getMetaData().getDriverName().contains("MySQL")) {
+            // The MySQL driver streams rows only with this fetch size
+            statement.setFetchSize(Integer.MIN_VALUE);
+        }
+        else {
+            statement.setFetchSize(FETCH_SIZE);
+        }
+        return statement;
+    }
+
+    private Point pointFromResultSet(ResultSet result) throws SQLException {
+        Point point;
+        if (result.getBoolean("is_interaction")) {
+            point = new InteractionPoint(result.getInt("frame_x"), result.getInt("frame_y"));
+            // Set interaction-specific properties
+            ((InteractionPoint) point).setType(enumColumns.getInteractionType(result));
+            ((InteractionPoint) point).setMetAntId(result.getInt("interaction_met_trajectory_id"));
+            ((InteractionPoint) point).setMetAntActivity(enumColumns.getActivity(result, "interaction_met_ant_activity"));
+        }
+        else {
+            point = new Point(result.getInt("frame_x"), result.getInt("frame_y"));
+        }
+
+        // Set common attributes
+        point.setFrame(result.getInt("frame_number"));
+        point.setActivity(enumColumns.getActivity(result, "activity"));
+        point.setTrajectoryID(result.getInt("trajectory_id"));
+
+        return point;
+    }
+
+    /**
+     * A row of the trajectories table, and the trajectory being assembled
+     * from its points
+     */
+    private static final class TrajectoryRecord {
+
+        final int id;
+
+        final Trajectory.FromAction fromAction;
+
+        final Trajectory.ToAction toAction;
+
+        /**
+         * The trajectory, or null if no points have been read for it
+         */
+        Trajectory trajectory;
+
+        TrajectoryRecord(int id, Trajectory.FromAction fromAction, Trajectory.ToAction toAction) {
+            this.id = id;
+            this.fromAction = fromAction;
+            this.toAction = toAction;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ * Stores the trajectories and points of a data set
+ * <p>
+ * Every change is given a version that is greater than the versions of
+ * all earlier changes, so that a reader that has seen the changes up to a
+ * version can catch up by reading only the later changes.
+ * <p>
+ * Saving a trajectory writes its record and all its points. Points that are
+ * stored but are no longer in the trajectory are not removed; they must be
+ * deleted separately.
+ * <p>
+ * Implementations do not need to be thread-safe.
+ * {@link DatabaseTrajectoryDataStore} uses a store from one thread at a
+ * time.
+ * <p>
+ * @author Sam Crow
+ */
+public interface TrajectoryStore extends Closeable {
+
+    /**
+     * Loads all the trajectories that have points. Trajectory records with
+     * no points are not loaded, and may be deleted.
+     * <p>
+     * @return The trajectories, in order of ID. They do not have data
+     * stores.
+     * @throws IOException
+     */
+    List<Trajectory> loadAll() throws IOException;
+
+    /**
+     * Reads the frame range and number of points of every trajectory that
+     * has points, without reading the points
+     * <p>
+     * @return The summaries, in order of ID
+     * @throws IOException
+     */
+    List<TrajectorySummary> loadSummaries() throws IOException;
+
+    /**
+     * Counts the points of every trajectory in each cell of a grid over the
+     * frame, without reading the points. Points outside the grid are not
+     * counted.
+     * <p>
+     * @param cellSize The width and height, in frame pixels, of each cell
+     * @param columns The number of columns of cells
+     * @param rows The number of rows of cells
+     * @return The number of points in each cell, in row-major order
+     * @throws IOException
+     */
+    int[] countPoints(int cellSize, int columns, int rows) throws IOException;
+
+    /**
+     * Loads some of the trajectories. Trajectories that do not exist or
+     * have no points are not loaded.
+     * <p>
+     * @param trajectoryIds The IDs of the trajectories to load
+     * @return The trajectories, in order of ID. They do not have data
+     * stores.
+     * @throws IOException
+     */
+    List<Trajectory> loadTrajectories(Collection<Integer> trajectoryIds) throws IOException;
+
+    /**
+     * Returns the version of the last change. All changes with this version
+     * or an earlier version can be read.
+     * <p>
+     * @return The version
+     * @throws IOException
+     */
+    long currentVersion() throws IOException;
+
+    /**
+     * Reads the changes with versions in a range
+     * <p>
+     * @param sinceVersion The version of the last change that has been read
+     * @param untilVersion The last version to read, usually returned by
+     * {@link #currentVersion()}
+     * @return The changes
+     * @throws IOException
+     */
+    ChangeSet loadChanges(long sinceVersion, long untilVersion) throws IOException;
+
+    /**
+     * Saves a trajectory record and all the points of the trajectory
+     * <p>
+     * @param trajectory
+     * @return The number of records written and the time taken
+     * @throws IOException
+     */
+    SaveReport saveTrajectory(Trajectory trajectory) throws IOException;
+
+    /**
+     * Saves one point
+     * <p>
+     * @param point
+     * @param trajectoryId The ID of the trajectory that contains the point
+     * @throws IOException
+     */
+    void savePoint(Point point, int trajectoryId) throws IOException;
+
+    /**
+     * Deletes a trajectory record and all its points
+     * <p>
+     * @param trajectoryId
+     * @throws IOException
+     */
+    void deleteTrajectory(int trajectoryId) throws IOException;
+
+    /**
+     * Deletes one point
+     * <p>
+     * @param trajectoryId
+     * @param frame
+     * @throws IOException
+     */
+    void deletePoint(int trajectoryId, int frame) throws IOException;
+
+    /**
+     * Starts a transaction. Changes made until
+     * {@link #commitTransaction()} or {@link #rollbackTransaction()} is
+     * called are applied together or not at all.
+     * <p>
+     * @throws IOException
+     */
+    void beginTransaction() throws IOException;
+
+    /**
+     * Applies the changes made since {@link #beginTransaction()}
+     * <p>
+     * @throws IOException
+     */
+    void commitTransaction() throws IOException;
+
+    /**
+     * Discards the changes made since {@link #beginTransaction()}
+     * <p>
+     * @throws IOException
+     */
+    void rollbackTransaction() throws IOException;
+}
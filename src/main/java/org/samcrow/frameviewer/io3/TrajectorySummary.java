@@ -0,0 +1,67 @@
+package org.samcrow.frameviewer.io3;
+
+import org.samcrow.frameviewer.MultiFrameObject;
+
+/**
+ * The ID, frame range, and number of points of a stored trajectory, read
+ * without reading its points
+ * <p>
+ * @author Sam Crow
+ */
+public final class TrajectorySummary implements MultiFrameObject {
+
+    private final int id;
+
+    private final int firstFrame;
+
+    private final int lastFrame;
+
+    private final int pointCount;
+
+    /**
+     * @param id
+     * @param firstFrame The frame of the first point
+     * @param lastFrame The frame of the last point
+     * @param pointCount The number of points
+     */
+    public TrajectorySummary(int id, int firstFrame, int lastFrame, int pointCount) {
+        this.id = id;
+        this.firstFrame = firstFrame;
+        this.lastFrame = lastFrame;
+        this.pointCount = pointCount;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public int getFirstFrame() {
+        return firstFrame;
+    }
+
+    @Override
+    public int getLastFrame() {
+        return lastFrame;
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * Returns a summary that also covers a point written after this
+     * summary was read. The point is assumed to be new.
+     * <p>
+     * @param frame The frame of the point
+     * @return The new summary
+     */
+    public TrajectorySummary withPoint(int frame) {
+        return new TrajectorySummary(id, Math.min(firstFrame, frame), Math.max(lastFrame, frame), pointCount + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "Trajectory " + id + ": " + pointCount + " points in frames " + firstFrame + "-" + lastFrame;
+    }
+}
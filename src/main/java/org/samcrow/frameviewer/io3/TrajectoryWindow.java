@@ -0,0 +1,328 @@
+package org.samcrow.frameviewer.io3;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import org.samcrow.frameviewer.IntervalIndex;
+import org.samcrow.frameviewer.MultiFrameObject;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+import org.samcrow.frameviewer.util.IntMap;
+
+/**
+ * Decides which trajectories a {@link DatabaseTrajectoryDataStore} keeps in
+ * memory, so that a data set can be opened without loading all of it
+ * <p>
+ * The trajectories that overlap a window of frames around the current frame
+ * are loaded. The window extends {@link #getRadius()} frames on each side of
+ * the current frame, and another {@link #getPrefetch()} frames in the
+ * direction that the current frame last moved. When the current frame comes
+ * within half the radius of either end of the loaded window, a new window is
+ * loaded around it.
+ * <p>
+ * A summary of each trajectory that is not loaded is kept, so that the
+ * trajectories in a window can be found without reading the store. When the
+ * loaded trajectories have more than {@link #getPointBudget()} points, the
+ * trajectories farthest from the window are unloaded, except for
+ * trajectories that have edits that can be undone.
+ * <p>
+ * The methods of this class must be called on the thread that changes the
+ * data store.
+ * <p>
+ * @author Sam Crow
+ */
+public class TrajectoryWindow {
+
+    /**
+     * The default number of frames to load on each side of the current frame
+     */
+    public static final int DEFAULT_RADIUS = 2500;
+
+    /**
+     * The default number of extra frames to load in the direction of
+     * playback
+     */
+    public static final int DEFAULT_PREFETCH = 2500;
+
+    /**
+     * The default number of points to keep loaded
+     */
+    public static final long DEFAULT_POINT_BUDGET = 1000000;
+
+    private final int radius;
+
+    private final int prefetch;
+
+    private final long pointBudget;
+
+    /**
+     * The trajectories in the store that are not loaded, by frame range
+     */
+    private final IntervalIndex<TrajectorySummary> unloaded = new IntervalIndex<>();
+
+    /**
+     * The trajectories in the store that are not loaded, by ID
+     */
+    private final IntMap<TrajectorySummary> unloadedById = new IntMap<>();
+
+    /**
+     * If a window has been loaded
+     */
+    private boolean covered;
+
+    /**
+     * The first frame of the loaded window
+     */
+    private int coveredLow;
+
+    /**
+     * The last frame of the loaded window
+     */
+    private int coveredHigh;
+
+    /**
+     * The last frame passed to {@link #moveTo(int)}
+     */
+    private int lastFrame;
+
+    /**
+     * 1 if the current frame last moved forward, -1 if it last moved
+     * backward, or 0 if it has not moved
+     */
+    private int direction;
+
+    public TrajectoryWindow() {
+        this(DEFAULT_RADIUS, DEFAULT_PREFETCH, DEFAULT_POINT_BUDGET);
+    }
+
+    /**
+     * @param radius The number of frames to load on each side of the
+     * current frame
+     * @param prefetch The number of extra frames to load in the direction
+     * of playback
+     * @param pointBudget The number of loaded points above which
+     * trajectories far from the window are unloaded
+     */
+    public TrajectoryWindow(int radius, int prefetch, long pointBudget) {
+        if (radius < 1) {
+            throw new IllegalArgumentException("radius must be positive");
+        }
+        if (prefetch < 0) {
+            throw new IllegalArgumentException("prefetch must not be negative");
+        }
+        this.radius = radius;
+        this.prefetch = prefetch;
+        this.pointBudget = pointBudget;
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    public long getPointBudget() {
+        return pointBudget;
+    }
+
+    /**
+     * Records that the current frame has changed
+     * <p>
+     * @param frame The new current frame
+     */
+    void moveTo(int frame) {
+        if (frame > lastFrame) {
+            direction = 1;
+        }
+        else if (frame < lastFrame) {
+            direction = -1;
+        }
+        lastFrame = frame;
+    }
+
+    /**
+     * @param frame The current frame
+     * @return true if the trajectories near the frame may not all be loaded
+     */
+    boolean needsLoad(int frame) {
+        return !covered || frame - radius / 2 < coveredLow || frame + radius / 2 > coveredHigh;
+    }
+
+    /**
+     * Returns the window to load around a frame, extended in the direction
+     * that the current frame last moved
+     * <p>
+     * @param frame
+     * @return The first and last frames of the window
+     */
+    int[] windowAround(int frame) {
+        int low = frame - radius;
+        int high = frame + radius;
+        if (direction > 0) {
+            high += prefetch;
+        }
+        else if (direction < 0) {
+            low -= prefetch;
+        }
+        return new int[]{low, high};
+    }
+
+    /**
+     * Records that the trajectories overlapping a window have been loaded
+     */
+    void setCoverage(int low, int high) {
+        covered = true;
+        coveredLow = low;
+        coveredHigh = high;
+    }
+
+    /**
+     * Records that the loaded window is not known, so that the next call to
+     * {@link #needsLoad(int)} returns true
+     */
+    void invalidateCoverage() {
+        covered = false;
+    }
+
+    /**
+     * @param object
+     * @return true if a window has been loaded and the object overlaps it
+     */
+    boolean overlapsCoverage(MultiFrameObject object) {
+        return covered && object.getFirstFrame() <= coveredHigh && object.getLastFrame() >= coveredLow;
+    }
+
+    /**
+     * Finds the trajectories that overlap a range of frames and are not
+     * loaded
+     * <p>
+     * @param low
+     * @param high
+     * @return The summaries of the trajectories
+     */
+    List<TrajectorySummary> findUnloaded(int low, int high) {
+        final List<TrajectorySummary> found = new ArrayList<>();
+        unloaded.findOverlapping(low, high, found);
+        return found;
+    }
+
+    /**
+     * Records that a trajectory in the store is not loaded, replacing any
+     * earlier summary of it
+     * <p>
+     * @param summary
+     */
+    void addUnloaded(TrajectorySummary summary) {
+        removeUnloaded(summary.getId());
+        unloaded.add(summary);
+        unloadedById.put(summary.getId(), summary);
+    }
+
+    /**
+     * Records that a trajectory has been loaded or no longer exists
+     * <p>
+     * @param trajectoryId
+     * @return The summary of the trajectory, or null if it was not recorded
+     * as unloaded
+     */
+    TrajectorySummary removeUnloaded(int trajectoryId) {
+        final TrajectorySummary summary = unloadedById.remove(trajectoryId);
+        if (summary != null) {
+            unloaded.remove(summary);
+        }
+        return summary;
+    }
+
+    /**
+     * @param trajectoryId
+     * @return true if the trajectory is in the store and is not loaded
+     */
+    boolean isUnloaded(int trajectoryId) {
+        return unloadedById.get(trajectoryId) != null;
+    }
+
+    /**
+     * @return The number of trajectories that are not loaded
+     */
+    int getUnloadedCount() {
+        return unloaded.size();
+    }
+
+    /**
+     * Forgets all the trajectories that are not loaded
+     */
+    void clearUnloaded() {
+        unloaded.clear();
+        unloadedById.clear();
+    }
+
+    /**
+     * Updates the summary of a trajectory that is not loaded after a point
+     * of it was written by another user. If the trajectory is not known, a
+     * summary is created.
+     * <p>
+     * @param trajectoryId
+     * @param frame
+     */
+    void pointWritten(int trajectoryId, int frame) {
+        final TrajectorySummary summary = unloadedById.get(trajectoryId);
+        addUnloaded(summary != null ? summary.withPoint(frame) : new TrajectorySummary(trajectoryId, frame, frame, 1));
+    }
+
+    /**
+     * Chooses the trajectories to unload so that the loaded trajectories
+     * have no more than {@link #getPointBudget()} points. Trajectories that
+     * overlap the loaded window or are pinned are never chosen. The
+     * trajectories farthest from the window are chosen first.
+     * <p>
+     * @param loaded The loaded trajectories
+     * @param pinned Trajectories that must stay loaded
+     * @return The trajectories to unload
+     */
+    List<Trajectory> chooseEvictions(Collection<Trajectory> loaded, Set<Trajectory> pinned) {
+        long points = 0;
+        for (Trajectory trajectory : loaded) {
+            points += trajectory.getPointCount();
+        }
+        if (points <= pointBudget) {
+            return Collections.emptyList();
+        }
+
+        final List<Trajectory> candidates = new ArrayList<>();
+        for (Trajectory trajectory : loaded) {
+            if (!pinned.contains(trajectory) && !overlapsCoverage(trajectory)) {
+                candidates.add(trajectory);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Trajectory>() {
+            @Override
+            public int compare(Trajectory t1, Trajectory t2) {
+                return Long.compare(distanceFromCoverage(t2), distanceFromCoverage(t1));
+            }
+        });
+
+        final List<Trajectory> evicted = new ArrayList<>();
+        for (Trajectory trajectory : candidates) {
+            if (points <= pointBudget) {
+                break;
+            }
+            evicted.add(trajectory);
+            points -= trajectory.getPointCount();
+        }
+        return evicted;
+    }
+
+    /**
+     * @return The number of frames between an object and the loaded window
+     */
+    private long distanceFromCoverage(MultiFrameObject object) {
+        if (object.getLastFrame() < coveredLow) {
+            return (long) coveredLow - object.getLastFrame();
+        }
+        return (long) object.getFirstFrame() - coveredHigh;
+    }
+}
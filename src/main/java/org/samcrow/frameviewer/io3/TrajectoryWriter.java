@@ -0,0 +1,367 @@
+package org.samcrow.frameviewer.io3;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import org.samcrow.frameviewer.trajectory.InteractionPoint;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ * Writes trajectories and points to the database using prepared statements
+ * <p>
+ * The statements are prepared once and reused. The points of a trajectory
+ * are written in JDBC batches, which the MySQL driver sends as multi-row
+ * statements when the connection has rewriteBatchedStatements enabled.
+ * <p>
+ * Each save or deletion is given a new change version (see
+ * {@link ChangeVersions}). Rows are only given the new version if their
+ * values change, so that other clients do not read them again when they
+ * refresh.
+ * <p>
+ * Each trajectory and point is written with one
+ * {@code INSERT ... ON DUPLICATE KEY UPDATE} statement, which relies on the
+ * unique key on the trajectory ID and frame of each point. The store that
+ * uses this writer already depends on MySQL, so there is no version for
+ * other databases.
+ * <p>
+ * Enumerated values are written as names or codes, depending on the
+ * layout of each column (see {@link EnumColumns}).
+ * <p>
+ * @author Sam Crow
+ */
+class TrajectoryWriter implements AutoCloseable {
+
+    /**
+     * The maximum number of points to send in one batch
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    private final Connection connection;
+
+    private final String pointsTableName;
+
+    private final String trajectoriesTableName;
+
+    private final ChangeVersions versions;
+
+    private final EnumColumns enumColumns;
+
+    private PreparedStatement deleteTrajectoryPoints;
+
+    private PreparedStatement deleteTrajectoryRecord;
+
+    private PreparedStatement deletePoint;
+
+    private PreparedStatement upsertTrajectory;
+
+    private PreparedStatement upsertPoint;
+
+    public TrajectoryWriter(Connection connection, String pointsTableName, String trajectoriesTableName, ChangeVersions versions, EnumColumns enumColumns) {
+        this.connection = connection;
+        this.pointsTableName = pointsTableName;
+        this.trajectoriesTableName = trajectoriesTableName;
+        this.versions = versions;
+        this.enumColumns = enumColumns;
+    }
+
+    /**
+     * Creates or updates the records for a trajectory and all its points.
+     * If the connection is in auto-commit mode, this is done in one
+     * transaction. Otherwise, the caller is responsible for committing.
+     * <p>
+     * @param trajectory
+     * @return The number of rows written and the time taken
+     * @throws SQLException
+     */
+    public SaveReport save(Trajectory trajectory) throws SQLException {
+        final long start = System.nanoTime();
+        final boolean ownTransaction = beginTransaction();
+        try {
+            final long version = versions.next();
+            int rows = saveTrajectoryRecord(trajectory, version);
+            rows += upsertPoints(trajectory, version);
+
+            endTransaction(ownTransaction, true);
+            return new SaveReport(rows, System.nanoTime() - start);
+        }
+        finally {
+            endTransaction(ownTransaction, false);
+        }
+    }
+
+    /**
+     * Writes the points of a trajectory in batches of upsert statements
+     * <p>
+     * @return The number of rows written
+     */
+    private int upsertPoints(Trajectory trajectory, long version) throws SQLException {
+        final PreparedStatement upsert = prepareUpsertPoint();
+        int rows = 0;
+        int count = 0;
+        for (Point point : trajectory) {
+            bindUpsert(upsert, point, trajectory.getId(), version);
+            upsert.addBatch();
+            count++;
+            if (count == BATCH_SIZE) {
+                rows += countRows(upsert.executeBatch());
+                count = 0;
+            }
+        }
+        if (count != 0) {
+            rows += countRows(upsert.executeBatch());
+        }
+        return rows;
+    }
+
+    /**
+     * Creates or updates the record for one point
+     * <p>
+     * @param point
+     * @param trajectoryId The ID of the trajectory that contains the point
+     * @return The number of rows written and the time taken
+     * @throws SQLException
+     */
+    public SaveReport savePoint(Point point, int trajectoryId) throws SQLException {
+        final long start = System.nanoTime();
+        final boolean ownTransaction = beginTransaction();
+        try {
+            final long version = versions.next();
+            final PreparedStatement upsert = prepareUpsertPoint();
+            bindUpsert(upsert, point, trajectoryId, version);
+            final int rows = countRows(new int[]{upsert.executeUpdate()});
+            endTransaction(ownTransaction, true);
+            return new SaveReport(rows, System.nanoTime() - start);
+        }
+        finally {
+            endTransaction(ownTransaction, false);
+        }
+    }
+
+    /**
+     * Deletes the records for a trajectory and all its points, and records
+     * a tombstone for the trajectory
+     * <p>
+     * @param trajectoryId
+     * @throws SQLException
+     */
+    public void deleteTrajectory(int trajectoryId) throws SQLException {
+        final boolean ownTransaction = beginTransaction();
+        try {
+            versions.recordDeletion(trajectoryId, null, versions.next());
+            if (deleteTrajectoryPoints == null) {
+                deleteTrajectoryPoints = connection.prepareStatement("DELETE FROM `" + pointsTableName + "` WHERE `trajectory_id` = ?");
+                deleteTrajectoryRecord = connection.prepareStatement("DELETE FROM `" + trajectoriesTableName + "` WHERE `trajectory_id` = ?");
+            }
+            deleteTrajectoryPoints.setInt(1, trajectoryId);
+            deleteTrajectoryPoints.executeUpdate();
+            // Then delete the trajectory
+            deleteTrajectoryRecord.setInt(1, trajectoryId);
+            deleteTrajectoryRecord.executeUpdate();
+            endTransaction(ownTransaction, true);
+        }
+        finally {
+            endTransaction(ownTransaction, false);
+        }
+    }
+
+    /**
+     * Deletes the record for a point, and records a tombstone for it
+     * <p>
+     * @param trajectoryId
+     * @param frame
+     * @throws SQLException
+     */
+    public void deletePoint(int trajectoryId, int frame) throws SQLException {
+        final boolean ownTransaction = beginTransaction();
+        try {
+            versions.recordDeletion(trajectoryId, frame, versions.next());
+            if (deletePoint == null) {
+                deletePoint = connection.prepareStatement("DELETE FROM `" + pointsTableName + "` WHERE `trajectory_id` = ? AND `frame_number` = ?");
+            }
+            deletePoint.setInt(1, trajectoryId);
+            deletePoint.setInt(2, frame);
+            deletePoint.executeUpdate();
+            endTransaction(ownTransaction, true);
+        }
+        finally {
+            endTransaction(ownTransaction, false);
+        }
+    }
+
+    /**
+     * Starts a transaction if the connection is in auto-commit mode
+     * <p>
+     * @return true if a transaction was started, false if the caller
+     * already has a transaction open
+     */
+    private boolean beginTransaction() throws SQLException {
+        final boolean ownTransaction = connection.getAutoCommit();
+        if (ownTransaction) {
+            connection.setAutoCommit(false);
+        }
+        return ownTransaction;
+    }
+
+    /**
+     * Ends a transaction started by {@link #beginTransaction()}. This is
+     * called once with success true when the work is done, and again from a
+     * finally block with success false, which rolls back the transaction if
+     * it was not already committed.
+     * <p>
+     * @param ownTransaction The value returned by beginTransaction()
+     * @param success true to commit the transaction, false to roll it back
+     */
+    private void endTransaction(boolean ownTransaction, boolean success) throws SQLException {
+        if (!ownTransaction || connection.getAutoCommit()) {
+            return;
+        }
+        try {
+            if (success) {
+                connection.commit();
+            }
+            else {
+                connection.rollback();
+            }
+        }
+        finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private int saveTrajectoryRecord(Trajectory trajectory, long version) throws SQLException {
+        final PreparedStatement upsert = prepareUpsertTrajectory();
+        upsert.setInt(1, trajectory.getId());
+        enumColumns.setFromAction(upsert, 2, trajectory.getFromAction());
+        enumColumns.setToAction(upsert, 3, trajectory.getToAction());
+        upsert.setLong(4, version);
+        return countRows(new int[]{upsert.executeUpdate()});
+    }
+
+    /**
+     * Sets the parameters of the upsert statement for a point
+     */
+    private void bindUpsert(PreparedStatement upsert, Point point, int trajectoryId, long version) throws SQLException {
+        upsert.setInt(1, trajectoryId);
+        upsert.setInt(2, point.getFrame());
+        bindValues(upsert, 3, point);
+        upsert.setLong(10, version);
+    }
+
+    /**
+     * Sets the seven parameters for the values of a point, starting at
+     * a parameter index
+     */
+    private void bindValues(PreparedStatement statement, int first, Point point) throws SQLException {
+        statement.setInt(first, point.getX());
+        statement.setInt(first + 1, point.getY());
+        enumColumns.setActivity(statement, first + 2, "activity", point.getActivity());
+        if (point instanceof InteractionPoint) {
+            final InteractionPoint iPoint = (InteractionPoint) point;
+            statement.setInt(first + 3, 1);
+            statement.setInt(first + 4, iPoint.getMetAntId());
+            enumColumns.setInteractionType(statement, first + 5, iPoint.getType());
+            enumColumns.setActivity(statement, first + 6, "interaction_met_ant_activity", iPoint.getMetAntActivity());
+        }
+        else {
+            statement.setInt(first + 3, 0);
+            statement.setNull(first + 4, Types.INTEGER);
+            enumColumns.setInteractionType(statement, first + 5, null);
+            enumColumns.setActivity(statement, first + 6, "interaction_met_ant_activity", null);
+        }
+    }
+
+    /**
+     * @param counts The update counts returned by executeBatch
+     * @return The total number of rows written
+     */
+    private static int countRows(int[] counts) {
+        int rows = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                // An upsert that updates a row reports 2
+                rows++;
+            }
+            else if (count == Statement.SUCCESS_NO_INFO) {
+                // A rewritten batch does not report a count for each row
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    private PreparedStatement prepareUpsertTrajectory() throws SQLException {
+        if (upsertTrajectory == null) {
+            // MySQL assigns columns from left to right, so the version is
+            // set before the values it compares are changed
+            upsertTrajectory = connection.prepareStatement("INSERT INTO `" + trajectoriesTableName + "` ("
+                    + "`trajectory_id`, `from_action`, `to_action`, `change_version`) VALUES (?, ?, ?, ?)"
+                    + " ON DUPLICATE KEY UPDATE "
+                    + "`change_version` = IF(`from_action` <=> VALUES(`from_action`) AND `to_action` <=> VALUES(`to_action`),"
+                    + " `change_version`, VALUES(`change_version`)),"
+                    + "`from_action` = VALUES(`from_action`),"
+                    + "`to_action` = VALUES(`to_action`)");
+        }
+        return upsertTrajectory;
+    }
+
+    private PreparedStatement prepareUpsertPoint() throws SQLException {
+        if (upsertPoint == null) {
+            upsertPoint = connection.prepareStatement("INSERT INTO `" + pointsTableName + "` ("
+                    + "`trajectory_id`,"
+                    + "`frame_number`,"
+                    + "`frame_x`,"
+                    + "`frame_y`,"
+                    + "`activity`,"
+                    + "`is_interaction`,"
+                    + "`interaction_met_trajectory_id`,"
+                    + "`interaction_type`,"
+                    + "`interaction_met_ant_activity`,"
+                    + "`change_version`"
+                    + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                    + " ON DUPLICATE KEY UPDATE "
+                    + "`change_version` = IF("
+                    + "`frame_x` <=> VALUES(`frame_x`)"
+                    + " AND `frame_y` <=> VALUES(`frame_y`)"
+                    + " AND `activity` <=> VALUES(`activity`)"
+                    + " AND `is_interaction` <=> VALUES(`is_interaction`)"
+                    + " AND `interaction_met_trajectory_id` <=> VALUES(`interaction_met_trajectory_id`)"
+                    + " AND `interaction_type` <=> VALUES(`interaction_type`)"
+                    + " AND `interaction_met_ant_activity` <=> VALUES(`interaction_met_ant_activity`),"
+                    + " `change_version`, VALUES(`change_version`)),"
+                    + "`frame_x` = VALUES(`frame_x`),"
+                    + "`frame_y` = VALUES(`frame_y`),"
+                    + "`activity` = VALUES(`activity`),"
+                    + "`is_interaction` = VALUES(`is_interaction`),"
+                    + "`interaction_met_trajectory_id` = VALUES(`interaction_met_trajectory_id`),"
+                    + "`interaction_type` = VALUES(`interaction_type`),"
+                    + "`interaction_met_ant_activity` = VALUES(`interaction_met_ant_activity`)");
+        }
+        return upsertPoint;
+    }
+
+    /**
+     * Closes the prepared statements. The connection is not closed.
+     * <p>
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException {
+        final PreparedStatement[] statements = {
+            deleteTrajectoryPoints, deleteTrajectoryRecord, deletePoint,
+            upsertTrajectory, upsertPoint
+        };
+        for (PreparedStatement statement : statements) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        deleteTrajectoryPoints = null;
+        deleteTrajectoryRecord = null;
+        deletePoint = null;
+        upsertTrajectory = null;
+        upsertPoint = null;
+    }
+}
@@ -0,0 +1,687 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ * Writes changes to a trajectory store on a background thread
+ * <p>
+ * Writes are queued by the application thread and return immediately. The
+ * background thread takes the queued writes in order and applies them in
+ * transactions of up to {@link #MAX_BATCH_SIZE} writes.
+ * <p>
+ * Writes that affect the same records are coalesced: when a write is
+ * queued, any queued write with the same key is discarded, and the new
+ * write is put at the end of the queue. For example, moving a point several
+ * times before the queue is drained writes the point once.
+ * <p>
+ * Writes queued together with {@link #enqueueAll(List)} are applied in the
+ * same transaction, even if that makes the transaction larger than
+ * {@link #MAX_BATCH_SIZE}. A write in the group that is replaced by a later
+ * write is applied with the later write instead.
+ * <p>
+ * If a transaction fails because of a transient or recoverable
+ * SQLException, or because the connection was lost, it is tried again after
+ * a delay that doubles each time. If it fails with any other exception, or
+ * fails too many times, its writes are discarded and the listener is
+ * notified.
+ * <p>
+ * Without a journal, the queue is held only in memory, and writes that
+ * have not been applied when the application exits are lost. With a
+ * {@link WriteJournal}, each write is also appended to the journal when it
+ * is queued. Transactions that fail because of transient errors are then
+ * tried again until they succeed or the queue is closed, and writes that
+ * were not applied before the application exited are queued again when the
+ * next queue is created with the same journal. With {@link DeadLetters},
+ * writes that are discarded are moved out of the journal, and the user is
+ * told where they are kept. Only the writes that were discarded because the
+ * connection was lost are queued again by the next queue.
+ * <p>
+ * @author Sam Crow
+ */
+class WriteBehindQueue {
+
+    /**
+     * The maximum number of writes to apply in one transaction
+     */
+    static final int MAX_BATCH_SIZE = 200;
+
+    /**
+     * The maximum number of times to try a transaction
+     */
+    private static final int MAX_ATTEMPTS = 10;
+
+    /**
+     * The delay before the first retry, in milliseconds
+     */
+    private static final long INITIAL_RETRY_DELAY = 500;
+
+    /**
+     * The longest delay between retries, in milliseconds
+     */
+    private static final long MAX_RETRY_DELAY = 30000;
+
+    /**
+     * Receives notifications from the background thread
+     */
+    interface Listener {
+
+        /**
+         * Called when the number of writes that have not been applied
+         * changes
+         * <p>
+         * @param count The number of writes queued or being applied
+         */
+        void pendingWritesChanged(int count);
+
+        /**
+         * Called when writes have been discarded because they could not be
+         * applied
+         * <p>
+         * @param ex The exception from the last attempt
+         * @param discarded The number of writes discarded
+         */
+        void writeFailed(IOException ex, int discarded);
+    }
+
+    private final TrajectoryStore store;
+
+    /**
+     * Held while the store is being used
+     */
+    private final Lock storeLock;
+
+    private final Listener listener;
+
+    /**
+     * Records the queued writes, or null
+     */
+    private final WriteJournal journal;
+
+    /**
+     * Keeps discarded writes, or null
+     */
+    private final DeadLetters deadLetters;
+
+    /**
+     * Queued writes by key, in order. Guarded by this.
+     */
+    private final LinkedHashMap<String, Write> pending = new LinkedHashMap<>();
+
+    /**
+     * The number of writes taken from the queue and not yet applied.
+     * Guarded by this.
+     */
+    private int inFlight;
+
+    /**
+     * The group number to give to the next writes queued together. Guarded
+     * by this.
+     */
+    private long nextGroup = 1;
+
+    /**
+     * The exception from the last attempt to apply a batch, if the batch
+     * is waiting to be tried again. Guarded by this.
+     */
+    private IOException retryCause;
+
+    /**
+     * Guarded by this
+     */
+    private boolean closed;
+
+    private final Thread thread;
+
+    public WriteBehindQueue(TrajectoryStore store, Lock storeLock, Listener listener) {
+        this(store, storeLock, listener, null);
+    }
+
+    /**
+     * Creates a queue. Any writes in the journal that have not been applied
+     * are queued.
+     * <p>
+     * @param store
+     * @param storeLock Held while the store is being used
+     * @param listener
+     * @param journal The journal to record writes in, or null. It is
+     * closed when this queue is closed.
+     */
+    public WriteBehindQueue(TrajectoryStore store, Lock storeLock, Listener listener, WriteJournal journal) {
+        this(store, storeLock, listener, journal, null);
+    }
+
+    /**
+     * Creates a queue that moves discarded writes out of its journal. Any
+     * writes in the journal that have not been applied, and any writes that
+     * were discarded because the connection was lost, are queued.
+     * <p>
+     * @param store
+     * @param storeLock Held while the store is being used
+     * @param listener
+     * @param journal The journal to record writes in, or null. It is
+     * closed when this queue is closed.
+     * @param deadLetters Keeps discarded writes, or null. It is closed when
+     * this queue is closed. It is only used with a journal.
+     */
+    public WriteBehindQueue(TrajectoryStore store, Lock storeLock, Listener listener, WriteJournal journal, DeadLetters deadLetters) {
+        this.store = store;
+        this.storeLock = storeLock;
+        this.listener = listener;
+        this.journal = journal;
+        this.deadLetters = journal != null ? deadLetters : null;
+        if (journal != null) {
+            final List<Write> retried = this.deadLetters != null ? this.deadLetters.getRetryWrites() : Collections.<Write>emptyList();
+            if (retried.isEmpty()) {
+                for (Write write : journal.getUnappliedWrites()) {
+                    pending.remove(write.key);
+                    pending.put(write.key, write);
+                }
+            }
+            else {
+                requeue(retried);
+            }
+            if (!pending.isEmpty()) {
+                Logger.getLogger(WriteBehindQueue.class.getName()).log(Level.INFO, "Applying {0} writes from the journal", pending.size());
+            }
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Trajectory store writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the writes that were discarded because the connection was lost,
+     * followed by the unapplied writes in the journal. The discarded writes
+     * are older, so they go first. They are all appended to the journal
+     * again, so that the writes in the queue are in the order of their
+     * positions.
+     */
+    private void requeue(List<Write> retried) {
+        Logger.getLogger(WriteBehindQueue.class.getName()).log(Level.INFO, "Trying {0} discarded writes again", retried.size());
+        final long start = journal.end();
+        final List<Write> writes = new ArrayList<>(retried);
+        writes.addAll(journal.getUnappliedWrites());
+        for (Write write : writes) {
+            write.position = appendToJournal(write);
+            pending.remove(write.key);
+            pending.put(write.key, write);
+        }
+        try {
+            journal.checkpoint(start);
+            deadLetters.retried();
+        }
+        catch (IOException ex) {
+            // The discarded writes will be tried again next time
+            Logger.getLogger(WriteBehindQueue.class.getName()).log(Level.WARNING, "Failed to move discarded writes to the journal", ex);
+        }
+    }
+
+    /**
+     * Appends a write to the journal
+     * <p>
+     * @return The position of the write
+     */
+    private long appendToJournal(Write write) {
+        try {
+            return journal.append(write);
+        }
+        catch (IOException ex) {
+            // The write is still applied from memory, but will be lost if
+            // the application exits first
+            Logger.getLogger(WriteBehindQueue.class.getName()).log(Level.SEVERE, "Failed to append a write to the journal", ex);
+            return journal.end();
+        }
+    }
+
+    /**
+     * Queues a write
+     * <p>
+     * @param write
+     * @throws IllegalStateException if this queue has been closed
+     */
+    public void enqueue(Write write) {
+        enqueueAll(Collections.singletonList(write));
+    }
+
+    /**
+     * Queues writes that must be applied together, in the same transaction
+     * <p>
+     * @param writes The writes, in the order to apply them
+     * @throws IllegalStateException if this queue has been closed
+     */
+    public void enqueueAll(List<Write> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        final int count;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The write queue is closed");
+            }
+            final long group = writes.size() > 1 ? nextGroup++ : 0;
+            for (Write write : writes) {
+                write.group = group;
+                if (journal != null) {
+                    // Appended while this is locked, so that the writes in
+                    // the queue are in the order of their positions
+                    write.position = appendToJournal(write);
+                }
+                // Remove any earlier write with the same key, so that this
+                // one goes at the end
+                pending.remove(write.key);
+                pending.put(write.key, write);
+            }
+            count = pending.size() + inFlight;
+            notifyAll();
+        }
+        listener.pendingWritesChanged(count);
+    }
+
+    /**
+     * Waits until all queued writes have been applied or discarded
+     * <p>
+     * @throws InterruptedException
+     * @throws IOException if applying the writes failed and they are
+     * waiting to be tried again
+     */
+    public synchronized void flush() throws InterruptedException, IOException {
+        while (!pending.isEmpty() || inFlight != 0) {
+            if (retryCause != null) {
+                throw new IOException("Saved edits are waiting to be written to the store", retryCause);
+            }
+            wait();
+        }
+    }
+
+    /**
+     * @return The number of writes queued or being applied
+     */
+    public synchronized int size() {
+        return pending.size() + inFlight;
+    }
+
+    /**
+     * Applies all queued writes and stops the background thread. No more
+     * writes can be queued.
+     * <p>
+     * If there is a journal and the writes cannot be applied because of a
+     * transient error, they are left in the journal and the journal is
+     * closed.
+     * <p>
+     * @throws InterruptedException
+     * @throws IOException if the journal could not be closed
+     */
+    public void close() throws InterruptedException, IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        thread.join();
+        if (journal != null) {
+            try {
+                journal.close();
+            }
+            finally {
+                if (deadLetters != null) {
+                    deadLetters.close();
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final List<Write> batch;
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    // Closed
+                    return;
+                }
+                batch = new ArrayList<>(Math.min(pending.size(), MAX_BATCH_SIZE));
+                final Iterator<Write> iter = pending.values().iterator();
+                Write last = null;
+                while (iter.hasNext()) {
+                    final Write write = iter.next();
+                    // A full batch is only extended to finish a group
+                    if (batch.size() >= MAX_BATCH_SIZE && (write.group == 0 || write.group != last.group)) {
+                        break;
+                    }
+                    batch.add(write);
+                    iter.remove();
+                    last = write;
+                }
+                inFlight = batch.size();
+            }
+
+            final boolean applied;
+            try {
+                applied = apply(batch);
+            }
+            finally {
+                // Even if this thread is stopped by an exception, flush()
+                // must not wait for the batch
+                synchronized (this) {
+                    inFlight = 0;
+                    notifyAll();
+                }
+            }
+            if (!applied) {
+                // Closed while waiting to try again. The writes are still
+                // in the journal.
+                return;
+            }
+
+            final int count;
+            final long checkpoint;
+            synchronized (this) {
+                count = pending.size();
+                // Writes are queued in the order of their positions, so
+                // every write before the first queued write has been
+                // applied or replaced
+                if (journal != null) {
+                    checkpoint = pending.isEmpty() ? journal.end() : pending.values().iterator().next().position;
+                }
+                else {
+                    checkpoint = 0;
+                }
+            }
+            if (journal != null) {
+                try {
+                    journal.checkpoint(checkpoint);
+                }
+                catch (IOException ex) {
+                    // The writes will be applied again next time
+                    Logger.getLogger(WriteBehindQueue.class.getName()).log(Level.WARNING, "Failed to update the journal checkpoint", ex);
+                }
+            }
+            listener.pendingWritesChanged(count);
+        }
+    }
+
+    /**
+     * Applies a batch of writes in one transaction, retrying if the
+     * failure may be temporary
+     * <p>
+     * @return false if this queue was closed while the batch was waiting
+     * to be tried again with a journal, so the batch was neither applied nor
+     * discarded
+     */
+    private boolean apply(List<Write> batch) {
+        long delay = INITIAL_RETRY_DELAY;
+        for (int attempt = 1;; attempt++) {
+            try {
+                applyOnce(batch);
+                setRetryCause(null);
+                return true;
+            }
+            catch (RuntimeException ex) {
+                // Not a failure of the store, so trying again would fail
+                // the same way
+                setRetryCause(null);
+                discard(batch, new IOException(ex));
+                return true;
+            }
+            catch (IOException ex) {
+                final boolean keepTrying = journal != null || attempt < MAX_ATTEMPTS;
+                if (!keepTrying || !isTransient(ex)) {
+                    setRetryCause(null);
+                    discard(batch, ex);
+                    return true;
+                }
+                Logger.getLogger(WriteBehindQueue.class.getName()).log(Level.WARNING, "Write failed, retrying in {0} ms: {1}", new Object[]{delay, ex});
+                synchronized (this) {
+                    retryCause = ex;
+                    // Wake up any thread waiting in flush()
+                    notifyAll();
+                    final long deadline = System.currentTimeMillis() + delay;
+                    long remaining = delay;
+                    while (remaining > 0 && !(closed && journal != null)) {
+                        try {
+                            // Woken early if this queue is closed
+                            wait(remaining);
+                        }
+                        catch (InterruptedException interrupted) {
+                            retryCause = null;
+                            discard(batch, ex);
+                            return true;
+                        }
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                    if (closed && journal != null) {
+                        return false;
+                    }
+                }
+                delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+            }
+        }
+    }
+
+    private synchronized void setRetryCause(IOException cause) {
+        retryCause = cause;
+    }
+
+    /**
+     * Moves a batch of writes that could not be applied to the dead letter
+     * files, if there are any, and notifies the listener
+     * <p>
+     * @param batch The writes
+     * @param ex The exception from the last attempt
+     */
+    private void discard(List<Write> batch, IOException ex) {
+        Logger.getLogger(WriteBehindQueue.class.getName()).log(Level.SEVERE, "Discarding " + batch.size() + " writes", ex);
+        IOException reported = ex;
+        if (deadLetters != null) {
+            // Only writes that failed because the connection was lost can
+            // succeed later without changes
+            final Throwable cause = ex.getCause();
+            final boolean retry = cause instanceof SQLException && SqlTrajectoryStore.isConnectionFailure((SQLException) cause);
+            try {
+                deadLetters.add(batch, retry);
+                if (retry) {
+                    reported = new IOException(batch.size() + " edits could not be saved. They will be saved the next time this data set is opened.", ex);
+                }
+                else {
+                    reported = new IOException(batch.size() + " edits could not be saved. They have been kept in "
+                            + deadLetters.getFailedFile() + ".", ex);
+                }
+            }
+            catch (IOException deadLetterEx) {
+                Logger.getLogger(WriteBehindQueue.class.getName()).log(Level.SEVERE, "Failed to keep discarded writes", deadLetterEx);
+                ex.addSuppressed(deadLetterEx);
+            }
+        }
+        listener.writeFailed(reported, batch.size());
+    }
+
+    private void applyOnce(List<Write> batch) throws IOException {
+        storeLock.lock();
+        try {
+            store.beginTransaction();
+            try {
+                for (Write write : batch) {
+                    write.apply(store);
+                }
+                store.commitTransaction();
+            }
+            catch (IOException | RuntimeException ex) {
+                try {
+                    store.rollbackTransaction();
+                }
+                catch (IOException rollbackEx) {
+                    ex.addSuppressed(rollbackEx);
+                }
+                throw ex;
+            }
+        }
+        finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * @param ex
+     * @return true if trying the same operation again may succeed
+     */
+    static boolean isTransient(IOException ex) {
+        final Throwable cause = ex.getCause();
+        if (cause instanceof SQLTransientException) {
+            return true;
+        }
+        // The store opens a new connection for the next attempt
+        return cause instanceof SQLException && SqlTrajectoryStore.isConnectionFailure((SQLException) cause);
+    }
+
+    /**
+     * A change to the database, with a key that identifies the records it
+     * changes
+     */
+    static abstract class Write {
+
+        final String key;
+
+        /**
+         * The position of this write in the journal, or 0 if there is no
+         * journal. Set while the queue is locked.
+         */
+        long position;
+
+        /**
+         * The number of the group of writes that this was queued with, or 0
+         * if it was queued alone. Set while the queue is locked.
+         */
+        long group;
+
+        Write(String key) {
+            this.key = key;
+        }
+
+        abstract void apply(TrajectoryStore store) throws IOException;
+    }
+
+    /**
+     * Saves a trajectory and all its points
+     */
+    static final class SaveTrajectory extends Write {
+
+        private final Trajectory snapshot;
+
+        /**
+         * @param snapshot A read-only snapshot of the trajectory to save
+         */
+        SaveTrajectory(Trajectory snapshot) {
+            super("trajectory:" + snapshot.getId());
+            this.snapshot = snapshot;
+        }
+
+        Trajectory getSnapshot() {
+            return snapshot;
+        }
+
+        @Override
+        void apply(TrajectoryStore store) throws IOException {
+            store.saveTrajectory(snapshot);
+        }
+    }
+
+    /**
+     * Deletes a trajectory and all its points
+     */
+    static final class DeleteTrajectory extends Write {
+
+        private final int trajectoryId;
+
+        DeleteTrajectory(int trajectoryId) {
+            // Deleting and saving a trajectory are not coalesced, because
+            // saving does not remove points that have been removed
+            super("delete trajectory:" + trajectoryId);
+            this.trajectoryId = trajectoryId;
+        }
+
+        int getTrajectoryId() {
+            return trajectoryId;
+        }
+
+        @Override
+        void apply(TrajectoryStore store) throws IOException {
+            store.deleteTrajectory(trajectoryId);
+        }
+    }
+
+    /**
+     * Saves or deletes one point
+     */
+    static final class SavePoint extends Write {
+
+        private final int trajectoryId;
+
+        private final int frame;
+
+        /**
+         * The point, or null to delete it
+         */
+        private final Point point;
+
+        /**
+         * @param trajectoryId
+         * @param frame
+         * @param point A copy of the point to save, or null to delete the
+         * point
+         */
+        SavePoint(int trajectoryId, int frame, Point point) {
+            super("point:" + trajectoryId + ":" + frame);
+            this.trajectoryId = trajectoryId;
+            this.frame = frame;
+            this.point = point;
+        }
+
+        int getTrajectoryId() {
+            return trajectoryId;
+        }
+
+        int getFrame() {
+            return frame;
+        }
+
+        /**
+         * @return The point to save, or null if the point is deleted
+         */
+        Point getPoint() {
+            return point;
+        }
+
+        @Override
+        void apply(TrajectoryStore store) throws IOException {
+            if (point != null) {
+                store.savePoint(point, trajectoryId);
+            }
+            else {
+                store.deletePoint(trajectoryId, frame);
+            }
+        }
+    }
+}
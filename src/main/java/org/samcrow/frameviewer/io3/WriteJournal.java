@@ -0,0 +1,461 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ * A local file that records queued writes until they have been applied to
+ * a trajectory store
+ * <p>
+ * Each write is appended to the file when it is queued. The file is synced
+ * to the disk by a background thread in groups: after a write is appended,
+ * the thread waits {@link #SYNC_DELAY} milliseconds and then syncs all the
+ * writes appended so far. A write can be lost if the computer fails within
+ * that time.
+ * <p>
+ * The header of the file holds a checkpoint, the position of the first
+ * write that may not have been applied to the store. When a journal is
+ * opened, the writes after the checkpoint are read so that they can be
+ * applied again. The checkpoint is moved after every transaction, so the
+ * only writes after it that had already been applied are those of the
+ * transaction that was committed just before the application exited.
+ * Applying those again can overwrite a change that another user made to the
+ * same records in the meantime.
+ * <p>
+ * Each record has a length and a checksum. When the journal is opened,
+ * anything after the last complete record is discarded. When every write
+ * has been applied, the file is truncated to its header.
+ * <p>
+ * The journal file is locked while it is open, so that only one process
+ * can use it.
+ * <p>
+ * @author Sam Crow
+ */
+class WriteJournal {
+
+    /**
+     * The first four bytes of every file, "FVWJ"
+     */
+    private static final int MAGIC = 0x4656574A;
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The position of the checkpoint in the file
+     */
+    private static final int CHECKPOINT_POSITION = 8;
+
+    /**
+     * The length of the magic number, format version, and checkpoint
+     */
+    static final int HEADER_LENGTH = 16;
+
+    /**
+     * The time to wait after a write is appended before syncing the file,
+     * in milliseconds
+     */
+    static final long SYNC_DELAY = 100;
+
+    // Write types
+    private static final byte SAVE_TRAJECTORY = 1;
+    private static final byte DELETE_TRAJECTORY = 2;
+    private static final byte SAVE_POINT = 3;
+    private static final byte DELETE_POINT = 4;
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final FileLock lock;
+
+    /**
+     * The position after the last record. Guarded by this.
+     */
+    private long end;
+
+    /**
+     * If records have been appended since the file was last synced.
+     * Guarded by this.
+     */
+    private boolean dirty;
+
+    /**
+     * Guarded by this
+     */
+    private boolean closed;
+
+    /**
+     * The writes after the checkpoint when the journal was opened
+     */
+    private final List<WriteBehindQueue.Write> unapplied;
+
+    private final Thread syncThread;
+
+    /**
+     * Opens a journal, or creates it if it does not exist
+     * <p>
+     * @param file
+     * @throws IOException if the file could not be read or created, or
+     * another process has it open
+     */
+    public WriteJournal(File file) throws IOException {
+        this.file = file;
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock fileLock;
+        try {
+            fileLock = channel.tryLock();
+        }
+        catch (OverlappingFileLockException ex) {
+            // Already open in this process
+            fileLock = null;
+        }
+        lock = fileLock;
+        if (lock == null) {
+            channel.close();
+            throw new IOException(file + " is open in another process");
+        }
+        try {
+            unapplied = open();
+        }
+        catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                syncLoop();
+            }
+        }, "Write journal sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    /**
+     * Reads the header and the records after the checkpoint, and discards
+     * any incomplete record at the end
+     */
+    private List<WriteBehindQueue.Write> open() throws IOException {
+        if (channel.size() < HEADER_LENGTH) {
+            writeHeader();
+            end = HEADER_LENGTH;
+            return new ArrayList<>();
+        }
+
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+        if (input.readInt() != MAGIC) {
+            throw new IOException(file + " is not a write journal");
+        }
+        if (input.readInt() > FORMAT_VERSION) {
+            throw new IOException(file + " was written by a newer version of this software");
+        }
+        long checkpoint = input.readLong();
+
+        final List<WriteBehindQueue.Write> writes = new ArrayList<>();
+        long position = HEADER_LENGTH;
+        while (true) {
+            final WriteBehindQueue.Write write;
+            final int length;
+            try {
+                length = input.readInt();
+                if (length <= 0 || length > channel.size() - position) {
+                    break;
+                }
+                final byte[] data = new byte[length];
+                input.readFully(data);
+                final CRC32 crc = new CRC32();
+                crc.update(data);
+                if (input.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+                write = decode(new DataInputStream(new ByteArrayInputStream(data)));
+            }
+            catch (EOFException ex) {
+                break;
+            }
+            if (position >= checkpoint) {
+                write.position = position;
+                writes.add(write);
+            }
+            position += 4 + length + 4;
+        }
+
+        end = position;
+        if (channel.size() > end) {
+            Logger.getLogger(WriteJournal.class.getName()).log(Level.WARNING,
+                    "Discarding {0} bytes of an incomplete journal record", channel.size() - end);
+            channel.truncate(end);
+        }
+        if (checkpoint > end) {
+            // The file was truncated after everything was applied, but the
+            // checkpoint was not reset
+            checkpoint = end;
+            writeCheckpoint(checkpoint);
+        }
+        channel.force(true);
+        return writes;
+    }
+
+    private void writeHeader() throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putLong(HEADER_LENGTH);
+        header.flip();
+        channel.truncate(0);
+        writeFully(header, 0);
+        channel.force(true);
+    }
+
+    /**
+     * @return The writes that had not been applied when the journal was
+     * opened, in the order they were appended. Each write has its position
+     * set.
+     */
+    public List<WriteBehindQueue.Write> getUnappliedWrites() {
+        return unapplied;
+    }
+
+    /**
+     * Appends a write. The write will be synced to the disk within
+     * {@link #SYNC_DELAY} milliseconds.
+     * <p>
+     * @param write
+     * @return The position of the write, which can be passed to
+     * {@link #checkpoint(long)}
+     * @throws IOException
+     */
+    public synchronized long append(WriteBehindQueue.Write write) throws IOException {
+        if (closed) {
+            throw new IOException("The journal is closed");
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        // Space for the length
+        out.writeInt(0);
+        encode(write, out);
+        final int length = bytes.size() - 4;
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 4, length);
+        out.writeInt((int) crc.getValue());
+
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        buffer.putInt(0, length);
+        final long position = end;
+        try {
+            writeFully(buffer, position);
+        }
+        catch (IOException ex) {
+            // Remove any part of the record that was written
+            channel.truncate(position);
+            throw ex;
+        }
+        end = position + buffer.limit();
+        if (!dirty) {
+            dirty = true;
+            notifyAll();
+        }
+        return position;
+    }
+
+    /**
+     * @return The position after the last write
+     */
+    public synchronized long end() {
+        return end;
+    }
+
+    /**
+     * Records that every write before a position has been applied. If
+     * that is every write in the journal, the journal is truncated.
+     * <p>
+     * @param position The position of the first write that may not have
+     * been applied, or {@link #end()} if all have been applied
+     * @throws IOException
+     */
+    public synchronized void checkpoint(long position) throws IOException {
+        if (position == end && end != HEADER_LENGTH) {
+            channel.truncate(HEADER_LENGTH);
+            end = HEADER_LENGTH;
+            position = HEADER_LENGTH;
+        }
+        writeCheckpoint(position);
+        channel.force(false);
+    }
+
+    private void writeCheckpoint(long position) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(0, position);
+        writeFully(buffer, CHECKPOINT_POSITION);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Waits for records to be appended, and syncs them to the disk in
+     * groups
+     */
+    private void syncLoop() {
+        while (true) {
+            synchronized (this) {
+                while (!dirty && !closed) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                // Let more writes join this group
+                Thread.sleep(SYNC_DELAY);
+            }
+            catch (InterruptedException ex) {
+                return;
+            }
+            synchronized (this) {
+                dirty = false;
+            }
+            try {
+                // Not synchronized, so that writes can be appended while
+                // the disk is busy
+                channel.force(false);
+            }
+            catch (IOException ex) {
+                Logger.getLogger(WriteJournal.class.getName()).log(Level.SEVERE, "Failed to sync the write journal", ex);
+            }
+        }
+    }
+
+    /**
+     * Syncs and closes the journal
+     * <p>
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            syncThread.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.force(true);
+        }
+        finally {
+            lock.release();
+            channel.close();
+        }
+    }
+
+    private static void encode(WriteBehindQueue.Write write, DataOutputStream out) throws IOException {
+        if (write instanceof WriteBehindQueue.SaveTrajectory) {
+            final Trajectory trajectory = ((WriteBehindQueue.SaveTrajectory) write).getSnapshot();
+            out.writeByte(SAVE_TRAJECTORY);
+            out.writeInt(trajectory.getId());
+            out.writeInt(trajectory.getFirstFrame());
+            out.writeInt(trajectory.getLastFrame());
+            out.writeByte(trajectory.getFromAction().getCode());
+            out.writeByte(trajectory.getToAction().getCode());
+            final List<Point> points = new ArrayList<>();
+            for (Point point : trajectory) {
+                points.add(point);
+            }
+            out.writeInt(points.size());
+            for (Point point : points) {
+                FileTrajectoryStore.writePointFields(out, point, trajectory.getId());
+            }
+        }
+        else if (write instanceof WriteBehindQueue.DeleteTrajectory) {
+            out.writeByte(DELETE_TRAJECTORY);
+            out.writeInt(((WriteBehindQueue.DeleteTrajectory) write).getTrajectoryId());
+        }
+        else if (write instanceof WriteBehindQueue.SavePoint) {
+            final WriteBehindQueue.SavePoint savePoint = (WriteBehindQueue.SavePoint) write;
+            if (savePoint.getPoint() != null) {
+                out.writeByte(SAVE_POINT);
+                FileTrajectoryStore.writePointFields(out, savePoint.getPoint(), savePoint.getTrajectoryId());
+            }
+            else {
+                out.writeByte(DELETE_POINT);
+                out.writeInt(savePoint.getTrajectoryId());
+                out.writeInt(savePoint.getFrame());
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Unknown write " + write);
+        }
+    }
+
+    private static WriteBehindQueue.Write decode(DataInputStream input) throws IOException {
+        final byte type = input.readByte();
+        switch (type) {
+            case SAVE_TRAJECTORY: {
+                final int id = input.readInt();
+                final int firstFrame = input.readInt();
+                final int lastFrame = input.readInt();
+                final Trajectory trajectory = new Trajectory(firstFrame, lastFrame, id);
+                trajectory.setFromAction(Trajectory.FromAction.fromCode(input.readByte()));
+                trajectory.setToAction(Trajectory.ToAction.fromCode(input.readByte()));
+                final int count = input.readInt();
+                for (int i = 0; i < count; i++) {
+                    final Point point = FileTrajectoryStore.readPointFields(input);
+                    trajectory.set(point.getFrame(), point);
+                }
+                return new WriteBehindQueue.SaveTrajectory(trajectory.snapshot());
+            }
+            case DELETE_TRAJECTORY:
+                return new WriteBehindQueue.DeleteTrajectory(input.readInt());
+            case SAVE_POINT: {
+                final Point point = FileTrajectoryStore.readPointFields(input);
+                return new WriteBehindQueue.SavePoint(point.getTrajectoryID(), point.getFrame(), point);
+            }
+            case DELETE_POINT: {
+                final int trajectoryId = input.readInt();
+                final int frame = input.readInt();
+                return new WriteBehindQueue.SavePoint(trajectoryId, frame, null);
+            }
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.samcrow.frameviewer.trajectory;
+
+import org.samcrow.frameviewer.util.IntMap;
+
+/**
+ * An index of interaction points by trajectory ID and frame, used to find
+ * the point on the other side of an interaction
+ * <p>
+ * Trajectories keep the index of their data store up to date as interaction
+ * points are added, removed, and promoted or demoted, and when their IDs
+ * change. Lookups take constant time.
+ * <p>
+ * @author Sam Crow
+ */
+public class InteractionIndex {
+
+    /**
+     * Maps trajectory IDs to maps from frames to interaction points
+     */
+    private final IntMap<IntMap<InteractionPoint>> trajectories = new IntMap<>();
+
+    private int size;
+
+    /**
+     * @param trajectoryId
+     * @param frame
+     * @return The interaction point at a frame of the trajectory with an ID,
+     * or null if none exists
+     */
+    public InteractionPoint get(int trajectoryId, int frame) {
+        final IntMap<InteractionPoint> frames = trajectories.get(trajectoryId);
+        return frames != null ? frames.get(frame) : null;
+    }
+
+    /**
+     * Adds an interaction point, replacing any point at the same trajectory
+     * and frame
+     * <p>
+     * @param trajectoryId
+     * @param frame
+     * @param point
+     */
+    public void put(int trajectoryId, int frame, InteractionPoint point) {
+        IntMap<InteractionPoint> frames = trajectories.get(trajectoryId);
+        if (frames == null) {
+            frames = new IntMap<>();
+            trajectories.put(trajectoryId, frames);
+        }
+        if (frames.put(frame, point) == null) {
+            size++;
+        }
+    }
+
+    /**
+     * Removes an interaction point, if it is the point stored for its
+     * trajectory and frame
+     * <p>
+     * @param trajectoryId
+     * @param frame
+     * @param point
+     */
+    public void remove(int trajectoryId, int frame, InteractionPoint point) {
+        final IntMap<InteractionPoint> frames = trajectories.get(trajectoryId);
+        if (frames != null && frames.get(frame) == point) {
+            frames.remove(frame);
+            size--;
+            if (frames.isEmpty()) {
+                trajectories.remove(trajectoryId);
+            }
+        }
+    }
+
+    /**
+     * Adds all the interaction points in a trajectory
+     * <p>
+     * @param trajectory
+     */
+    public void addAll(Trajectory trajectory) {
+        for (InteractionPoint point : trajectory.getInteractionPoints()) {
+            put(trajectory.getId(), point.getFrame(), point);
+        }
+    }
+
+    /**
+     * Removes all the interaction points in a trajectory
+     * <p>
+     * @param trajectory
+     */
+    public void removeAll(Trajectory trajectory) {
+        for (InteractionPoint point : trajectory.getInteractionPoints()) {
+            remove(trajectory.getId(), point.getFrame(), point);
+        }
+    }
+
+    /**
+     * Finds the point on the other side of an interaction, using the met
+     * ant ID and frame of a point
+     * <p>
+     * @param point
+     * @return The other point, or null if it is not in this index
+     */
+    public InteractionPoint findPartner(InteractionPoint point) {
+        final InteractionPoint partner = get(point.getMetAntId(), point.getFrame());
+        return partner != point ? partner : null;
+    }
+
+    /**
+     * @return The number of interaction points in this index
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        trajectories.clear();
+        size = 0;
+    }
+}
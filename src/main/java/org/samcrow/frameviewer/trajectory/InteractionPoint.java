@@ -27,6 +27,11 @@ public class InteractionPoint extends Point {
      */
     private InteractionPoint otherPoint;
 
+    /**
+     * The trajectory that contains this point, or null
+     */
+    private Trajectory trajectory;
+
     public InteractionPoint(int x, int y) {
         super(x, y);
     }
@@ -55,9 +60,16 @@ public class InteractionPoint extends Point {
         return instance;
     }
 
+    /**
+     * Constructs a copy of another interaction point. The copy is not
+     * linked with the other point of the interaction.
+     * @param other 
+     */
     public InteractionPoint(InteractionPoint other) {
         super(other);
         this.setFocalAntActivity(other.getFocalAntActivity());
+        this.focalAntId = other.focalAntId;
+        this.metAntId = other.metAntId;
         this.metAntActivity = other.metAntActivity;
         this.type = other.type;
     }
@@ -70,6 +82,7 @@ public class InteractionPoint extends Point {
         setActivity(focalAntActivity);
         if(otherPoint != null) {
             otherPoint.metAntActivity = focalAntActivity;
+            otherPoint.valueChanged();
         }
     }
 
@@ -84,8 +97,10 @@ public class InteractionPoint extends Point {
         }
         
         this.metAntActivity = metAntActivity;
+        valueChanged();
         if(otherPoint != null) {
             otherPoint.activity = metAntActivity;
+            otherPoint.valueChanged();
         }
     }
 
@@ -99,10 +114,12 @@ public class InteractionPoint extends Point {
             type = InteractionType.Unknown;
         }
         this.type = type;
+        valueChanged();
         if(otherPoint != null) {
             // Set the type of the other marker
             // Don't call setType() because that will cause stack overflow
             otherPoint.type = type.invert();
+            otherPoint.valueChanged();
         }
     }
 
@@ -120,8 +137,10 @@ public class InteractionPoint extends Point {
 
     public void setFocalAntId(int focalAntId) {
         this.focalAntId = focalAntId;
+        valueChanged();
         if(otherPoint != null) {
             otherPoint.metAntId = focalAntId;
+            otherPoint.valueChanged();
         }
     }
 
@@ -131,8 +150,31 @@ public class InteractionPoint extends Point {
 
     public void setMetAntId(int metAntId) {
         this.metAntId = metAntId;
+        valueChanged();
         if(otherPoint != null) {
             otherPoint.focalAntId = metAntId;
+            otherPoint.valueChanged();
+        }
+    }
+
+    /**
+     * Sets the trajectory that contains this point, which is notified
+     * when the values of this point change
+     * <p>
+     * @param trajectory The trajectory, or null
+     */
+    void setTrajectory(Trajectory trajectory) {
+        this.trajectory = trajectory;
+    }
+
+    Trajectory getTrajectory() {
+        return trajectory;
+    }
+
+    @Override
+    void valueChanged() {
+        if (trajectory != null) {
+            trajectory.interactionChanged();
         }
     }
 
@@ -8,25 +8,37 @@ public enum InteractionType {
     /**
      * Focal ant started interaction, met ant did not participate
      */
-    Performed,
+    Performed(0),
     /**
      * Met ant started interaction, focal ant did not participate
      */
-    Received,
+    Received(1),
     /**
      * Both ants participated in interaction
      */
-    TwoWay("2-Way"), Unknown;
+    TwoWay(2, "2-Way"), Unknown(3);
+
+    private final int code;
 
     private String shortName = null;
 
-    private InteractionType() {
+    private InteractionType(int code) {
+        this.code = code;
     }
 
-    private InteractionType(String shortName) {
+    private InteractionType(int code, String shortName) {
+        this.code = code;
         this.shortName = shortName;
     }
 
+    /**
+     * @return The stable code that identifies this type in compact
+     * database columns
+     */
+    public int getCode() {
+        return code;
+    }
+
     @Override
     public String toString() {
         if (shortName == null) {
@@ -74,4 +86,22 @@ public enum InteractionType {
             return Unknown;
         }
     }
+
+    private static final InteractionType[] VALUES = values();
+
+    /**
+     * Returns the value with a code, but never throws an exception.
+     * Returns Unknown if no value has the code.
+     * <p>
+     * @param code
+     * @return
+     */
+    public static InteractionType fromCode(int code) {
+        for (InteractionType value : VALUES) {
+            if (value.code == code) {
+                return value;
+            }
+        }
+        return Unknown;
+    }
 }
@@ -0,0 +1,452 @@
+package org.samcrow.frameviewer.trajectory;
+
+import java.util.Arrays;
+import javafx.geometry.Bounds;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+import org.samcrow.frameviewer.util.IntMap;
+
+/**
+ * Draws trajectory ID labels
+ * <p>
+ * Labels are collected with {@link #add(int, double, double, boolean)}
+ * while trajectories are painted, and drawn together by
+ * {@link #paint(GraphicsContext, double, double)}.
+ * <p>
+ * The text of each label is rasterized once into an atlas image, and
+ * labels are drawn by copying parts of that image. If one paint has more
+ * labels than the atlas can hold, the labels that do not fit are drawn as
+ * text. Before drawing, labels
+ * are placed so that they do not overlap: each label tries several
+ * positions around its point, and labels that have to move away from their
+ * points are connected to them by leader lines. A uniform grid over the
+ * canvas is used to find the labels that a position would overlap.
+ * <p>
+ * This class must be used only from the JavaFX application thread.
+ * <p>
+ * @author Sam Crow
+ */
+public class LabelRenderer {
+
+    /**
+     * Space, in pixels, around the text in each atlas cell
+     */
+    private static final int PADDING = 1;
+
+    private static final int ATLAS_WIDTH = 1024;
+
+    private static final int INITIAL_ATLAS_HEIGHT = 256;
+
+    private static final int MAX_ATLAS_HEIGHT = 4096;
+
+    /**
+     * The width and height of each cell of the collision grid
+     */
+    private static final int GRID_CELL_SIZE = 32;
+
+    /**
+     * The number of rings of leader-line positions tried around a point
+     * after the positions next to it
+     */
+    private static final int LEADER_RINGS = 3;
+
+    /**
+     * The number of positions on each ring
+     */
+    private static final int LEADER_DIRECTIONS = 8;
+
+    private final Font font = Font.getDefault();
+
+    /**
+     * Used to measure label text
+     */
+    private final Text measure = new Text();
+
+    private final int cellWidth;
+
+    private final int cellHeight;
+
+    /**
+     * The distance from the top of a cell to the text baseline
+     */
+    private final double baseline;
+
+    // Atlas
+
+    /**
+     * Rasterized labels. The canvas keeps its contents, so new labels
+     * are drawn into it and a new snapshot is taken.
+     */
+    private Canvas atlasCanvas;
+
+    private WritableImage atlas;
+
+    private int atlasRows;
+
+    /**
+     * The number of atlas cells that have been used
+     */
+    private int cellsUsed;
+
+    /**
+     * Maps trajectory IDs to the entries of labels that are not highlighted
+     */
+    private final IntMap<AtlasEntry> entries = new IntMap<>();
+
+    /**
+     * Maps trajectory IDs to the entries of highlighted labels
+     */
+    private final IntMap<AtlasEntry> hilightedEntries = new IntMap<>();
+
+    /**
+     * True if labels have been drawn into the atlas canvas since the last
+     * snapshot
+     */
+    private boolean atlasDirty;
+
+    // Labels for the current paint, in the order they were added
+
+    private int labelCount;
+
+    private AtlasEntry[] labelEntries = new AtlasEntry[64];
+
+    private int[] labelIds = new int[64];
+
+    private double[] anchorX = new double[64];
+
+    private double[] anchorY = new double[64];
+
+    private boolean[] labelHilighted = new boolean[64];
+
+    // Placed label rectangles
+
+    private double[] placedX = new double[64];
+
+    private double[] placedY = new double[64];
+
+    // Collision grid
+
+    private int gridColumns;
+
+    private int gridRows;
+
+    /**
+     * The first entry of each grid cell, or -1
+     */
+    private int[] gridHeads = new int[0];
+
+    /**
+     * The label index of each grid entry
+     */
+    private int[] gridLabels = new int[256];
+
+    /**
+     * The next entry in the same grid cell, or -1
+     */
+    private int[] gridNext = new int[256];
+
+    private int gridEntryCount;
+
+    public LabelRenderer() {
+        measure.setFont(font);
+        measure.setText("0000000");
+        final Bounds bounds = measure.getLayoutBounds();
+        cellWidth = (int) Math.ceil(bounds.getWidth()) + 2 * PADDING;
+        cellHeight = (int) Math.ceil(bounds.getHeight()) + 2 * PADDING;
+        baseline = PADDING - bounds.getMinY();
+    }
+
+    /**
+     * Adds a label to be drawn by the next call to paint
+     * <p>
+     * @param trajectoryId The ID to display
+     * @param canvasX The X position of the labeled point
+     * @param canvasY The Y position of the labeled point
+     * @param hilighted If the label should be hilighted
+     */
+    public void add(int trajectoryId, double canvasX, double canvasY, boolean hilighted) {
+        if (labelCount == labelEntries.length) {
+            final int newLength = labelCount * 2;
+            labelEntries = Arrays.copyOf(labelEntries, newLength);
+            labelIds = Arrays.copyOf(labelIds, newLength);
+            anchorX = Arrays.copyOf(anchorX, newLength);
+            anchorY = Arrays.copyOf(anchorY, newLength);
+            labelHilighted = Arrays.copyOf(labelHilighted, newLength);
+            placedX = Arrays.copyOf(placedX, newLength);
+            placedY = Arrays.copyOf(placedY, newLength);
+        }
+        labelIds[labelCount] = trajectoryId;
+        labelHilighted[labelCount] = hilighted;
+        labelEntries[labelCount] = getEntry(trajectoryId, hilighted);
+        anchorX[labelCount] = canvasX;
+        anchorY[labelCount] = canvasY;
+        labelCount++;
+    }
+
+    /**
+     * Places and draws all the labels that have been added since the last
+     * call, then forgets them
+     * <p>
+     * @param gc
+     * @param canvasWidth
+     * @param canvasHeight
+     */
+    public void paint(GraphicsContext gc, double canvasWidth, double canvasHeight) {
+        if (labelCount == 0) {
+            return;
+        }
+        if (atlasDirty) {
+            final SnapshotParameters parameters = new SnapshotParameters();
+            parameters.setFill(Color.TRANSPARENT);
+            atlas = atlasCanvas.snapshot(parameters, atlas);
+            atlasDirty = false;
+        }
+        resetGrid(canvasWidth, canvasHeight);
+
+        gc.save();
+        gc.setLineWidth(1);
+        gc.setFont(font);
+        for (int i = 0; i < labelCount; i++) {
+            final AtlasEntry entry = labelEntries[i];
+            final boolean leader = place(i, entry.width);
+            final double x = placedX[i];
+            final double y = placedY[i];
+
+            if (leader) {
+                gc.setStroke(labelHilighted[i] ? Color.RED : Color.LIGHTGREEN);
+                // Connect the point to the nearest point on the label
+                final double edgeX = Math.max(x, Math.min(x + entry.width, anchorX[i]));
+                final double edgeY = Math.max(y, Math.min(y + cellHeight, anchorY[i]));
+                gc.strokeLine(anchorX[i], anchorY[i], edgeX, edgeY);
+            }
+            if (entry.isInAtlas()) {
+                gc.drawImage(atlas, entry.x, entry.y, entry.width, cellHeight, x, y, entry.width, cellHeight);
+            }
+            else {
+                gc.setStroke(labelHilighted[i] ? Color.RED : Color.LIGHTGREEN);
+                gc.strokeText(Integer.toString(labelIds[i]), x + PADDING, y + baseline);
+            }
+        }
+        gc.restore();
+
+        Arrays.fill(labelEntries, 0, labelCount, null);
+        labelCount = 0;
+    }
+
+    /**
+     * Chooses a position for a label that does not overlap any label that
+     * has already been placed, and records it in the grid
+     * <p>
+     * @param label The index of the label
+     * @param width The width of the label
+     * @return true if the label is away from its point and needs a leader line
+     */
+    private boolean place(int label, double width) {
+        final double ax = anchorX[label];
+        final double ay = anchorY[label];
+        final double height = cellHeight;
+
+        // Positions next to the point: the traditional position below and to
+        // the left, then above, right, and left
+        final double[] nearX = {ax - 10, ax - 10, ax + 8, ax - 8 - width};
+        final double[] nearY = {ay + 15 - baseline, ay - 8 - height, ay - height / 2, ay - height / 2};
+        for (int i = 0; i < nearX.length; i++) {
+            if (tryPlace(label, Math.round(nearX[i]), Math.round(nearY[i]), width)) {
+                return false;
+            }
+        }
+
+        // Positions on rings around the point, connected with leader lines
+        for (int ring = 1; ring <= LEADER_RINGS; ring++) {
+            final double radius = (ring + 1) * height;
+            for (int direction = 0; direction < LEADER_DIRECTIONS; direction++) {
+                final double angle = direction * 2 * Math.PI / LEADER_DIRECTIONS;
+                final double centerX = ax + Math.cos(angle) * (radius + width / 2);
+                final double centerY = ay + Math.sin(angle) * radius;
+                if (tryPlace(label, Math.round(centerX - width / 2), Math.round(centerY - height / 2), width)) {
+                    return true;
+                }
+            }
+        }
+
+        // Nowhere free; overlap in the traditional position
+        placedX[label] = Math.round(nearX[0]);
+        placedY[label] = Math.round(nearY[0]);
+        insertIntoGrid(label, width);
+        return false;
+    }
+
+    private boolean tryPlace(int label, double x, double y, double width) {
+        final int firstColumn = gridColumn(x);
+        final int lastColumn = gridColumn(x + width);
+        final int firstRow = gridRow(y);
+        final int lastRow = gridRow(y + cellHeight);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                for (int entry = gridHeads[row * gridColumns + column]; entry != -1; entry = gridNext[entry]) {
+                    final int other = gridLabels[entry];
+                    final double otherX = placedX[other];
+                    final double otherY = placedY[other];
+                    if (x < otherX + labelEntries[other].width && otherX < x + width
+                            && y < otherY + cellHeight && otherY < y + cellHeight) {
+                        return false;
+                    }
+                }
+            }
+        }
+        placedX[label] = x;
+        placedY[label] = y;
+        insertIntoGrid(label, width);
+        return true;
+    }
+
+    private void insertIntoGrid(int label, double width) {
+        final double x = placedX[label];
+        final double y = placedY[label];
+        final int firstColumn = gridColumn(x);
+        final int lastColumn = gridColumn(x + width);
+        final int firstRow = gridRow(y);
+        final int lastRow = gridRow(y + cellHeight);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                if (gridEntryCount == gridLabels.length) {
+                    gridLabels = Arrays.copyOf(gridLabels, gridEntryCount * 2);
+                    gridNext = Arrays.copyOf(gridNext, gridEntryCount * 2);
+                }
+                final int cell = row * gridColumns + column;
+                gridLabels[gridEntryCount] = label;
+                gridNext[gridEntryCount] = gridHeads[cell];
+                gridHeads[cell] = gridEntryCount;
+                gridEntryCount++;
+            }
+        }
+    }
+
+    private void resetGrid(double canvasWidth, double canvasHeight) {
+        gridColumns = Math.max(1, (int) Math.ceil(canvasWidth / GRID_CELL_SIZE));
+        gridRows = Math.max(1, (int) Math.ceil(canvasHeight / GRID_CELL_SIZE));
+        if (gridHeads.length < gridColumns * gridRows) {
+            gridHeads = new int[gridColumns * gridRows];
+        }
+        Arrays.fill(gridHeads, 0, gridColumns * gridRows, -1);
+        gridEntryCount = 0;
+    }
+
+    /**
+     * Returns the grid column for an X coordinate. Positions outside the
+     * canvas use the nearest edge column.
+     */
+    private int gridColumn(double x) {
+        return Math.max(0, Math.min(gridColumns - 1, (int) Math.floor(x / GRID_CELL_SIZE)));
+    }
+
+    private int gridRow(double y) {
+        return Math.max(0, Math.min(gridRows - 1, (int) Math.floor(y / GRID_CELL_SIZE)));
+    }
+
+    /**
+     * Returns the atlas entry for a label, rasterizing it if necessary
+     */
+    private AtlasEntry getEntry(int trajectoryId, boolean hilighted) {
+        final IntMap<AtlasEntry> map = hilighted ? hilightedEntries : entries;
+        AtlasEntry entry = map.get(trajectoryId);
+        if (entry == null) {
+            entry = rasterize(trajectoryId, hilighted);
+            if (entry.isInAtlas()) {
+                map.put(trajectoryId, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Draws a label into the atlas, or returns an entry that is not in the
+     * atlas if every cell of the largest atlas holds a label of the current
+     * paint
+     */
+    private AtlasEntry rasterize(int trajectoryId, boolean hilighted) {
+        final String text = Integer.toString(trajectoryId);
+        measure.setText(text);
+        final double width = Math.min(cellWidth, Math.ceil(measure.getLayoutBounds().getWidth()) + 2 * PADDING);
+
+        final int columns = ATLAS_WIDTH / cellWidth;
+        if (atlasCanvas == null || cellsUsed == columns * atlasRows) {
+            if (atlasCanvas != null && atlasCanvas.getHeight() * 2 > MAX_ATLAS_HEIGHT && labelCount >= columns * atlasRows) {
+                // Clearing the atlas would not make room, because the labels
+                // of this paint would be rasterized again
+                return new AtlasEntry(-1, -1, width);
+            }
+            growAtlas(columns);
+        }
+        final int column = cellsUsed % columns;
+        final int row = cellsUsed / columns;
+        cellsUsed++;
+
+        final GraphicsContext gc = atlasCanvas.getGraphicsContext2D();
+        gc.setFont(font);
+        gc.setLineWidth(1);
+        gc.setStroke(hilighted ? Color.RED : Color.LIGHTGREEN);
+        gc.strokeText(text, column * cellWidth + PADDING, row * cellHeight + baseline);
+        atlasDirty = true;
+
+        return new AtlasEntry(column * cellWidth, row * cellHeight, width);
+    }
+
+    /**
+     * Makes room for more labels in the atlas. When the atlas has reached its
+     * maximum size, all labels are discarded and rasterized again when needed.
+     * The caller must make sure that the labels of the current paint leave
+     * room for at least one more.
+     */
+    private void growAtlas(int columns) {
+        final int newHeight = atlasCanvas == null ? INITIAL_ATLAS_HEIGHT : (int) atlasCanvas.getHeight() * 2;
+        if (atlasCanvas != null && newHeight <= MAX_ATLAS_HEIGHT) {
+            // Keep existing labels, which are at the top of the canvas
+            atlasCanvas.setHeight(newHeight);
+        }
+        else {
+            atlasCanvas = new Canvas(ATLAS_WIDTH, atlasCanvas == null ? INITIAL_ATLAS_HEIGHT : MAX_ATLAS_HEIGHT);
+            entries.clear();
+            hilightedEntries.clear();
+            cellsUsed = 0;
+            // Labels collected for the current paint refer to discarded cells
+            for (int i = 0; i < labelCount; i++) {
+                labelEntries[i] = getEntry(labelIds[i], labelHilighted[i]);
+            }
+        }
+        atlas = null;
+        atlasRows = (int) atlasCanvas.getHeight() / cellHeight;
+    }
+
+    /**
+     * The location of a rasterized label in the atlas, or the width of a
+     * label that is drawn as text
+     */
+    private static class AtlasEntry {
+
+        final int x;
+
+        final int y;
+
+        final double width;
+
+        public AtlasEntry(int x, int y, double width) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+        }
+
+        /**
+         * @return false if the label did not fit in the atlas and must be
+         * drawn as text
+         */
+        boolean isInAtlas() {
+            return x >= 0;
+        }
+    }
+}
@@ -8,6 +8,16 @@ import org.samcrow.frameviewer.FrameObject;
 /**
  * A point in a trajectory
  * <p>
+ * A Point returned by {@link Trajectory#get(int)} is usually a view of the
+ * values that the trajectory stores for a frame: reading it reads the
+ * trajectory's values, and changing it changes the trajectory. A Point that
+ * is not in a trajectory stores its own values. Setting a point that is not
+ * in a trajectory into a trajectory makes it a view.
+ * <p>
+ * If the trajectory replaces or removes the point at a frame, views of
+ * that frame no longer refer to the old values. Code that needs the old
+ * values after that should call {@link #detach()} first.
+ * <p>
  * @author Sam Crow
  */
 public class Point extends FrameObject {
@@ -16,14 +26,26 @@ public class Point extends FrameObject {
      * @param x the x to set
      */
     public void setX(int x) {
-        this.x = x;
+        if (isAttached()) {
+            owner.getColumns().setX(frame, x);
+        }
+        else {
+            this.x = x;
+            valueChanged();
+        }
     }
 
     /**
      * @param y the y to set
      */
     public void setY(int y) {
-        this.y = y;
+        if (isAttached()) {
+            owner.getColumns().setY(frame, y);
+        }
+        else {
+            this.y = y;
+            valueChanged();
+        }
     }
     
     // added by Jacob Davidson
@@ -35,6 +57,9 @@ public class Point extends FrameObject {
      * @return the activity
      */
     public Activity getActivity() {
+        if (isAttached()) {
+            return owner.getColumns().getActivity(frame);
+        }
         return activity;
     }
 
@@ -42,20 +67,39 @@ public class Point extends FrameObject {
      * @param activity the activity to set
      */
     public void setActivity(Activity activity) {
-        if (activity != null) {
-            this.activity = activity;
+        if (activity == null) {
+            // Ensure not null
+            activity = Activity.NotCarrying;
+        }
+        if (isAttached()) {
+            owner.getColumns().setActivity(frame, activity);
         }
         else {
-            // Ensure not null
-            this.activity = Activity.NotCarrying;
+            this.activity = activity;
+            valueChanged();
         }
     }
 
     public static enum Activity {
 
-        NotCarrying,
-        CarryingFood,
-        CarryingSomethingElse,;
+        NotCarrying(0),
+        CarryingFood(1),
+        CarryingSomethingElse(2),;
+
+        private final int code;
+
+        private Activity(int code) {
+            this.code = code;
+        }
+
+        /**
+         * @return The code that identifies this value in compact database
+         * columns. Codes never change, so values may be added or reordered
+         * without changing the meaning of stored codes.
+         */
+        public int getCode() {
+            return code;
+        }
 
         /**
          * Returns the type corresponding to a name, but never
@@ -74,6 +118,24 @@ public class Point extends FrameObject {
             }
         }
 
+        private static final Activity[] VALUES = values();
+
+        /**
+         * Returns the value with a code, but never throws an exception.
+         * Returns NotCarrying if no value has the code.
+         * <p>
+         * @param code
+         * @return
+         */
+        public static Activity fromCode(int code) {
+            for (Activity value : VALUES) {
+                if (value.code == code) {
+                    return value;
+                }
+            }
+            return NotCarrying;
+        }
+
     }
 
     
@@ -82,11 +144,17 @@ public class Point extends FrameObject {
 
     private int y;
 
-    protected Activity activity;
+    protected Activity activity = Activity.NotCarrying;
     
     // added by Jacob Davidson
     private int trajectoryid;
 
+    /**
+     * The trajectory that this point is a view of, or null if this point
+     * stores its own values
+     */
+    private Trajectory owner;
+
     public Point(int x, int y) {
         this.x = x;
         this.y = y;
@@ -99,26 +167,87 @@ public class Point extends FrameObject {
      */
     public Point(Point other) {
         super(other);
-        this.x = other.x;
-        this.y = other.y;
-        this.activity = other.activity;
+        this.x = other.getX();
+        this.y = other.getY();
+        this.activity = other.getActivity();
         this.frame = other.frame;
-        this.trajectoryid = other.trajectoryid;
+        this.trajectoryid = other.getTrajectoryID();
     }
 
     public int getX() {
+        if (isAttached()) {
+            return owner.getColumns().getX(frame);
+        }
         return x;
     }
 
     public int getY() {
+        if (isAttached()) {
+            return owner.getColumns().getY(frame);
+        }
         return y;
     }
     
     // added by Jacob Davidson
     public int getTrajectoryID() {
+        if (isAttached()) {
+            return owner.getId();
+        }
         return trajectoryid;
     }
 
+    /**
+     * Called after a value stored in this point, rather than in a
+     * trajectory, has changed. The default implementation does nothing.
+     */
+    void valueChanged() {
+    }
+
+    /**
+     * Makes this point a view of the values stored in a trajectory
+     * <p>
+     * @param owner
+     * @param frame
+     */
+    void attach(Trajectory owner, int frame) {
+        this.owner = owner;
+        this.frame = frame;
+    }
+
+    /**
+     * @return true if this point has been set into a trajectory
+     */
+    boolean hasOwner() {
+        return owner != null;
+    }
+
+    /**
+     * Returns true if this point is a view of values that are still stored
+     * in a trajectory
+     * <p>
+     * @return
+     */
+    boolean isAttached() {
+        return owner != null && owner.getColumns().contains(frame) && !owner.getColumns().isInteraction(frame);
+    }
+
+    /**
+     * Copies the current values of this point into this point, so that it
+     * no longer changes when its trajectory changes. This does nothing if
+     * this point is not a view of a trajectory.
+     */
+    public void detach() {
+        if (owner != null) {
+            if (isAttached()) {
+                x = getX();
+                y = getY();
+                activity = getActivity();
+                trajectoryid = getTrajectoryID();
+            }
+            owner = null;
+        }
+    }
+
     public void paint(GraphicsContext gc, double canvasX, double canvasY, boolean hilighted) {
         final int RADIUS = 3;
         if (hilighted) {
@@ -130,24 +259,13 @@ public class Point extends FrameObject {
         gc.setLineWidth(2);
         gc.strokeOval(canvasX - RADIUS, canvasY - RADIUS, 2 * RADIUS, 2 * RADIUS);
     }
-    
-    public void paintID(GraphicsContext gc, double canvasX, double canvasY, boolean hilighted) {
-        if (hilighted) {
-            gc.setStroke(Color.RED);
-        }
-        else {
-            gc.setStroke(Color.LIGHTGREEN);
-        }
-        gc.setLineWidth(1);
-        gc.strokeText(Integer.toString(trajectoryid), canvasX - 10, canvasY + 15);
-    }
 
     @Override
     public int hashCode() {
         int hash = 7;
-        hash = 13 * hash + this.x;
-        hash = 13 * hash + this.y;
-        hash = 13 * hash + Objects.hashCode(this.activity);
+        hash = 13 * hash + getX();
+        hash = 13 * hash + getY();
+        hash = 13 * hash + Objects.hashCode(getActivity());
         return hash;
     }
 
@@ -160,16 +278,16 @@ public class Point extends FrameObject {
             return false;
         }
         final Point other = (Point) obj;
-        if (this.x != other.x) {
+        if (getX() != other.getX()) {
             return false;
         }
-        if (this.y != other.y) {
+        if (getY() != other.getY()) {
             return false;
         }
-        if (this.trajectoryid != other.trajectoryid) {
+        if (getTrajectoryID() != other.getTrajectoryID()) {
             return false;
         }
-        return this.activity == other.activity;
+        return getActivity() == other.getActivity();
     }
     
     
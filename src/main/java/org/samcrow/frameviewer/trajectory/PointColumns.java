@@ -0,0 +1,285 @@
+package org.samcrow.frameviewer.trajectory;
+
+import java.util.Arrays;
+
+/**
+ * Stores the positions and activities of the points in a trajectory in
+ * arrays of primitive values, one array per field
+ * <p>
+ * This uses much less memory than one object per point. Only frames that
+ * have points are stored: the frames array is sorted, and index n of every
+ * array holds the point at frame {@code frames[n]}. Finding a frame, or the
+ * nearest frame before or after it, is a binary search.
+ * <p>
+ * The flags of each point record whether it is an {@link InteractionPoint}.
+ * Interaction points are stored as objects by the trajectory, and only
+ * their frames and flags are stored here.
+ * <p>
+ * @author Sam Crow
+ */
+class PointColumns {
+
+    /**
+     * Flag set for points that are interaction points
+     */
+    static final byte INTERACTION = 1;
+
+    private static final Point.Activity[] ACTIVITIES = Point.Activity.values();
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * The frame of each point, in increasing order
+     */
+    private int[] frames = new int[INITIAL_CAPACITY];
+
+    private int[] xs = new int[INITIAL_CAPACITY];
+
+    private int[] ys = new int[INITIAL_CAPACITY];
+
+    /**
+     * The ordinal of the activity of each point
+     */
+    private byte[] activities = new byte[INITIAL_CAPACITY];
+
+    private byte[] flags = new byte[INITIAL_CAPACITY];
+
+    /**
+     * The number of points stored
+     */
+    private int count;
+
+    /**
+     * Incremented whenever a point is stored, changed, or removed
+     */
+    private int modCount;
+
+    /**
+     * True if these columns cannot be changed
+     */
+    private boolean readOnly;
+
+    PointColumns() {
+    }
+
+    /**
+     * Creates a read-only copy of other columns
+     * <p>
+     * @param other
+     */
+    PointColumns(PointColumns other) {
+        count = other.count;
+        frames = Arrays.copyOf(other.frames, count);
+        xs = Arrays.copyOf(other.xs, count);
+        ys = Arrays.copyOf(other.ys, count);
+        activities = Arrays.copyOf(other.activities, count);
+        flags = Arrays.copyOf(other.flags, count);
+        readOnly = true;
+    }
+
+    /**
+     * @param frame
+     * @return The index of the point at a frame, or a negative number if
+     * no point is stored for the frame
+     */
+    public int indexOf(int frame) {
+        // Points are usually added in frame order, and the last point is
+        // often the one needed
+        if (count != 0 && frames[count - 1] == frame) {
+            return count - 1;
+        }
+        return Arrays.binarySearch(frames, 0, count, frame);
+    }
+
+    /**
+     * @param frame
+     * @return The index of the first point at or after a frame. This is
+     * equal to count() if no such point exists.
+     */
+    public int ceilingIndex(int frame) {
+        final int index = Arrays.binarySearch(frames, 0, count, frame);
+        return index >= 0 ? index : -(index + 1);
+    }
+
+    /**
+     * @param frame
+     * @return true if a point is stored for the frame
+     */
+    public boolean contains(int frame) {
+        return indexOf(frame) >= 0;
+    }
+
+    /**
+     * @param frame
+     * @return true if an interaction point is stored for the frame
+     */
+    public boolean isInteraction(int frame) {
+        final int index = indexOf(frame);
+        return index >= 0 && (flags[index] & INTERACTION) != 0;
+    }
+
+    /**
+     * @param index
+     * @return true if the point at an index is an interaction point
+     */
+    public boolean isInteractionAt(int index) {
+        return (flags[index] & INTERACTION) != 0;
+    }
+
+    /**
+     * @param index
+     * @return The frame of the point at an index
+     */
+    public int frameAt(int index) {
+        return frames[index];
+    }
+
+    public int getX(int frame) {
+        return xs[indexOf(frame)];
+    }
+
+    public int getY(int frame) {
+        return ys[indexOf(frame)];
+    }
+
+    public Point.Activity getActivity(int frame) {
+        return ACTIVITIES[activities[indexOf(frame)]];
+    }
+
+    public void setX(int frame, int x) {
+        modifying();
+        xs[indexOf(frame)] = x;
+    }
+
+    public void setY(int frame, int y) {
+        modifying();
+        ys[indexOf(frame)] = y;
+    }
+
+    public void setActivity(int frame, Point.Activity activity) {
+        modifying();
+        activities[indexOf(frame)] = (byte) activity.ordinal();
+    }
+
+    /**
+     * Stores a point, replacing any point at the same frame
+     * <p>
+     * @param frame
+     * @param x
+     * @param y
+     * @param activity
+     * @param interaction If the point is an interaction point
+     */
+    public void put(int frame, int x, int y, Point.Activity activity, boolean interaction) {
+        modifying();
+        int index = indexOf(frame);
+        if (index < 0) {
+            index = -(index + 1);
+            ensureCapacity(count + 1);
+            final int moved = count - index;
+            if (moved > 0) {
+                System.arraycopy(frames, index, frames, index + 1, moved);
+                System.arraycopy(xs, index, xs, index + 1, moved);
+                System.arraycopy(ys, index, ys, index + 1, moved);
+                System.arraycopy(activities, index, activities, index + 1, moved);
+                System.arraycopy(flags, index, flags, index + 1, moved);
+            }
+            count++;
+            frames[index] = frame;
+        }
+        xs[index] = x;
+        ys[index] = y;
+        activities[index] = (byte) activity.ordinal();
+        flags[index] = interaction ? INTERACTION : 0;
+    }
+
+    /**
+     * Removes the point at a frame, if one exists
+     * <p>
+     * @param frame
+     */
+    public void remove(int frame) {
+        modifying();
+        final int index = indexOf(frame);
+        if (index >= 0) {
+            final int moved = count - index - 1;
+            if (moved > 0) {
+                System.arraycopy(frames, index + 1, frames, index, moved);
+                System.arraycopy(xs, index + 1, xs, index, moved);
+                System.arraycopy(ys, index + 1, ys, index, moved);
+                System.arraycopy(activities, index + 1, activities, index, moved);
+                System.arraycopy(flags, index + 1, flags, index, moved);
+            }
+            count--;
+        }
+    }
+
+    /**
+     * @return The number of points stored
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Returns the first frame after a frame that has a point
+     * <p>
+     * @param frame
+     * @return The frame, or Integer.MAX_VALUE if no later frame has a point
+     */
+    public int nextFrame(int frame) {
+        if (frame == Integer.MAX_VALUE) {
+            return Integer.MAX_VALUE;
+        }
+        final int index = ceilingIndex(frame + 1);
+        return index < count ? frames[index] : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the last frame before a frame that has a point
+     * <p>
+     * @param frame
+     * @return The frame, or Integer.MIN_VALUE if no earlier frame has a
+     * point
+     */
+    public int previousFrame(int frame) {
+        final int index = ceilingIndex(frame) - 1;
+        return index >= 0 ? frames[index] : Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return A number that changes whenever these columns change
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * @return true if these columns cannot be changed
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Records a change, or throws an exception if these columns are
+     * read-only
+     */
+    private void modifying() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("These points are part of a read-only snapshot");
+        }
+        modCount++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > frames.length) {
+            final int newCapacity = Math.max(capacity, frames.length + (frames.length >> 1));
+            frames = Arrays.copyOf(frames, newCapacity);
+            xs = Arrays.copyOf(xs, newCapacity);
+            ys = Arrays.copyOf(ys, newCapacity);
+            activities = Arrays.copyOf(activities, newCapacity);
+            flags = Arrays.copyOf(flags, newCapacity);
+        }
+    }
+}
@@ -1,32 +1,49 @@
 package org.samcrow.frameviewer.trajectory;
 
 import java.io.IOException;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.NoSuchElementException;
 import javafx.geometry.Point2D;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.paint.Color;
 import org.samcrow.frameviewer.MultiFrameObject;
 import org.samcrow.frameviewer.io3.DatabaseTrajectoryDataStore;
+import org.samcrow.frameviewer.util.IntMap;
 
 /**
  * Stores a trajectory from AnTracks
  * <p>
+ * {@link #snapshot()} returns a read-only copy of a trajectory, which can be
+ * read on any thread while the original is changed.
+ * <p>
  * @author Sam Crow
  */
 public class Trajectory implements MultiFrameObject, Iterable<Point> {
 
     public static enum FromAction {
 
-        Other,
-        OutOfTunnel,
-        FromOutside,
-        InEntranceChamber
+        Other(0),
+        OutOfTunnel(1),
+        FromOutside(2),
+        InEntranceChamber(3)
         ;
 
+        private final int code;
+
+        private FromAction(int code) {
+            this.code = code;
+        }
+
+        /**
+         * @return The code that identifies this action in compact database
+         * columns
+         */
+        public int getCode() {
+            return code;
+        }
+
         /**
          * Returns the type corresponding to a name, but never
          * throws an exception. Returns Other if a valid value
@@ -43,15 +60,47 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
                 return Other;
             }
         }
+
+        private static final FromAction[] VALUES = values();
+
+        /**
+         * Returns the value with a code, but never throws an exception.
+         * Returns Other if no value has the code.
+         * <p>
+         * @param code
+         * @return
+         */
+        public static FromAction fromCode(int code) {
+            for (FromAction value : VALUES) {
+                if (value.code == code) {
+                    return value;
+                }
+            }
+            return Other;
+        }
     }
     public static enum ToAction {
 
-        Other,
-        IntoTunnel,
-        ToOutside,
-        InEntranceChamber
+        Other(0),
+        IntoTunnel(1),
+        ToOutside(2),
+        InEntranceChamber(3)
         ;
 
+        private final int code;
+
+        private ToAction(int code) {
+            this.code = code;
+        }
+
+        /**
+         * @return The code that identifies this action in compact database
+         * columns
+         */
+        public int getCode() {
+            return code;
+        }
+
         /**
          * Returns the type corresponding to a name, but never
          * throws an exception. Returns Unknown if a valid value
@@ -68,6 +117,24 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
                 return Other;
             }
         }
+
+        private static final ToAction[] VALUES = values();
+
+        /**
+         * Returns the value with a code, but never throws an exception.
+         * Returns Other if no value has the code.
+         * <p>
+         * @param code
+         * @return
+         */
+        public static ToAction fromCode(int code) {
+            for (ToAction value : VALUES) {
+                if (value.code == code) {
+                    return value;
+                }
+            }
+            return Other;
+        }
     }
 
     /**
@@ -86,31 +153,84 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
     private ToAction toAction = ToAction.Other;
 
     /**
-     * The points in this trajectory.
-     * <p>
-     * The indexes in this array are set up so that index 0 corresponds
-     * to firstFrame.
-     * Generally, index n corresponds to frame firstFrame + n
-     * <p>
-     * The last valid index is firstFrame + (lastFrame - firstFrame)
-     * = lastFrame
+     * The positions and activities of the points in this trajectory
+     */
+    private final PointColumns columns;
+
+    /**
+     * The interaction points in this trajectory, by frame. These are
+     * stored as objects because they have many more attributes and
+     * refer to each other.
+     */
+    private final IntMap<InteractionPoint> interactionPoints = new IntMap<>();
+
+    /**
+     * Incremented when the ID, actions, or frame range of this trajectory
+     * change, or when a value of one of its interaction points changes
+     */
+    private int modCount;
+
+    /**
+     * The last snapshot of this trajectory, or null if none has been made
+     */
+    private Trajectory snapshot;
+
+    /**
+     * The value of modCount when the last snapshot was made
+     */
+    private int snapshotModCount;
+
+    /**
+     * The modification count of the columns when the last snapshot was made
      */
-    private final List<Point> points = new ArrayList<>();
+    private int snapshotColumnsModCount;
 
     public Trajectory(int firstFrame, int lastFrame) {
         this.firstFrame = firstFrame;
         this.lastFrame = lastFrame;
-
-        ensureCapacityForFrame(lastFrame);
+        columns = new PointColumns();
     }
 
+    /**
+     * Creates a read-only snapshot of another trajectory
+     * <p>
+     * @param other
+     */
+    private Trajectory(Trajectory other) {
+        firstFrame = other.firstFrame;
+        lastFrame = other.lastFrame;
+        id = other.id;
+        fromAction = other.fromAction;
+        toAction = other.toAction;
+        columns = new PointColumns(other.columns);
+        for (InteractionPoint point : other.getInteractionPoints()) {
+            final InteractionPoint copy = new InteractionPoint(point);
+            interactionPoints.put(copy.getFrame(), copy);
+        }
+    }
     public Trajectory(int firstFrame, int lastFrame, int id) {
         this(firstFrame, lastFrame);
         this.id = id;
     }
 
     public void setId(int newId) {
+        checkWritable();
+        if (newId == id) {
+            return;
+        }
+        modCount++;
+        final InteractionIndex index = getInteractionIndex();
+        if (index != null) {
+            index.removeAll(this);
+        }
+        final int oldId = id;
         id = newId;
+        if (index != null) {
+            index.addAll(this);
+        }
+        if (dataStore != null) {
+            dataStore.trajectoryIdChanged(this, oldId);
+        }
     }
 
     public int getId() {
@@ -127,12 +247,15 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
      * @return
      */
     public Point get(int frame) {
-        try {
-            return points.get(frameNumberToIndex(frame));
-        }
-        catch (IndexOutOfBoundsException ex) {
+        if (!columns.contains(frame)) {
             return null;
         }
+        if (columns.isInteraction(frame)) {
+            return interactionPoints.get(frame);
+        }
+        final Point view = new Point(0, 0);
+        view.attach(this, frame);
+        return view;
     }
 
     /**
@@ -142,18 +265,97 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
      * @param newPoint
      */
     public void set(int frame, Point newPoint) {
-        // Ensure that capacity is available for this point
-        int index = frameNumberToIndex(frame);
-        ensureCapacityForFrame(frame);
+        checkWritable();
+        if (frame < firstFrame) {
+            throw new IndexOutOfBoundsException("Frame " + frame + " is before the first frame " + firstFrame);
+        }
         updateLastFrame(frame);
 
-        points.set(index, newPoint);
-        // Set the correct frame for the point
-        if (newPoint != null) {
+        final InteractionIndex index = getInteractionIndex();
+        if (newPoint == null) {
+            columns.remove(frame);
+            interactionRemoved(index, frame, interactionPoints.remove(frame));
+        }
+        else if (newPoint instanceof InteractionPoint) {
+            columns.put(frame, 0, 0, Point.Activity.NotCarrying, true);
+            final InteractionPoint iPoint = (InteractionPoint) newPoint;
+            interactionRemoved(index, frame, interactionPoints.put(frame, iPoint));
+            iPoint.setTrajectory(this);
             newPoint.setFrame(frame);
+            if (index != null) {
+                index.put(id, frame, iPoint);
+            }
+        }
+        else {
+            // Read the values before the point is attached, in case it is
+            // a view of the point being replaced
+            final Point.Activity activity = newPoint.getActivity();
+            columns.put(frame, newPoint.getX(), newPoint.getY(), activity != null ? activity : Point.Activity.NotCarrying, false);
+            interactionRemoved(index, frame, interactionPoints.remove(frame));
+            if (!newPoint.hasOwner()) {
+                newPoint.attach(this, frame);
+            }
         }
     }
 
+    /**
+     * Removes an interaction point that is no longer in this trajectory
+     * from the interaction index
+     * <p>
+     * @param index The index, or null
+     * @param frame
+     * @param removed The removed point, or null
+     */
+    private void interactionRemoved(InteractionIndex index, int frame, InteractionPoint removed) {
+        if (removed == null) {
+            return;
+        }
+        if (removed.getTrajectory() == this) {
+            removed.setTrajectory(null);
+        }
+        if (index != null) {
+            index.remove(id, frame, removed);
+        }
+    }
+
+    /**
+     * Called by an interaction point in this trajectory after one of its
+     * values has changed
+     */
+    void interactionChanged() {
+        modCount++;
+    }
+
+    /**
+     * @return The interaction points in this trajectory, in frame order
+     */
+    public List<InteractionPoint> getInteractionPoints() {
+        if (interactionPoints.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        final List<InteractionPoint> points = new ArrayList<>(interactionPoints.size());
+        for (int i = 0; i < columns.count(); i++) {
+            if (columns.isInteractionAt(i)) {
+                points.add(interactionPoints.get(columns.frameAt(i)));
+            }
+        }
+        return points;
+    }
+
+    /**
+     * @return The number of frames that have points
+     */
+    public int getPointCount() {
+        return columns.count();
+    }
+
+    /**
+     * @return The columns that store the points of this trajectory
+     */
+    PointColumns getColumns() {
+        return columns;
+    }
+
     @Override
     public int getFirstFrame() {
         return firstFrame;
@@ -177,6 +379,7 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
      * @param other The trajectory to append
      */
     public void append(Trajectory other) {
+        checkWritable();
 
         // Replace each frame that overlaps
         if (other.firstFrame <= this.lastFrame) {
@@ -186,12 +389,15 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
             }
         }
         // Copy points from other to this
-        ensureCapacityForFrame(other.lastFrame);
         for (int frame = this.lastFrame + 1; frame <= other.lastFrame; frame++) {
             this.set(frame, other.get(frame));
         }
         // Update end frame
-        this.lastFrame = other.lastFrame;
+        if (this.lastFrame != other.lastFrame) {
+            this.lastFrame = other.lastFrame;
+            modCount++;
+            frameRangeChanged();
+        }
     }
 
     /**
@@ -200,9 +406,7 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
      */
     @Override
     public Iterator<Point> iterator() {
-        final Iterator<Point> underlying = points.iterator();
-
-        return new NotNullIterator<>(underlying);
+        return pointsBetween(firstFrame, lastFrame).iterator();
     }
 
     public FromAction getFromAction() {
@@ -210,6 +414,10 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
     }
 
     public void setFromAction(FromAction startAction) {
+        checkWritable();
+        if (startAction != fromAction) {
+            modCount++;
+        }
         this.fromAction = startAction;
     }
 
@@ -218,9 +426,54 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
     }
 
     public void setToAction(ToAction endAction) {
+        checkWritable();
+        if (endAction != toAction) {
+            modCount++;
+        }
         this.toAction = endAction;
     }
 
+    /**
+     * Returns a read-only copy of this trajectory and its points. The copy
+     * does not change when this trajectory changes, and it can be read on
+     * any thread. Changing the copy, or a point view from it, throws an
+     * UnsupportedOperationException. Interaction points in the copy are
+     * copies that are not linked with other interaction points, and they
+     * must not be changed.
+     * <p>
+     * If nothing has changed since the last call, the same copy is
+     * returned. This method must be called on the thread that changes
+     * this trajectory.
+     * <p>
+     * @return A snapshot of this trajectory
+     */
+    public Trajectory snapshot() {
+        if (isReadOnly()) {
+            return this;
+        }
+        if (snapshot == null || snapshotModCount != modCount
+                || snapshotColumnsModCount != columns.getModCount()) {
+            snapshot = new Trajectory(this);
+            snapshotModCount = modCount;
+            snapshotColumnsModCount = columns.getModCount();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return true if this trajectory is a snapshot and cannot be changed
+     */
+    public boolean isReadOnly() {
+        return columns.isReadOnly();
+    }
+
+    private void checkWritable() {
+        if (isReadOnly()) {
+            throw new UnsupportedOperationException("This trajectory is a read-only snapshot");
+        }
+    }
+
+
     /**
      * Creates and returns a copy of the Point corresponding to the highest
      * numbered frame.
@@ -240,46 +493,99 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
      * @return
      */
     public Point getLastPoint() {
-        // Find the last point
-        // Create an iterator pointing past the last element
-        ListIterator<Point> iter = points.listIterator(points.size());
-        while (iter.hasPrevious()) {
-            Point point = iter.previous();
-            if (point != null) {
-                return point;
-            }
+        final int frame = columns.previousFrame(Integer.MAX_VALUE);
+        if (frame != Integer.MIN_VALUE) {
+            return get(frame);
         }
 
         throw new IllegalStateException("The last point cannot be returned when no points are in the trajectory");
     }
 
-    /**
-     * Verifies that a frame number is within the expected range,
-     * and converts it into a list index
-     * <p>
-     * @param frame
-     * @return
-     */
-    private int frameNumberToIndex(int frame) {
-        return frame - firstFrame;
-    }
-
-    private void ensureCapacityForFrame(int frame) {
-        final int index = frameNumberToIndex(frame);
-
-        while (points.size() <= index) {
-            points.add(null);
-        }
-    }
-
     private void updateLastFrame(int frame) {
         // Correct the last frame
         if (lastFrame < frame) {
             lastFrame = frame;
+            modCount++;
+            frameRangeChanged();
         }
     }
 
-    public void paint(GraphicsContext gc, double nativeImageWidth, double nativeImageHeight, double actualImageWidth, double actualImageHeight, double imageTopLeftX, double imageTopLeftY, int currentFrame, TrajectoryDisplayMode mode) {
+    /**
+     * Notifies the data store, if any, that the first or last frame
+     * has changed
+     */
+    private void frameRangeChanged() {
+        if (dataStore != null) {
+            dataStore.frameRangeChanged(this);
+        }
+    }
+
+    /**
+     * Returns the points in a range of frames, in frame order.
+     * The time taken depends on the number of points in the range, not the
+     * length of this trajectory.
+     * <p>
+     * @param startFrame The first frame to include
+     * @param endFrame The last frame to include
+     * @return
+     */
+    public Iterable<Point> pointsBetween(final int startFrame, final int endFrame) {
+        return new Iterable<Point>() {
+            @Override
+            public Iterator<Point> iterator() {
+                return new Iterator<Point>() {
+                    /**
+                     * The index in the columns of the next point to return
+                     */
+                    private int index = columns.ceilingIndex(startFrame);
+
+                    /**
+                     * The frame of the last point returned
+                     */
+                    private int lastReturned = Integer.MIN_VALUE;
+
+                    @Override
+                    public boolean hasNext() {
+                        resynchronize();
+                        return index < columns.count() && columns.frameAt(index) <= endFrame;
+                    }
+
+                    @Override
+                    public Point next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        lastReturned = columns.frameAt(index);
+                        index++;
+                        return get(lastReturned);
+                    }
+
+                    /**
+                     * Finds the next index again if points have been added
+                     * or removed since the last point was returned
+                     */
+                    private void resynchronize() {
+                        if (lastReturned != Integer.MIN_VALUE
+                                && (index == 0 || index > columns.count() || columns.frameAt(index - 1) != lastReturned)) {
+                            index = columns.ceilingIndex(lastReturned + 1);
+                        }
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException("Trajectory points cannot be removed using an iterator");
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * The number of opacity levels used to draw trails
+     */
+    private static final int TRAIL_ALPHA_STEPS = 16;
+
+    public void paint(GraphicsContext gc, double nativeImageWidth, double nativeImageHeight, double actualImageWidth, double actualImageHeight, double imageTopLeftX, double imageTopLeftY, int currentFrame, TrajectoryDisplayMode mode, int trailLength, LabelRenderer labels) {
         switch (mode) {
             case Full:
                 paintFull(gc, nativeImageWidth, nativeImageHeight, actualImageWidth, actualImageHeight, imageTopLeftX, imageTopLeftY, currentFrame);
@@ -291,11 +597,39 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
                 paintInterpolated(gc, nativeImageWidth, nativeImageHeight, actualImageWidth, actualImageHeight, imageTopLeftX, imageTopLeftY, currentFrame);
                 break;
             case InterpolatedwithIDs:
-                paintInterpolatedwithIDs(gc, nativeImageWidth, nativeImageHeight, actualImageWidth, actualImageHeight, imageTopLeftX, imageTopLeftY, currentFrame);
+                paintInterpolatedwithIDs(gc, nativeImageWidth, nativeImageHeight, actualImageWidth, actualImageHeight, imageTopLeftX, imageTopLeftY, currentFrame, labels);
                 break;                
             case NearbyPoints:
                 paintNearby(gc, nativeImageWidth, nativeImageHeight, actualImageWidth, actualImageHeight, imageTopLeftX, imageTopLeftY, currentFrame);
                 break;
+            case Trail:
+                paintTrail(gc, nativeImageWidth, nativeImageHeight, actualImageWidth, actualImageHeight, imageTopLeftX, imageTopLeftY, currentFrame, trailLength);
+                break;
+            case Heatmap:
+                // Painted by the canvas as one layer for all trajectories
+                break;
+        }
+    }
+
+    /**
+     * Draws the point at the current frame, hilighted, if this trajectory
+     * has one. This is the only part of {@link TrajectoryDisplayMode#Full}
+     * mode that depends on the current frame.
+     * <p>
+     * @param gc
+     * @param nativeImageWidth
+     * @param nativeImageHeight
+     * @param actualImageWidth
+     * @param actualImageHeight
+     * @param imageTopLeftX
+     * @param imageTopLeftY
+     * @param currentFrame
+     */
+    public void paintCurrentPoint(GraphicsContext gc, double nativeImageWidth, double nativeImageHeight, double actualImageWidth, double actualImageHeight, double imageTopLeftX, double imageTopLeftY, int currentFrame) {
+        final Point point = get(currentFrame);
+        if (point != null) {
+            final Point2D canvasPos = imageToCanvasPosition(new Point2D(point.getX(), point.getY()), nativeImageWidth, nativeImageHeight, actualImageWidth, actualImageHeight, imageTopLeftX, imageTopLeftY);
+            point.paint(gc, canvasPos.getX(), canvasPos.getY(), true);
         }
     }
 
@@ -351,7 +685,7 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
         }
     }
     
-        private void paintInterpolatedwithIDs(GraphicsContext gc, double nativeImageWidth, double nativeImageHeight, double actualImageWidth, double actualImageHeight, double imageTopLeftX, double imageTopLeftY, int currentFrame) {
+        private void paintInterpolatedwithIDs(GraphicsContext gc, double nativeImageWidth, double nativeImageHeight, double actualImageWidth, double actualImageHeight, double imageTopLeftX, double imageTopLeftY, int currentFrame, LabelRenderer labels) {
 
         // Do nothing if this frame is not within the range of this trajectory
         if (currentFrame < firstFrame || currentFrame > lastFrame) {
@@ -364,7 +698,9 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
             // Just draw this point, hilighted
             final Point2D pos = imageToCanvasPosition(new Point2D(point.getX(), point.getY()), nativeImageWidth, nativeImageHeight, actualImageWidth, actualImageHeight, imageTopLeftX, imageTopLeftY);
             point.paint(gc, pos.getX(), pos.getY(), true);
-            point.paintID(gc, pos.getX(), pos.getY(), true);
+            // The label is drawn later, after all points, so that labels can
+            // be placed without overlapping
+            labels.add(point.getTrajectoryID(), pos.getX(), pos.getY(), true);
         }
         else {
             // Draw a non-hilighted point linearly interpolated between the before and after frames
@@ -381,7 +717,7 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
             final Point2D canvasPos = imageToCanvasPosition(new Point2D(x, y), nativeImageWidth, nativeImageHeight, actualImageWidth, actualImageHeight, imageTopLeftX, imageTopLeftY);
 
             new Point(0, 0).paint(gc, canvasPos.getX(), canvasPos.getY(), false);
-            previousPoint.paintID(gc, canvasPos.getX(), canvasPos.getY(), false);
+            labels.add(previousPoint.getTrajectoryID(), canvasPos.getX(), canvasPos.getY(), false);
         }
     }
 
@@ -426,6 +762,80 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
         }
     }
 
+    /**
+     * Draws the part of this trajectory within trailLength frames of the
+     * current frame. Segments fade out with distance from the current frame.
+     * <p>
+     * To keep long trails fast, segments are grouped into a few opacity
+     * levels and each group is stroked as one path, and vertices less than
+     * one pixel from the previous vertex are skipped.
+     */
+    private void paintTrail(GraphicsContext gc, double nativeImageWidth, double nativeImageHeight, double actualImageWidth, double actualImageHeight, double imageTopLeftX, double imageTopLeftY, int currentFrame, int trailLength) {
+        trailLength = Math.max(0, trailLength);
+        if (currentFrame + trailLength < firstFrame || currentFrame - trailLength > lastFrame) {
+            return;
+        }
+        final double baseAlpha = gc.getGlobalAlpha();
+        final double xScale = actualImageWidth / nativeImageWidth;
+        final double yScale = actualImageHeight / nativeImageHeight;
+
+        gc.save();
+        gc.setStroke(Color.LIGHTGREEN);
+        gc.setLineWidth(2);
+
+        int pathStep = -1;
+        double lastX = 0;
+        double lastY = 0;
+        boolean hasLast = false;
+        for (Point point : pointsBetween(currentFrame - trailLength, currentFrame + trailLength)) {
+            final double x = imageTopLeftX + point.getX() * xScale;
+            final double y = imageTopLeftY + point.getY() * yScale;
+
+            final int distance = Math.abs(point.getFrame() - currentFrame);
+            final int step = Math.min(TRAIL_ALPHA_STEPS - 1, distance * TRAIL_ALPHA_STEPS / (trailLength + 1));
+
+            if (!hasLast) {
+                gc.beginPath();
+                gc.moveTo(x, y);
+                pathStep = step;
+            }
+            else if (step != pathStep) {
+                // Finish the path at this vertex, and start a new one
+                // with a different opacity
+                gc.lineTo(x, y);
+                strokeTrailPath(gc, baseAlpha, pathStep);
+                gc.beginPath();
+                gc.moveTo(x, y);
+                pathStep = step;
+            }
+            else if (Math.abs(x - lastX) >= 1 || Math.abs(y - lastY) >= 1) {
+                gc.lineTo(x, y);
+            }
+            else {
+                // Too close to the last vertex to make a difference
+                continue;
+            }
+            lastX = x;
+            lastY = y;
+            hasLast = true;
+        }
+        if (hasLast) {
+            gc.lineTo(lastX, lastY);
+            strokeTrailPath(gc, baseAlpha, pathStep);
+        }
+        gc.restore();
+
+        final Point current = get(currentFrame);
+        if (current != null) {
+            current.paint(gc, imageTopLeftX + current.getX() * xScale, imageTopLeftY + current.getY() * yScale, true);
+        }
+    }
+
+    private static void strokeTrailPath(GraphicsContext gc, double baseAlpha, int step) {
+        gc.setGlobalAlpha(baseAlpha * (TRAIL_ALPHA_STEPS - step) / TRAIL_ALPHA_STEPS);
+        gc.stroke();
+    }
+
     private Point2D imageToCanvasPosition(Point2D imagePosition, double nativeImageWidth, double nativeImageHeight, double actualImageWidth, double actualImageHeight, double imageTopLeftX, double imageTopLeftY) {
         final double xRatio = imagePosition.getX() / nativeImageWidth;
         final double yRatio = imagePosition.getY() / nativeImageHeight;
@@ -443,13 +853,8 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
      * @return
      */
     private Point findPointBefore(int currentFrame) {
-        for (int pf = currentFrame - 1; pf >= firstFrame; pf--) {
-            final Point attempt = get(pf);
-            if (attempt != null) {
-                return attempt;
-            }
-        }
-        return null;
+        final int frame = columns.previousFrame(currentFrame);
+        return frame != Integer.MIN_VALUE ? get(frame) : null;
     }
     /**
      * Returns the nearest point after the provided frame number, or null
@@ -459,13 +864,8 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
      * @return
      */
     private Point findPointAfter(int currentFrame) {
-        for (int nf = currentFrame + 1; nf <= lastFrame; nf++) {
-            final Point attempt = get(nf);
-            if (attempt != null) {
-                return attempt;
-            }
-        }
-        return null;
+        final int frame = columns.nextFrame(currentFrame);
+        return frame <= lastFrame ? get(frame) : null;
     }
 
     // Persistence section
@@ -476,7 +876,22 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
     }
 
     public void setDataStore(DatabaseTrajectoryDataStore dataStore) {
+        checkWritable();
+        if (this.dataStore != null) {
+            this.dataStore.getInteractionIndex().removeAll(this);
+        }
         this.dataStore = dataStore;
+        if (dataStore != null) {
+            dataStore.getInteractionIndex().addAll(this);
+        }
+    }
+
+    /**
+     * @return The interaction index of the data store, or null if this
+     * trajectory has no data store
+     */
+    private InteractionIndex getInteractionIndex() {
+        return dataStore != null ? dataStore.getInteractionIndex() : null;
     }
 
     /**
@@ -486,12 +901,7 @@ public class Trajectory implements MultiFrameObject, Iterable<Point> {
      */
     public void save() throws IOException {
         if (dataStore != null) {
-            try {
-                dataStore.persistTrajectory(this);
-            }
-            catch (SQLException ex) {
-                throw new IOException(ex);
-            }
+            dataStore.persistTrajectory(this);
         }
         else {
             throw new IllegalStateException("Can't call save() on a Trajectory with no datastore defined");
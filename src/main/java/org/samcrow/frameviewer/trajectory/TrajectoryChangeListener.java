@@ -0,0 +1,43 @@
+package org.samcrow.frameviewer.trajectory;
+
+/**
+ * An interface for something that is notified when the user edits
+ * trajectories
+ * <p>
+ * @author Sam Crow
+ */
+public interface TrajectoryChangeListener {
+
+    /**
+     * Called when a point is added to a trajectory
+     * <p>
+     * @param trajectory The trajectory that contains the point
+     * @param point The new point
+     */
+    void pointAdded(Trajectory trajectory, Point point);
+
+    /**
+     * Called when a point is removed from a trajectory
+     * <p>
+     * @param trajectory The trajectory that contained the point
+     * @param point The removed point
+     */
+    void pointRemoved(Trajectory trajectory, Point point);
+
+    /**
+     * Called when a point is moved to a different position on the same frame
+     * <p>
+     * @param trajectory The trajectory that contains the point
+     * @param point The point, with its new position
+     * @param oldX The X coordinate of the point before it was moved
+     * @param oldY The Y coordinate of the point before it was moved
+     */
+    void pointMoved(Trajectory trajectory, Point point, int oldX, int oldY);
+
+    /**
+     * Called when a trajectory and all its points are removed
+     * <p>
+     * @param trajectory The removed trajectory
+     */
+    void trajectoryRemoved(Trajectory trajectory);
+}
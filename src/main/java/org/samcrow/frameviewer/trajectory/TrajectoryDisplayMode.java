@@ -27,6 +27,17 @@ public enum TrajectoryDisplayMode {
     
     InterpolatedwithIDs,
     
+    /**
+     * The part of each trajectory within a number of frames of the current
+     * frame is displayed, fading out with distance from the current frame
+     */
+    Trail,
+    
+    /**
+     * A heatmap of the density of all points of all trajectories is displayed
+     */
+    Heatmap,
+    
     /**
      * Trajectories not displayed
      */
@@ -4,6 +4,7 @@ import javafx.geometry.Point2D;
 import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
 import org.samcrow.frameviewer.PaintableCanvas;
+import org.samcrow.frameviewer.io3.EditJournal;
 import org.samcrow.frameviewer.trajectory.InteractionPoint;
 import org.samcrow.frameviewer.trajectory.Point;
 import org.samcrow.frameviewer.trajectory.Trajectory;
@@ -26,6 +27,10 @@ public class CreateModeController extends FrameController {
 
     @Override
     protected void handleMouseClicked(MouseEvent event, Point2D framePosition) {
+        if (activeTrajectory != null && !getDataStore().contains(activeTrajectory)) {
+            // The trajectory was deleted, possibly by undoing its creation
+            activeTrajectory = null;
+        }
         if (activeTrajectory == null) {
             // Create a new trajectory
             createTrajectory(new Point2D(event.getScreenX(), event.getScreenY()), framePosition);
@@ -60,13 +65,18 @@ public class CreateModeController extends FrameController {
 
         // Now nearbyPoint is either null or an existing point on the current frame
         InteractionPoint newPoint;
+        // The nearby point before it was made an interaction point, or null
+        // if it was not changed
+        Point promotedPoint = null;
         if (nearbyPoint != null) {
             // Make it an InteractionPoint, if it is not already one
             if (!(nearbyPoint instanceof InteractionPoint)) {
+                promotedPoint = EditJournal.copyOf(nearbyPoint);
                 nearbyPoint = new InteractionPoint(nearbyPoint);
                 trajectoryWithNearbyPoint.set(getCurrentFrame(), nearbyPoint);
                 nearbyPoint.setActivity(trajectoryWithNearbyPoint.getLastPoint().getActivity());
                 ((InteractionPoint) nearbyPoint).setFocalAntId(trajectoryWithNearbyPoint.getId());
+                markModified(trajectoryWithNearbyPoint);
             }
 
             newPoint = InteractionPoint.inverted((InteractionPoint) nearbyPoint);
@@ -86,7 +96,13 @@ public class CreateModeController extends FrameController {
             newPoint.setFocalAntActivity(activeTrajectory.getLastPoint().getActivity());
         }
         // Temporarily insert the point, so that it will be visible when the errorDialog appears
+        final Point replacedPoint = activeTrajectory.get(getCurrentFrame());
+        if (replacedPoint != null) {
+            // Keep the values of the replaced point after the new point is set
+            replacedPoint.detach();
+        }
         activeTrajectory.set(getCurrentFrame(), newPoint);
+        markModified(activeTrajectory);
         repaint();
 
         InteractionPointDialog dialog = new InteractionPointDialog(getScene().getWindow(), newPoint);
@@ -98,13 +114,32 @@ public class CreateModeController extends FrameController {
             newPoint.setFocalAntActivity(dialog.getFocalAntActivity());
             newPoint.setMetAntActivity(dialog.getMetAntActivity());
             newPoint.setType(dialog.getInteractionType());
+            // Link the new point with the point in the met trajectory, which
+            // may be different from the nearby point
+            getDataStore().connectInteractionPoint(newPoint);
+
+            if (replacedPoint != null) {
+                getDataStore().firePointRemoved(activeTrajectory, replacedPoint);
+            }
+            getDataStore().firePointAdded(activeTrajectory, newPoint);
+
+            final EditJournal journal = getDataStore().getJournal();
+            journal.beginStep();
+            journal.pointChanged(activeTrajectory, getCurrentFrame(), replacedPoint);
+            if (promotedPoint != null) {
+                journal.pointChanged(trajectoryWithNearbyPoint, getCurrentFrame(), promotedPoint);
+            }
+            journal.endStep();
 
             save(activeTrajectory);
-            save(trajectoryWithNearbyPoint);
+            if (trajectoryWithNearbyPoint != null) {
+                save(trajectoryWithNearbyPoint);
+            }
         }
         else {
-            // Remove the point
-            activeTrajectory.set(getCurrentFrame(), null);
+            // Remove the point and restore the one that it replaced, if any
+            activeTrajectory.set(getCurrentFrame(), replacedPoint);
+            markModified(activeTrajectory);
         }
 
     }
@@ -117,9 +152,19 @@ public class CreateModeController extends FrameController {
 
         // Temporarily add the point so that it will be displayed
         // while the errorDialog is visible
+        final Point replacedPoint = activeTrajectory.get(getCurrentFrame());
+        if (replacedPoint != null) {
+            // Keep the values of the replaced point after the new point is set
+            replacedPoint.detach();
+        }
         activeTrajectory.set(getCurrentFrame(), newPoint);
+        markModified(activeTrajectory);
         repaint();
 
+        final int oldId = activeTrajectory.getId();
+        final Trajectory.FromAction oldFromAction = activeTrajectory.getFromAction();
+        final Trajectory.ToAction oldToAction = activeTrajectory.getToAction();
+
         TrajectoryEditDialog dialog = new TrajectoryEditDialog(getScene().getWindow(), activeTrajectory, newPoint);
         dialog.setX(screenPosition.getX());
         dialog.setY(screenPosition.getY());
@@ -132,6 +177,16 @@ public class CreateModeController extends FrameController {
             newPoint.setActivity(dialog.getActivity());
 
             activeTrajectory.set(getCurrentFrame(), newPoint);
+            if (replacedPoint != null) {
+                getDataStore().firePointRemoved(activeTrajectory, replacedPoint);
+            }
+            getDataStore().firePointAdded(activeTrajectory, newPoint);
+
+            final EditJournal journal = getDataStore().getJournal();
+            journal.beginStep();
+            journal.attributesChanged(activeTrajectory, oldId, oldFromAction, oldToAction);
+            journal.pointChanged(activeTrajectory, getCurrentFrame(), replacedPoint);
+            journal.endStep();
             // Save the trajectory
             save(activeTrajectory);
 
@@ -142,8 +197,10 @@ public class CreateModeController extends FrameController {
             }
         }
         else {
-            // Not succeeded; Remove the new point
-            activeTrajectory.set(getCurrentFrame(), null);
+            // Not succeeded; Remove the new point and restore the one that
+            // it replaced, if any
+            activeTrajectory.set(getCurrentFrame(), replacedPoint);
+            markModified(activeTrajectory);
         }
     }
 
@@ -153,7 +210,17 @@ public class CreateModeController extends FrameController {
         newPoint.setX((int) Math.round(framePosition.getX()));
         newPoint.setY((int) Math.round(framePosition.getY()));
 
+        final Point replacedPoint = activeTrajectory.get(getCurrentFrame());
+        if (replacedPoint != null) {
+            // Keep the values of the replaced point after the new point is set
+            replacedPoint.detach();
+        }
         activeTrajectory.set(getCurrentFrame(), newPoint);
+        if (replacedPoint != null) {
+            getDataStore().firePointRemoved(activeTrajectory, replacedPoint);
+        }
+        getDataStore().firePointAdded(activeTrajectory, newPoint);
+        getDataStore().getJournal().pointChanged(activeTrajectory, getCurrentFrame(), replacedPoint);
         save(activeTrajectory);
     }
 
@@ -166,16 +233,19 @@ public class CreateModeController extends FrameController {
 
             activeTrajectory = new Trajectory(getCurrentFrame(), getCurrentFrame() + 1);
             activeTrajectory.setDataStore(getDataStore());
-            getTrajectories().add(activeTrajectory);
             activeTrajectory.setId(dialog.getTrajectoryId());
             activeTrajectory.setFromAction(dialog.getStartAction());
             
+            // Adding the trajectory to the data store also makes it one of
+            // the displayed trajectories
             getDataStore().add(activeTrajectory);
 
             // Create a new Point at the mouse location
             Point newPoint = new Point((int) Math.round(framePosition.getX()), (int) Math.round(framePosition.getY()));
             newPoint.setActivity(dialog.getActivity());
             activeTrajectory.set(getCurrentFrame(), newPoint);
+            getDataStore().firePointAdded(activeTrajectory, newPoint);
+            getDataStore().getJournal().trajectoryCreated(activeTrajectory);
             save(activeTrajectory);
         }
     }
@@ -3,6 +3,7 @@ package org.samcrow.frameviewer.trajectory.ui;
 import javafx.geometry.Point2D;
 import javafx.scene.input.MouseEvent;
 import org.samcrow.frameviewer.PaintableCanvas;
+import org.samcrow.frameviewer.io3.EditJournal;
 import org.samcrow.frameviewer.trajectory.InteractionPoint;
 import org.samcrow.frameviewer.trajectory.Point;
 import org.samcrow.frameviewer.trajectory.Trajectory;
@@ -20,6 +21,16 @@ public class EditModeController extends FrameController {
 
     private Point activePoint;
 
+    /**
+     * The X position of the active point when it was pressed
+     */
+    private int pressedX;
+
+    /**
+     * The Y position of the active point when it was pressed
+     */
+    private int pressedY;
+
     public EditModeController(PaintableCanvas canvas) {
         super(canvas);
     }
@@ -30,6 +41,7 @@ public class EditModeController extends FrameController {
         if (dragging && activePoint != null) {
             activePoint.setX((int) Math.round(framePosition.getX()));
             activePoint.setY((int) Math.round(framePosition.getY()));
+            markModified(activeTrajectory);
             repaint();
         }
     }
@@ -47,8 +59,15 @@ public class EditModeController extends FrameController {
             dialog.setY(event.getScreenY());
             dialog.showAndWait();
 
+            final EditJournal journal = getDataStore().getJournal();
             if(dialog.result == PointEditDialog.Result.Save) {
                 
+                // Keep the values before the change, so that it can be undone
+                final int oldId = activeTrajectory.getId();
+                final Trajectory.FromAction oldFromAction = activeTrajectory.getFromAction();
+                final Trajectory.ToAction oldToAction = activeTrajectory.getToAction();
+                final Point oldPoint = EditJournal.copyOf(activePoint);
+
                 activeTrajectory.setId(dialog.getTrajectoryId());
                 activeTrajectory.setFromAction(dialog.getFromAction());
                 activeTrajectory.setToAction(dialog.getToAction());
@@ -67,22 +86,38 @@ public class EditModeController extends FrameController {
                 else {
                     // Demote point if needed
                     if(activePoint instanceof InteractionPoint) {
+                        getDataStore().disconnectInteractionPoint((InteractionPoint) activePoint);
                         activePoint = new Point(activePoint);
                     }
                 }
                 
                 activeTrajectory.set(getCurrentFrame(), activePoint);
+                if(activePoint instanceof InteractionPoint) {
+                    // The met trajectory ID may have changed
+                    getDataStore().connectInteractionPoint((InteractionPoint) activePoint);
+                }
+                journal.beginStep();
+                journal.attributesChanged(activeTrajectory, oldId, oldFromAction, oldToAction);
+                journal.pointChanged(activeTrajectory, getCurrentFrame(), oldPoint);
+                journal.endStep();
                 save(activeTrajectory);
+                markModified(activeTrajectory);
                 repaint();
             }
             else if(dialog.result == PointEditDialog.Result.DeletePoint) {
                 delete(activePoint, activeTrajectory.getId());
+                // Keep the values of the point after it is removed
+                activePoint.detach();
                 activeTrajectory.set(getCurrentFrame(), null);
+                journal.pointChanged(activeTrajectory, getCurrentFrame(), activePoint);
+                getDataStore().firePointRemoved(activeTrajectory, activePoint);
                 repaint();
             }
             else if(dialog.result == PointEditDialog.Result.DeleteTrajectory) {
-                getTrajectories().remove(activeTrajectory);
+                // Deleting the trajectory from the data store also removes it
+                // from the displayed trajectories
                 delete(activeTrajectory);
+                journal.trajectoryDeleted(activeTrajectory);
                 activeTrajectory = null;
                 repaint();
             }
@@ -95,6 +130,11 @@ public class EditModeController extends FrameController {
         
         dragging = false;
         if(activePoint != null && activeTrajectory != null) {
+            if (activePoint.getX() != pressedX || activePoint.getY() != pressedY) {
+                getDataStore().firePointMoved(activeTrajectory, activePoint, pressedX, pressedY);
+                getDataStore().getJournal().pointMoved(activeTrajectory, getCurrentFrame(), pressedX, pressedY);
+                pointMoved(activeTrajectory, activePoint, pressedX, pressedY);
+            }
             save(activePoint, activeTrajectory.getId());
         }
     }
@@ -109,6 +149,8 @@ public class EditModeController extends FrameController {
                 activePoint = activeTrajectory.get(getCurrentFrame());
                 if (activePoint != null) {
                     dragging = true;
+                    pressedX = activePoint.getX();
+                    pressedY = activePoint.getY();
                 }
             }
             catch (IndexOutOfBoundsException ex) {
@@ -1,19 +1,21 @@
 package org.samcrow.frameviewer.trajectory.ui;
 
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.property.SimpleObjectProperty;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.collections.ObservableList;
 import javafx.event.Event;
 import javafx.event.EventType;
 import javafx.geometry.Point2D;
 import javafx.scene.Scene;
 import javafx.scene.input.MouseEvent;
-import jfxtras.labs.dialogs.MonologFX;
-import org.apache.commons.lang.exception.ExceptionUtils;
 import org.samcrow.frameviewer.PaintableCanvas;
 import org.samcrow.frameviewer.io3.DatabaseTrajectoryDataStore;
 import org.samcrow.frameviewer.trajectory.Point;
@@ -36,8 +38,30 @@ public class FrameController {
 
     private final ObjectProperty<DatabaseTrajectoryDataStore> dataStore = new SimpleObjectProperty<>();
 
+    /**
+     * Marks the point index out of date when the trajectory list changes
+     */
+    private final InvalidationListener trajectoryListListener = new InvalidationListener() {
+        @Override
+        public void invalidated(Observable o) {
+            pointGridVersion = -1;
+        }
+    };
+
     public FrameController(PaintableCanvas canvas) {
         this.canvas = canvas;
+
+        trajectories.addListener(new ChangeListener<List<Trajectory>>() {
+            @Override
+            public void changed(ObservableValue<? extends List<Trajectory>> ov, List<Trajectory> oldList, List<Trajectory> newList) {
+                if (oldList instanceof ObservableList) {
+                    ((ObservableList<Trajectory>) oldList).removeListener(trajectoryListListener);
+                }
+                if (newList instanceof ObservableList) {
+                    ((ObservableList<Trajectory>) newList).addListener(trajectoryListListener);
+                }
+            }
+        });
     }
 
     /**
@@ -50,6 +74,7 @@ public class FrameController {
     public void handleMouseEvent(MouseEvent event, Point2D framePosition) {
         final EventType<? extends Event> type = event.getEventType();
         if (type == MouseEvent.MOUSE_PRESSED) {
+            pressedVersion = getDataVersion();
             handleMousePressed(event, framePosition);
         }
         else if (type == MouseEvent.MOUSE_RELEASED) {
@@ -99,38 +124,98 @@ public class FrameController {
     }
 
     /**
-     * Returns the trajectory near the requested frame position, or null
-     * if none exists
+     * The greatest distance, in frame pixels, from a position to a point
+     * that is considered near it
+     */
+    private static final double MAX_RADIUS = 6;
+
+    /**
+     * The points on the frame that was current when it was last updated
+     */
+    private final PointGrid pointGrid = new PointGrid();
+
+    /**
+     * The frame that pointGrid was built for
+     */
+    private int pointGridFrame;
+
+    /**
+     * The data store version that pointGrid was built for, or -1 if it
+     * must be rebuilt
+     */
+    private long pointGridVersion = -1;
+
+    /**
+     * The data store version when the mouse was last pressed
+     */
+    private long pressedVersion = -1;
+
+    /**
+     * The trajectory list that pointGrid was built from
+     */
+    private List<Trajectory> pointGridTrajectories;
+
+    /**
+     * Returns the trajectory with the point nearest to the requested frame
+     * position on the current frame, or null if none is near
      * <p>
      * @param framePosition
      * @return
      */
     protected final Trajectory getTrajectoryNear(Point2D framePosition) {
-        for (Trajectory trajectory : getTrajectories()) {
-            try {
-                final Point point = trajectory.get(getCurrentFrame());
-                if (point != null) {
-                    // Find distance
-                    final double MAX_RADIUS = 6;
-                    final double MAX_RADIUS_SQUARED = MAX_RADIUS * MAX_RADIUS;
-
-                    final double dx = framePosition.getX() - point.getX();
-                    final double dy = framePosition.getY() - point.getY();
-
-                    final double distanceSquared = dx * dx + dy * dy;
+        return getPointGrid().findNearest(framePosition.getX(), framePosition.getY(), MAX_RADIUS);
+    }
 
-                    if (distanceSquared <= MAX_RADIUS_SQUARED) {
-                        return trajectory;
-                    }
+    /**
+     * Updates the point index after a point on the current frame has been
+     * moved by dragging it. This is faster than building the index again.
+     * <p>
+     * The index is only updated if it was built for the data as it was when
+     * the mouse was pressed. Otherwise it may be missing other changes, so
+     * it is built again when it is next used.
+     * <p>
+     * @param trajectory The trajectory that contains the point
+     * @param point The point, at its new position
+     * @param oldX The X coordinate of the point before it was moved
+     * @param oldY The Y coordinate of the point before it was moved
+     */
+    protected final void pointMoved(Trajectory trajectory, Point point, int oldX, int oldY) {
+        if (pointGridVersion != -1 && pointGridVersion == pressedVersion
+                && pointGridFrame == getCurrentFrame() && pointGridTrajectories == getTrajectories()) {
+            pointGrid.move(trajectory, point, oldX, oldY);
+            pointGridVersion = getDataVersion();
+        }
+        else {
+            pointGridVersion = -1;
+        }
+    }
 
+    /**
+     * Returns the point index for the current frame, building it again if
+     * the frame or the data has changed
+     * <p>
+     * @return
+     */
+    private PointGrid getPointGrid() {
+        final long version = getDataVersion();
+        if (pointGridVersion == -1 || version != pointGridVersion
+                || pointGridFrame != getCurrentFrame() || pointGridTrajectories != getTrajectories()) {
+            pointGrid.clear();
+            for (Trajectory trajectory : getTrajectories()) {
+                final Point point = trajectory.get(getCurrentFrame());
+                if (point != null) {
+                    pointGrid.add(trajectory, point);
                 }
-                // else continue
-            }
-            catch (IndexOutOfBoundsException ex) {
-                // Continue
             }
+            pointGridVersion = version;
+            pointGridFrame = getCurrentFrame();
+            pointGridTrajectories = getTrajectories();
         }
-        return null;
+        return pointGrid;
+    }
+
+    private long getDataVersion() {
+        return getDataStore() != null ? getDataStore().getVersion() : 0;
     }
 
     /**
@@ -187,62 +272,65 @@ public class FrameController {
         return scene;
     }
 
+    /**
+     * Queues a trajectory and all its points to be saved in the background
+     * <p>
+     * @param trajectory
+     */
     protected final void save(Trajectory trajectory) {
-        try {
-            getDataStore().persistTrajectory(trajectory);
-        }
-        catch (SQLException ex) {
-            MonologFX dialog = new MonologFX(MonologFX.Type.ERROR);
-            dialog.setTitle(ex.toString());
-            dialog.setMessage(ExceptionUtils.getFullStackTrace(ex));
-            dialog.showDialog();
-            ex.printStackTrace();
-        }
+        getDataStore().saveLater(trajectory);
     }
 
+    /**
+     * Queues a point to be saved in the background
+     * <p>
+     * @param point
+     * @param trajectoryId
+     */
     protected final void save(Point point, int trajectoryId) {
-        try {
-            getDataStore().persistPoint(point, trajectoryId);
-        }
-        catch (SQLException ex) {
-            MonologFX dialog = new MonologFX(MonologFX.Type.ERROR);
-            dialog.setTitle(ex.toString());
-            dialog.setMessage(ExceptionUtils.getFullStackTrace(ex));
-            dialog.showDialog();
-            ex.printStackTrace();
-        }
+        getDataStore().saveLater(point, trajectoryId);
     }
-    
+
+    /**
+     * Removes a trajectory from the data store, and queues it to be deleted
+     * from the database in the background
+     * <p>
+     * @param trajectory
+     */
     protected final void delete(Trajectory trajectory) {
-        try {
-            getDataStore().deleteTrajectory(trajectory);
-        }
-        catch (SQLException ex) {
-            MonologFX dialog = new MonologFX(MonologFX.Type.ERROR);
-            dialog.setTitle(ex.toString());
-            dialog.setMessage(ExceptionUtils.getFullStackTrace(ex));
-            dialog.showDialog();
-            ex.printStackTrace();
-        }
+        getDataStore().deleteLater(trajectory);
     }
-    
+
+    /**
+     * Queues a point to be deleted from the database in the background
+     * <p>
+     * @param point
+     * @param trajectoryId
+     */
     protected final void delete(Point point, int trajectoryId) {
-        try {
-            getDataStore().deletePoint(trajectoryId, point.getFrame());
-        }
-        catch (SQLException ex) {
-            MonologFX dialog = new MonologFX(MonologFX.Type.ERROR);
-            dialog.setTitle(ex.toString());
-            dialog.setMessage(ExceptionUtils.getFullStackTrace(ex));
-            dialog.showDialog();
-            ex.printStackTrace();
-        }
+        getDataStore().deletePointLater(trajectoryId, point.getFrame());
     }
 
+    /**
+     * Repaints the canvas. Controllers that change a trajectory without
+     * firing a change through the data store must first mark it modified
+     * with {@link #markModified(Trajectory)}.
+     */
     protected final void repaint() {
         canvas.repaint();
     }
 
+    /**
+     * Marks a trajectory that this controller has changed as modified in
+     * the data store, so that the parts of the display that show it are
+     * drawn again
+     * <p>
+     * @param trajectory
+     */
+    protected final void markModified(Trajectory trajectory) {
+        getDataStore().markModified(trajectory);
+    }
+
     private static ObjectProperty<List<Trajectory>> createTrajectoriesProperty() {
         final List<Trajectory> initialList = new ArrayList<>();
         return new SimpleObjectProperty<>(initialList);
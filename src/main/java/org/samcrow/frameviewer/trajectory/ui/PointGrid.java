@@ -0,0 +1,146 @@
+package org.samcrow.frameviewer.trajectory.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+import org.samcrow.frameviewer.util.IntMap;
+
+/**
+ * A spatial index of the points on one frame, used to find the point
+ * nearest to a mouse position
+ * <p>
+ * The frame is divided into square cells, and each point is stored in the
+ * cell that contains it. A search only looks at the cells within the
+ * search radius, so it takes about the same time regardless of how many
+ * points are on the frame.
+ * <p>
+ * @author Sam Crow
+ */
+class PointGrid {
+
+    /**
+     * The width and height, in frame pixels, of each cell
+     */
+    private static final int CELL_SIZE = 16;
+
+    /**
+     * Maps cell keys to the entries in each cell
+     */
+    private final IntMap<List<Entry>> cells = new IntMap<>();
+
+    public void clear() {
+        cells.clear();
+    }
+
+    /**
+     * Adds a point at its current position
+     * <p>
+     * @param trajectory The trajectory that contains the point
+     * @param point
+     */
+    public void add(Trajectory trajectory, Point point) {
+        final int key = cellKey(cellFor(point.getX()), cellFor(point.getY()));
+        List<Entry> cell = cells.get(key);
+        if (cell == null) {
+            cell = new ArrayList<>(2);
+            cells.put(key, cell);
+        }
+        cell.add(new Entry(trajectory, point, point.getX(), point.getY()));
+    }
+
+    /**
+     * Updates the position of a point that has moved
+     * <p>
+     * @param trajectory The trajectory that contains the point
+     * @param point The point, at its new position
+     * @param oldX The X coordinate of the point when it was added
+     * @param oldY The Y coordinate of the point when it was added
+     */
+    public void move(Trajectory trajectory, Point point, int oldX, int oldY) {
+        final int key = cellKey(cellFor(oldX), cellFor(oldY));
+        final List<Entry> cell = cells.get(key);
+        if (cell != null) {
+            for (int i = 0; i < cell.size(); i++) {
+                final Entry entry = cell.get(i);
+                // Points may be different views of the same frame, so
+                // compare the trajectory and frame
+                if (entry.trajectory == trajectory && entry.point.getFrame() == point.getFrame()) {
+                    cell.remove(i);
+                    break;
+                }
+            }
+            if (cell.isEmpty()) {
+                cells.remove(key);
+            }
+        }
+        add(trajectory, point);
+    }
+
+    /**
+     * Finds the trajectory with the point nearest to a position
+     * <p>
+     * @param x The X coordinate, in frame pixels
+     * @param y The Y coordinate, in frame pixels
+     * @param maxRadius The greatest distance to search
+     * @return The trajectory whose point is nearest to the position, or null
+     * if no point is within maxRadius
+     */
+    public Trajectory findNearest(double x, double y, double maxRadius) {
+        final int firstColumn = cellFor((int) Math.floor(x - maxRadius));
+        final int lastColumn = cellFor((int) Math.ceil(x + maxRadius));
+        final int firstRow = cellFor((int) Math.floor(y - maxRadius));
+        final int lastRow = cellFor((int) Math.ceil(y + maxRadius));
+
+        Trajectory nearest = null;
+        double nearestDistanceSquared = maxRadius * maxRadius;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                final List<Entry> cell = cells.get(cellKey(column, row));
+                if (cell == null) {
+                    continue;
+                }
+                for (Entry entry : cell) {
+                    final double dx = x - entry.x;
+                    final double dy = y - entry.y;
+                    final double distanceSquared = dx * dx + dy * dy;
+                    if (distanceSquared < nearestDistanceSquared
+                            || (nearest == null && distanceSquared == nearestDistanceSquared)) {
+                        nearest = entry.trajectory;
+                        nearestDistanceSquared = distanceSquared;
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    private static int cellFor(int coordinate) {
+        return Math.floorDiv(coordinate, CELL_SIZE);
+    }
+
+    private static int cellKey(int column, int row) {
+        return (column << 16) ^ (row & 0xFFFF);
+    }
+
+    private static class Entry {
+
+        final Trajectory trajectory;
+
+        final Point point;
+
+        /**
+         * The position of the point when it was added
+         */
+        final int x;
+
+        final int y;
+
+        public Entry(Trajectory trajectory, Point point, int x, int y) {
+            this.trajectory = trajectory;
+            this.point = point;
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
@@ -13,12 +13,16 @@ import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.event.EventHandler;
+import javafx.event.EventType;
 import javafx.geometry.Point2D;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.image.Image;
+import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
 import org.samcrow.frameviewer.PaintableCanvas;
 import org.samcrow.frameviewer.io3.DatabaseTrajectoryDataStore;
+import org.samcrow.frameviewer.trajectory.LabelRenderer;
 import org.samcrow.frameviewer.trajectory.Trajectory;
 import org.samcrow.frameviewer.trajectory.TrajectoryDisplayMode;
 import org.samcrow.frameviewer.trajectory.TrajectoryTool;
@@ -64,9 +68,90 @@ public class FrameCanvas extends PaintableCanvas {
      */
     private double imageHeight;
 
+    /**
+     * Lays out and draws trajectory ID labels
+     */
+    private final LabelRenderer labels = new LabelRenderer();
+
+    /**
+     * The overlay of full mode, drawn when only the current frame changes
+     */
+    private final TrajectoryOverlayCache overlayCache = new TrajectoryOverlayCache();
+
     private final ObjectProperty<TrajectoryDisplayMode> displayMode = new SimpleObjectProperty<>(TrajectoryDisplayMode.Full);
     
     private final DoubleProperty trajectoryAlpha = new SimpleDoubleProperty(1);
+
+    /**
+     * The number of frames before and after the current frame that are
+     * displayed in trail mode
+     */
+    private final IntegerProperty trailLength = new SimpleIntegerProperty(100);
+
+    /**
+     * The zoom factor. 1 displays the whole frame fitted to the canvas.
+     */
+    private final DoubleProperty zoom = new SimpleDoubleProperty(1);
+
+    private static final double MIN_ZOOM = 1;
+
+    private static final double MAX_ZOOM = 32;
+
+    /**
+     * The multiplier applied to the zoom for each scroll wheel step
+     */
+    private static final double ZOOM_STEP = 1.25;
+
+    /**
+     * Horizontal offset, in local coordinates, of the frame's center from
+     * the canvas center
+     */
+    private double panX;
+
+    /**
+     * Vertical offset, in local coordinates, of the frame's center from
+     * the canvas center
+     */
+    private double panY;
+
+    /**
+     * The local coordinates of the last mouse event of a pan, or null
+     * if no pan is in progress
+     */
+    private Point2D panAnchor;
+
+    /**
+     * Tiles of the current image at several resolutions, or null if the
+     * image is drawn directly
+     */
+    private TiledImagePyramid pyramid;
+
+    /**
+     * The image that was displayed when the user last zoomed or panned
+     * <p>
+     * The pyramid is only used while this image is displayed. During
+     * playback every frame is a new image, and reading its pixels into a
+     * pyramid would cost more than drawing it directly.
+     */
+    private Image zoomedImage;
+
+    /**
+     * The point density of all trajectories, or null if it has not been
+     * needed yet
+     */
+    private OccupancyHeatmap heatmap;
+
+    /**
+     * Recounts the heatmap when the data store is refreshed
+     */
+    private final InvalidationListener heatmapRebuilder = new InvalidationListener() {
+        @Override
+        public void invalidated(Observable o) {
+            if (heatmap != null) {
+                heatmap.rebuildIfChanged(dataStore);
+            }
+        }
+    };
     
     private DatabaseTrajectoryDataStore dataStore;
     
@@ -85,6 +170,11 @@ public class FrameCanvas extends PaintableCanvas {
         setEventHandler(MouseEvent.ANY, new EventHandler<MouseEvent>() {
             @Override
             public void handle(MouseEvent event) {
+                // The middle button pans and is not passed to the controllers
+                if (handlePanEvent(event)) {
+                    requestFocus();
+                    return;
+                }
                 try {
                     final Point2D imagePosition = getFrameLocation(event);
                     activeController.handleMouseEvent(event, imagePosition);
@@ -96,16 +186,40 @@ public class FrameCanvas extends PaintableCanvas {
             }
         });
 
-        //Repaint when the frame or the markers changes
-        image.addListener(new InvalidationListener() {
+        // Zoom around the mouse with the scroll wheel
+        setOnScroll(new EventHandler<ScrollEvent>() {
             @Override
-            public void invalidated(Observable o) {
+            public void handle(ScrollEvent event) {
+                if (event.getDeltaY() != 0) {
+                    final double factor = event.getDeltaY() > 0 ? ZOOM_STEP : 1 / ZOOM_STEP;
+                    zoomAround(getZoom() * factor, event.getX(), event.getY());
+                }
+                event.consume();
+            }
+        });
 
-                // Update trajectories 
+        trailLength.addListener(new InvalidationListener() {
+            @Override
+            public void invalidated(Observable o) {
+                // Longer trails need trajectories from farther away
                 if (dataStore != null) {
-                    trajectories.set(dataStore.getObjectsNearCurrentFrame(20));
+                    dataStore.setActiveRange(getNearbyRange());
                 }
+                repaint();
+            }
+        });
+
+        zoom.addListener(new InvalidationListener() {
+            @Override
+            public void invalidated(Observable o) {
+                repaint();
+            }
+        });
 
+        //Repaint when the frame or the markers changes
+        image.addListener(new InvalidationListener() {
+            @Override
+            public void invalidated(Observable o) {
                 requestFocus();
                 repaint();
             }
@@ -113,12 +227,6 @@ public class FrameCanvas extends PaintableCanvas {
         trajectoryAlpha.addListener(new InvalidationListener() {
             @Override
             public void invalidated(Observable o) {
-
-                // Update trajectories 
-                if (dataStore != null) {
-                    trajectories.set(dataStore.getObjectsNearCurrentFrame(20));
-                }
-
                 requestFocus();
                 repaint();
             }
@@ -128,9 +236,9 @@ public class FrameCanvas extends PaintableCanvas {
         displayMode.addListener(new InvalidationListener() {
             @Override
             public void invalidated(Observable o) {
-                // Update trajectories 
+                // Trail mode can need trajectories from farther away
                 if (dataStore != null) {
-                    trajectories.set(dataStore.getObjectsNearCurrentFrame(20));
+                    dataStore.setActiveRange(getNearbyRange());
                 }
 
                 requestFocus();
@@ -175,44 +283,60 @@ public class FrameCanvas extends PaintableCanvas {
         //Draw image
         if (image.get() != null) {
 
-            //Scale image to fit this canvas, but preserve its aspect ratio
             final double canvasWidth = getWidth();
             final double canvasHeight = getHeight();
 
-            final double targetImageWidth = image.get().getWidth();
-            final double targetImageHeight = image.get().getHeight();
-            final double imageAspectRatio = targetImageWidth / targetImageHeight;
+            final double nativeImageWidth = image.get().getWidth();
+            final double nativeImageHeight = image.get().getHeight();
 
-            final double widthRatio = targetImageWidth / canvasWidth;
-            final double heightRatio = targetImageHeight / canvasHeight;
+            //Scale image to fit this canvas, but preserve its aspect ratio
+            //and never enlarge it beyond its native size. Zooming then scales
+            //relative to that fitted size.
+            final double fitScale = Math.min(1, Math.min(canvasWidth / nativeImageWidth, canvasHeight / nativeImageHeight));
+            final double scale = fitScale * getZoom();
+            imageWidth = nativeImageWidth * scale;
+            imageHeight = nativeImageHeight * scale;
 
-            if (heightRatio < widthRatio) {
-                //Window is taller than image
-                //If necessary, shrink image width to fit
-                imageWidth = Math.min(targetImageWidth, canvasWidth);
-                imageHeight = imageWidth / imageAspectRatio;
-            }
-            else {
-                //Window is wider than image
-                //If necessary, shrink image height to fit
-                imageHeight = Math.min(targetImageHeight, canvasHeight);
-                imageWidth = imageHeight * imageAspectRatio;
-            }
+            panX = clampPan(panX, imageWidth, canvasWidth);
+            panY = clampPan(panY, imageHeight, canvasHeight);
 
             final double centerX = canvasWidth / 2;
             final double centerY = canvasHeight / 2;
-            imageTopLeftX = centerX - imageWidth / 2;
-            imageTopLeftY = centerY - imageHeight / 2;
+            imageTopLeftX = centerX - imageWidth / 2 + panX;
+            imageTopLeftY = centerY - imageHeight / 2 + panY;
 
-            gc.drawImage(image.get(), imageTopLeftX, imageTopLeftY, imageWidth, imageHeight);
+            if (getZoom() > MIN_ZOOM && image.get() == zoomedImage) {
+                if (pyramid == null || !pyramid.isFor(image.get())) {
+                    pyramid = new TiledImagePyramid(image.get());
+                }
+                pyramid.draw(gc, imageTopLeftX, imageTopLeftY, scale, canvasWidth, canvasHeight);
+            }
+            else {
+                pyramid = null;
+                gc.drawImage(image.get(), imageTopLeftX, imageTopLeftY, imageWidth, imageHeight);
+            }
 
-            if(getDisplayMode() != TrajectoryDisplayMode.Hidden) {
+            if(getDisplayMode() == TrajectoryDisplayMode.Heatmap) {
+                if (dataStore != null) {
+                    final OccupancyHeatmap currentHeatmap = getHeatmap((int) nativeImageWidth, (int) nativeImageHeight);
+                    gc.save();
+                    gc.setGlobalAlpha(trajectoryAlpha.get());
+                    currentHeatmap.paint(gc, imageTopLeftX, imageTopLeftY, imageWidth, imageHeight);
+                    gc.restore();
+                }
+            }
+            else if(getDisplayMode() != TrajectoryDisplayMode.Hidden) {
                 gc.save();
                 gc.setGlobalAlpha(trajectoryAlpha.get());
 
                 // Draw trajectories
-                for (Trajectory trajectory : trajectories.get()) {
-                    trajectory.paint(gc, image.get().getWidth(), image.get().getHeight(), imageWidth, imageHeight, imageTopLeftX, imageTopLeftY, getCurrentFrame(), getDisplayMode());
+                final boolean cached = getDisplayMode() == TrajectoryDisplayMode.Full && dataStore != null
+                        && overlayCache.paint(gc, trajectories.get(), dataStore.getVersion(), nativeImageWidth, nativeImageHeight, imageWidth, imageHeight, imageTopLeftX, imageTopLeftY, canvasWidth, canvasHeight, getCurrentFrame());
+                if (!cached) {
+                    for (Trajectory trajectory : trajectories.get()) {
+                        trajectory.paint(gc, nativeImageWidth, nativeImageHeight, imageWidth, imageHeight, imageTopLeftX, imageTopLeftY, getCurrentFrame(), getDisplayMode(), getTrailLength(), labels);
+                    }
+                    labels.paint(gc, canvasWidth, canvasHeight);
                 }
 
                 gc.setGlobalAlpha(1);
@@ -224,6 +348,109 @@ public class FrameCanvas extends PaintableCanvas {
 
 
 
+    /**
+     * @return The number of frames from the current frame within which
+     * trajectories should be displayed
+     */
+    private int getNearbyRange() {
+        if (getDisplayMode() == TrajectoryDisplayMode.Trail) {
+            return Math.max(20, getTrailLength() + 1);
+        }
+        return 20;
+    }
+
+    /**
+     * Returns the heatmap for frames of the provided size, creating it
+     * and counting every point of the data store if necessary
+     * <p>
+     * @param frameWidth
+     * @param frameHeight
+     * @return
+     */
+    private OccupancyHeatmap getHeatmap(int frameWidth, int frameHeight) {
+        if (heatmap == null || !heatmap.hasFrameSize(frameWidth, frameHeight)) {
+            if (heatmap != null) {
+                dataStore.removeTrajectoryChangeListener(heatmap);
+            }
+            heatmap = new OccupancyHeatmap(frameWidth, frameHeight, this);
+            dataStore.addTrajectoryChangeListener(heatmap);
+            heatmap.rebuild(dataStore);
+        }
+        return heatmap;
+    }
+
+    /**
+     * Handles panning with the middle mouse button. A middle click without
+     * dragging resets the zoom.
+     * <p>
+     * @param event
+     * @return true if the event was used for panning
+     */
+    private boolean handlePanEvent(MouseEvent event) {
+        final EventType<? extends MouseEvent> type = event.getEventType();
+        if (type == MouseEvent.MOUSE_DRAGGED && panAnchor != null) {
+            panX += event.getX() - panAnchor.getX();
+            panY += event.getY() - panAnchor.getY();
+            panAnchor = new Point2D(event.getX(), event.getY());
+            zoomedImage = image.get();
+            repaint();
+            return true;
+        }
+        if (event.getButton() != MouseButton.MIDDLE) {
+            return false;
+        }
+        if (type == MouseEvent.MOUSE_PRESSED) {
+            panAnchor = new Point2D(event.getX(), event.getY());
+        }
+        else if (type == MouseEvent.MOUSE_RELEASED) {
+            panAnchor = null;
+        }
+        else if (type == MouseEvent.MOUSE_CLICKED && event.isStillSincePress()) {
+            setZoom(MIN_ZOOM);
+        }
+        return true;
+    }
+
+    /**
+     * Changes the zoom, keeping the frame position at a location in local
+     * coordinates in the same place
+     * <p>
+     * @param newZoom
+     * @param x
+     * @param y
+     */
+    private void zoomAround(double newZoom, double x, double y) {
+        newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, newZoom));
+        zoomedImage = image.get();
+        if (image.get() == null || imageWidth == 0 || imageHeight == 0) {
+            setZoom(newZoom);
+            return;
+        }
+        final double ratio = newZoom / getZoom();
+        final double newImageWidth = imageWidth * ratio;
+        final double newImageHeight = imageHeight * ratio;
+        // Top left corner that keeps (x, y) over the same frame position
+        final double newTopLeftX = x - (x - imageTopLeftX) * ratio;
+        final double newTopLeftY = y - (y - imageTopLeftY) * ratio;
+        panX = newTopLeftX - (getWidth() / 2 - newImageWidth / 2);
+        panY = newTopLeftY - (getHeight() / 2 - newImageHeight / 2);
+        setZoom(newZoom);
+    }
+
+    /**
+     * Limits a pan offset so that the frame does not leave the canvas. A
+     * frame that is smaller than the canvas stays centered.
+     * <p>
+     * @param pan
+     * @param imageSize
+     * @param canvasSize
+     * @return
+     */
+    private static double clampPan(double pan, double imageSize, double canvasSize) {
+        final double limit = Math.max(0, (imageSize - canvasSize) / 2);
+        return Math.max(-limit, Math.min(limit, pan));
+    }
+
     /**
      * Returns the location, in frame image coordinates, of a mouse event
      * <p>
@@ -307,10 +534,22 @@ public class FrameCanvas extends PaintableCanvas {
     }
 
     public void setDataStore(DatabaseTrajectoryDataStore dataStore) {
+        if (this.dataStore != null) {
+            this.dataStore.removeListener(heatmapRebuilder);
+            if (heatmap != null) {
+                this.dataStore.removeTrajectoryChangeListener(heatmap);
+            }
+        }
+        heatmap = null;
         this.dataStore = dataStore;
+        overlayCache.invalidate();
+        dataStore.addListener(heatmapRebuilder);
         createController.setDataStore(dataStore);
         editController.setDataStore(dataStore);
-        trajectories.set(dataStore.getObjectsNearCurrentFrame(20));
+        // The data store keeps the list of nearby trajectories up to date
+        // as the frame changes. The controllers share the same list.
+        dataStore.setActiveRange(getNearbyRange());
+        trajectories.set(dataStore.getActiveObjects());
     }
     
     public final TrajectoryDisplayMode getDisplayMode() {
@@ -336,6 +575,30 @@ public class FrameCanvas extends PaintableCanvas {
     public final DoubleProperty trajectoryAlphaProperty() {
         return trajectoryAlpha;
     }
+
+    public final int getTrailLength() {
+        return trailLength.get();
+    }
+
+    public final void setTrailLength(int frames) {
+        trailLength.set(frames);
+    }
+
+    public final IntegerProperty trailLengthProperty() {
+        return trailLength;
+    }
+
+    public final double getZoom() {
+        return zoom.get();
+    }
+
+    public final void setZoom(double zoom) {
+        this.zoom.set(Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom)));
+    }
+
+    public final DoubleProperty zoomProperty() {
+        return zoom;
+    }
     
     private static ObjectProperty<List<Trajectory>> createTrajectoriesProperty() {
         final List<Trajectory> initialList = new ArrayList<>();
@@ -0,0 +1,418 @@
+package org.samcrow.frameviewer.ui;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+import org.samcrow.frameviewer.PaintableCanvas;
+import org.samcrow.frameviewer.io3.DatabaseTrajectoryDataStore;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+import org.samcrow.frameviewer.trajectory.TrajectoryChangeListener;
+
+/**
+ * Keeps track of how many trajectory points fall into each cell of a grid
+ * over the frame, and displays the result as a density heatmap
+ * <p>
+ * The grid has a lower resolution than the frame: each cell covers
+ * {@link #CELL_SIZE} by {@link #CELL_SIZE} frame pixels. Point counts are
+ * updated incrementally as points are added, moved, and removed. Counting
+ * all the points again, smoothing, and coloring are done on a background
+ * thread, and the result is kept in one image that is drawn over the frame.
+ * <p>
+ * The points are counted by the store, not from the loaded trajectories,
+ * so the heatmap covers trajectories that are not loaded. Loading and
+ * unloading trajectories does not change it.
+ * <p>
+ * All methods must be called from the JavaFX application thread.
+ * <p>
+ * @author Sam Crow
+ */
+class OccupancyHeatmap implements TrajectoryChangeListener {
+
+    /**
+     * The width and height, in frame pixels, of each grid cell
+     */
+    static final int CELL_SIZE = 8;
+
+    /**
+     * The radius, in cells, of each pass of the box blur used for smoothing
+     */
+    private static final int BLUR_RADIUS = 1;
+
+    /**
+     * The number of colors in the palette
+     */
+    private static final int PALETTE_SIZE = 256;
+
+    private static final int[] PALETTE = createPalette();
+
+    private static final WritablePixelFormat<IntBuffer> FORMAT = PixelFormat.getIntArgbInstance();
+
+    /**
+     * Renders heatmaps in the background. One thread is shared by all
+     * instances.
+     */
+    private static final ExecutorService renderer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "Heatmap renderer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final int frameWidth;
+
+    private final int frameHeight;
+
+    private final int columns;
+
+    private final int rows;
+
+    /**
+     * The number of points in each cell, in row-major order.
+     * Guarded by this, because the renderer reads it.
+     */
+    private final int[] counts;
+
+    /**
+     * The canvas to repaint when a new image is available
+     */
+    private final PaintableCanvas canvas;
+
+    /**
+     * The image that displays the heatmap, or null if it has not been rendered
+     */
+    private WritableImage image;
+
+    /**
+     * True if a render job has been submitted and has not yet read the
+     * counts
+     */
+    private final AtomicBoolean renderPending = new AtomicBoolean();
+
+    /**
+     * The changes made to the counts since the last rebuild was started,
+     * which are added to the counts when it finishes, or null if no
+     * rebuild is in progress. Guarded by this.
+     */
+    private int[] pendingChanges;
+
+    /**
+     * Incremented when a rebuild is started. Guarded by this.
+     */
+    private int rebuildGeneration;
+
+    /**
+     * The store version of the data store when the last rebuild was
+     * started, or -1 if the heatmap has not been built
+     */
+    private long countedVersion = -1;
+
+    /**
+     * Creates an empty heatmap
+     * <p>
+     * @param frameWidth The width, in pixels, of the frames
+     * @param frameHeight The height, in pixels, of the frames
+     * @param canvas The canvas to repaint when the heatmap changes
+     */
+    public OccupancyHeatmap(int frameWidth, int frameHeight, PaintableCanvas canvas) {
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.canvas = canvas;
+        columns = Math.max(1, (frameWidth + CELL_SIZE - 1) / CELL_SIZE);
+        rows = Math.max(1, (frameHeight + CELL_SIZE - 1) / CELL_SIZE);
+        counts = new int[columns * rows];
+    }
+
+    /**
+     * @param frameWidth
+     * @param frameHeight
+     * @return true if this heatmap covers frames with the provided size
+     */
+    public boolean hasFrameSize(int frameWidth, int frameHeight) {
+        return this.frameWidth == frameWidth && this.frameHeight == frameHeight;
+    }
+
+    /**
+     * Replaces all counts with counts of every point in the store of the
+     * provided data store. Counting, smoothing, and coloring are done in
+     * the background. Changes made while the points are being counted are
+     * added to the new counts, so a change that is saved before the store
+     * counts it may be counted twice until the next rebuild.
+     * <p>
+     * @param store The data store
+     */
+    public void rebuild(final DatabaseTrajectoryDataStore store) {
+        countedVersion = store.getStoreVersion();
+        final int generation;
+        synchronized (this) {
+            generation = ++rebuildGeneration;
+            pendingChanges = new int[counts.length];
+        }
+        renderer.execute(new Runnable() {
+            @Override
+            public void run() {
+                count(store, generation);
+            }
+        });
+    }
+
+    /**
+     * Rebuilds the counts if a refresh has read changes from the store
+     * since the last rebuild
+     * <p>
+     * @param store The data store
+     */
+    public void rebuildIfChanged(DatabaseTrajectoryDataStore store) {
+        if (store.getStoreVersion() != countedVersion) {
+            rebuild(store);
+        }
+    }
+
+    /**
+     * Counts the points in the store and replaces the counts. Runs in the
+     * background.
+     * <p>
+     * @param store
+     * @param generation The rebuild generation when the count was started
+     */
+    private void count(DatabaseTrajectoryDataStore store, int generation) {
+        synchronized (this) {
+            if (generation != rebuildGeneration) {
+                // A newer rebuild will replace the counts
+                return;
+            }
+        }
+        int[] newCounts;
+        try {
+            newCounts = store.countPoints(CELL_SIZE, columns, rows);
+        }
+        catch (IOException ex) {
+            Logger.getLogger(OccupancyHeatmap.class.getName()).log(Level.WARNING, "Failed to count points for the heatmap", ex);
+            // Keep the old counts
+            newCounts = null;
+        }
+        synchronized (this) {
+            if (generation != rebuildGeneration) {
+                return;
+            }
+            for (int i = 0; i < counts.length; i++) {
+                final int count = newCounts != null ? newCounts[i] : counts[i];
+                counts[i] = Math.max(0, count + pendingChanges[i]);
+            }
+            pendingChanges = null;
+        }
+        scheduleRender();
+    }
+
+    /**
+     * Draws the most recently rendered heatmap over the displayed frame
+     * <p>
+     * @param gc
+     * @param imageTopLeftX
+     * @param imageTopLeftY
+     * @param imageWidth
+     * @param imageHeight
+     */
+    public void paint(GraphicsContext gc, double imageTopLeftX, double imageTopLeftY, double imageWidth, double imageHeight) {
+        if (image != null) {
+            // Each cell covers CELL_SIZE frame pixels, so the image can extend
+            // past the frame edge by less than one cell
+            final double cellWidth = imageWidth * CELL_SIZE / frameWidth;
+            final double cellHeight = imageHeight * CELL_SIZE / frameHeight;
+            gc.drawImage(image, imageTopLeftX, imageTopLeftY, columns * cellWidth, rows * cellHeight);
+        }
+    }
+
+    @Override
+    public void pointAdded(Trajectory trajectory, Point point) {
+        addCount(point.getX(), point.getY(), 1);
+        scheduleRender();
+    }
+
+    @Override
+    public void pointRemoved(Trajectory trajectory, Point point) {
+        addCount(point.getX(), point.getY(), -1);
+        scheduleRender();
+    }
+
+    @Override
+    public void pointMoved(Trajectory trajectory, Point point, int oldX, int oldY) {
+        addCount(oldX, oldY, -1);
+        addCount(point.getX(), point.getY(), 1);
+        scheduleRender();
+    }
+
+    @Override
+    public void trajectoryRemoved(Trajectory trajectory) {
+        for (Point point : trajectory) {
+            addCount(point.getX(), point.getY(), -1);
+        }
+        scheduleRender();
+    }
+
+    private synchronized void addCount(int x, int y, int change) {
+        final int cell = cellIndex(x, y);
+        if (cell != -1) {
+            if (pendingChanges != null) {
+                pendingChanges[cell] += change;
+            }
+            else {
+                counts[cell] = Math.max(0, counts[cell] + change);
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the cell that contains a frame position, or -1
+     * if the position is outside the frame
+     * <p>
+     * @param x
+     * @param y
+     * @return
+     */
+    private int cellIndex(int x, int y) {
+        if (x < 0 || y < 0) {
+            return -1;
+        }
+        final int column = x / CELL_SIZE;
+        final int row = y / CELL_SIZE;
+        if (column >= columns || row >= rows) {
+            return -1;
+        }
+        return row * columns + column;
+    }
+
+    /**
+     * Submits a render job, unless one is already waiting to run
+     */
+    private void scheduleRender() {
+        if (renderPending.compareAndSet(false, true)) {
+            renderer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    render();
+                }
+            });
+        }
+    }
+
+    /**
+     * Smooths and colors the counts, then hands the pixels to the
+     * JavaFX application thread. Runs in the background.
+     */
+    private void render() {
+        final float[] density = new float[counts.length];
+        // Changes after this point will submit another job
+        renderPending.set(false);
+        synchronized (this) {
+            for (int i = 0; i < counts.length; i++) {
+                density[i] = counts[i];
+            }
+        }
+
+        // Two box blur passes approximate a Gaussian
+        final float[] temp = new float[density.length];
+        for (int pass = 0; pass < 2; pass++) {
+            blurRows(density, temp);
+            blurColumns(temp, density);
+        }
+
+        float max = 0;
+        for (float value : density) {
+            max = Math.max(max, value);
+        }
+
+        final int[] pixels = new int[density.length];
+        if (max > 0) {
+            // Logarithmic scaling keeps rarely visited places visible
+            final double scale = (PALETTE_SIZE - 1) / Math.log1p(max);
+            for (int i = 0; i < density.length; i++) {
+                pixels[i] = PALETTE[(int) (Math.log1p(density[i]) * scale)];
+            }
+        }
+
+        Platform.runLater(new Runnable() {
+            @Override
+            public void run() {
+                if (image == null) {
+                    image = new WritableImage(columns, rows);
+                }
+                image.getPixelWriter().setPixels(0, 0, columns, rows, FORMAT, pixels, 0, columns);
+                canvas.repaint();
+            }
+        });
+    }
+
+    private void blurRows(float[] source, float[] destination) {
+        for (int row = 0; row < rows; row++) {
+            final int start = row * columns;
+            for (int column = 0; column < columns; column++) {
+                float sum = 0;
+                for (int offset = -BLUR_RADIUS; offset <= BLUR_RADIUS; offset++) {
+                    final int c = Math.max(0, Math.min(columns - 1, column + offset));
+                    sum += source[start + c];
+                }
+                destination[start + column] = sum / (2 * BLUR_RADIUS + 1);
+            }
+        }
+    }
+
+    private void blurColumns(float[] source, float[] destination) {
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                float sum = 0;
+                for (int offset = -BLUR_RADIUS; offset <= BLUR_RADIUS; offset++) {
+                    final int r = Math.max(0, Math.min(rows - 1, row + offset));
+                    sum += source[r * columns + column];
+                }
+                destination[row * columns + column] = sum / (2 * BLUR_RADIUS + 1);
+            }
+        }
+    }
+
+    /**
+     * Creates a palette that goes from transparent through blue, green,
+     * and yellow to red
+     * <p>
+     * @return ARGB colors
+     */
+    private static int[] createPalette() {
+        final float[][] stops = {
+            // position, red, green, blue, alpha
+            {0, 0, 0, 1, 0},
+            {0.25f, 0, 0, 1, 0.5f},
+            {0.5f, 0, 1, 0, 0.7f},
+            {0.75f, 1, 1, 0, 0.85f},
+            {1, 1, 0, 0, 1},};
+        final int[] palette = new int[PALETTE_SIZE];
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            final float position = i / (float) (PALETTE_SIZE - 1);
+            int stop = 0;
+            while (stop < stops.length - 2 && position > stops[stop + 1][0]) {
+                stop++;
+            }
+            final float[] low = stops[stop];
+            final float[] high = stops[stop + 1];
+            final float t = (position - low[0]) / (high[0] - low[0]);
+
+            final int red = Math.round(255 * (low[1] + t * (high[1] - low[1])));
+            final int green = Math.round(255 * (low[2] + t * (high[2] - low[2])));
+            final int blue = Math.round(255 * (low[3] + t * (high[3] - low[3])));
+            final int alpha = Math.round(255 * (low[4] + t * (high[4] - low[4])));
+            palette[i] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+        }
+        return palette;
+    }
+}
@@ -1,8 +1,11 @@
 package org.samcrow.frameviewer.ui;
 
+import javafx.beans.binding.Bindings;
 import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleDoubleProperty;
+import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
@@ -50,6 +53,13 @@ public class PlaybackControlPane extends HBox {
     private final ObjectProperty<TrajectoryDisplayMode> trajectoryDisplayMode = new SimpleObjectProperty<>();
     
     private final DoubleProperty trajectoryAlpha = new SimpleDoubleProperty(1);
+    
+    private final IntegerProperty trailLength = new SimpleIntegerProperty(100);
+
+    /**
+     * The number of edits that have not yet been saved
+     */
+    private final IntegerProperty pendingWrites = new SimpleIntegerProperty(0);
 
     public PlaybackControlPane(PlaybackControlModel model) {
         this.model = model;
@@ -65,6 +75,15 @@ public class PlaybackControlPane extends HBox {
             getChildren().add(refreshButton);
             setMargin(refreshButton, PADDING);
         }
+
+        // Unsaved edits indicator
+        {
+            final Label pendingLabel = new Label();
+            pendingLabel.textProperty().bind(Bindings.format("Saving %d edits", pendingWrites));
+            pendingLabel.visibleProperty().bind(pendingWrites.greaterThan(0));
+            getChildren().add(pendingLabel);
+            setMargin(pendingLabel, PADDING);
+        }
         
         // Left spacer
         {
@@ -179,6 +198,19 @@ public class PlaybackControlPane extends HBox {
             setMargin(displayChoice, PADDING);
         }
 
+        // Trail length, in frames before and after the current frame
+        {
+            final Label trailLabel = new Label("Trail: ");
+            getChildren().add(trailLabel);
+            setMargin(trailLabel, PADDING);
+
+            final IntegerField trailField = new IntegerField(trailLength.get());
+            trailField.valueProperty().bindBidirectional(trailLength);
+            
+            getChildren().add(trailField);
+            setMargin(trailField, PADDING);
+        }
+
         // Trajectory opacity
         {
             final Slider slider = new Slider(0, 1, 1);
@@ -219,6 +251,18 @@ public class PlaybackControlPane extends HBox {
         return trajectoryAlpha;
     }
     
+    public final IntegerProperty trailLengthProperty() {
+        return trailLength;
+    }
+    
+    /**
+     * @return The number of edits that have not yet been saved, which is
+     * displayed when it is not zero
+     */
+    public final IntegerProperty pendingWritesProperty() {
+        return pendingWrites;
+    }
+
     public final void setOnRefreshRequested(EventHandler<ActionEvent> handler) {
         refreshButton.setOnAction(handler);
     }
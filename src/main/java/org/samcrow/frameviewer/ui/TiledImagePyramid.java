@@ -0,0 +1,241 @@
+package org.samcrow.frameviewer.ui;
+
+import java.nio.IntBuffer;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+
+/**
+ * A multi-resolution, tiled copy of an image
+ * <p>
+ * Level 0 has the native resolution of the image. Each following level has
+ * half the width and height of the level before it. Every level is cut into
+ * square tiles of {@link #TILE_SIZE} pixels. Levels and tiles are created
+ * the first time they are drawn, and the pixels of the image are read
+ * only once.
+ * <p>
+ * @author Sam Crow
+ */
+class TiledImagePyramid {
+
+    /**
+     * The width and height, in level pixels, of each tile
+     */
+    static final int TILE_SIZE = 256;
+
+    private static final WritablePixelFormat<IntBuffer> FORMAT = PixelFormat.getIntArgbInstance();
+
+    private final Image image;
+
+    private final int nativeWidth;
+
+    private final int nativeHeight;
+
+    /**
+     * The ARGB pixels of each level that has been created, or null
+     */
+    private final int[][] levelPixels;
+
+    /**
+     * The tiles of each level, in row-major order
+     */
+    private final WritableImage[][] tiles;
+
+    public TiledImagePyramid(Image image) {
+        this.image = image;
+        nativeWidth = (int) image.getWidth();
+        nativeHeight = (int) image.getHeight();
+
+        // Levels are not created past the point where the whole image
+        // fits into one tile
+        int levelCount = 1;
+        while (Math.max(levelWidth(levelCount - 1), levelHeight(levelCount - 1)) > TILE_SIZE) {
+            levelCount++;
+        }
+        levelPixels = new int[levelCount][];
+        tiles = new WritableImage[levelCount][];
+    }
+
+    /**
+     * @param image
+     * @return true if this pyramid was created from the provided image
+     */
+    public boolean isFor(Image image) {
+        return this.image == image;
+    }
+
+    /**
+     * Draws the parts of the image that are visible in a rectangle
+     * <p>
+     * @param gc The graphics context to draw on
+     * @param topLeftX The X position of the image's top left corner
+     * @param topLeftY The Y position of the image's top left corner
+     * @param scale The number of canvas units per native image pixel
+     * @param clipWidth The width of the visible area, which starts at 0
+     * @param clipHeight The height of the visible area, which starts at 0
+     */
+    public void draw(GraphicsContext gc, double topLeftX, double topLeftY, double scale, double clipWidth, double clipHeight) {
+        if (nativeWidth == 0 || nativeHeight == 0 || scale <= 0) {
+            return;
+        }
+        final int level = levelForScale(scale);
+        final int factor = 1 << level;
+        final int width = levelWidth(level);
+        final int height = levelHeight(level);
+        final int columns = tileCount(width);
+        final int rows = tileCount(height);
+
+        // Visible area in native image coordinates
+        final double visibleLeft = Math.max(0, -topLeftX / scale);
+        final double visibleTop = Math.max(0, -topLeftY / scale);
+        final double visibleRight = Math.min(nativeWidth, (clipWidth - topLeftX) / scale);
+        final double visibleBottom = Math.min(nativeHeight, (clipHeight - topLeftY) / scale);
+        if (visibleRight <= visibleLeft || visibleBottom <= visibleTop) {
+            return;
+        }
+
+        final double tileNativeSize = (double) TILE_SIZE * factor;
+        final int firstColumn = (int) Math.floor(visibleLeft / tileNativeSize);
+        final int lastColumn = Math.min(columns - 1, (int) Math.floor(visibleRight / tileNativeSize));
+        final int firstRow = (int) Math.floor(visibleTop / tileNativeSize);
+        final int lastRow = Math.min(rows - 1, (int) Math.floor(visibleBottom / tileNativeSize));
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            // Native coordinates of the tile edges. Neighboring tiles share
+            // edges, so no gaps appear between them.
+            final double nativeTop = row * tileNativeSize;
+            final double nativeBottom = Math.min(nativeHeight, (row + 1) * tileNativeSize);
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                final double nativeLeft = column * tileNativeSize;
+                final double nativeRight = Math.min(nativeWidth, (column + 1) * tileNativeSize);
+
+                final WritableImage tile = getTile(level, column, row, columns);
+                final double x = topLeftX + nativeLeft * scale;
+                final double y = topLeftY + nativeTop * scale;
+                gc.drawImage(tile, x, y,
+                        topLeftX + nativeRight * scale - x,
+                        topLeftY + nativeBottom * scale - y);
+            }
+        }
+    }
+
+    /**
+     * Returns the level with the lowest resolution that still has at least
+     * one level pixel per displayed pixel
+     * <p>
+     * @param scale
+     * @return
+     */
+    int levelForScale(double scale) {
+        int level = 0;
+        while (level + 1 < tiles.length && (1 << (level + 1)) * scale <= 1) {
+            level++;
+        }
+        return level;
+    }
+
+    private WritableImage getTile(int level, int column, int row, int columns) {
+        if (tiles[level] == null) {
+            tiles[level] = new WritableImage[columns * tileCount(levelHeight(level))];
+        }
+        final int index = row * columns + column;
+        WritableImage tile = tiles[level][index];
+        if (tile == null) {
+            tile = createTile(level, column, row);
+            tiles[level][index] = tile;
+        }
+        return tile;
+    }
+
+    private WritableImage createTile(int level, int column, int row) {
+        final int width = levelWidth(level);
+        final int height = levelHeight(level);
+        final int x = column * TILE_SIZE;
+        final int y = row * TILE_SIZE;
+        final int tileWidth = Math.min(TILE_SIZE, width - x);
+        final int tileHeight = Math.min(TILE_SIZE, height - y);
+
+        if (level == 0) {
+            // Copy directly from the decoded image
+            return new WritableImage(image.getPixelReader(), x, y, tileWidth, tileHeight);
+        }
+        final int[] pixels = getLevelPixels(level);
+        final WritableImage tile = new WritableImage(tileWidth, tileHeight);
+        tile.getPixelWriter().setPixels(0, 0, tileWidth, tileHeight, FORMAT, pixels, y * width + x, width);
+        return tile;
+    }
+
+    /**
+     * Returns the pixels of a level, creating the level and all levels
+     * before it if necessary
+     * <p>
+     * @param level
+     * @return
+     */
+    private int[] getLevelPixels(int level) {
+        if (levelPixels[level] == null) {
+            if (level == 0) {
+                final int[] pixels = new int[nativeWidth * nativeHeight];
+                final PixelReader reader = image.getPixelReader();
+                reader.getPixels(0, 0, nativeWidth, nativeHeight, FORMAT, pixels, 0, nativeWidth);
+                levelPixels[0] = pixels;
+            }
+            else {
+                levelPixels[level] = downsample(getLevelPixels(level - 1), levelWidth(level - 1), levelHeight(level - 1));
+            }
+        }
+        return levelPixels[level];
+    }
+
+    /**
+     * Halves the size of an image by averaging each 2x2 block of pixels
+     * <p>
+     * @param source The source pixels, in ARGB format
+     * @param width The width of the source
+     * @param height The height of the source
+     * @return The pixels of the smaller image
+     */
+    static int[] downsample(int[] source, int width, int height) {
+        final int newWidth = (width + 1) / 2;
+        final int newHeight = (height + 1) / 2;
+        final int[] result = new int[newWidth * newHeight];
+
+        for (int y = 0; y < newHeight; y++) {
+            final int y0 = 2 * y;
+            final int y1 = Math.min(y0 + 1, height - 1);
+            for (int x = 0; x < newWidth; x++) {
+                final int x0 = 2 * x;
+                final int x1 = Math.min(x0 + 1, width - 1);
+
+                final int p00 = source[y0 * width + x0];
+                final int p01 = source[y0 * width + x1];
+                final int p10 = source[y1 * width + x0];
+                final int p11 = source[y1 * width + x1];
+
+                int pixel = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    final int sum = ((p00 >>> shift) & 0xFF) + ((p01 >>> shift) & 0xFF)
+                            + ((p10 >>> shift) & 0xFF) + ((p11 >>> shift) & 0xFF);
+                    pixel |= ((sum + 2) / 4) << shift;
+                }
+                result[y * newWidth + x] = pixel;
+            }
+        }
+        return result;
+    }
+
+    private int levelWidth(int level) {
+        return (nativeWidth + (1 << level) - 1) >> level;
+    }
+
+    private int levelHeight(int level) {
+        return (nativeHeight + (1 << level) - 1) >> level;
+    }
+
+    private static int tileCount(int size) {
+        return (size + TILE_SIZE - 1) / TILE_SIZE;
+    }
+}
@@ -0,0 +1,182 @@
+package org.samcrow.frameviewer.ui;
+
+import java.util.List;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+import org.samcrow.frameviewer.trajectory.TrajectoryDisplayMode;
+
+/**
+ * Caches the trajectory overlay for {@link TrajectoryDisplayMode#Full} mode
+ * <p>
+ * In full mode, everything except the hilighted current points stays the
+ * same from frame to frame until the data, the displayed trajectories, or
+ * the view changes. That part is drawn once into an image, and each paint
+ * draws the image and then the current points on top of it.
+ * <p>
+ * While the view is changing on every paint (for example, while panning),
+ * the overlay is drawn directly instead. The image is created only after
+ * two consecutive paints have the same view and data.
+ * <p>
+ * This class must be used only from the JavaFX application thread.
+ * <p>
+ * @author Sam Crow
+ */
+class TrajectoryOverlayCache {
+
+    /**
+     * The canvas that the overlay is drawn into before it is copied
+     * into the image
+     */
+    private Canvas canvas;
+
+    private WritableImage image;
+
+    /**
+     * The state that the image was drawn for, or null if there is no image
+     */
+    private Key cachedKey;
+
+    /**
+     * The state of the last paint that did not use the image
+     */
+    private Key lastKey;
+
+    /**
+     * Draws the overlay in full mode, using the cached image if possible
+     * <p>
+     * @param gc
+     * @param trajectories The trajectories to display
+     * @param dataVersion The version of the data that the trajectories
+     * come from
+     * @param nativeImageWidth
+     * @param nativeImageHeight
+     * @param actualImageWidth
+     * @param actualImageHeight
+     * @param imageTopLeftX
+     * @param imageTopLeftY
+     * @param canvasWidth
+     * @param canvasHeight
+     * @param currentFrame
+     * @return true if the overlay was drawn, false if the caller should
+     * draw it directly
+     */
+    public boolean paint(GraphicsContext gc, List<Trajectory> trajectories, long dataVersion, double nativeImageWidth, double nativeImageHeight, double actualImageWidth, double actualImageHeight, double imageTopLeftX, double imageTopLeftY, double canvasWidth, double canvasHeight, int currentFrame) {
+        final Key key = new Key(trajectories, dataVersion, actualImageWidth, actualImageHeight, imageTopLeftX, imageTopLeftY, canvasWidth, canvasHeight);
+        if (!key.equals(cachedKey)) {
+            if (!key.equals(lastKey)) {
+                lastKey = key;
+                return false;
+            }
+            render(key, trajectories, nativeImageWidth, nativeImageHeight, actualImageWidth, actualImageHeight, imageTopLeftX, imageTopLeftY);
+        }
+
+        gc.drawImage(image, 0, 0);
+        for (Trajectory trajectory : trajectories) {
+            trajectory.paintCurrentPoint(gc, nativeImageWidth, nativeImageHeight, actualImageWidth, actualImageHeight, imageTopLeftX, imageTopLeftY, currentFrame);
+        }
+        return true;
+    }
+
+    /**
+     * Discards the cached image
+     */
+    public void invalidate() {
+        cachedKey = null;
+        lastKey = null;
+    }
+
+    private void render(Key key, List<Trajectory> trajectories, double nativeImageWidth, double nativeImageHeight, double actualImageWidth, double actualImageHeight, double imageTopLeftX, double imageTopLeftY) {
+        if (canvas == null || canvas.getWidth() != key.canvasWidth || canvas.getHeight() != key.canvasHeight) {
+            canvas = new Canvas(key.canvasWidth, key.canvasHeight);
+            image = null;
+        }
+        final GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.clearRect(0, 0, key.canvasWidth, key.canvasHeight);
+        for (Trajectory trajectory : trajectories) {
+            // No frame is current, so no points are hilighted
+            trajectory.paint(gc, nativeImageWidth, nativeImageHeight, actualImageWidth, actualImageHeight, imageTopLeftX, imageTopLeftY, Integer.MIN_VALUE, TrajectoryDisplayMode.Full, 0, null);
+        }
+
+        final SnapshotParameters parameters = new SnapshotParameters();
+        parameters.setFill(Color.TRANSPARENT);
+        image = canvas.snapshot(parameters, image);
+        cachedKey = key;
+    }
+
+    /**
+     * The state that the overlay depends on
+     */
+    private static class Key {
+
+        /**
+         * Identifies the displayed trajectories. Calculated from their
+         * identities and order.
+         */
+        private final int trajectoriesHash;
+
+        private final int trajectoryCount;
+
+        private final long dataVersion;
+
+        private final double imageWidth;
+
+        private final double imageHeight;
+
+        private final double imageTopLeftX;
+
+        private final double imageTopLeftY;
+
+        private final int canvasWidth;
+
+        private final int canvasHeight;
+
+        public Key(List<Trajectory> trajectories, long dataVersion, double imageWidth, double imageHeight, double imageTopLeftX, double imageTopLeftY, double canvasWidth, double canvasHeight) {
+            int hash = 1;
+            int count = 0;
+            for (Trajectory trajectory : trajectories) {
+                hash = 31 * hash + System.identityHashCode(trajectory);
+                count++;
+            }
+            this.trajectoriesHash = hash;
+            this.trajectoryCount = count;
+            this.dataVersion = dataVersion;
+            this.imageWidth = imageWidth;
+            this.imageHeight = imageHeight;
+            this.imageTopLeftX = imageTopLeftX;
+            this.imageTopLeftY = imageTopLeftY;
+            this.canvasWidth = (int) Math.ceil(canvasWidth);
+            this.canvasHeight = (int) Math.ceil(canvasHeight);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return trajectoriesHash == other.trajectoriesHash
+                    && trajectoryCount == other.trajectoryCount
+                    && dataVersion == other.dataVersion
+                    && imageWidth == other.imageWidth
+                    && imageHeight == other.imageHeight
+                    && imageTopLeftX == other.imageTopLeftX
+                    && imageTopLeftY == other.imageTopLeftY
+                    && canvasWidth == other.canvasWidth
+                    && canvasHeight == other.canvasHeight;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 59 * hash + trajectoriesHash;
+            hash = 59 * hash + (int) (dataVersion ^ (dataVersion >>> 32));
+            hash = 59 * hash + (int) Double.doubleToLongBits(imageTopLeftX);
+            hash = 59 * hash + (int) Double.doubleToLongBits(imageTopLeftY);
+            return hash;
+        }
+    }
+}
@@ -14,8 +14,10 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javafx.geometry.Insets;
 import javafx.scene.Node;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.Tooltip;
 import javafx.scene.layout.VBox;
 
 /**
@@ -25,6 +27,8 @@ import javafx.scene.layout.VBox;
 public class DataSetSelectionView extends VBox {
  
     private final ComboBox<String> dataSetBox = new ComboBox<>();
+
+    private final CheckBox compactBox = new CheckBox("Store activities and interaction types as codes");
     
     public DataSetSelectionView(Connection connection) throws SQLException {
         
@@ -33,6 +37,9 @@ public class DataSetSelectionView extends VBox {
         
         getChildren().add(new Label("Select a database to open"));
         getChildren().add(dataSetBox);
+        // Converting is one-way, so it is off by default
+        compactBox.setTooltip(new Tooltip("Makes the data set smaller and faster to load. This cannot be undone."));
+        getChildren().add(compactBox);
         for(Node node : getChildrenUnmodifiable()) {
             VBox.setMargin(node, new Insets(10));
         }
@@ -50,10 +57,15 @@ public class DataSetSelectionView extends VBox {
         
         final Pattern pointsPattern = Pattern.compile("^([a-zA-Z0-9]\\w*)_points$");
         final Pattern trajectoriesPattern = Pattern.compile("^([a-zA-Z0-9]\\w*)_trajectories$");
+        // Tables that data sets use to track changes, which are not listed
+        final Pattern supportPattern = Pattern.compile("^([a-zA-Z0-9]\\w*)_trajectories_(version|deleted|schema)$");
         
         final Iterator<String> iter = tableNames.iterator();
         while(iter.hasNext()) {
             final String firstTableName = iter.next();
+            if(supportPattern.matcher(firstTableName).matches()) {
+                continue;
+            }
             final Matcher firstTableMatcher = pointsPattern.matcher(firstTableName);
             if(firstTableMatcher.matches()) {
                 final String dataSetName = firstTableMatcher.group(1);
@@ -92,5 +104,13 @@ public class DataSetSelectionView extends VBox {
     public final String getSelectedDataSet() {
         return dataSetBox.getValue();
     }
+
+    /**
+     * @return true if the user chose to convert the data set to store
+     * enumerated values as codes
+     */
+    public final boolean isCompactSelected() {
+        return compactBox.isSelected();
+    }
     
 }
@@ -1,5 +1,6 @@
 package org.samcrow.frameviewer.ui.db;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
@@ -14,9 +15,11 @@ import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.Region;
 import javafx.scene.layout.VBox;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import jfxtras.labs.dialogs.MonologFX;
 import org.apache.commons.lang.exception.ExceptionUtils;
+import org.samcrow.frameviewer.io3.SqlTrajectoryStore;
 
 /**
  *
@@ -34,11 +37,19 @@ public class DatabaseConnectionDialog extends Stage {
 
     private final Button nextButton = new Button("Next");
 
+    private final Button fileButton = new Button("Local file...");
+
     private Connection connection = null;
 
+    private String connectionUrl;
+    private String username;
+    private String password;
+
     private boolean success = false;
     private String pointsTableName;
     private String trajectoriesTableName;
+    private boolean compactEnumColumns;
+    private File dataFile;
 
     public DatabaseConnectionDialog(String connectionTypeName) {
         this.connectionTypeName = connectionTypeName;
@@ -60,6 +71,16 @@ public class DatabaseConnectionDialog extends Stage {
                 }
             });
 
+            // Open a data set stored in a file instead of a database
+            buttonBox.getChildren().add(fileButton);
+            HBox.setMargin(fileButton, new Insets(0, 0, 0, 10));
+            fileButton.setOnAction(new EventHandler<ActionEvent>() {
+                @Override
+                public void handle(ActionEvent t) {
+                    chooseDataFile();
+                }
+            });
+
             final Region spacer = new Region();
             buttonBox.getChildren().add(spacer);
             HBox.setHgrow(spacer, Priority.ALWAYS);
@@ -72,7 +93,7 @@ public class DatabaseConnectionDialog extends Stage {
 
         switchToConnection();
 
-        final Scene scene = new Scene(root, 220, root.getPrefHeight());
+        final Scene scene = new Scene(root, 300, root.getPrefHeight());
         setScene(scene);
     }
 
@@ -90,12 +111,15 @@ public class DatabaseConnectionDialog extends Stage {
             }
 
             DriverManager.setLoginTimeout(5);
-            connection = DriverManager
-                    .getConnection("jdbc:" + connectionTypeName + "://" 
-                            + connectionView.getAddress() + "/" 
-                            + connectionView.getDatabase(), 
-                            connectionView.getUsername(), 
-                            connectionView.getPassword());
+            connectionUrl = "jdbc:" + connectionTypeName + "://"
+                    + connectionView.getAddress() + "/"
+                    + connectionView.getDatabase()
+                    // Send batches of inserts and updates as
+                    // multi-row statements
+                    + "?rewriteBatchedStatements=true";
+            username = connectionView.getUsername();
+            password = connectionView.getPassword();
+            connection = DriverManager.getConnection(connectionUrl, username, password);
 
             switchToDataSetSelection();
 
@@ -134,6 +158,7 @@ public class DatabaseConnectionDialog extends Stage {
             success = true;
             pointsTableName = dataSetName+"_points";
             trajectoriesTableName = dataSetName+"_trajectories";
+            compactEnumColumns = selectionView.isCompactSelected();
             hide();
         }
         catch (SQLException ex) {
@@ -160,6 +185,19 @@ public class DatabaseConnectionDialog extends Stage {
         }
     }
 
+    private void chooseDataFile() {
+        final FileChooser chooser = new FileChooser();
+        chooser.setTitle("Open or create a data file");
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Trajectory files", "*.trajectories"));
+        // The save dialog allows choosing an existing file or a new one
+        final File file = chooser.showSaveDialog(this);
+        if (file != null) {
+            dataFile = file;
+            success = true;
+            hide();
+        }
+    }
+
     private void switchToDataSetSelection() {
         try {
             selectionView = new DataSetSelectionView(connection);
@@ -208,6 +246,22 @@ public class DatabaseConnectionDialog extends Stage {
         return connection;
     }
 
+    /**
+     * @return A source of new connections to the same database as
+     * {@link #getConnection()}, with the same user
+     */
+    public SqlTrajectoryStore.ConnectionSource getConnectionSource() {
+        final String url = connectionUrl;
+        final String user = username;
+        final String pass = password;
+        return new SqlTrajectoryStore.ConnectionSource() {
+            @Override
+            public Connection open() throws SQLException {
+                return DriverManager.getConnection(url, user, pass);
+            }
+        };
+    }
+
     public boolean succeeded() {
         return success;
     }
@@ -220,4 +274,19 @@ public class DatabaseConnectionDialog extends Stage {
         return trajectoriesTableName;
     }
 
+    /**
+     * @return The file that the user chose to store the data set in, or
+     * null if the user chose a database data set
+     */
+    public File getDataFile() {
+        return dataFile;
+    }
+
+    /**
+     * @return true if the user chose to store enumerated values as codes
+     */
+    public boolean isCompactEnumColumnsSelected() {
+        return compactEnumColumns;
+    }
+
 }
@@ -0,0 +1,179 @@
+package org.samcrow.frameviewer.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map with int keys that does not box its keys
+ * <p>
+ * Uses open addressing with linear probing. Null values are not allowed.
+ * <p>
+ * @param <V> The type of value to store
+ * @author Sam Crow
+ */
+public class IntMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] keys;
+
+    /**
+     * The value for each slot, or null if the slot is empty
+     */
+    private Object[] values;
+
+    private int size;
+
+    public IntMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize The number of entries that can be added without
+     * resizing
+     */
+    public IntMap(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity *= 2;
+        }
+        keys = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    /**
+     * @param key
+     * @return The value for the provided key, or null if none exists
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        final int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return (V) values[slot];
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Associates a value with a key
+     * <p>
+     * @param key
+     * @param value The value, which must not be null
+     * @return The value previously associated with the key, or null if
+     * none existed
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("IntMap does not allow null values");
+        }
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                final V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        if (size > keys.length * 3 / 4) {
+            resize(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the value associated with a key
+     * <p>
+     * @param key
+     * @return The removed value, or null if none existed
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                final V previous = (V) values[slot];
+                deleteSlot(slot);
+                size--;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Empties a slot and moves later entries of the same probe sequence
+     * back, so that lookups do not stop at the gap
+     * <p>
+     * @param slot
+     */
+    private void deleteSlot(int slot) {
+        final int mask = keys.length - 1;
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (values[next] != null) {
+            final int home = hash(keys[next]) & mask;
+            // Move the entry if its home slot is not between the gap
+            // and its current slot
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[gap] = null;
+    }
+
+    private void resize(int newCapacity) {
+        final int[] oldKeys = keys;
+        final Object[] oldValues = values;
+        keys = new int[newCapacity];
+        values = new Object[newCapacity];
+        final int mask = newCapacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of a key so that sequential keys do not form long
+     * runs of occupied slots
+     */
+    private static int hash(int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
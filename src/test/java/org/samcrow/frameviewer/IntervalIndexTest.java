@@ -0,0 +1,132 @@
+package org.samcrow.frameviewer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author samcrow
+ */
+public class IntervalIndexTest extends TestCase {
+
+    public IntervalIndexTest(String testName) {
+        super(testName);
+    }
+
+    public void testFindOverlapping() {
+        final IntervalIndex<Range> index = new IntervalIndex<>();
+        final Range early = new Range(0, 10);
+        final Range late = new Range(20, 30);
+        index.add(early);
+        index.add(late);
+
+        assertEquals(list(early), find(index, 5, 5));
+        assertEquals(list(early), find(index, 10, 19));
+        assertEquals(list(), find(index, 11, 19));
+        assertEquals(list(early, late), find(index, 10, 20));
+
+        late.first = 5;
+        index.update(late);
+        assertEquals(list(early, late), find(index, 6, 6));
+
+        assertTrue(index.remove(early));
+        assertFalse(index.remove(early));
+        assertEquals(list(late), find(index, 0, 100));
+    }
+
+    public void testMatchesLinearSearch() {
+        final IntervalIndex<Range> index = new IntervalIndex<>();
+        final List<Range> ranges = new ArrayList<>();
+        final Random random = new Random(1);
+
+        for (int i = 0; i < 5000; i++) {
+            final int operation = random.nextInt(4);
+            if (operation == 0 && !ranges.isEmpty()) {
+                final Range removed = ranges.remove(random.nextInt(ranges.size()));
+                assertTrue(index.remove(removed));
+            }
+            else if (operation == 1 && !ranges.isEmpty()) {
+                // Extend a range, like a trajectory that gets a new point
+                final Range changed = ranges.get(random.nextInt(ranges.size()));
+                changed.last += random.nextInt(50);
+                index.update(changed);
+            }
+            else {
+                final int first = random.nextInt(1000);
+                final Range range = new Range(first, first + random.nextInt(100));
+                ranges.add(range);
+                index.add(range);
+            }
+
+            final int low = random.nextInt(1100) - 50;
+            final int high = low + random.nextInt(40);
+            final List<Range> expected = new ArrayList<>();
+            for (Range range : ranges) {
+                if (range.first <= high && range.last >= low) {
+                    expected.add(range);
+                }
+            }
+            final List<Range> actual = find(index, low, high);
+            assertEquals(expected.size(), actual.size());
+            assertTrue(actual.containsAll(expected));
+
+            final List<Range> expectedStarting = new ArrayList<>();
+            final List<Range> expectedEnding = new ArrayList<>();
+            for (Range range : ranges) {
+                if (range.first >= low && range.first <= high) {
+                    expectedStarting.add(range);
+                }
+                if (range.last >= low && range.last <= high) {
+                    expectedEnding.add(range);
+                }
+            }
+            final List<Range> starting = new ArrayList<>();
+            index.findStartingBetween(low, high, starting);
+            assertEquals(expectedStarting.size(), starting.size());
+            assertTrue(starting.containsAll(expectedStarting));
+            final List<Range> ending = new ArrayList<>();
+            index.findEndingBetween(low, high, ending);
+            assertEquals(expectedEnding.size(), ending.size());
+            assertTrue(ending.containsAll(expectedEnding));
+        }
+        assertEquals(ranges.size(), index.size());
+    }
+
+    private static List<Range> find(IntervalIndex<Range> index, int low, int high) {
+        final List<Range> results = new ArrayList<>();
+        index.findOverlapping(low, high, results);
+        return results;
+    }
+
+    private static List<Range> list(Range... ranges) {
+        final List<Range> list = new ArrayList<>();
+        for (Range range : ranges) {
+            list.add(range);
+        }
+        return list;
+    }
+
+    private static class Range implements MultiFrameObject {
+
+        int first;
+
+        int last;
+
+        public Range(int first, int last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        public int getFirstFrame() {
+            return first;
+        }
+
+        @Override
+        public int getLastFrame() {
+            return last;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.samcrow.frameviewer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author samcrow
+ */
+public class MultiFrameDataStoreTest extends TestCase {
+
+    public MultiFrameDataStoreTest(String testName) {
+        super(testName);
+    }
+
+    public void testActiveObjectsFollowFrame() {
+        final MultiFrameDataStore<Range> store = new MultiFrameDataStore<>();
+        final Random random = new Random(2);
+        for (int i = 0; i < 500; i++) {
+            final int first = random.nextInt(2000);
+            store.add(new Range(first, first + random.nextInt(200)));
+        }
+        store.setActiveRange(20);
+
+        int frame = 0;
+        for (int step = 0; step < 3000; step++) {
+            final int operation = random.nextInt(20);
+            if (operation == 0) {
+                // Jump
+                frame = random.nextInt(2200) - 100;
+            }
+            else if (operation == 1) {
+                store.setActiveRange(random.nextInt(50));
+            }
+            else if (operation == 2) {
+                final int first = frame + random.nextInt(40) - 20;
+                store.add(new Range(first, first + random.nextInt(40)));
+            }
+            else if (operation == 3) {
+                final Iterator<Range> iterator = store.iterator();
+                for (int i = random.nextInt(20); i > 0 && iterator.hasNext(); i--) {
+                    iterator.next();
+                }
+                if (iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+            else {
+                // Play forwards or backwards, sometimes skipping frames
+                frame += random.nextInt(7) - 3;
+            }
+            store.setCurrentFrame(frame);
+
+            final List<Range> expected = store.getObjectsNearCurrentFrame(store.getActiveRange());
+            final List<Range> actual = new ArrayList<>(store.getActiveObjects());
+            assertEquals(expected.size(), actual.size());
+            assertTrue(actual.containsAll(expected));
+        }
+    }
+
+    public void testBatchFiresOnce() {
+        final MultiFrameDataStore<Range> store = new MultiFrameDataStore<>();
+        final Range kept = new Range(0, 10);
+        final Range removed = new Range(5, 15);
+        store.add(kept);
+        store.add(removed);
+        store.setActiveRange(1);
+
+        final int[] events = new int[1];
+        store.addListener(new InvalidationListener() {
+            @Override
+            public void invalidated(Observable o) {
+                events[0]++;
+            }
+        });
+
+        store.beginBatch();
+        final List<Range> added = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final Range range = new Range(i, i + 5);
+            added.add(range);
+            store.add(range);
+        }
+        // Added and removed in the same batch
+        final Range temporary = new Range(0, 1);
+        store.add(temporary);
+        store.remove(temporary);
+        store.remove(removed);
+        store.markModified(kept);
+        store.beginBatch();
+        store.setCurrentFrame(50);
+        store.commit();
+        assertEquals(0, events[0]);
+        store.commit();
+
+        assertEquals(1, events[0]);
+        final MultiFrameDataStore.Change<Range> change = store.getLastChange();
+        assertEquals(100, change.getAdded().size());
+        assertTrue(change.getAdded().containsAll(added));
+        assertEquals(1, change.getRemoved().size());
+        assertTrue(change.getRemoved().contains(removed));
+        assertEquals(1, change.getModified().size());
+        assertTrue(change.getModified().contains(kept));
+
+        final List<Range> expected = store.getObjectsNearCurrentFrame(store.getActiveRange());
+        assertEquals(expected.size(), store.getActiveObjects().size());
+        assertTrue(store.getActiveObjects().containsAll(expected));
+
+        try {
+            store.commit();
+            fail("Commit without a batch should throw an exception");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testSnapshots() {
+        final MultiFrameDataStore<Range> store = new MultiFrameDataStore<>();
+        final List<Runnable> tasks = new ArrayList<>();
+        store.setSnapshotExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        final MultiFrameDataStore.Snapshot<Range> empty = store.getSnapshot();
+        assertEquals(0, empty.getObjects().size());
+
+        // Changes do not publish snapshots until one is asked for
+        final Range first = new Range(0, 5);
+        store.add(first);
+        store.add(new Range(3, 8));
+        assertTrue(tasks.isEmpty());
+        assertSame(empty, store.getSnapshot());
+        assertSame(empty, store.getSnapshot());
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        final MultiFrameDataStore.Snapshot<Range> snapshot = store.getSnapshot();
+        assertEquals(store.getVersion(), snapshot.getVersion());
+        assertEquals(2, snapshot.getObjects().size());
+        assertTrue(tasks.isEmpty());
+
+        // A snapshot asked for during a batch is published on commit
+        store.beginBatch();
+        store.remove(first);
+        store.getSnapshot();
+        tasks.remove(0).run();
+        assertSame(snapshot, store.getSnapshot());
+        store.commit();
+        assertEquals(1, store.getSnapshot().getObjects().size());
+        assertEquals(2, snapshot.getObjects().size());
+        assertSame(store.getSnapshot(), store.publishSnapshot());
+    }
+
+    /**
+     * A new snapshot only copies the chunks that have changed
+     */
+    public void testSnapshotSharesUnchangedChunks() {
+        final List<Range> copied = new ArrayList<>();
+        final MultiFrameDataStore<Range> store = new MultiFrameDataStore<Range>() {
+            @Override
+            protected Range snapshotOf(Range object) {
+                copied.add(object);
+                return object;
+            }
+        };
+        final List<Range> ranges = new ArrayList<>();
+        for (int i = 0; i < 3 * MultiFrameDataStore.SNAPSHOT_CHUNK_SIZE; i++) {
+            final Range range = new Range(i, i + 1);
+            ranges.add(range);
+            store.add(range);
+        }
+        final MultiFrameDataStore.Snapshot<Range> first = store.publishSnapshot();
+        assertEquals(ranges.size(), first.getObjects().size());
+        assertEquals(ranges.size(), copied.size());
+
+        copied.clear();
+        store.markModified(ranges.get(0));
+        final MultiFrameDataStore.Snapshot<Range> second = store.publishSnapshot();
+        assertEquals(MultiFrameDataStore.SNAPSHOT_CHUNK_SIZE, copied.size());
+        assertEquals(ranges.size(), second.getObjects().size());
+
+        // A removed object's slot is reused
+        copied.clear();
+        final Range removed = ranges.get(MultiFrameDataStore.SNAPSHOT_CHUNK_SIZE + 1);
+        store.remove(removed);
+        assertEquals(ranges.size() - 1, store.publishSnapshot().getObjects().size());
+        assertFalse(store.getSnapshot().getObjects().contains(removed));
+        final Range added = new Range(0, 0);
+        store.add(added);
+        assertTrue(store.publishSnapshot().getObjects().contains(added));
+        assertEquals(2 * MultiFrameDataStore.SNAPSHOT_CHUNK_SIZE - 1, copied.size());
+        assertEquals(ranges.size(), store.getSnapshot().getObjects().size());
+    }
+
+    private static class Range implements MultiFrameObject {
+
+        final int first;
+
+        final int last;
+
+        public Range(int first, int last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        public int getFirstFrame() {
+            return first;
+        }
+
+        @Override
+        public int getLastFrame() {
+            return last;
+        }
+    }
+}
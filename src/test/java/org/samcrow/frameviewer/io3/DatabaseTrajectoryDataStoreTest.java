@@ -0,0 +1,331 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.samcrow.frameviewer.trajectory.InteractionPoint;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ *
+ * @author samcrow
+ */
+public class DatabaseTrajectoryDataStoreTest extends TestCase {
+
+    /**
+     * Runs tasks on the calling thread, in place of the JavaFX application
+     * thread
+     */
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * A file store whose point saves can be made to wait, so that writes
+     * stay queued
+     */
+    private static class BlockingStore extends FileTrajectoryStore {
+
+        /**
+         * Counted down when a point save starts waiting
+         */
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        /**
+         * Counted down to let point saves finish
+         */
+        final CountDownLatch release = new CountDownLatch(1);
+
+        volatile boolean block;
+
+        BlockingStore(File file) throws IOException {
+            super(file);
+        }
+
+        @Override
+        public void savePoint(Point point, int trajectoryId) throws IOException {
+            if (block) {
+                entered.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+            super.savePoint(point, trajectoryId);
+        }
+    }
+
+    private File file;
+
+    /**
+     * Tasks posted to the application thread by the data stores created
+     * with {@link #openWindowed(long)}. The test thread runs them.
+     */
+    private final BlockingQueue<Runnable> applicationTasks = new LinkedBlockingQueue<>();
+
+    private final Executor applicationThread = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            applicationTasks.add(command);
+        }
+    };
+
+    /**
+     * The store of the data store created with {@link #openWindowed(long)}
+     */
+    private BlockingStore store;
+
+    public DatabaseTrajectoryDataStoreTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("store", ".trajectories");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".lock").delete();
+    }
+
+    /**
+     * Saves two trajectories whose interaction points at frame 4 refer to
+     * each other, and opens a data store on them
+     */
+    private DatabaseTrajectoryDataStore openInteracting() throws IOException {
+        try (FileTrajectoryStore store = new FileTrajectoryStore(file)) {
+            store.saveTrajectory(TestTrajectories.createTrajectory(1));
+            final Trajectory second = TestTrajectories.createTrajectory(2);
+            ((InteractionPoint) second.get(4)).setMetAntId(1);
+            store.saveTrajectory(second);
+        }
+        return new DatabaseTrajectoryDataStore(new FileTrajectoryStore(file), null, null, DIRECT);
+    }
+
+    /**
+     * Creates a trajectory with points in consecutive frames
+     */
+    private static Trajectory createTrajectory(int id, int firstFrame, int pointCount) {
+        final Trajectory trajectory = new Trajectory(firstFrame, firstFrame + pointCount, id);
+        for (int frame = firstFrame; frame < firstFrame + pointCount; frame++) {
+            trajectory.set(frame, new Point(frame, 0));
+        }
+        return trajectory;
+    }
+
+    /**
+     * Saves trajectory 1 at frames 0 to 2, trajectory 2 at frames 100 to
+     * 102, and trajectory 3 at frames 200 to 202, and opens a data store
+     * that loads 10 frames on each side of the current frame
+     * <p>
+     * @param pointBudget The number of loaded points above which
+     * trajectories are unloaded
+     */
+    private DatabaseTrajectoryDataStore openWindowed(long pointBudget) throws IOException {
+        store = new BlockingStore(file);
+        store.saveTrajectory(createTrajectory(1, 0, 3));
+        store.saveTrajectory(createTrajectory(2, 100, 3));
+        store.saveTrajectory(createTrajectory(3, 200, 3));
+        return new DatabaseTrajectoryDataStore(store, null, new TrajectoryWindow(10, 0, pointBudget), applicationThread);
+    }
+
+    /**
+     * Runs the tasks posted to the application thread until the data store
+     * has finished loading, and then any other tasks that are waiting
+     */
+    private void finishLoading(DatabaseTrajectoryDataStore dataStore) throws InterruptedException {
+        while (dataStore.isLoading()) {
+            final Runnable task = applicationTasks.poll(10, TimeUnit.SECONDS);
+            assertNotNull("Timed out waiting for trajectories to load", task);
+            task.run();
+        }
+        Runnable task;
+        while ((task = applicationTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Moves the current frame and waits for the trajectories near it to
+     * load
+     */
+    private void moveTo(DatabaseTrajectoryDataStore dataStore, int frame) throws InterruptedException {
+        dataStore.setCurrentFrame(frame);
+        finishLoading(dataStore);
+    }
+
+    public void testLoadsAsCurrentFrameMoves() throws IOException, InterruptedException {
+        try (DatabaseTrajectoryDataStore dataStore = openWindowed(1000)) {
+            assertNotNull(dataStore.findTrajectoryById(1));
+            assertNull(dataStore.findTrajectoryById(2));
+            assertTrue(dataStore.getWindow().isUnloaded(2));
+            assertTrue(dataStore.getWindow().isUnloaded(3));
+
+            // Within half the radius of the loaded window, nothing is loaded
+            moveTo(dataStore, 4);
+            assertNull(dataStore.findTrajectoryById(2));
+
+            moveTo(dataStore, 100);
+            assertEquals(3, dataStore.findTrajectoryById(2).getPointCount());
+            assertFalse(dataStore.getWindow().isUnloaded(2));
+            // Under the budget, nothing is unloaded
+            assertNotNull(dataStore.findTrajectoryById(1));
+            assertNull(dataStore.findTrajectoryById(3));
+        }
+    }
+
+    public void testUnloadsOverBudget() throws IOException, InterruptedException {
+        try (DatabaseTrajectoryDataStore dataStore = openWindowed(4)) {
+            moveTo(dataStore, 100);
+            assertNotNull(dataStore.findTrajectoryById(2));
+            assertNull(dataStore.findTrajectoryById(1));
+            assertTrue(dataStore.getWindow().isUnloaded(1));
+
+            // The unloaded trajectory is loaded again when it is near
+            moveTo(dataStore, 0);
+            assertEquals(3, dataStore.findTrajectoryById(1).getPointCount());
+            assertNull(dataStore.findTrajectoryById(2));
+        }
+    }
+
+    /**
+     * A trajectory with an edit that can be undone stays loaded, so that
+     * the edit can be undone
+     */
+    public void testKeepsTrajectoriesWithEdits() throws IOException, InterruptedException {
+        try (DatabaseTrajectoryDataStore dataStore = openWindowed(4)) {
+            final Trajectory trajectory = dataStore.findTrajectoryById(1);
+            final Point point = trajectory.get(0);
+            point.setX(50);
+            dataStore.getJournal().pointMoved(trajectory, 0, 0, 0);
+            dataStore.saveLater(point, 1);
+            dataStore.flushWrites();
+
+            moveTo(dataStore, 100);
+            assertNotNull(dataStore.findTrajectoryById(2));
+            assertSame(trajectory, dataStore.findTrajectoryById(1));
+
+            assertTrue(dataStore.undo());
+            assertEquals(0, trajectory.get(0).getX());
+        }
+    }
+
+    /**
+     * Nothing is unloaded while writes are queued, because a queued write
+     * may belong to a trajectory that would be unloaded
+     */
+    public void testNoUnloadingWhileWritesQueued() throws IOException, InterruptedException {
+        try (DatabaseTrajectoryDataStore dataStore = openWindowed(4)) {
+            final Trajectory trajectory = dataStore.findTrajectoryById(1);
+            dataStore.setCurrentFrame(100);
+            // Hold the loaded trajectories until a write is waiting
+            final Runnable loaded = applicationTasks.poll(10, TimeUnit.SECONDS);
+            assertNotNull("Timed out waiting for trajectories to load", loaded);
+
+            store.block = true;
+            try {
+                dataStore.saveLater(trajectory.get(1), 1);
+                assertTrue(store.entered.await(10, TimeUnit.SECONDS));
+                loaded.run();
+                assertFalse(dataStore.isLoading());
+                assertNotNull(dataStore.findTrajectoryById(2));
+                assertSame(trajectory, dataStore.findTrajectoryById(1));
+            }
+            finally {
+                store.release.countDown();
+            }
+            dataStore.flushWrites();
+            finishLoading(dataStore);
+            // The next load unloads it
+            moveTo(dataStore, 200);
+            assertNull(dataStore.findTrajectoryById(1));
+        }
+    }
+
+    /**
+     * Points that another user wrote to trajectories that are not loaded
+     * are recorded in the window, and are loaded with the trajectories
+     */
+    public void testRefreshRecordsUnloadedPoints() throws IOException, InterruptedException {
+        try (DatabaseTrajectoryDataStore dataStore = openWindowed(1000)) {
+            // Written by another user
+            final Point point = new Point(7, 7);
+            point.setFrame(50);
+            store.savePoint(point, 2);
+            store.saveTrajectory(createTrajectory(4, 150, 2));
+
+            dataStore.refresh();
+            finishLoading(dataStore);
+            assertNull(dataStore.findTrajectoryById(2));
+            assertNull(dataStore.findTrajectoryById(4));
+            assertTrue(dataStore.getWindow().isUnloaded(4));
+
+            // Trajectory 2 now starts at frame 50
+            moveTo(dataStore, 50);
+            final Trajectory trajectory = dataStore.findTrajectoryById(2);
+            assertEquals(4, trajectory.getPointCount());
+            assertEquals(7, trajectory.get(50).getX());
+
+            moveTo(dataStore, 150);
+            assertEquals(2, dataStore.findTrajectoryById(4).getPointCount());
+        }
+    }
+
+    public void testConnectToMissingTrajectory() throws IOException {
+        try (DatabaseTrajectoryDataStore dataStore = openInteracting()) {
+            final InteractionPoint first = (InteractionPoint) dataStore.findTrajectoryById(1).get(4);
+            final InteractionPoint second = (InteractionPoint) dataStore.findTrajectoryById(2).get(4);
+            assertSame(second, first.getOtherPoint());
+            assertSame(first, second.getOtherPoint());
+
+            first.setMetAntId(7);
+            dataStore.connectInteractionPoint(first);
+            assertNull(first.getOtherPoint());
+            assertNull(second.getOtherPoint());
+        }
+    }
+
+    /**
+     * An interaction point that another user has changed to a plain point
+     * is changed to a plain point by a refresh
+     */
+    public void testRefreshDemotesInteraction() throws IOException {
+        try (DatabaseTrajectoryDataStore dataStore = openInteracting()) {
+            final InteractionPoint partner = (InteractionPoint) dataStore.findTrajectoryById(2).get(4);
+            final Point plain = new Point(8, 9);
+            plain.setFrame(4);
+            dataStore.persistPoint(plain, 1);
+            dataStore.refresh();
+
+            final Trajectory trajectory = dataStore.findTrajectoryById(1);
+            assertFalse(trajectory.get(4) instanceof InteractionPoint);
+            assertEquals(8, trajectory.get(4).getX());
+            assertNull(partner.getOtherPoint());
+
+            // Saving the trajectory again does not restore the interaction
+            dataStore.saveLater(trajectory);
+            dataStore.flushWrites();
+        }
+        try (FileTrajectoryStore store = new FileTrajectoryStore(file)) {
+            for (Trajectory trajectory : store.loadAll()) {
+                if (trajectory.getId() == 1) {
+                    assertFalse(trajectory.get(4) instanceof InteractionPoint);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.io.IOException;
+import junit.framework.TestCase;
+import org.samcrow.frameviewer.trajectory.InteractionPoint;
+import org.samcrow.frameviewer.trajectory.InteractionType;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ *
+ * @author samcrow
+ */
+public class EditJournalTest extends TestCase {
+
+    private File file;
+
+    /**
+     * The store that the data store saves to
+     */
+    private FileTrajectoryStore store;
+
+    private DatabaseTrajectoryDataStore dataStore;
+
+    /**
+     * Trajectory 1 from the data store
+     */
+    private Trajectory trajectory;
+
+    public EditJournalTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("store", ".trajectories");
+        file.delete();
+        store = new FileTrajectoryStore(file);
+        store.saveTrajectory(TestTrajectories.createTrajectory(1));
+        dataStore = new DatabaseTrajectoryDataStore(store, null, null, DatabaseTrajectoryDataStoreTest.DIRECT);
+        trajectory = dataStore.findTrajectoryById(1);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        dataStore.close();
+        file.delete();
+        new File(file.getPath() + ".lock").delete();
+    }
+
+    /**
+     * Waits for the queued writes, then reads a trajectory from the store
+     * <p>
+     * @return The stored trajectory, or null if it is not stored
+     */
+    private Trajectory stored(int id) throws IOException {
+        dataStore.flushWrites();
+        for (Trajectory storedTrajectory : store.loadAll()) {
+            if (storedTrajectory.getId() == id) {
+                return storedTrajectory;
+            }
+        }
+        return null;
+    }
+
+    public void testSteps() {
+        final EditJournal journal = new EditJournal();
+        final Trajectory trajectory = new Trajectory(0, 10, 1);
+        trajectory.set(0, new Point(1, 1));
+        assertFalse(journal.canUndo());
+
+        journal.pointMoved(trajectory, 0, 0, 0);
+        journal.beginStep();
+        journal.pointChanged(trajectory, 0, null);
+        journal.attributesChanged(trajectory, 2, trajectory.getFromAction(), trajectory.getToAction());
+        // No change
+        journal.attributesChanged(trajectory, 1, trajectory.getFromAction(), trajectory.getToAction());
+        journal.endStep();
+        assertEquals(3, journal.size());
+
+        assertEquals(2, journal.takeUndoStep().size());
+        assertTrue(journal.canRedo());
+        assertEquals(2, journal.takeRedoStep().size());
+        assertFalse(journal.canRedo());
+
+        // A new edit discards the edits that could be redone
+        journal.takeUndoStep();
+        journal.pointMoved(trajectory, 0, 5, 5);
+        assertFalse(journal.canRedo());
+        assertEquals(2, journal.size());
+    }
+
+    public void testLimit() {
+        final EditJournal journal = new EditJournal(3);
+        final Trajectory trajectory = new Trajectory(0, 10, 1);
+        trajectory.set(0, new Point(1, 1));
+        for (int i = 0; i < 10; i++) {
+            journal.pointMoved(trajectory, 0, i, i);
+        }
+        assertEquals(3, journal.size());
+
+        journal.takeUndoStep();
+        journal.takeUndoStep();
+        journal.takeUndoStep();
+        assertFalse(journal.canUndo());
+    }
+
+    public void testUndoPointMoved() throws IOException {
+        final Point point = trajectory.get(0);
+        point.setX(10);
+        point.setY(20);
+        dataStore.getJournal().pointMoved(trajectory, 0, 1, 2);
+        dataStore.saveLater(point, 1);
+
+        assertTrue(dataStore.undo());
+        assertEquals(1, trajectory.get(0).getX());
+        assertEquals(2, trajectory.get(0).getY());
+        assertEquals(1, stored(1).get(0).getX());
+        assertEquals(2, stored(1).get(0).getY());
+
+        assertTrue(dataStore.redo());
+        assertEquals(10, trajectory.get(0).getX());
+        assertEquals(20, stored(1).get(0).getY());
+    }
+
+    public void testUndoPointAdded() throws IOException {
+        trajectory.set(5, new Point(7, 8));
+        dataStore.getJournal().pointChanged(trajectory, 5, null);
+        dataStore.saveLater(trajectory.get(5), 1);
+
+        assertTrue(dataStore.undo());
+        assertNull(trajectory.get(5));
+        assertNull(stored(1).get(5));
+
+        assertTrue(dataStore.redo());
+        assertEquals(7, trajectory.get(5).getX());
+        assertEquals(8, stored(1).get(5).getY());
+    }
+
+    public void testUndoPointRemoved() throws IOException {
+        final Point removed = trajectory.get(1);
+        dataStore.deletePointLater(1, 1);
+        removed.detach();
+        trajectory.set(1, null);
+        dataStore.getJournal().pointChanged(trajectory, 1, removed);
+
+        assertTrue(dataStore.undo());
+        assertEquals(Point.Activity.CarryingFood, trajectory.get(1).getActivity());
+        assertEquals(3, stored(1).get(1).getX());
+        assertEquals(Point.Activity.CarryingFood, stored(1).get(1).getActivity());
+
+        assertTrue(dataStore.redo());
+        assertNull(trajectory.get(1));
+        assertNull(stored(1).get(1));
+    }
+
+    public void testUndoPointPromoted() throws IOException {
+        final Point oldPoint = EditJournal.copyOf(trajectory.get(0));
+        final InteractionPoint promoted = new InteractionPoint(trajectory.get(0));
+        promoted.setType(InteractionType.Received);
+        promoted.setMetAntId(3);
+        trajectory.set(0, promoted);
+        dataStore.getJournal().pointChanged(trajectory, 0, oldPoint);
+        dataStore.saveLater(trajectory);
+
+        assertTrue(dataStore.undo());
+        assertFalse(trajectory.get(0) instanceof InteractionPoint);
+        assertEquals(1, trajectory.get(0).getX());
+        assertFalse(stored(1).get(0) instanceof InteractionPoint);
+
+        assertTrue(dataStore.redo());
+        assertEquals(InteractionType.Received, ((InteractionPoint) trajectory.get(0)).getType());
+        final Point storedPoint = stored(1).get(0);
+        assertTrue(storedPoint instanceof InteractionPoint);
+        assertEquals(3, ((InteractionPoint) storedPoint).getMetAntId());
+    }
+
+    public void testUndoAttributesChanged() throws IOException {
+        final Trajectory.ToAction oldToAction = trajectory.getToAction();
+        trajectory.setId(5);
+        trajectory.setToAction(Trajectory.ToAction.IntoTunnel);
+        dataStore.getJournal().attributesChanged(trajectory, 1, trajectory.getFromAction(), oldToAction);
+        dataStore.saveLater(trajectory);
+
+        assertTrue(dataStore.undo());
+        assertEquals(1, trajectory.getId());
+        assertSame(trajectory, dataStore.findTrajectoryById(1));
+        assertEquals(oldToAction, trajectory.getToAction());
+        assertEquals(oldToAction, stored(1).getToAction());
+        assertNull(stored(5));
+
+        assertTrue(dataStore.redo());
+        assertEquals(5, trajectory.getId());
+        assertNull(dataStore.findTrajectoryById(1));
+        assertEquals(Trajectory.ToAction.IntoTunnel, stored(5).getToAction());
+        assertEquals(3, stored(5).getPointCount());
+        assertNull(stored(1));
+    }
+
+    /**
+     * Undoing a change of ID to an ID that another trajectory now has does
+     * not delete the records of the other trajectory
+     */
+    public void testUndoAttributesChangedToUsedId() throws IOException {
+        trajectory.setId(5);
+        dataStore.getJournal().attributesChanged(trajectory, 1, trajectory.getFromAction(), trajectory.getToAction());
+        dataStore.saveLater(trajectory);
+        dataStore.flushWrites();
+        // Another user creates a trajectory with the old ID
+        final Trajectory other = new Trajectory(20, 22, 1);
+        other.set(20, new Point(30, 30));
+        other.set(21, new Point(31, 31));
+        store.saveTrajectory(other);
+        dataStore.refresh();
+        assertNotNull(dataStore.findTrajectoryById(1));
+
+        assertTrue(dataStore.undo());
+        final Trajectory stored = stored(1);
+        assertEquals(30, stored.get(20).getX());
+        assertEquals(31, stored.get(21).getX());
+        assertEquals(1, stored.get(0).getX());
+        assertNull(stored(5));
+    }
+
+    public void testUndoTrajectoryDeleted() throws IOException {
+        dataStore.deleteLater(trajectory);
+        dataStore.getJournal().trajectoryDeleted(trajectory);
+        assertNull(stored(1));
+
+        assertTrue(dataStore.undo());
+        assertTrue(dataStore.contains(trajectory));
+        assertSame(trajectory, dataStore.findTrajectoryById(1));
+        assertEquals(3, stored(1).getPointCount());
+
+        assertTrue(dataStore.redo());
+        assertFalse(dataStore.contains(trajectory));
+        assertNull(stored(1));
+    }
+}
@@ -0,0 +1,164 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.samcrow.frameviewer.trajectory.InteractionPoint;
+import org.samcrow.frameviewer.trajectory.InteractionType;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ *
+ * @author samcrow
+ */
+public class FileTrajectoryStoreTest extends TestCase {
+
+    private File file;
+
+    public FileTrajectoryStoreTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("store", ".trajectories");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".lock").delete();
+    }
+
+    public void testSaveAndLoad() throws IOException {
+        try (FileTrajectoryStore store = new FileTrajectoryStore(file)) {
+            assertEquals(4, store.saveTrajectory(TestTrajectories.createTrajectory(1)).getRowsWritten());
+            store.saveTrajectory(TestTrajectories.createTrajectory(2));
+            store.deleteTrajectory(2);
+            store.deletePoint(1, 0);
+        }
+        try (FileTrajectoryStore store = new FileTrajectoryStore(file)) {
+            final List<Trajectory> loaded = store.loadAll();
+            assertEquals(1, loaded.size());
+            final Trajectory trajectory = loaded.get(0);
+            assertEquals(1, trajectory.getId());
+            assertEquals(Trajectory.FromAction.OutOfTunnel, trajectory.getFromAction());
+            assertNull(trajectory.get(0));
+            assertEquals(Point.Activity.CarryingFood, trajectory.get(1).getActivity());
+            assertEquals(3, trajectory.get(1).getX());
+
+            final InteractionPoint iPoint = (InteractionPoint) trajectory.get(4);
+            assertEquals(InteractionType.TwoWay, iPoint.getType());
+            assertEquals(2, iPoint.getMetAntId());
+            assertEquals(Point.Activity.CarryingSomethingElse, iPoint.getMetAntActivity());
+        }
+    }
+
+    public void testLoadSummariesAndTrajectories() throws IOException {
+        try (FileTrajectoryStore store = new FileTrajectoryStore(file)) {
+            store.saveTrajectory(TestTrajectories.createTrajectory(1));
+            store.saveTrajectory(TestTrajectories.createTrajectory(2));
+            store.deletePoint(2, 4);
+
+            final List<TrajectorySummary> summaries = store.loadSummaries();
+            assertEquals(2, summaries.size());
+            assertEquals(1, summaries.get(0).getId());
+            assertEquals(0, summaries.get(0).getFirstFrame());
+            assertEquals(4, summaries.get(0).getLastFrame());
+            assertEquals(3, summaries.get(0).getPointCount());
+            assertEquals(1, summaries.get(1).getLastFrame());
+
+            final List<Trajectory> loaded = store.loadTrajectories(Arrays.asList(2, 3));
+            assertEquals(1, loaded.size());
+            assertEquals(2, loaded.get(0).getId());
+        }
+    }
+
+    public void testCountPoints() throws IOException {
+        try (FileTrajectoryStore store = new FileTrajectoryStore(file)) {
+            store.saveTrajectory(TestTrajectories.createTrajectory(1));
+            store.saveTrajectory(TestTrajectories.createTrajectory(2));
+            store.deletePoint(2, 4);
+            // Points without a trajectory record are not counted
+            store.savePoint(new Point(0, 0), 3);
+
+            // Cells of 4 pixels: (1, 2) is in the first, (3, 4) in the third,
+            // and (5, 6) in the fourth
+            assertTrue(Arrays.equals(new int[]{2, 0, 2, 1}, store.countPoints(4, 2, 2)));
+            // Points outside the grid are not counted
+            assertTrue(Arrays.equals(new int[]{2}, store.countPoints(4, 1, 1)));
+        }
+    }
+
+    public void testLoadChanges() throws IOException {
+        try (FileTrajectoryStore store = new FileTrajectoryStore(file)) {
+            store.saveTrajectory(TestTrajectories.createTrajectory(1));
+            final long version = store.currentVersion();
+            assertTrue(store.loadChanges(version, version).isEmpty());
+
+            store.deletePoint(1, 0);
+            final Point moved = new Point(7, 7);
+            moved.setFrame(1);
+            store.savePoint(moved, 1);
+            final ChangeSet changes = store.loadChanges(version, store.currentVersion());
+            assertEquals(1, changes.getDeletedPoints().size());
+            assertTrue(changes.getTrajectories().isEmpty());
+            assertEquals(1, changes.getPoints().size());
+            assertEquals(7, changes.getPoints().get(0).getX());
+            assertEquals(1, changes.getPoints().get(0).getTrajectoryID());
+        }
+    }
+
+    public void testRollback() throws IOException {
+        try (FileTrajectoryStore store = new FileTrajectoryStore(file)) {
+            store.saveTrajectory(TestTrajectories.createTrajectory(1));
+            final long version = store.currentVersion();
+            store.beginTransaction();
+            store.deleteTrajectory(1);
+            store.rollbackTransaction();
+            assertEquals(version, store.currentVersion());
+            assertEquals(1, store.loadAll().size());
+        }
+    }
+
+    /**
+     * Records after the last commit are discarded when the file is opened
+     */
+    public void testUnfinishedTransaction() throws IOException {
+        final long length;
+        try (FileTrajectoryStore store = new FileTrajectoryStore(file)) {
+            store.saveTrajectory(TestTrajectories.createTrajectory(1));
+            length = store.currentVersion();
+        }
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            // Part of a delete trajectory record
+            raw.seek(length);
+            raw.writeByte(3);
+            raw.writeShort(0);
+        }
+        try (FileTrajectoryStore store = new FileTrajectoryStore(file)) {
+            assertEquals(length, store.currentVersion());
+            assertEquals(1, store.loadAll().size());
+            store.deleteTrajectory(1);
+            assertTrue(store.loadAll().isEmpty());
+        }
+    }
+
+    public void testOnlyOneProcess() throws IOException {
+        try (FileTrajectoryStore store = new FileTrajectoryStore(file)) {
+            assertTrue(store.loadAll().isEmpty());
+            try {
+                new FileTrajectoryStore(file).close();
+                fail("Opened a file that was already open");
+            }
+            catch (IOException ex) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.samcrow.frameviewer.io3;
+
+import org.samcrow.frameviewer.trajectory.InteractionPoint;
+import org.samcrow.frameviewer.trajectory.InteractionType;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ * Creates trajectories for the persistence tests
+ *
+ * @author samcrow
+ */
+final class TestTrajectories {
+
+    private TestTrajectories() {
+    }
+
+    /**
+     * Creates a trajectory with a point at frame 0, a point carrying food at
+     * frame 1, and an interaction with the ant with the next ID at frame 4
+     */
+    static Trajectory createTrajectory(int id) {
+        final Trajectory trajectory = new Trajectory(0, 10, id);
+        trajectory.setFromAction(Trajectory.FromAction.OutOfTunnel);
+        trajectory.set(0, new Point(1, 2));
+        final Point carrying = new Point(3, 4);
+        carrying.setActivity(Point.Activity.CarryingFood);
+        trajectory.set(1, carrying);
+        final InteractionPoint iPoint = new InteractionPoint(5, 6);
+        iPoint.setType(InteractionType.TwoWay);
+        iPoint.setMetAntId(id + 1);
+        iPoint.setMetAntActivity(Point.Activity.CarryingSomethingElse);
+        trajectory.set(4, iPoint);
+        return trajectory;
+    }
+}
@@ -0,0 +1,100 @@
+package org.samcrow.frameviewer.io3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ *
+ * @author samcrow
+ */
+public class TrajectoryWindowTest extends TestCase {
+
+    public TrajectoryWindowTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Creates a trajectory with a point on every frame in a range
+     */
+    private static Trajectory createTrajectory(int id, int firstFrame, int lastFrame) {
+        final Trajectory trajectory = new Trajectory(firstFrame, firstFrame + 1, id);
+        for (int frame = firstFrame; frame <= lastFrame; frame++) {
+            trajectory.set(frame, new Point(frame, frame));
+        }
+        return trajectory;
+    }
+
+    public void testPrefetchInPlaybackDirection() {
+        final TrajectoryWindow window = new TrajectoryWindow(100, 50, 1000);
+        assertTrue(Arrays.equals(new int[]{900, 1100}, window.windowAround(1000)));
+
+        window.moveTo(1000);
+        assertTrue(Arrays.equals(new int[]{900, 1150}, window.windowAround(1000)));
+        window.moveTo(990);
+        assertTrue(Arrays.equals(new int[]{840, 1090}, window.windowAround(990)));
+        // Staying on a frame keeps the last direction
+        window.moveTo(990);
+        assertTrue(Arrays.equals(new int[]{840, 1090}, window.windowAround(990)));
+    }
+
+    public void testNeedsLoad() {
+        final TrajectoryWindow window = new TrajectoryWindow(100, 0, 1000);
+        assertTrue(window.needsLoad(0));
+        window.setCoverage(900, 1100);
+        assertFalse(window.needsLoad(1000));
+        assertFalse(window.needsLoad(1050));
+        assertTrue(window.needsLoad(1051));
+        assertTrue(window.needsLoad(949));
+        window.invalidateCoverage();
+        assertTrue(window.needsLoad(1000));
+    }
+
+    public void testUnloadedSummaries() {
+        final TrajectoryWindow window = new TrajectoryWindow();
+        window.addUnloaded(new TrajectorySummary(1, 0, 10, 11));
+        window.addUnloaded(new TrajectorySummary(2, 50, 60, 11));
+        assertEquals(1, window.findUnloaded(5, 20).size());
+        assertEquals(2, window.findUnloaded(0, 100).size());
+
+        // A point written by another user extends the trajectory
+        window.pointWritten(1, 30);
+        assertEquals(1, window.findUnloaded(25, 35).size());
+        assertEquals(12, window.findUnloaded(25, 35).get(0).getPointCount());
+        // A point of a new trajectory creates a summary
+        window.pointWritten(3, 80);
+        assertTrue(window.isUnloaded(3));
+        assertEquals(3, window.getUnloadedCount());
+
+        assertNotNull(window.removeUnloaded(2));
+        assertNull(window.removeUnloaded(2));
+        assertTrue(window.findUnloaded(50, 60).isEmpty());
+    }
+
+    public void testChooseEvictions() {
+        final TrajectoryWindow window = new TrajectoryWindow(100, 0, 25);
+        window.setCoverage(1000, 1200);
+        final Trajectory inWindow = createTrajectory(1, 1100, 1109);
+        final Trajectory near = createTrajectory(2, 1250, 1259);
+        final Trajectory far = createTrajectory(3, 0, 9);
+        final Trajectory farthest = createTrajectory(4, 5000, 5009);
+        final List<Trajectory> loaded = new ArrayList<>(Arrays.asList(inWindow, near, far, farthest));
+        final Set<Trajectory> noneEdited = Collections.newSetFromMap(new IdentityHashMap<Trajectory, Boolean>());
+
+        // 40 points, so 2 trajectories must be unloaded
+        assertEquals(Arrays.asList(farthest, far), window.chooseEvictions(loaded, noneEdited));
+
+        final Set<Trajectory> edited = Collections.newSetFromMap(new IdentityHashMap<Trajectory, Boolean>());
+        edited.add(farthest);
+        assertEquals(Arrays.asList(far, near), window.chooseEvictions(loaded, edited));
+
+        // Under the budget
+        assertTrue(window.chooseEvictions(Arrays.asList(inWindow, near), noneEdited).isEmpty());
+    }
+}
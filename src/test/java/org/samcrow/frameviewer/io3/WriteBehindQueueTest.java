@@ -0,0 +1,383 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import junit.framework.TestCase;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ *
+ * @author samcrow
+ */
+public class WriteBehindQueueTest extends TestCase {
+
+    /**
+     * A file store that records the writes in each committed transaction,
+     * and can be made to fail
+     */
+    private static class RecordingStore extends FileTrajectoryStore {
+
+        /**
+         * The writes in each committed transaction
+         */
+        final List<List<String>> transactions = new ArrayList<>();
+
+        private List<String> current;
+
+        /**
+         * The number of writes that will fail
+         */
+        int failures;
+
+        /**
+         * The exception to throw when a write fails
+         */
+        IOException failure;
+
+        /**
+         * The unchecked exception to throw instead of {@link #failure}, or
+         * null
+         */
+        RuntimeException runtimeFailure;
+
+        RecordingStore(File file) throws IOException {
+            super(file);
+        }
+
+        @Override
+        public void savePoint(Point point, int trajectoryId) throws IOException {
+            maybeFail();
+            super.savePoint(point, trajectoryId);
+            current.add("save " + trajectoryId + ":" + point.getFrame() + " at " + point.getX());
+        }
+
+        @Override
+        public void deletePoint(int trajectoryId, int frame) throws IOException {
+            maybeFail();
+            super.deletePoint(trajectoryId, frame);
+            current.add("delete " + trajectoryId + ":" + frame);
+        }
+
+        @Override
+        public void beginTransaction() {
+            super.beginTransaction();
+            current = new ArrayList<>();
+        }
+
+        @Override
+        public void commitTransaction() throws IOException {
+            super.commitTransaction();
+            transactions.add(current);
+        }
+
+        private void maybeFail() throws IOException {
+            if (failures > 0) {
+                failures--;
+                if (runtimeFailure != null) {
+                    throw runtimeFailure;
+                }
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Records the writes discarded by a queue
+     */
+    private static class RecordingListener implements WriteBehindQueue.Listener {
+
+        volatile int discarded;
+
+        volatile IOException failure;
+
+        @Override
+        public void pendingWritesChanged(int count) {
+        }
+
+        @Override
+        public synchronized void writeFailed(IOException ex, int discarded) {
+            this.discarded += discarded;
+            failure = ex;
+        }
+    }
+
+    private File file;
+
+    private File journalFile;
+
+    private RecordingStore store;
+
+    private RecordingListener listener;
+
+    public WriteBehindQueueTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("store", ".trajectories");
+        file.delete();
+        journalFile = File.createTempFile("writes", ".journal");
+        journalFile.delete();
+        store = new RecordingStore(file);
+        store.saveTrajectory(new Trajectory(0, 1, 1));
+        listener = new RecordingListener();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        store.close();
+        file.delete();
+        new File(file.getPath() + ".lock").delete();
+        journalFile.delete();
+        new File(journalFile.getPath() + ".retry").delete();
+        new File(journalFile.getPath() + ".failed").delete();
+    }
+
+    private static WriteBehindQueue.Write savePoint(int frame, int x) {
+        final Point point = new Point(x, 0);
+        point.setFrame(frame);
+        return new WriteBehindQueue.SavePoint(1, frame, point);
+    }
+
+    /**
+     * Waits until all writes have been applied or discarded, while they
+     * are being tried again
+     */
+    private static void flushRetrying(WriteBehindQueue queue) throws InterruptedException {
+        while (true) {
+            try {
+                queue.flush();
+                return;
+            }
+            catch (IOException ex) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    public void testCoalescing() throws InterruptedException, IOException {
+        final WriteBehindQueue queue = new WriteBehindQueue(store, new ReentrantLock(), listener);
+        // Holding the queue's lock stops the background thread from taking
+        // writes until they have all been queued
+        synchronized (queue) {
+            queue.enqueue(savePoint(4, 1));
+            queue.enqueue(savePoint(5, 2));
+            queue.enqueue(savePoint(4, 3));
+            queue.enqueue(new WriteBehindQueue.SavePoint(1, 6, null));
+            assertEquals(3, queue.size());
+        }
+        queue.flush();
+        queue.close();
+
+        // The first write to frame 4 is replaced and moved after frame 5
+        assertEquals(Arrays.asList(Arrays.asList("save 1:5 at 2", "save 1:4 at 3", "delete 1:6")), store.transactions);
+        assertEquals(0, queue.size());
+    }
+
+    public void testBatchSize() throws InterruptedException, IOException {
+        final WriteBehindQueue queue = new WriteBehindQueue(store, new ReentrantLock(), listener);
+        synchronized (queue) {
+            for (int frame = 0; frame < WriteBehindQueue.MAX_BATCH_SIZE + 10; frame++) {
+                queue.enqueue(savePoint(frame, frame));
+            }
+        }
+        queue.flush();
+        queue.close();
+
+        assertEquals(2, store.transactions.size());
+        assertEquals(WriteBehindQueue.MAX_BATCH_SIZE, store.transactions.get(0).size());
+        assertEquals(10, store.transactions.get(1).size());
+    }
+
+    /**
+     * Writes queued together are applied in one transaction, even if it is
+     * larger than the maximum batch size
+     */
+    public void testGroupNotSplit() throws InterruptedException, IOException {
+        final WriteBehindQueue queue = new WriteBehindQueue(store, new ReentrantLock(), listener);
+        final List<WriteBehindQueue.Write> group = new ArrayList<>();
+        for (int frame = 10; frame < WriteBehindQueue.MAX_BATCH_SIZE + 10; frame++) {
+            group.add(savePoint(frame, frame));
+        }
+        synchronized (queue) {
+            for (int frame = 0; frame < 10; frame++) {
+                queue.enqueue(savePoint(frame, frame));
+            }
+            queue.enqueueAll(group);
+            queue.enqueue(savePoint(1000, 0));
+        }
+        queue.flush();
+        queue.close();
+
+        assertEquals(2, store.transactions.size());
+        assertEquals(WriteBehindQueue.MAX_BATCH_SIZE + 10, store.transactions.get(0).size());
+        assertEquals(Arrays.asList("save 1:1000 at 0"), store.transactions.get(1));
+    }
+
+    public void testRetry() throws InterruptedException, IOException {
+        store.failures = 2;
+        store.failure = new IOException(new SQLTransientException("Lock wait timeout exceeded"));
+        final WriteBehindQueue queue = new WriteBehindQueue(store, new ReentrantLock(), listener);
+        queue.enqueue(savePoint(4, 1));
+        try {
+            queue.flush();
+            fail("Flushed while the write was failing");
+        }
+        catch (IOException ex) {
+            assertSame(store.failure, ex.getCause());
+        }
+        flushRetrying(queue);
+        queue.close();
+
+        assertEquals(0, store.failures);
+        assertEquals(0, listener.discarded);
+        assertEquals(Arrays.asList(Arrays.asList("save 1:4 at 1")), store.transactions);
+        assertEquals(1, store.loadAll().get(0).getPointCount());
+    }
+
+    public void testPermanentFailureDiscards() throws InterruptedException, IOException {
+        store.failures = 1;
+        store.failure = new IOException("Table does not exist");
+        final WriteBehindQueue queue = new WriteBehindQueue(store, new ReentrantLock(), listener);
+        queue.enqueueAll(Arrays.asList(savePoint(4, 1), savePoint(5, 2)));
+        queue.flush();
+        queue.enqueue(savePoint(6, 3));
+        queue.flush();
+        queue.close();
+
+        assertEquals(2, listener.discarded);
+        // The transaction was rolled back
+        assertEquals(Arrays.asList(Arrays.asList("save 1:6 at 3")), store.transactions);
+        assertEquals(1, store.loadAll().get(0).getPointCount());
+    }
+
+    public void testCheckpoint() throws InterruptedException, IOException {
+        WriteBehindQueue queue = new WriteBehindQueue(store, new ReentrantLock(), listener, new WriteJournal(journalFile));
+        queue.enqueue(savePoint(4, 1));
+        queue.flush();
+        queue.close();
+        // Everything was applied, so the journal is empty
+        assertEquals(WriteJournal.HEADER_LENGTH, journalFile.length());
+
+        // Closed while the write is waiting to be tried again
+        store.failures = Integer.MAX_VALUE;
+        store.failure = new IOException(new SQLTransientException("Lock wait timeout exceeded"));
+        queue = new WriteBehindQueue(store, new ReentrantLock(), listener, new WriteJournal(journalFile));
+        queue.enqueue(savePoint(5, 2));
+        try {
+            queue.flush();
+            fail("Flushed while the write was failing");
+        }
+        catch (IOException ex) {
+            // Expected
+        }
+        queue.close();
+        assertEquals(0, listener.discarded);
+
+        // The write is applied from the journal by the next queue
+        store.failures = 0;
+        final WriteJournal journal = new WriteJournal(journalFile);
+        assertEquals(1, journal.getUnappliedWrites().size());
+        queue = new WriteBehindQueue(store, new ReentrantLock(), listener, journal);
+        queue.flush();
+        queue.close();
+        assertEquals(Arrays.asList(Arrays.asList("save 1:4 at 1"), Arrays.asList("save 1:5 at 2")), store.transactions);
+        assertEquals(WriteJournal.HEADER_LENGTH, journalFile.length());
+    }
+
+    public void testConnectionFailureIsTransient() {
+        assertTrue(WriteBehindQueue.isTransient(new IOException(new SQLTransientException("Lock wait timeout exceeded"))));
+        // MySQL reports operations on a closed connection this way
+        assertTrue(WriteBehindQueue.isTransient(new IOException(
+                new SQLNonTransientConnectionException("No operations allowed after connection closed", "08003"))));
+        assertTrue(WriteBehindQueue.isTransient(new IOException(new SQLException("Communications link failure", "08S01"))));
+        assertFalse(WriteBehindQueue.isTransient(new IOException(new SQLException("Syntax error", "42000"))));
+        assertFalse(WriteBehindQueue.isTransient(new IOException("Disk full")));
+    }
+
+    /**
+     * A write that fails permanently is moved out of the journal, and is not
+     * tried again
+     */
+    public void testPermanentFailureIsKept() throws InterruptedException, IOException {
+        store.failures = 1;
+        store.failure = new IOException("Table does not exist");
+        WriteBehindQueue queue = new WriteBehindQueue(store, new ReentrantLock(), listener,
+                new WriteJournal(journalFile), new DeadLetters(journalFile));
+        queue.enqueue(savePoint(4, 1));
+        queue.flush();
+        queue.enqueue(savePoint(5, 2));
+        queue.flush();
+        queue.close();
+        assertEquals(1, listener.discarded);
+        assertTrue(listener.failure.getMessage().contains(journalFile.getPath() + ".failed"));
+        assertEquals(Arrays.asList(Arrays.asList("save 1:5 at 2")), store.transactions);
+        // The checkpoint moved past the discarded write
+        assertEquals(WriteJournal.HEADER_LENGTH, journalFile.length());
+
+        final WriteJournal failed = new WriteJournal(new File(journalFile.getPath() + ".failed"));
+        try {
+            assertEquals(1, failed.getUnappliedWrites().size());
+            assertEquals(4, ((WriteBehindQueue.SavePoint) failed.getUnappliedWrites().get(0)).getFrame());
+        }
+        finally {
+            failed.close();
+        }
+
+        queue = new WriteBehindQueue(store, new ReentrantLock(), listener, new WriteJournal(journalFile), new DeadLetters(journalFile));
+        queue.flush();
+        queue.close();
+        assertEquals(1, store.transactions.size());
+    }
+
+    /**
+     * A write that throws an unchecked exception is discarded, and does not
+     * stop the queue
+     */
+    public void testRuntimeFailureDiscards() throws InterruptedException, IOException {
+        store.failures = 1;
+        store.runtimeFailure = new IllegalStateException("Unexpected state");
+        final WriteBehindQueue queue = new WriteBehindQueue(store, new ReentrantLock(), listener,
+                new WriteJournal(journalFile), new DeadLetters(journalFile));
+        queue.enqueue(savePoint(4, 1));
+        queue.flush();
+        assertEquals(1, listener.discarded);
+        assertSame(store.runtimeFailure, listener.failure.getCause().getCause());
+        assertEquals(0, queue.size());
+
+        queue.enqueue(savePoint(5, 2));
+        queue.flush();
+        queue.close();
+        assertEquals(Arrays.asList(Arrays.asList("save 1:5 at 2")), store.transactions);
+        assertEquals(WriteJournal.HEADER_LENGTH, journalFile.length());
+    }
+
+    /**
+     * Writes discarded because the connection was lost are applied by the
+     * next queue, before the writes left in the journal
+     */
+    public void testConnectionFailureIsRetried() throws InterruptedException, IOException {
+        final DeadLetters deadLetters = new DeadLetters(journalFile);
+        deadLetters.add(Arrays.asList(savePoint(4, 1)), true);
+        deadLetters.close();
+        final WriteJournal journal = new WriteJournal(journalFile);
+        journal.append(savePoint(5, 2));
+        journal.close();
+
+        WriteBehindQueue queue = new WriteBehindQueue(store, new ReentrantLock(), listener, new WriteJournal(journalFile), new DeadLetters(journalFile));
+        queue.flush();
+        queue.close();
+        assertEquals(Arrays.asList(Arrays.asList("save 1:4 at 1", "save 1:5 at 2")), store.transactions);
+        assertEquals(WriteJournal.HEADER_LENGTH, journalFile.length());
+        assertEquals(WriteJournal.HEADER_LENGTH, new File(journalFile.getPath() + ".retry").length());
+    }
+}
@@ -0,0 +1,115 @@
+package org.samcrow.frameviewer.io3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import junit.framework.TestCase;
+import org.samcrow.frameviewer.trajectory.InteractionPoint;
+import org.samcrow.frameviewer.trajectory.InteractionType;
+import org.samcrow.frameviewer.trajectory.Point;
+import org.samcrow.frameviewer.trajectory.Trajectory;
+
+/**
+ *
+ * @author samcrow
+ */
+public class WriteJournalTest extends TestCase {
+
+    private File file;
+
+    public WriteJournalTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("writes", ".journal");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    public void testUnappliedWritesAreRead() throws IOException {
+        WriteJournal journal = new WriteJournal(file);
+        assertTrue(journal.getUnappliedWrites().isEmpty());
+        journal.append(new WriteBehindQueue.SaveTrajectory(TestTrajectories.createTrajectory(1).snapshot()));
+        final Point point = new Point(7, 8);
+        point.setFrame(4);
+        point.setActivity(Point.Activity.CarryingFood);
+        journal.append(new WriteBehindQueue.SavePoint(1, 4, point));
+        journal.append(new WriteBehindQueue.SavePoint(1, 3, null));
+        journal.append(new WriteBehindQueue.DeleteTrajectory(2));
+        journal.close();
+
+        journal = new WriteJournal(file);
+        try {
+            final List<WriteBehindQueue.Write> writes = journal.getUnappliedWrites();
+            assertEquals(4, writes.size());
+
+            final Trajectory trajectory = ((WriteBehindQueue.SaveTrajectory) writes.get(0)).getSnapshot();
+            assertEquals(1, trajectory.getId());
+            assertEquals(0, trajectory.getFirstFrame());
+            assertEquals(Trajectory.FromAction.OutOfTunnel, trajectory.getFromAction());
+            assertEquals(2, trajectory.get(0).getY());
+            assertEquals(InteractionType.TwoWay, ((InteractionPoint) trajectory.get(4)).getType());
+
+            final WriteBehindQueue.SavePoint savePoint = (WriteBehindQueue.SavePoint) writes.get(1);
+            assertEquals(1, savePoint.getTrajectoryId());
+            assertEquals(Point.Activity.CarryingFood, savePoint.getPoint().getActivity());
+            assertNull(((WriteBehindQueue.SavePoint) writes.get(2)).getPoint());
+            assertEquals(3, ((WriteBehindQueue.SavePoint) writes.get(2)).getFrame());
+            assertEquals(2, ((WriteBehindQueue.DeleteTrajectory) writes.get(3)).getTrajectoryId());
+        }
+        finally {
+            journal.close();
+        }
+    }
+
+    public void testCheckpoint() throws IOException {
+        WriteJournal journal = new WriteJournal(file);
+        journal.append(new WriteBehindQueue.DeleteTrajectory(1));
+        final long second = journal.append(new WriteBehindQueue.DeleteTrajectory(2));
+        journal.checkpoint(second);
+        journal.close();
+
+        journal = new WriteJournal(file);
+        assertEquals(1, journal.getUnappliedWrites().size());
+        assertEquals(second, journal.getUnappliedWrites().get(0).position);
+        // Everything has been applied
+        journal.checkpoint(journal.end());
+        assertEquals(WriteJournal.HEADER_LENGTH, file.length());
+        journal.close();
+
+        journal = new WriteJournal(file);
+        assertTrue(journal.getUnappliedWrites().isEmpty());
+        journal.close();
+    }
+
+    /**
+     * An incomplete record at the end of the journal is discarded
+     */
+    public void testIncompleteRecord() throws IOException {
+        WriteJournal journal = new WriteJournal(file);
+        journal.append(new WriteBehindQueue.DeleteTrajectory(1));
+        final long length = journal.end();
+        journal.close();
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(length);
+            raw.writeInt(20);
+            raw.writeByte(2);
+        }
+
+        journal = new WriteJournal(file);
+        try {
+            assertEquals(1, journal.getUnappliedWrites().size());
+            assertEquals(length, file.length());
+        }
+        finally {
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.samcrow.frameviewer.trajectory;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author samcrow
+ */
+public class EnumCodesTest extends TestCase {
+
+    public EnumCodesTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Codes are stored in databases, so they must not change
+     */
+    public void testCodesAreStable() {
+        assertEquals(0, Point.Activity.NotCarrying.getCode());
+        assertEquals(1, Point.Activity.CarryingFood.getCode());
+        assertEquals(2, Point.Activity.CarryingSomethingElse.getCode());
+
+        assertEquals(0, InteractionType.Performed.getCode());
+        assertEquals(1, InteractionType.Received.getCode());
+        assertEquals(2, InteractionType.TwoWay.getCode());
+        assertEquals(3, InteractionType.Unknown.getCode());
+
+        assertEquals(0, Trajectory.FromAction.Other.getCode());
+        assertEquals(1, Trajectory.FromAction.OutOfTunnel.getCode());
+        assertEquals(2, Trajectory.FromAction.FromOutside.getCode());
+        assertEquals(3, Trajectory.FromAction.InEntranceChamber.getCode());
+
+        assertEquals(0, Trajectory.ToAction.Other.getCode());
+        assertEquals(1, Trajectory.ToAction.IntoTunnel.getCode());
+        assertEquals(2, Trajectory.ToAction.ToOutside.getCode());
+        assertEquals(3, Trajectory.ToAction.InEntranceChamber.getCode());
+    }
+
+    public void testFromCode() {
+        for (Point.Activity activity : Point.Activity.values()) {
+            assertSame(activity, Point.Activity.fromCode(activity.getCode()));
+        }
+        for (InteractionType type : InteractionType.values()) {
+            assertSame(type, InteractionType.fromCode(type.getCode()));
+        }
+        for (Trajectory.FromAction action : Trajectory.FromAction.values()) {
+            assertSame(action, Trajectory.FromAction.fromCode(action.getCode()));
+        }
+        for (Trajectory.ToAction action : Trajectory.ToAction.values()) {
+            assertSame(action, Trajectory.ToAction.fromCode(action.getCode()));
+        }
+
+        // Unknown codes give the same values as unknown names
+        assertSame(Point.Activity.safeValueOf("?"), Point.Activity.fromCode(-1));
+        assertSame(InteractionType.safeValueOf("?"), InteractionType.fromCode(100));
+        assertSame(Trajectory.FromAction.safeValueOf("?"), Trajectory.FromAction.fromCode(100));
+        assertSame(Trajectory.ToAction.safeValueOf("?"), Trajectory.ToAction.fromCode(100));
+    }
+}
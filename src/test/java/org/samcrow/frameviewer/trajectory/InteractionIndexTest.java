@@ -0,0 +1,65 @@
+package org.samcrow.frameviewer.trajectory;
+
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author samcrow
+ */
+public class InteractionIndexTest extends TestCase {
+
+    public InteractionIndexTest(String testName) {
+        super(testName);
+    }
+
+    public void testFindPartner() {
+        final InteractionIndex index = new InteractionIndex();
+
+        final Trajectory focal = new Trajectory(0, 10, 1);
+        final InteractionPoint focalPoint = new InteractionPoint(5, 5);
+        focalPoint.setMetAntId(2);
+        focal.set(0, new Point(0, 0));
+        focal.set(3, focalPoint);
+
+        final Trajectory met = new Trajectory(0, 10, 2);
+        final InteractionPoint metPoint = new InteractionPoint(6, 6);
+        metPoint.setMetAntId(1);
+        met.set(3, metPoint);
+
+        index.addAll(focal);
+        index.addAll(met);
+        assertEquals(2, index.size());
+        assertSame(metPoint, index.findPartner(focalPoint));
+        assertSame(focalPoint, index.findPartner(metPoint));
+        assertNull(index.get(1, 0));
+
+        // A point that has been replaced is not removed
+        index.remove(2, 3, new InteractionPoint(0, 0));
+        assertSame(metPoint, index.get(2, 3));
+
+        index.removeAll(met);
+        assertEquals(1, index.size());
+        assertNull(index.findPartner(focalPoint));
+    }
+
+    public void testTrajectoryInteractionPoints() {
+        final Trajectory trajectory = new Trajectory(0, 10, 1);
+        final InteractionPoint first = new InteractionPoint(1, 1);
+        final InteractionPoint second = new InteractionPoint(2, 2);
+        trajectory.set(8, second);
+        trajectory.set(2, first);
+        trajectory.set(5, new Point(3, 3));
+
+        List<InteractionPoint> points = trajectory.getInteractionPoints();
+        assertEquals(2, points.size());
+        assertSame(first, points.get(0));
+        assertSame(second, points.get(1));
+
+        // Demote one point
+        trajectory.set(8, new Point(second));
+        points = trajectory.getInteractionPoints();
+        assertEquals(1, points.size());
+        assertSame(first, points.get(0));
+    }
+}
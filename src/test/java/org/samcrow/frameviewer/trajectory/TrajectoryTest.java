@@ -103,4 +103,132 @@ public class TrajectoryTest extends TestCase {
         assertFalse(iter.hasNext());
     }
     
+    public void testPointsBetween() {
+        Trajectory t = new Trajectory(10, 30);
+        t.set(10, new Point(1, 10));
+        t.set(15, new Point(1, 15));
+        t.set(20, new Point(1, 20));
+        t.set(30, new Point(1, 30));
+        
+        Iterator<Point> iter = t.pointsBetween(12, 20).iterator();
+        assertTrue(iter.hasNext());
+        assertEquals(new Point(1, 15), iter.next());
+        assertTrue(iter.hasNext());
+        assertEquals(new Point(1, 20), iter.next());
+        assertFalse(iter.hasNext());
+        
+        // Ranges that extend past the trajectory are limited to it
+        iter = t.pointsBetween(0, 100).iterator();
+        int count = 0;
+        while (iter.hasNext()) {
+            iter.next();
+            count++;
+        }
+        assertEquals(4, count);
+        
+        assertFalse(t.pointsBetween(31, 100).iterator().hasNext());
+        assertFalse(t.pointsBetween(0, 9).iterator().hasNext());
+    }
+    
+    public void testPointViews() {
+        Trajectory t = new Trajectory(0, 10, 7);
+        final Point point = new Point(1, 2);
+        t.set(3, point);
+
+        // Changes through any view are stored in the trajectory
+        point.setX(5);
+        assertEquals(5, t.get(3).getX());
+        t.get(3).setY(6);
+        assertEquals(6, point.getY());
+        assertEquals(7, t.get(3).getTrajectoryID());
+
+        // A detached point keeps its values when the frame is replaced
+        final Point replaced = t.get(3);
+        replaced.detach();
+        t.set(3, new Point(8, 9));
+        assertEquals(5, replaced.getX());
+        assertEquals(8, t.get(3).getX());
+
+        t.set(3, null);
+        assertNull(t.get(3));
+    }
+    
+    public void testSetOutOfOrder() {
+        Trajectory t = new Trajectory(0, 1000);
+        t.set(900, new Point(9, 0));
+        t.set(10, new Point(1, 0));
+        t.set(500, new Point(5, 0));
+        t.set(10, new Point(2, 0));
+        
+        Iterator<Point> iter = t.iterator();
+        assertEquals(2, iter.next().getX());
+        assertEquals(5, iter.next().getX());
+        assertEquals(9, iter.next().getX());
+        assertFalse(iter.hasNext());
+        
+        assertNull(t.get(11));
+        assertEquals(9, t.getLastPoint().getX());
+        t.set(900, null);
+        assertEquals(5, t.getLastPoint().getX());
+    }
+    
+    public void testSnapshot() {
+        final Trajectory t = new Trajectory(0, 10, 4);
+        t.set(0, new Point(1, 1));
+        t.set(5, new Point(2, 2));
+        final InteractionPoint interaction = new InteractionPoint(3, 3);
+        t.set(8, interaction);
+
+        final Trajectory snapshot = t.snapshot();
+        assertTrue(snapshot.isReadOnly());
+        assertSame(snapshot, t.snapshot());
+        assertEquals(4, snapshot.getId());
+        assertEquals(2, snapshot.get(5).getX());
+
+        // Changes to the original do not change the snapshot
+        t.get(5).setX(20);
+        assertEquals(2, snapshot.get(5).getX());
+        final Trajectory second = t.snapshot();
+        assertNotSame(snapshot, second);
+        assertEquals(20, second.get(5).getX());
+
+        // Interaction points are copied
+        interaction.setType(InteractionType.Received);
+        final Trajectory third = t.snapshot();
+        assertNotSame(second, third);
+        assertNotSame(interaction, third.get(8));
+        assertEquals(interaction.getType(), ((InteractionPoint) third.get(8)).getType());
+
+        // Changing the other point of an interaction changes this point
+        final Trajectory other = new Trajectory(0, 10, 5);
+        final InteractionPoint otherInteraction = new InteractionPoint(3, 3);
+        other.set(8, otherInteraction);
+        interaction.setOtherPoint(otherInteraction);
+        otherInteraction.setOtherPoint(interaction);
+        assertSame(third, t.snapshot());
+        otherInteraction.setMetAntActivity(Point.Activity.CarryingFood);
+        assertNotSame(third, t.snapshot());
+        assertEquals(Point.Activity.CarryingFood, t.snapshot().get(8).getActivity());
+        // Points that are no longer in the trajectory do not change it
+        t.set(8, null);
+        final Trajectory removed = t.snapshot();
+        interaction.setType(InteractionType.Unknown);
+        assertSame(removed, t.snapshot());
+
+        try {
+            removed.set(1, new Point(0, 0));
+            fail("A snapshot should not be changed");
+        }
+        catch (UnsupportedOperationException e) {
+            // Expected
+        }
+        try {
+            removed.get(0).setY(9);
+            fail("A point in a snapshot should not be changed");
+        }
+        catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
 }
@@ -0,0 +1,58 @@
+package org.samcrow.frameviewer.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author samcrow
+ */
+public class IntMapTest extends TestCase {
+
+    public IntMapTest(String testName) {
+        super(testName);
+    }
+
+    public void testPutGetRemove() {
+        final IntMap<String> map = new IntMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(3));
+
+        assertNull(map.put(3, "three"));
+        assertNull(map.put(-7, "minus seven"));
+        assertEquals("three", map.put(3, "THREE"));
+
+        assertEquals(2, map.size());
+        assertEquals("THREE", map.get(3));
+        assertEquals("minus seven", map.get(-7));
+
+        assertEquals("THREE", map.remove(3));
+        assertNull(map.get(3));
+        assertNull(map.remove(3));
+        assertEquals(1, map.size());
+    }
+
+    public void testMatchesHashMap() {
+        final IntMap<Integer> map = new IntMap<>();
+        final Map<Integer, Integer> reference = new HashMap<>();
+        final Random random = new Random(1);
+
+        for (int i = 0; i < 20000; i++) {
+            // A small key range makes removals hit existing keys
+            final int key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                assertEquals(reference.remove(key), map.remove(key));
+            }
+            else {
+                assertEquals(reference.put(key, i), map.put(key, i));
+            }
+            assertEquals(reference.size(), map.size());
+        }
+        for (int key = -1000; key < 1000; key++) {
+            assertEquals(reference.get(key), map.get(key));
+        }
+    }
+
+}